@@ -0,0 +1,80 @@
+package com.kvaser.canlib;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class SynchronizedByteRingBufferTest extends TestCase {
+
+  public void testWriteDrain() throws InterruptedException {
+    SynchronizedByteRingBuffer buffer = new SynchronizedByteRingBuffer(64);
+    byte[] block = {1, 2, 3, 4};
+    assertTrue("Write expected to succeed.", buffer.write(block, 0, block.length));
+    byte[] dst = new byte[64];
+    assertEquals("Wrong number of bytes drained.", 4, buffer.drainTo(dst, dst.length));
+    assertTrue("Wrong bytes drained.", Arrays.equals(block, Arrays.copyOf(dst, 4)));
+    assertEquals("Buffer expected to be empty.", 0, buffer.size());
+  }
+
+  public void testWriteWithOffset() throws InterruptedException {
+    SynchronizedByteRingBuffer buffer = new SynchronizedByteRingBuffer(64);
+    byte[] block = {1, 2, 3, 4, 5, 6};
+    buffer.write(block, 2, 3);
+    byte[] dst = new byte[8];
+    assertEquals("Wrong number of bytes drained.", 3, buffer.drainTo(dst, dst.length));
+    assertEquals("Wrong value drained.", 3, dst[0]);
+    assertEquals("Wrong value drained.", 5, dst[2]);
+  }
+
+  public void testDrainIsLimitedToMaxLength() throws InterruptedException {
+    SynchronizedByteRingBuffer buffer = new SynchronizedByteRingBuffer(128);
+    byte[] block = new byte[32];
+    for (int i = 0; i < 3; i++) {
+      Arrays.fill(block, (byte) i);
+      buffer.write(block, 0, block.length);
+    }
+    byte[] dst = new byte[64];
+    assertEquals("Wrong number of bytes drained.", 64, buffer.drainTo(dst, dst.length));
+    assertEquals("Wrong value drained.", 1, dst[63]);
+    assertEquals("Wrong number of bytes drained.", 32, buffer.drainTo(dst, dst.length));
+    assertEquals("Wrong value drained.", 2, dst[0]);
+  }
+
+  public void testNoWriteWhenFull() throws InterruptedException {
+    SynchronizedByteRingBuffer buffer = new SynchronizedByteRingBuffer(8);
+    byte[] block = {1, 2, 3, 4, 5};
+    assertTrue("Write expected to succeed.", buffer.write(block, 0, block.length));
+    assertFalse("Write expected to fail.", buffer.write(block, 0, block.length));
+    assertEquals("Buffer content changed by failed write.", 5, buffer.size());
+  }
+
+  public void testWrapAround() throws InterruptedException {
+    SynchronizedByteRingBuffer buffer = new SynchronizedByteRingBuffer(10);
+    byte[] block = {1, 2, 3, 4, 5, 6};
+    byte[] dst = new byte[10];
+    buffer.write(block, 0, block.length);
+    buffer.drainTo(dst, 4);
+    buffer.write(block, 0, block.length);
+    assertEquals("Wrong number of bytes drained.", 8, buffer.drainTo(dst, dst.length));
+    byte[] expected = {5, 6, 1, 2, 3, 4, 5, 6};
+    assertTrue("Wrong bytes drained.", Arrays.equals(expected, Arrays.copyOf(dst, 8)));
+  }
+
+  public void testDrainBlocksUntilWrite() throws InterruptedException {
+    final SynchronizedByteRingBuffer buffer = new SynchronizedByteRingBuffer(64);
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        buffer.write(new byte[] {7, 7}, 0, 2);
+      }
+    });
+    writer.start();
+    byte[] dst = new byte[64];
+    assertEquals("Wrong number of bytes drained.", 2, buffer.drainTo(dst, dst.length));
+    writer.join();
+  }
+}
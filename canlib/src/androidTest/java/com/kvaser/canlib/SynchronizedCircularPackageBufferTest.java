@@ -0,0 +1,94 @@
+package com.kvaser.canlib;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class SynchronizedCircularPackageBufferTest extends TestCase {
+
+  private static byte[] createPackage(int length, int value) {
+    byte[] p = new byte[length];
+    Arrays.fill(p, (byte) value);
+    p[0] = (byte) length;
+    return p;
+  }
+
+  public void testAddDrain() throws InterruptedException {
+    SynchronizedCircularPackageBuffer buffer = new SynchronizedCircularPackageBuffer();
+    byte[] p = createPackage(20, 1);
+    assertTrue("Add expected to succeed.", buffer.add(p, 0, p.length));
+    byte[] dst = new byte[64];
+    assertEquals("Wrong number of bytes drained.", 20, buffer.drainTo(dst, dst.length, 0));
+    assertTrue("Wrong bytes drained.", Arrays.equals(p, Arrays.copyOf(dst, 20)));
+  }
+
+  public void testDrainOnlyWholePackages() throws InterruptedException {
+    SynchronizedCircularPackageBuffer buffer = new SynchronizedCircularPackageBuffer();
+    for (int i = 0; i < 3; i++) {
+      byte[] p = createPackage(24, i);
+      buffer.add(p, 0, p.length);
+    }
+    byte[] dst = new byte[64];
+    assertEquals("Wrong number of bytes drained.", 48, buffer.drainTo(dst, dst.length, 0));
+    assertEquals("Wrong value drained.", 1, dst[47]);
+    assertEquals("Wrong number of bytes drained.", 24, buffer.drainTo(dst, dst.length, 0));
+    assertEquals("Wrong value drained.", 2, dst[1]);
+  }
+
+  public void testDrainFillsExactly() throws InterruptedException {
+    SynchronizedCircularPackageBuffer buffer = new SynchronizedCircularPackageBuffer();
+    for (int i = 0; i < 3; i++) {
+      byte[] p = createPackage(32, i);
+      buffer.add(p, 0, p.length);
+    }
+    byte[] dst = new byte[64];
+    assertEquals("Wrong number of bytes drained.", 64, buffer.drainTo(dst, dst.length, 0));
+  }
+
+  public void testIllegalPackageIgnored() throws InterruptedException {
+    SynchronizedCircularPackageBuffer buffer = new SynchronizedCircularPackageBuffer();
+    byte[] p = createPackage(20, 1);
+    assertFalse("Add expected to fail.", buffer.add(p, 0, 10));
+    byte[] dst = new byte[64];
+    assertEquals("Buffer expected to be empty.", 0, buffer.drainTo(dst, dst.length, 0));
+  }
+
+  public void testWrapAround() throws InterruptedException {
+    SynchronizedCircularPackageBuffer buffer = new SynchronizedCircularPackageBuffer();
+    byte[] dst = new byte[32];
+    // 5120 is not a multiple of 30 so the packages will eventually wrap
+    for (int i = 0; i < 400; i++) {
+      byte[] p = createPackage(30, i);
+      assertTrue("Add expected to succeed.", buffer.add(p, 0, p.length));
+      assertEquals("Wrong number of bytes drained.", 30, buffer.drainTo(dst, dst.length, 0));
+      assertTrue("Wrong bytes drained.", Arrays.equals(p, Arrays.copyOf(dst, 30)));
+    }
+  }
+
+  public void testDrainTimesOut() throws InterruptedException {
+    SynchronizedCircularPackageBuffer buffer = new SynchronizedCircularPackageBuffer();
+    byte[] dst = new byte[64];
+    long start = System.currentTimeMillis();
+    assertEquals("Buffer expected to be empty.", 0, buffer.drainTo(dst, dst.length, 50));
+    assertTrue("Drain returned before the timeout.", System.currentTimeMillis() - start >= 40);
+  }
+
+  public void testDrainBlocksUntilAdd() throws InterruptedException {
+    final SynchronizedCircularPackageBuffer buffer = new SynchronizedCircularPackageBuffer();
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        byte[] p = createPackage(12, 3);
+        buffer.add(p, 0, p.length);
+      }
+    });
+    writer.start();
+    byte[] dst = new byte[64];
+    assertEquals("Wrong number of bytes drained.", 12, buffer.drainTo(dst, dst.length, 10000));
+    writer.join();
+  }
+}
@@ -0,0 +1,91 @@
+package com.kvaser.canlib;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * The batch listeners of a driver's channels, and the batch of each channel that the driver fills
+ * while it decodes a USB transfer. The driver appends the frames of a channel to the batch returned
+ * by {@link #getBatch(int)} and calls {@link #flush()} when the whole transfer has been decoded.
+ *
+ * Listeners may be registered from any thread, the batches are only used by the receive thread.
+ */
+class CanBatchDelivery {
+
+  private static final int INITIAL_BATCH_CAPACITY = 16;
+  private static final CanBatchListener[] NO_LISTENERS = new CanBatchListener[0];
+
+  private final AtomicReferenceArray<CanBatchListener[]> listeners;
+  private final CanFrameBatch[] batches;
+  private volatile boolean hasListeners = false;
+  private boolean filled = false; // Only used by the receive thread
+
+  /**
+   * @param channelCount The number of channels of the device.
+   */
+  CanBatchDelivery(int channelCount) {
+    listeners = new AtomicReferenceArray<>(channelCount);
+    batches = new CanFrameBatch[channelCount];
+    for (int i = 0; i < channelCount; i++) {
+      listeners.set(i, NO_LISTENERS);
+      batches[i] = new CanFrameBatch(i, INITIAL_BATCH_CAPACITY);
+    }
+  }
+
+  synchronized void register(int channelIndex, CanBatchListener listener) {
+    if (channelIndex < 0 || channelIndex >= batches.length || listener == null) {
+      return;
+    }
+    CanBatchListener[] current = listeners.get(channelIndex);
+    if (ListenerArrays.contains(current, listener)) {
+      return;
+    }
+    listeners.set(channelIndex, ListenerArrays.add(current, listener));
+    hasListeners = true;
+  }
+
+  synchronized void unregister(int channelIndex, CanBatchListener listener) {
+    if (channelIndex < 0 || channelIndex >= batches.length) {
+      return;
+    }
+    listeners.set(channelIndex, ListenerArrays.remove(listeners.get(channelIndex), listener));
+    boolean any = false;
+    for (int i = 0; i < batches.length; i++) {
+      any |= (listeners.get(i).length > 0);
+    }
+    hasListeners = any;
+  }
+
+  /**
+   * Returns the batch to append the frames received on a channel to, or null if the channel has no
+   * batch listeners.
+   */
+  CanFrameBatch getBatch(int channelIndex) {
+    if (!hasListeners || channelIndex < 0 || channelIndex >= batches.length
+        || listeners.get(channelIndex).length == 0) {
+      return null;
+    }
+    filled = true;
+    return batches[channelIndex];
+  }
+
+  /**
+   * Delivers the batches that have frames to the listeners of their channels and empties them.
+   * Called by the receive thread after each USB transfer.
+   */
+  void flush() {
+    if (!filled) {
+      return;
+    }
+    filled = false;
+    for (int i = 0; i < batches.length; i++) {
+      CanFrameBatch batch = batches[i];
+      if (batch.size() > 0) {
+        CanBatchListener[] channelListeners = listeners.get(i);
+        for (CanBatchListener listener : channelListeners) {
+          listener.canFramesReceived(batch);
+        }
+        batch.clear();
+      }
+    }
+  }
+}
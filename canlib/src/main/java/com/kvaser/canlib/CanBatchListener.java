@@ -0,0 +1,20 @@
+package com.kvaser.canlib;
+
+/**
+ * Implement this interface to get a listener to register for receiving all CAN messages of a USB
+ * transfer at once from CanLib KvChannels, see {@link KvChannel#registerCanBatchListener}. This is
+ * meant for consumers that process many messages, e.g. loggers and signal decoders, which then get
+ * one call per transfer instead of one per message.
+ */
+public interface CanBatchListener {
+
+  /**
+   * Called by CanLib from the driver's receive thread when a USB transfer with messages for the
+   * channel has been decoded. The batch is reused for the next transfer, so the listener must not
+   * keep it after returning, a listener that wants to keep the frames shall keep a copy, see
+   * {@link CanFrameBatch#CanFrameBatch(CanFrameBatch)}.
+   *
+   * @param batch The received CAN messages and acknowledged CAN Tx messages.
+   */
+  void canFramesReceived(CanFrameBatch batch);
+}
@@ -0,0 +1,13 @@
+package com.kvaser.canlib;
+
+/**
+ * The protocol a channel uses on the bus, set from the flags the KvChannel is opened with.
+ */
+enum CanFdMode {
+  /** Classic CAN, at most 8 data bytes */
+  CLASSIC,
+  /** CAN FD as standardized in ISO 11898-1:2015 */
+  ISO,
+  /** CAN FD as first specified by Bosch, which is not compatible with ISO CAN FD */
+  NON_ISO
+}
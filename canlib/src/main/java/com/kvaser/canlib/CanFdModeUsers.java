@@ -0,0 +1,66 @@
+package com.kvaser.canlib;
+
+import com.kvaser.canlib.CanLibException.ErrorCode;
+import com.kvaser.canlib.CanLibException.ErrorDetail;
+
+/**
+ * The CAN FD modes of the channels of a driver. Several KvChannels may be open in a CAN FD mode on
+ * the same CAN channel, so the mode is counted per user, and the channel only returns to classic
+ * CAN when the last of them is closed. While a channel is in use in one CAN FD mode it can not be
+ * opened in the other, since the controller can only be in one of them. Classic CAN frames are
+ * sent and received in both modes, so channels opened without CAN FD are not counted.
+ *
+ * The driver sets the mode of the device when {@link #enable(int, CanFdMode)} or {@link
+ * #disable(int)} returns true, while holding the lock of this object, so that a channel that is
+ * opened at the same time does not see the mode before it has been set.
+ */
+class CanFdModeUsers {
+
+  private final CanFdMode[] modes;
+  private final int[] users;
+
+  /**
+   * @param channelCount The number of channels.
+   */
+  CanFdModeUsers(int channelCount) {
+    modes = new CanFdMode[channelCount];
+    users = new int[channelCount];
+  }
+
+  /**
+   * Adds a user of a CAN FD mode of a channel.
+   *
+   * @param channelIndex The channel, ignored if out of range.
+   * @param mode         The mode, ISO or NON_ISO.
+   * @return true if it is the first user, i.e. the device has to be set to the mode.
+   * @throws CanLibException if the channel is in use in the other CAN FD mode.
+   */
+  synchronized boolean enable(int channelIndex, CanFdMode mode) throws CanLibException {
+    if ((channelIndex < 0) || (channelIndex >= users.length)) {
+      return false;
+    }
+    if ((users[channelIndex] > 0) && (modes[channelIndex] != mode)) {
+      throw new CanLibException(ErrorCode.ERR_ACCESS, ErrorDetail.CHANNEL_LOCKED,
+                                "The channel is in use in CAN FD mode " + modes[channelIndex]);
+    }
+    modes[channelIndex] = mode;
+    return (users[channelIndex]++ == 0);
+  }
+
+  /**
+   * Removes a user of the CAN FD mode of a channel.
+   *
+   * @param channelIndex The channel, ignored if out of range.
+   * @return true if it was the last user, i.e. the device has to be set back to classic CAN.
+   */
+  synchronized boolean disable(int channelIndex) {
+    if ((channelIndex < 0) || (channelIndex >= users.length) || (users[channelIndex] == 0)) {
+      return false;
+    }
+    if (--users[channelIndex] == 0) {
+      modes[channelIndex] = null;
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,188 @@
+package com.kvaser.canlib;
+
+import java.util.*;
+
+/**
+ * The frames received on one channel in one USB transfer, stored in parallel arrays instead of one
+ * CanMessage object per frame. Frame i has the ID ids[i], the DLC dlcs[i], the flags flags[i] (see
+ * {@link CanMessage#getFlagBits()}), the timestamp timestamps[i] and its data bytes in
+ * data[dataOffsets[i]] up to data[dataOffsets[i] + dataLengths[i] - 1]. The data of the frames is
+ * packed, i.e. only the bytes carried by each frame are stored. Transmitted messages that have
+ * been acknowledged have the {@link CanMessage#FLAG_TX_ACK} flag set.
+ *
+ * Only the first {@link #size()} elements of the arrays are valid. The arrays may be longer.
+ *
+ * A batch is delivered to {@link CanBatchListener}s and is reused by the driver for the next
+ * transfer when the listeners return, see {@link CanBatchListener#canFramesReceived}.
+ */
+public class CanFrameBatch {
+
+  private static final int MAX_DATA_LENGTH = 8;
+
+  private final int channelIndex;
+  private int size;
+  private int[] ids;
+  private int[] dlcs;
+  private int[] flags;
+  private long[] timestamps;
+  private int[] dataOffsets;
+  private int[] dataLengths;
+  private byte[] data;
+  private int dataSize;
+
+  /**
+   * Creates an empty batch, e.g. to read frames into with
+   * {@link KvChannel#readBatch(CanFrameBatch, int, long)}.
+   *
+   * @param channelIndex The channel the frames are received on.
+   * @param capacity     The number of frames the batch can hold before its arrays have to grow.
+   */
+  public CanFrameBatch(int channelIndex, int capacity) {
+    this.channelIndex = channelIndex;
+    capacity = Math.max(capacity, 1);
+    ids = new int[capacity];
+    dlcs = new int[capacity];
+    flags = new int[capacity];
+    timestamps = new long[capacity];
+    dataOffsets = new int[capacity];
+    dataLengths = new int[capacity];
+    data = new byte[capacity * MAX_DATA_LENGTH];
+  }
+
+  /**
+   * Creates a copy of a batch, e.g. for a listener that wants to keep the frames after the
+   * callback has returned.
+   */
+  public CanFrameBatch(CanFrameBatch batch) {
+    channelIndex = batch.channelIndex;
+    size = batch.size;
+    ids = Arrays.copyOf(batch.ids, size);
+    dlcs = Arrays.copyOf(batch.dlcs, size);
+    flags = Arrays.copyOf(batch.flags, size);
+    timestamps = Arrays.copyOf(batch.timestamps, size);
+    dataOffsets = Arrays.copyOf(batch.dataOffsets, size);
+    dataLengths = Arrays.copyOf(batch.dataLengths, size);
+    dataSize = batch.dataSize;
+    data = Arrays.copyOf(batch.data, dataSize);
+  }
+
+  /**
+   * Returns the index of the channel the frames were received on.
+   */
+  public int getChannelIndex() {
+    return channelIndex;
+  }
+
+  /**
+   * Returns the number of frames in the batch.
+   */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the IDs of the frames. */
+  public int[] getIds() {
+    return ids;
+  }
+
+  /** Returns the DLCs of the frames. */
+  public int[] getDlcs() {
+    return dlcs;
+  }
+
+  /** Returns the flags of the frames, as bit masks of the CanMessage.FLAG_ constants. */
+  public int[] getFlags() {
+    return flags;
+  }
+
+  /** Returns the timestamps of the frames, in 10us resolution. */
+  public long[] getTimestamps() {
+    return timestamps;
+  }
+
+  /** Returns the index in {@link #getData()} of the first data byte of each frame. */
+  public int[] getDataOffsets() {
+    return dataOffsets;
+  }
+
+  /** Returns the number of data bytes of each frame. */
+  public int[] getDataLengths() {
+    return dataLengths;
+  }
+
+  /** Returns the packed data bytes of all frames. */
+  public byte[] getData() {
+    return data;
+  }
+
+  /**
+   * Copies one frame of the batch to a CanMessage, e.g. to pass it on to code that works on
+   * messages.
+   *
+   * @param index   The index of the frame, less than {@link #size()}.
+   * @param message The message to copy the frame to. Data bytes not carried by the frame are set to
+   *                zero.
+   * @return The message.
+   */
+  public CanMessage getMessage(int index, CanMessage message) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+    message.id = ids[index];
+    message.dlc = dlcs[index];
+    message.flags = flags[index];
+    message.time = timestamps[index];
+    message.direction = ((flags[index] & CanMessage.FLAG_TX_ACK) != 0) ? CanMessage.Direction.TX
+                                                                     : CanMessage.Direction.RX;
+    message.ensureDataCapacity(dataLengths[index]);
+    int length = Math.min(dataLengths[index], message.data.length);
+    System.arraycopy(data, dataOffsets[index], message.data, 0, length);
+    Arrays.fill(message.data, length, message.data.length, (byte) 0);
+    return message;
+  }
+
+  /**
+   * Appends a frame decoded by the driver. The arrays grow when the batch is full, so a reused
+   * batch stops allocating once it has grown to the largest transfer.
+   */
+  void add(CanMessage message) {
+    if (size == ids.length) {
+      grow();
+    }
+    boolean isFd = (message.flags & CanMessage.FLAG_FD_EDL) != 0;
+    int maxLength = isFd ? CanMessage.MAX_FD_DATA_LENGTH : MAX_DATA_LENGTH;
+    int length = Math.min(maxLength, message.data.length);
+    length = Math.max(0, Math.min(message.dlc, length));
+    if (dataSize + length > data.length) {
+      data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + length));
+    }
+    ids[size] = message.id;
+    dlcs[size] = message.dlc;
+    flags[size] = (message.direction == CanMessage.Direction.TX)
+                  ? (message.flags | CanMessage.FLAG_TX_ACK) : message.flags;
+    timestamps[size] = message.time;
+    dataOffsets[size] = dataSize;
+    dataLengths[size] = length;
+    System.arraycopy(message.data, 0, data, dataSize, length);
+    dataSize += length;
+    size++;
+  }
+
+  /**
+   * Empties the batch, keeping its arrays.
+   */
+  void clear() {
+    size = 0;
+    dataSize = 0;
+  }
+
+  private void grow() {
+    int capacity = ids.length * 2;
+    ids = Arrays.copyOf(ids, capacity);
+    dlcs = Arrays.copyOf(dlcs, capacity);
+    flags = Arrays.copyOf(flags, capacity);
+    timestamps = Arrays.copyOf(timestamps, capacity);
+    dataOffsets = Arrays.copyOf(dataOffsets, capacity);
+    dataLengths = Arrays.copyOf(dataLengths, capacity);
+  }
+}
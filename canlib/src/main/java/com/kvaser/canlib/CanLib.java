@@ -81,6 +81,36 @@ public final class CanLib {
     virtualDeviceEnabled = state;
   }
   
+  /**
+   * Sets the number of USB receive requests that are kept queued for devices with a certain USB
+   * product ID. More queued requests let the device keep sending while received data is being
+   * dispatched, at the cost of more memory. Only affects devices that are connected after the call.
+   *
+   * @param usbProductId The USB product ID of the devices.
+   * @param queueDepth   The queue depth, at least 1, or 0 to use the default for the device.
+   * @throws CanLibException if the queue depth is negative.
+   */
+  public void setReceiveQueueDepth(int usbProductId, int queueDepth) throws CanLibException {
+    if (queueDepth < 0) {
+      throw new CanLibException(CanLibException.ErrorCode.ERR_PARAM,
+                                "Queue depth must not be negative");
+    }
+    usbHandler.setReceiveQueueDepth(usbProductId, queueDepth);
+  }
+
+  /**
+   * Enables or disables the device profile cache. When enabled, the channel map and capabilities
+   * read from a device are stored in a file in the application's files directory, keyed by EAN,
+   * serial number and firmware version. A known device is then set up after verifying its identity,
+   * without querying the rest again. The cache is enabled by default. Disabling it also removes all
+   * cached profiles. Only affects devices that are connected after the call.
+   *
+   * @param state True enables the cache, false disables.
+   */
+  public void setDeviceProfileCacheState(boolean state) {
+    usbHandler.setDeviceProfileCacheEnabled(state);
+  }
+
   /**
    * Returns the current number of connected devices, including the virtual device.
    *
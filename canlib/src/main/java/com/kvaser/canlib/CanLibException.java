@@ -47,6 +47,16 @@ public class CanLibException extends Exception {
     this.errorDetail = errorDetail;
   }
 
+  /**
+   * Creates a copy of an exception with the stack trace of the calling thread, e.g. for each
+   * thread waiting for an operation that failed. The original exception is kept as the cause.
+   */
+  CanLibException(CanLibException cause) {
+    super(cause.getMessage(), cause);
+    this.errorCode = cause.errorCode;
+    this.errorDetail = cause.errorDetail;
+  }
+
   /**
    * Returns the error code of the exception.
    *
@@ -183,7 +193,13 @@ public class CanLibException extends Exception {
     EXCLUSIVE_ACCESS_FAILED,
     CHANNEL_LOCKED,
     INIT_ERROR,
-    INTERRUPTED_THREAD
+    INTERRUPTED_THREAD,
+    ILLEGAL_QUEUE_CAPACITY,
+    ILLEGAL_POOL_SIZE,
+    READ_QUEUE_DISABLED,
+    ILLEGAL_BATCH_SIZE,
+    TX_BUFFER_FULL,
+    TX_DISCARDED
   }
 
 }
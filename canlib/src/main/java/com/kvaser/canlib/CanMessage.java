@@ -3,6 +3,7 @@ package com.kvaser.canlib;
 import android.support.annotation.*;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * The CanMessage class is used for representing messages passed in KvChannel operations and
@@ -13,10 +14,16 @@ public class CanMessage {
   /** ID of CAN message */
   public int id;
 
-  /** DLC of CAN message */
+  /**
+   * DLC of CAN message. For CAN FD messages, i.e. messages with the {@link #FLAG_FD_EDL} flag, this
+   * is the number of data bytes: 0-8, 12, 16, 20, 24, 32, 48 or 64.
+   */
   public int dlc;
 
-  /** CAN message data bytes */
+  /**
+   * CAN message data bytes. The array has room for at least 8 bytes, and for CAN FD messages at
+   * least as many bytes as the DLC gives.
+   */
   public byte[] data = new byte[8];
 
   /** Timestamp of CAN message in 10us resolution (only applies to received messages) */
@@ -25,17 +32,78 @@ public class CanMessage {
   /** Direction of CAN message */
   Direction direction;
 
-  /** Flags */
-  final EnumSet<MessageFlags> flags;
+  /** Message has a standard ID, see {@link MessageFlags#STANDARD_ID} */
+  public static final int FLAG_STANDARD_ID = 0x0001;
+  /** Message has an extended ID, see {@link MessageFlags#EXTENDED_ID} */
+  public static final int FLAG_EXTENDED_ID = 0x0002;
+  /** Message is an error frame, see {@link MessageFlags#ERROR_FRAME} */
+  public static final int FLAG_ERROR_FRAME = 0x0004;
+  /** HW buffer overrun, see {@link MessageFlags#ERR_HW_OVERRUN} */
+  public static final int FLAG_ERR_HW_OVERRUN = 0x0008;
+  /** SW buffer overrun, see {@link MessageFlags#ERR_SW_OVERRUN} */
+  public static final int FLAG_ERR_SW_OVERRUN = 0x0010;
+  /** Message is a remote request, see {@link MessageFlags#REMOTE_REQUEST} */
+  public static final int FLAG_REMOTE_REQUEST = 0x0020;
+  /** Message is a TX ACK, see {@link MessageFlags#TX_ACK} */
+  public static final int FLAG_TX_ACK = 0x0040;
+  /** Message is a TX REQUEST, see {@link MessageFlags#TX_RQ} */
+  public static final int FLAG_TX_RQ = 0x0080;
+  /** Message is a CAN FD message, see {@link MessageFlags#FD_EDL} */
+  public static final int FLAG_FD_EDL = 0x0100;
+  /** CAN FD message with bit rate switch, see {@link MessageFlags#FD_BRS} */
+  public static final int FLAG_FD_BRS = 0x0200;
+  /** CAN FD message with error state indicator, see {@link MessageFlags#FD_ESI} */
+  public static final int FLAG_FD_ESI = 0x0400;
+
+  /** The maximum number of data bytes of a CAN FD message */
+  static final int MAX_FD_DATA_LENGTH = 64;
+  // The number of data bytes of a CAN FD message, indexed by the DLC on the bus
+  private static final int[] FD_DLC_TO_LENGTH = {0, 1, 2, 3, 4, 5, 6, 7, 8, 12, 16, 20, 24, 32, 48,
+                                                 64};
+
+  private static final MessageFlags[] MESSAGE_FLAGS = MessageFlags.values();
+  // The flags of a message, indexed by the flags byte used on USB
+  private static final int[] USB_FLAGS_TO_FLAGS = new int[256];
+
+  static {
+    for (int usbFlags = 0; usbFlags < USB_FLAGS_TO_FLAGS.length; usbFlags++) {
+      for (MessageFlags flag : MESSAGE_FLAGS) {
+        // An overrun reported by the device is a hardware overrun, software overruns are only set
+        // by CanLib
+        if ((usbFlags & flag.getMask()) != 0 && flag != MessageFlags.ERR_SW_OVERRUN) {
+          USB_FLAGS_TO_FLAGS[usbFlags] |= flag.getBit();
+        }
+      }
+    }
+  }
+
+  /** Flags, a combination of the FLAG_ constants */
+  int flags;
+
+  private static final AtomicIntegerFieldUpdater<CanMessage> REFERENCE_COUNT =
+      AtomicIntegerFieldUpdater.newUpdater(CanMessage.class, "referenceCount");
+
+  /** The pool the message belongs to, null if the message is not pooled */
+  private final CanMessagePool pool;
+  private volatile int referenceCount;
 
   /**
-   * Creates a new CanMessage with all values copied from message.
+   * Creates a message belonging to a pool. The pool sets all values before handing it out.
+   */
+  CanMessage(CanMessagePool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Creates a new CanMessage with all values copied from message. The new message is never pooled,
+   * even if message is.
    */
   public CanMessage(CanMessage message) {
+    this.pool = null;
     this.id = message.id;
     this.dlc = message.dlc;
-    this.data = Arrays.copyOf(message.data, 8);
-    this.flags = EnumSet.copyOf(message.flags);
+    this.data = Arrays.copyOf(message.data, Math.max(message.data.length, 8));
+    this.flags = message.flags;
     this.direction = message.direction;
     this.time = message.time;
   }
@@ -45,10 +113,11 @@ public class CanMessage {
    * The default values is a standard ID of 0x7ff, DLC of 8 and all data bytes set to zero.
    */
   public CanMessage() {
+    this.pool = null;
     this.id = 0x7FF;
     this.dlc = 8;
     Arrays.fill(this.data, (byte) 0);
-    this.flags = EnumSet.noneOf(MessageFlags.class);
+    this.flags = 0;
     this.direction = CanMessage.Direction.TX;
     this.time = -1;
   }
@@ -68,20 +137,23 @@ public class CanMessage {
    *             used, i.e. if it has been opened with the flag {@link com.kvaser.canlib.KvChannel.ChannelFlags#ACCEPT_LARGE_DLC
    *             ChannelFlags.ACCEPT_LARGE_DLC} or not. The valid range for DLC is checked when the
    *             message object is passed to the {@link KvChannel#write(CanMessage)} method.
-   * @param data Message data, an array of maximum 8 bytes length.
-   *             If the data array is longer than 8 bytes then only the first 8 bytes will be
-   *             stored
-   *             in this object. If it is shorter than 8 bytes the remaining bytes in the object
-   *             will be set to zero.
+   * @param data Message data, an array of maximum 64 bytes length.
+   *             If the data array is longer than 64 bytes then only the first 64 bytes will be
+   *             stored in this object. If it is shorter than 8 bytes the remaining bytes in the
+   *             object will be set to zero. Data for CAN FD messages also requires the
+   *             {@link #FLAG_FD_EDL} flag to be set.
    */
   public CanMessage(int id, int dlc, @NonNull byte[] data) {
+    this.pool = null;
     this.id = id;
     this.dlc = dlc;
-    for (int i = 0; (i < data.length) && (i < 8); i++) {
-      this.data[i] = data[i];
+    if (data.length > 8) {
+      this.data = Arrays.copyOf(data, Math.min(data.length, MAX_FD_DATA_LENGTH));
+    } else {
+      System.arraycopy(data, 0, this.data, 0, data.length);
     }
 
-    this.flags = EnumSet.noneOf(MessageFlags.class);
+    this.flags = 0;
     this.direction = CanMessage.Direction.TX;
     this.time = -1;
   }
@@ -121,7 +193,32 @@ public class CanMessage {
    * @return The flags in an EnumSet.
    */
   public EnumSet<MessageFlags> getFlags() {
-    return EnumSet.copyOf(flags);
+    EnumSet<MessageFlags> flagSet = EnumSet.noneOf(MessageFlags.class);
+    for (MessageFlags flag : MESSAGE_FLAGS) {
+      if ((flags & flag.getBit()) != 0) {
+        flagSet.add(flag);
+      }
+    }
+    return flagSet;
+  }
+
+  /**
+   * Returning the flags of a CAN message as a bit mask, without allocating an EnumSet. Test a flag
+   * with e.g. {@code (msg.getFlagBits() & CanMessage.FLAG_EXTENDED_ID) != 0}.
+   *
+   * @return The flags, a combination of the FLAG_ constants.
+   */
+  public int getFlagBits() {
+    return flags;
+  }
+
+  /**
+   * Replaces all flags of the message.
+   *
+   * @param flagBits The flags, a combination of the FLAG_ constants.
+   */
+  public void setFlagBits(int flagBits) {
+    flags = flagBits;
   }
 
   /**
@@ -130,9 +227,7 @@ public class CanMessage {
    * @param flag The flag to add.
    */
   public void setFlag(MessageFlags flag) {
-    synchronized (flags) {
-      flags.add(flag);
-    }
+    flags |= flag.getBit();
   }
 
   /**
@@ -141,9 +236,7 @@ public class CanMessage {
    * @param flag The flag to remove.
    */
   public void removeFlag(MessageFlags flag) {
-    synchronized (flags) {
-      flags.remove(flag);
-    }
+    flags &= ~flag.getBit();
   }
 
   /**
@@ -153,46 +246,123 @@ public class CanMessage {
    * @return true if the flag is set, false if it is not set
    */
   public boolean isFlagSet(MessageFlags flag) {
-    synchronized (flags) {
-      return flags.contains(flag);
-    }
+    return (flags & flag.getBit()) != 0;
   }
 
   short getFlagsAsMask() {
+    return flagsToMask(flags);
+  }
+
+  /*
+   * Returns the USB flags mask of a bit mask of the FLAG_ constants.
+   */
+  static short flagsToMask(int flags) {
     short bitField = 0;
-    synchronized (flags) {
-      for (MessageFlags flag : flags) {
+    for (MessageFlags flag : MESSAGE_FLAGS) {
+      if ((flags & flag.getBit()) != 0) {
         bitField |= flag.getMask();
       }
     }
     return bitField;
   }
 
+  /*
+   * Returns the flags a message is sent with: the given ID type if the flags have none, and only
+   * the flags that are sent, i.e. EXTENDED_ID, STANDARD_ID, REMOTE_REQUEST, FD_EDL and FD_BRS.
+   */
+  static int txFlags(int flags, int defaultIdFlag) {
+    if ((flags & (FLAG_EXTENDED_ID | FLAG_STANDARD_ID)) == 0) {
+      flags |= defaultIdFlag;
+    }
+    return flags & (FLAG_EXTENDED_ID | FLAG_STANDARD_ID | FLAG_REMOTE_REQUEST | FLAG_FD_EDL
+                    | FLAG_FD_BRS);
+  }
+
   void setFlagsUsingBitField(short flagsBitField) {
-    synchronized (flags) {
-      flags.clear();
-      for (MessageFlags flag : MessageFlags.values()) {
-        if ((flagsBitField & flag.getMask()) != 0) {
-          flags.add(flag);
-        }
+    if ((flagsBitField & 0xff00) == 0) {
+      flags = USB_FLAGS_TO_FLAGS[flagsBitField];
+      return;
+    }
+    int newFlags = 0;
+    for (MessageFlags flag : MESSAGE_FLAGS) {
+      if ((flagsBitField & flag.getMask()) != 0 && flag != MessageFlags.ERR_SW_OVERRUN) {
+        newFlags |= flag.getBit();
       }
     }
+    flags = newFlags;
   }
 
   void setFlagsUsingBitField(byte flagsBitField) {
-    short flagsBitfieldShrt = (short) ((int) flagsBitField & 0xff);
-    synchronized (flags) {
-      for (MessageFlags flag : flags) {
-        if (((int) flag.getMask() & 0xffff) < 0x100) {
-          flags.remove(flag);
-        }
-      }
-      for (MessageFlags flag : MessageFlags.values()) {
-        if ((flagsBitfieldShrt & flag.getMask()) != 0) {
-          flags.add(flag);
-        }
+    flags = USB_FLAGS_TO_FLAGS[flagsBitField & 0xff];
+  }
+
+  /**
+   * Returns the number of data bytes of a CAN FD message with the given DLC, as sent on the bus.
+   */
+  static int fdDlcToLength(int dlc) {
+    return FD_DLC_TO_LENGTH[dlc & 0x0f];
+  }
+
+  /**
+   * Returns the DLC sent on the bus for a CAN FD message with the given number of data bytes, or
+   * -1 if a CAN FD message can not have that length.
+   */
+  static int fdLengthToDlc(int length) {
+    for (int dlc = 0; dlc < FD_DLC_TO_LENGTH.length; dlc++) {
+      if (FD_DLC_TO_LENGTH[dlc] == length) {
+        return dlc;
       }
     }
+    return -1;
+  }
+
+  /**
+   * Makes sure that the data array has room for a number of bytes. Used by the drivers when they
+   * decode a CAN FD message into a message that may be reused.
+   */
+  void ensureDataCapacity(int length) {
+    if (data.length < length) {
+      data = new byte[Math.max(length, MAX_FD_DATA_LENGTH)];
+    }
+  }
+
+  /**
+   * Releases a message received from a KvChannel with a message pool, see
+   * {@link KvChannel#enableMessagePool(int)}. The message is returned to the pool when all the
+   * listeners it was delivered to have released it, and it must not be used after it has been
+   * released. Each listener shall release each received message exactly once. Calling this
+   * method for a message that is not pooled has no effect.
+   *
+   * @throws IllegalStateException if the message has already been released.
+   */
+  public void release() {
+    if (pool == null) {
+      return;
+    }
+    int count = REFERENCE_COUNT.decrementAndGet(this);
+    if (count == 0) {
+      pool.recycle(this);
+    } else if (count < 0) {
+      REFERENCE_COUNT.incrementAndGet(this);
+      throw new IllegalStateException("The message has already been released");
+    }
+  }
+
+  /**
+   * Adds a reference to a pooled message, which must be released by the new holder.
+   */
+  void retain() {
+    if (pool != null) {
+      REFERENCE_COUNT.incrementAndGet(this);
+    }
+  }
+
+  boolean isPooled() {
+    return pool != null;
+  }
+
+  void setReferenceCount(int count) {
+    referenceCount = count;
   }
 
   /**
@@ -210,31 +380,43 @@ public class CanMessage {
    */
   public enum MessageFlags {
     /** Message has a standard ID */
-    STANDARD_ID((short) 0x0000),  // Mask is zero because it is not part of the flags on USB
+    STANDARD_ID(FLAG_STANDARD_ID, (short) 0x0000),  // Mask is zero because it is not part of the flags on USB
     /** Message has an extended ID */
-    EXTENDED_ID((short) 0x0000), // Mask is zero because it is not part of the flags on USB
+    EXTENDED_ID(FLAG_EXTENDED_ID, (short) 0x0000), // Mask is zero because it is not part of the flags on USB
     /** Message is an error frame */
-    ERROR_FRAME((short) 0x0001),
+    ERROR_FRAME(FLAG_ERROR_FRAME, (short) 0x0001),
     /** HW buffer overrun */
-    ERR_HW_OVERRUN((short) 0x0002),
+    ERR_HW_OVERRUN(FLAG_ERR_HW_OVERRUN, (short) 0x0002),
     /** SW buffer overrun */
-    ERR_SW_OVERRUN((short) 0x0002),
+    ERR_SW_OVERRUN(FLAG_ERR_SW_OVERRUN, (short) 0x0002),
     /** Message is a remote request */
-    REMOTE_REQUEST((short) 0x0010),
+    REMOTE_REQUEST(FLAG_REMOTE_REQUEST, (short) 0x0010),
     /** Message is a TX ACK (msg is really sent) */
-    TX_ACK((short) 0x0040),
+    TX_ACK(FLAG_TX_ACK, (short) 0x0040),
     /** Message is a TX REQUEST (msg is transferred to the chip) */
-    TX_RQ((short) 0x0080);
-    //FD_ESI((short)0x0400),
-    //FD_BRS((short)0x0200),
-    //FD_EDL((short)0x0100);
+    TX_RQ(FLAG_TX_RQ, (short) 0x0080),
+    /** Message is a CAN FD message (Extended Data Length) */
+    FD_EDL(FLAG_FD_EDL, (short) 0x0000), // Mask is zero because CAN FD messages use other commands
+    /** CAN FD message sent with a higher bit rate in the data phase (Bit Rate Switch) */
+    FD_BRS(FLAG_FD_BRS, (short) 0x0000), // Mask is zero because CAN FD messages use other commands
+    /** CAN FD message sent by a node that is error passive (Error State Indicator) */
+    FD_ESI(FLAG_FD_ESI, (short) 0x0000); // Mask is zero because CAN FD messages use other commands
 
+    private final int bit;
     private final short mask;
 
-    MessageFlags(short mask) {
+    MessageFlags(int bit, short mask) {
+      this.bit = bit;
       this.mask = mask;
     }
 
+    /**
+     * Returns the bit of the flag in {@link CanMessage#getFlagBits()}.
+     */
+    public int getBit() {
+      return bit;
+    }
+
     private short getMask() {
       return mask;
     }
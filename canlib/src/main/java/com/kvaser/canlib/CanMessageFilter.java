@@ -89,31 +89,36 @@ public class CanMessageFilter {
    * @return true if the message passes the filter, false if it does not pass the filter
    */
   boolean filter(CanMessage msg) {
+    return filter(msg.id, (msg.flags & CanMessage.FLAG_EXTENDED_ID) != 0);
+  }
 
-    final long STANDARD_ID_MASK = 0x7FF;
-    final long EXTENDED_ID_MASK = 0x1FFFFFFF;
-    long mainMask;
-    if (msg.isFlagSet(CanMessage.MessageFlags.EXTENDED_ID)) {
-      mainMask = EXTENDED_ID_MASK;
-    } else {
-      mainMask = STANDARD_ID_MASK;
-    }
+  /**
+   * Runs the filter on a message ID.
+   *
+   * @param id       The ID of the message.
+   * @param extended True if the message has an extended ID.
+   * @return true if a message with the ID passes the filter, false if it does not pass the filter
+   */
+  boolean filter(int id, boolean extended) {
+    final int STANDARD_ID_MASK = 0x7FF;
+    final int EXTENDED_ID_MASK = 0x1FFFFFFF;
+    int mainMask = extended ? EXTENDED_ID_MASK : STANDARD_ID_MASK;
     boolean messageMatchesFilter = false;
-    if ((mainMask == EXTENDED_ID_MASK && filterIdType == FilterIdType.EXTENDED) || (
-        mainMask == STANDARD_ID_MASK && filterIdType == FilterIdType.STANDARD) ||
-        filterIdType == FilterIdType.BOTH) {
+    if ((extended && filterIdType == FilterIdType.EXTENDED)
+        || (!extended && filterIdType == FilterIdType.STANDARD)
+        || filterIdType == FilterIdType.BOTH) {
       switch (filterMatchType) {
         case MASK:
-          messageMatchesFilter = filterByMask(msg.id, mainMask);
+          messageMatchesFilter = filterByMask(id, mainMask);
           break;
         case RANGE:
-          messageMatchesFilter = filterByRange(msg.id, mainMask);
+          messageMatchesFilter = filterByRange(id, mainMask);
           break;
         case MASK_AND_RANGE:
-          messageMatchesFilter = filterByMask(msg.id, mainMask) && filterByRange(msg.id, mainMask);
+          messageMatchesFilter = filterByMask(id, mainMask) && filterByRange(id, mainMask);
           break;
         case MASK_OR_RANGE:
-          messageMatchesFilter = filterByMask(msg.id, mainMask) || filterByRange(msg.id, mainMask);
+          messageMatchesFilter = filterByMask(id, mainMask) || filterByRange(id, mainMask);
           break;
         default:
           break;
@@ -128,12 +133,14 @@ public class CanMessageFilter {
 
   }
 
-  private boolean filterByMask(long id, long idMask) {
+  private boolean filterByMask(int id, int idMask) {
     return (((id & idMask) & mask) == ((code & idMask) & mask));
   }
 
-  private boolean filterByRange(long id, long idMask) {
-    return (((id & idMask) >= idMin) && ((id & idMask) <= idMax));
+  private boolean filterByRange(int id, int idMask) {
+    // idMin and idMax are unsigned, the default idMax 0xffffffff is the highest possible ID
+    long maskedId = id & idMask;
+    return ((maskedId >= (idMin & 0xffffffffL)) && (maskedId <= (idMax & 0xffffffffL)));
   }
 
   /** Describes which filter parameters that shall be applied in filter matching. */
@@ -0,0 +1,57 @@
+package com.kvaser.canlib;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A pool of reusable CanMessage objects for the receive path of one channel. The driver takes a
+ * message from the pool for each received frame and the message returns to the pool when all its
+ * users have called {@link CanMessage#release()}. Messages are only allocated when the pool is
+ * empty, so once enough messages are in circulation the reception does not allocate any objects.
+ *
+ * The pool may be used from several threads, messages are typically taken by the receive thread
+ * and released by the listeners' threads.
+ */
+class CanMessagePool {
+
+  private final LockFreeCircularBuffer<CanMessage> freeMessages;
+  private final AtomicLong allocatedCount = new AtomicLong();
+
+  /**
+   * @param size The maximum number of free messages kept in the pool. Rounded up to a power of two
+   *             of at least two. Messages released when the pool is full are left to the garbage
+   *             collector.
+   */
+  CanMessagePool(int size) {
+    freeMessages = new LockFreeCircularBuffer<>(size);
+  }
+
+  /**
+   * Takes a message from the pool, or allocates a new one if the pool is empty. The caller holds
+   * the only reference to the message and must release it.
+   *
+   * @return A message whose fields must all be set by the caller.
+   */
+  CanMessage obtain() {
+    CanMessage message = freeMessages.poll();
+    if (message == null) {
+      message = new CanMessage(this);
+      allocatedCount.incrementAndGet();
+    }
+    message.setReferenceCount(1);
+    return message;
+  }
+
+  /**
+   * Returns a message to the pool. Called by the message when its last reference is released.
+   */
+  void recycle(CanMessage message) {
+    freeMessages.offer(message);
+  }
+
+  /**
+   * Returns the number of messages allocated by the pool since it was created.
+   */
+  long getAllocatedCount() {
+    return allocatedCount.get();
+  }
+}
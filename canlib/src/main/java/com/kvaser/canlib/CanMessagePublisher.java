@@ -0,0 +1,20 @@
+package com.kvaser.canlib;
+
+/**
+ * A publisher of the messages received on a KvChannel, see {@link KvChannel#messages()}. The
+ * publisher, {@link CanMessageSubscriber} and {@link CanMessageSubscription} follow the Reactive
+ * Streams specification, i.e. the messages are only delivered as the subscriber requests them, and
+ * have the same methods as the Reactive Streams interfaces, so they are easily adapted to a
+ * Reactive Streams library.
+ */
+public interface CanMessagePublisher {
+
+  /**
+   * Subscribes to the messages of the channel. {@link CanMessageSubscriber#onSubscribe} is called
+   * before this method returns, and messages are delivered as the subscriber requests them. Each
+   * call creates a new subscription, which gets the messages received from then on.
+   *
+   * @param subscriber The subscriber.
+   */
+  void subscribe(CanMessageSubscriber subscriber);
+}
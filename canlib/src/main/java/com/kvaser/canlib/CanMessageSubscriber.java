@@ -0,0 +1,38 @@
+package com.kvaser.canlib;
+
+/**
+ * Implement this interface to subscribe to the messages of a KvChannel, see
+ * {@link CanMessagePublisher}. The methods of a subscriber are never called concurrently.
+ */
+public interface CanMessageSubscriber {
+
+  /**
+   * Called by CanLib when the subscriber has been subscribed. No messages are delivered until the
+   * subscriber requests them with {@link CanMessageSubscription#request(long)}.
+   *
+   * @param subscription The subscription, to request messages and to cancel the subscription.
+   */
+  void onSubscribe(CanMessageSubscription subscription);
+
+  /**
+   * Called by CanLib for each delivered message, at most as many times as requested. If the
+   * message pool of the channel is enabled, the subscriber must release the message like a
+   * {@link CanMessageListener}, see {@link KvChannel#enableMessagePool(int)}.
+   *
+   * @param msg The received CAN message
+   */
+  void onNext(CanMessage msg);
+
+  /**
+   * Called by CanLib when the subscription has failed. No more methods are called after this one.
+   *
+   * @param throwable The error.
+   */
+  void onError(Throwable throwable);
+
+  /**
+   * Called by CanLib when the channel has been closed and the messages received before have been
+   * delivered. No more methods are called after this one.
+   */
+  void onComplete();
+}
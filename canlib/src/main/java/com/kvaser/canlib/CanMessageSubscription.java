@@ -0,0 +1,39 @@
+package com.kvaser.canlib;
+
+/**
+ * The subscription of a {@link CanMessageSubscriber} to the messages of a KvChannel, see
+ * {@link CanMessagePublisher}.
+ */
+public interface CanMessageSubscription {
+
+  /**
+   * Requests more messages. The requests add up, the subscriber gets at most as many messages as
+   * it has requested in total. Messages received when the subscriber has no outstanding demand are
+   * not kept but handled by the overflow policy of the publisher, see
+   * {@link KvChannel#messages(int, OverflowPolicy, java.util.concurrent.Executor)}.
+   *
+   * A request of zero or fewer messages cancels the subscription and the subscriber gets
+   * onError with an IllegalArgumentException, after any onNext call in progress has returned.
+   *
+   * @param n The number of messages, greater than zero. Long.MAX_VALUE requests all messages.
+   */
+  void request(long n);
+
+  /**
+   * Cancels the subscription. Messages not yet delivered are discarded, and the subscriber may
+   * still get a message that was being delivered when it cancelled.
+   */
+  void cancel();
+
+  /**
+   * Returns the number of messages dropped by the overflow policy since the subscription was
+   * created, i.e. messages received when the subscriber had no outstanding demand or when the
+   * queue was full.
+   */
+  long getDroppedMessageCount();
+
+  /**
+   * Returns the number of messages in the queue of the subscription, waiting to be delivered.
+   */
+  int getQueuedMessageCount();
+}
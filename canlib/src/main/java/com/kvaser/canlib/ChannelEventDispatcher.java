@@ -0,0 +1,217 @@
+package com.kvaser.canlib;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Moves channel events from the driver's receive thread to a dispatch thread. The driver only puts
+ * the events in a bounded queue, and the queue is drained by a task run on an executor, which calls
+ * the wrapped listener. A slow listener therefore only delays its own channel, not the USB reception
+ * for the whole device.
+ *
+ * The drain task is only submitted to the executor when the queue goes from idle to busy, i.e. once
+ * per burst of events rather than once per event.
+ *
+ * When events are dropped because the queue is full, the next delivered CAN message is a copy of
+ * the original message with the {@link CanMessage.MessageFlags#ERR_SW_OVERRUN} flag set.
+ *
+ * Pooled messages are retained while they are in the queue and released when they have been
+ * delivered or dropped.
+ */
+class ChannelEventDispatcher implements CanChannelEventListener, Runnable {
+
+  // Maximum number of events delivered per run of the drain task before it is resubmitted, so that
+  // a busy channel does not starve other tasks on a shared executor.
+  private static final int MAX_EVENTS_PER_RUN = 256;
+  private static final long BLOCK_WAIT_NS = 100000;
+
+  private final LockFreeCircularBuffer<Object> queue;
+  private final CanChannelEventListener target;
+  private final OverflowPolicy overflowPolicy;
+  private final Executor executor;
+  private final ExecutorService ownExecutor;
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  private final AtomicInteger pendingDrops = new AtomicInteger();
+  private final AtomicLong droppedEvents = new AtomicLong();
+  private volatile boolean closed = false;
+
+  /**
+   * @param target         The listener to deliver the events to.
+   * @param capacity       The number of events the queue shall hold.
+   * @param overflowPolicy What to do with new events when the queue is full.
+   * @param executor       The executor to drain the queue on, or null to use a dedicated thread.
+   */
+  ChannelEventDispatcher(CanChannelEventListener target, int capacity,
+                         OverflowPolicy overflowPolicy, Executor executor) {
+    this.queue = new LockFreeCircularBuffer<>(capacity);
+    this.target = target;
+    this.overflowPolicy = overflowPolicy;
+    if (executor == null) {
+      ownExecutor = newDispatcherThread("CanLib dispatcher " + target.getChannelIndex());
+      this.executor = ownExecutor;
+    } else {
+      ownExecutor = null;
+      this.executor = executor;
+    }
+  }
+
+  /**
+   * Creates an executor with one daemon thread, for dispatchers that are not given an executor.
+   */
+  static ExecutorService newDispatcherThread(final String threadName) {
+    return Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, threadName);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public int getChannelIndex() {
+    return target.getChannelIndex();
+  }
+
+  public void canChannelEvent(CanChannelEventType eventType, Object eventData) {
+    if (closed || eventData == null) {
+      return;
+    }
+    if (eventData instanceof CanMessage) {
+      ((CanMessage) eventData).retain();
+    }
+    if (!queue.offer(eventData)) {
+      switch (overflowPolicy) {
+        case DROP_OLDEST:
+          while (!queue.offer(eventData)) {
+            Object oldest = queue.poll();
+            if (oldest != null) {
+              releaseEvent(oldest);
+              eventDropped();
+            }
+          }
+          break;
+
+        case BLOCK:
+          while (!queue.offer(eventData)) {
+            if (closed) {
+              releaseEvent(eventData);
+              return;
+            }
+            schedule();
+            LockSupport.parkNanos(BLOCK_WAIT_NS);
+          }
+          break;
+
+        case DROP_NEWEST:
+        default:
+          releaseEvent(eventData);
+          eventDropped();
+          return;
+      }
+    }
+    schedule();
+  }
+
+  /**
+   * Drains the queue. Runs on the executor.
+   */
+  public void run() {
+    try {
+      int delivered = 0;
+      Object event;
+      while (!closed && (event = queue.poll()) != null) {
+        deliver(event);
+        if (++delivered == MAX_EVENTS_PER_RUN) {
+          resubmit();
+          return;
+        }
+      }
+    } catch (RuntimeException e) {
+      scheduled.set(false);
+      throw e;
+    }
+    scheduled.set(false);
+    // An event may have been added after the last poll but before the flag was cleared
+    if (!queue.isEmpty()) {
+      schedule();
+    }
+  }
+
+  /**
+   * Stops the dispatching. Events still in the queue are discarded and the dedicated thread, if
+   * any, is shut down.
+   */
+  void close() {
+    closed = true;
+    if (ownExecutor != null) {
+      ownExecutor.shutdown();
+    }
+    Object event;
+    while ((event = queue.poll()) != null) {
+      releaseEvent(event);
+    }
+  }
+
+  /**
+   * Returns the number of events dropped since the dispatcher was created.
+   *
+   * @return The number of dropped events.
+   */
+  long getDroppedEventCount() {
+    return droppedEvents.get();
+  }
+
+  private void deliver(Object event) {
+    if (event instanceof CanMessage) {
+      CanMessage message = (CanMessage) event;
+      if (pendingDrops.get() > 0 && pendingDrops.getAndSet(0) > 0) {
+        // The message object may be shared with other channels, so flag a copy
+        CanMessage copy = new CanMessage(message);
+        copy.setFlag(CanMessage.MessageFlags.ERR_SW_OVERRUN);
+        message.release();
+        message = copy;
+      }
+      try {
+        target.canChannelEvent(CanChannelEventType.MESSAGE, message);
+      } finally {
+        message.release();
+      }
+    } else if (event instanceof ChipState) {
+      target.canChannelEvent(CanChannelEventType.CHIP_STATE, event);
+    }
+  }
+
+  private static void releaseEvent(Object event) {
+    if (event instanceof CanMessage) {
+      ((CanMessage) event).release();
+    }
+  }
+
+  private void eventDropped() {
+    droppedEvents.incrementAndGet();
+    pendingDrops.incrementAndGet();
+  }
+
+  private void schedule() {
+    if (!closed && scheduled.compareAndSet(false, true)) {
+      submit();
+    }
+  }
+
+  private void resubmit() {
+    if (closed) {
+      scheduled.set(false);
+    } else {
+      submit();
+    }
+  }
+
+  private void submit() {
+    try {
+      executor.execute(this);
+    } catch (RejectedExecutionException e) {
+      scheduled.set(false);
+    }
+  }
+}
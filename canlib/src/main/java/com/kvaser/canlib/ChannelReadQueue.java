@@ -0,0 +1,179 @@
+package com.kvaser.canlib;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * The receive queue of a KvChannel that is read by polling, see {@link KvChannel#read(long)}. The
+ * driver's receive thread puts the messages in a bounded lock-free buffer and readers take them
+ * out. A reader only blocks when the queue is empty, and the receive thread only takes the lock
+ * to wake up a reader when one is waiting, so a reader that drains many messages per call costs
+ * one wakeup per burst of messages rather than one per message.
+ *
+ * When the queue is full new messages are dropped, and the next message that is read is a copy of
+ * the original message with the {@link CanMessage.MessageFlags#ERR_SW_OVERRUN} flag set.
+ *
+ * Pooled messages are retained while they are in the queue, and the reader must release them.
+ * Messages dropped or discarded by the queue are released by the queue.
+ */
+class ChannelReadQueue {
+
+  private final LockFreeCircularBuffer<CanMessage> queue;
+  private final Lock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final AtomicInteger waitingReaders = new AtomicInteger();
+  private final AtomicInteger pendingDrops = new AtomicInteger();
+  private final AtomicLong droppedMessages = new AtomicLong();
+  private volatile boolean closed = false;
+
+  /**
+   * @param capacity The number of messages the queue shall hold.
+   */
+  ChannelReadQueue(int capacity) {
+    queue = new LockFreeCircularBuffer<>(capacity);
+  }
+
+  /**
+   * Adds a message to the queue, or drops it if the queue is full. Called by the receive thread.
+   * The message is retained if it is pooled.
+   */
+  void offer(CanMessage message) {
+    if (closed) {
+      return;
+    }
+    message.retain();
+    if (!queue.offer(message)) {
+      message.release();
+      droppedMessages.incrementAndGet();
+      pendingDrops.incrementAndGet();
+      return;
+    }
+    if (waitingReaders.get() > 0) {
+      lock.lock();
+      try {
+        notEmpty.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Removes the oldest message from the queue, waiting for one if the queue is empty.
+   *
+   * @param timeoutMs The maximum time to wait in milliseconds, 0 to not wait.
+   * @return The message, or null if no message was received within the timeout or if the queue
+   *         was closed.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  CanMessage poll(long timeoutMs) throws InterruptedException {
+    CanMessage message = queue.poll();
+    if ((message == null) && (timeoutMs > 0)) {
+      message = await(timeoutMs);
+    }
+    return (message != null) ? flagOverrun(message) : null;
+  }
+
+  /**
+   * Removes up to max messages from the queue, waiting for the first one if the queue is empty.
+   *
+   * @param messages  The array to store the messages in, from index 0.
+   * @param max       The maximum number of messages to remove, at most messages.length.
+   * @param timeoutMs The maximum time to wait for the first message in milliseconds, 0 to not
+   *                  wait.
+   * @return The number of messages removed.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  int drainTo(CanMessage[] messages, int max, long timeoutMs) throws InterruptedException {
+    int count = 0;
+    CanMessage message = poll(timeoutMs);
+    while (message != null) {
+      messages[count++] = message;
+      if (count == max) {
+        break;
+      }
+      message = poll(0);
+    }
+    return count;
+  }
+
+  /**
+   * Removes up to max messages from the queue and appends them to a batch, waiting for the first
+   * one if the queue is empty. Pooled messages are released when they have been copied to the
+   * batch.
+   *
+   * @param batch     The batch to append the messages to.
+   * @param max       The maximum number of messages to remove.
+   * @param timeoutMs The maximum time to wait for the first message in milliseconds, 0 to not
+   *                  wait.
+   * @return The number of messages removed.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  int drainTo(CanFrameBatch batch, int max, long timeoutMs) throws InterruptedException {
+    int count = 0;
+    CanMessage message = poll(timeoutMs);
+    while (message != null) {
+      batch.add(message);
+      message.release();
+      if (++count == max) {
+        break;
+      }
+      message = poll(0);
+    }
+    return count;
+  }
+
+  /**
+   * Closes the queue. Messages still in the queue are discarded and waiting readers return.
+   */
+  void close() {
+    closed = true;
+    CanMessage message;
+    while ((message = queue.poll()) != null) {
+      message.release();
+    }
+    lock.lock();
+    try {
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of messages dropped since the queue was created.
+   */
+  long getDroppedMessageCount() {
+    return droppedMessages.get();
+  }
+
+  private CanMessage await(long timeoutMs) throws InterruptedException {
+    long remainingNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    lock.lock();
+    waitingReaders.incrementAndGet();
+    try {
+      // The receive thread checks for waiting readers after adding a message, so a message added
+      // after the poll below is signalled
+      CanMessage message;
+      while (((message = queue.poll()) == null) && !closed && (remainingNs > 0)) {
+        remainingNs = notEmpty.awaitNanos(remainingNs);
+      }
+      return message;
+    } finally {
+      waitingReaders.decrementAndGet();
+      lock.unlock();
+    }
+  }
+
+  private CanMessage flagOverrun(CanMessage message) {
+    if (pendingDrops.get() > 0 && pendingDrops.getAndSet(0) > 0) {
+      // The message object may be shared with other channels, so flag a copy
+      CanMessage copy = new CanMessage(message);
+      copy.setFlag(CanMessage.MessageFlags.ERR_SW_OVERRUN);
+      message.release();
+      return copy;
+    }
+    return message;
+  }
+}
@@ -0,0 +1,338 @@
+package com.kvaser.canlib;
+
+import java.util.*;
+
+/**
+ * A set of CanMessageFilters that are used in parallel, i.e. a message passes the set if any of the
+ * filters passes it, compiled for the receive path. There are only 2048 standard IDs, so the
+ * decision for each of them is computed when the set is created and stored in a bit table. A
+ * message with a standard ID then costs one table lookup whatever the number of filters.
+ *
+ * Extended IDs are too many for a table, instead the pass filters are indexed:
+ * <ul>
+ * <li>The ranges of RANGE filters are merged into sorted disjoint intervals, which are binary
+ * searched.</li>
+ * <li>MASK filters are grouped by mask. Each group has the sorted codes of its filters, the masked
+ * ID is binary searched among them.</li>
+ * <li>A MASK_AND_RANGE filter is put in the group of its mask, with its range attached to the
+ * code. A MASK_OR_RANGE filter is split into a MASK and a RANGE filter.</li>
+ * </ul>
+ * A message with an extended ID then costs one binary search per distinct mask plus one for the
+ * ranges. With only a few filters the filters are run one by one instead. Stop filters are still
+ * run one by one, but a message passes the set as soon as it does not match one of them, i.e. the
+ * first stop filter decides for all but the stopped IDs.
+ *
+ * The set is immutable. The decisions are those of the filters when the set was created. The fields
+ * of a filter are public and may be altered at any time, so the set keeps a copy of them, and
+ * {@link #isCurrent()} tells if a filter has been altered since, in which case the filters must
+ * be compiled into a new set, see {@link #recompile()}. Comparing the copy is much cheaper than
+ * running the filters.
+ */
+class CompiledFilterSet {
+
+  /** A set without filters, which passes all messages. */
+  static final CompiledFilterSet PASS_ALL = new CompiledFilterSet(new CanMessageFilter[0]);
+
+  private static final int NUMBER_OF_STANDARD_IDS = 1 << 11;
+  private static final int EXTENDED_ID_MASK = 0x1FFFFFFF;
+  // Up to this number of filters it is cheaper to run them than to search the index
+  private static final int MAX_ITERATED_FILTERS = 8;
+  private static final int SNAPSHOT_FIELDS = 7;
+
+  private final CanMessageFilter[] filters;
+  private final int[] snapshot; // The fields of the filters when the set was created
+  private final int[] standardIdTable; // Bit id is set if standard ID id passes
+  private final boolean allExtendedIdsPass;
+  private final IdIntervals extendedRanges;
+  private final MaskGroup[] extendedMaskGroups;
+  private final CanMessageFilter[] extendedStopFilters;
+
+  /**
+   * @param filters The filters, which are copied.
+   */
+  CompiledFilterSet(CanMessageFilter[] filters) {
+    this(filters.clone(), null);
+  }
+
+  /**
+   * @param filters       The filters.
+   * @param standardTable The table of a set with all filters but the last one, or null to compile
+   *                      the table from all filters.
+   */
+  private CompiledFilterSet(CanMessageFilter[] filters, int[] standardTable) {
+    this.filters = filters;
+    this.snapshot = new int[filters.length * SNAPSHOT_FIELDS];
+    for (int i = 0; i < filters.length; i++) {
+      takeSnapshot(filters[i], i * SNAPSHOT_FIELDS);
+    }
+    if (filters.length == 0) {
+      standardIdTable = new int[NUMBER_OF_STANDARD_IDS / 32];
+      Arrays.fill(standardIdTable, -1);
+    } else if (standardTable != null) {
+      // A set passes an ID if any of its filters does, so only the added filter has to be run
+      standardIdTable = standardTable.clone();
+      addToStandardTable(filters[filters.length - 1]);
+    } else {
+      standardIdTable = new int[NUMBER_OF_STANDARD_IDS / 32];
+      for (CanMessageFilter filter : filters) {
+        addToStandardTable(filter);
+      }
+    }
+
+    boolean allPass = (filters.length == 0);
+    List<long[]> ranges = new ArrayList<>();
+    // Mask -> code -> ranges
+    Map<Integer, Map<Integer, List<long[]>>> masks = new TreeMap<>();
+    List<CanMessageFilter> stopFilters = new ArrayList<>();
+    for (CanMessageFilter filter : filters) {
+      boolean appliesToExtended = (filter.filterIdType == CanMessageFilter.FilterIdType.EXTENDED)
+                                  || (filter.filterIdType == CanMessageFilter.FilterIdType.BOTH);
+      if (filter.filterType == CanMessageFilter.FilterType.STOP) {
+        if (appliesToExtended) {
+          stopFilters.add(filter);
+        } else {
+          // Matches no extended ID and so passes them all
+          allPass = true;
+        }
+        continue;
+      }
+      if (!appliesToExtended) {
+        continue;
+      }
+      long[] range = {filter.idMin & 0xffffffffL, filter.idMax & 0xffffffffL};
+      long[] fullRange = {0, EXTENDED_ID_MASK};
+      switch (filter.filterMatchType) {
+        case RANGE:
+          ranges.add(range);
+          break;
+        case MASK:
+          addMaskCode(masks, filter, fullRange);
+          break;
+        case MASK_AND_RANGE:
+          addMaskCode(masks, filter, range);
+          break;
+        case MASK_OR_RANGE:
+          ranges.add(range);
+          addMaskCode(masks, filter, fullRange);
+          break;
+        default:
+          break;
+      }
+    }
+    allExtendedIdsPass = allPass;
+    extendedRanges = new IdIntervals(ranges);
+    extendedMaskGroups = new MaskGroup[masks.size()];
+    int i = 0;
+    for (Map.Entry<Integer, Map<Integer, List<long[]>>> entry : masks.entrySet()) {
+      extendedMaskGroups[i++] = new MaskGroup(entry.getKey(), entry.getValue());
+    }
+    extendedStopFilters = stopFilters.toArray(new CanMessageFilter[stopFilters.size()]);
+  }
+
+  /**
+   * Returns a set with the filters of this set and one more filter. This is faster than compiling
+   * all filters again when a filter is added to a set with many filters.
+   */
+  CompiledFilterSet add(CanMessageFilter filter) {
+    // The table can only be reused if it still holds the decisions of the filters
+    return new CompiledFilterSet(ListenerArrays.add(filters, filter),
+                                 ((filters.length > 0) && isCurrent()) ? standardIdTable : null);
+  }
+
+  /**
+   * Returns true if none of the filters has been altered since the set was created.
+   */
+  boolean isCurrent() {
+    int[] fields = snapshot;
+    for (int i = 0, j = 0; i < filters.length; i++, j += SNAPSHOT_FIELDS) {
+      CanMessageFilter filter = filters[i];
+      if ((filter.idMin != fields[j]) || (filter.idMax != fields[j + 1])
+          || (filter.mask != fields[j + 2]) || (filter.code != fields[j + 3])
+          || (ordinal(filter.filterMatchType) != fields[j + 4])
+          || (ordinal(filter.filterType) != fields[j + 5])
+          || (ordinal(filter.filterIdType) != fields[j + 6])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a set with the filters of this set as they are now, or this set if none of them has
+   * been altered.
+   */
+  CompiledFilterSet recompile() {
+    return isCurrent() ? this : new CompiledFilterSet(filters, null);
+  }
+
+  private void takeSnapshot(CanMessageFilter filter, int offset) {
+    snapshot[offset] = filter.idMin;
+    snapshot[offset + 1] = filter.idMax;
+    snapshot[offset + 2] = filter.mask;
+    snapshot[offset + 3] = filter.code;
+    snapshot[offset + 4] = ordinal(filter.filterMatchType);
+    snapshot[offset + 5] = ordinal(filter.filterType);
+    snapshot[offset + 6] = ordinal(filter.filterIdType);
+  }
+
+  private static int ordinal(Enum<?> value) {
+    return (value != null) ? value.ordinal() : -1;
+  }
+
+  private void addToStandardTable(CanMessageFilter filter) {
+    for (int id = 0; id < NUMBER_OF_STANDARD_IDS; id++) {
+      if (filter.filter(id, false)) {
+        standardIdTable[id >>> 5] |= 1 << (id & 31);
+      }
+    }
+  }
+
+  private static void addMaskCode(Map<Integer, Map<Integer, List<long[]>>> masks,
+                                  CanMessageFilter filter, long[] range) {
+    int mask = filter.mask & EXTENDED_ID_MASK;
+    Map<Integer, List<long[]>> codes = masks.get(mask);
+    if (codes == null) {
+      codes = new TreeMap<>();
+      masks.put(mask, codes);
+    }
+    int code = filter.code & mask;
+    List<long[]> ranges = codes.get(code);
+    if (ranges == null) {
+      ranges = new ArrayList<>();
+      codes.put(code, ranges);
+    }
+    ranges.add(range);
+  }
+
+  /**
+   * Returns the filters of the set.
+   */
+  CanMessageFilter[] getFilters() {
+    return filters.clone();
+  }
+
+  /**
+   * Returns true if the set has no filters, in which case all messages pass.
+   */
+  boolean isEmpty() {
+    return filters.length == 0;
+  }
+
+  /**
+   * Returns true if the message passes any of the filters, or if there are no filters.
+   */
+  boolean passes(CanMessage message) {
+    if ((message.flags & CanMessage.FLAG_EXTENDED_ID) == 0) {
+      int id = message.id & (NUMBER_OF_STANDARD_IDS - 1);
+      return (standardIdTable[id >>> 5] & (1 << (id & 31))) != 0;
+    }
+    return passesExtended(message.id);
+  }
+
+  private boolean passesExtended(int id) {
+    if (allExtendedIdsPass) {
+      return true;
+    }
+    if (filters.length <= MAX_ITERATED_FILTERS) {
+      for (CanMessageFilter filter : filters) {
+        if (filter.filter(id, true)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    int maskedId = id & EXTENDED_ID_MASK;
+    if (extendedRanges.contains(maskedId)) {
+      return true;
+    }
+    for (MaskGroup group : extendedMaskGroups) {
+      if (group.passes(maskedId)) {
+        return true;
+      }
+    }
+    for (CanMessageFilter filter : extendedStopFilters) {
+      if (filter.filter(id, true)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sorted disjoint intervals of IDs.
+   */
+  private static final class IdIntervals {
+
+    private final int[] starts;
+    private final int[] ends; // Inclusive
+
+    /**
+     * @param ranges Ranges {min, max} as unsigned values, which may overlap.
+     */
+    IdIntervals(List<long[]> ranges) {
+      // Sort on the start, which is in the upper half, and merge overlapping and adjacent ranges
+      long[] sorted = new long[ranges.size()];
+      int count = 0;
+      for (long[] range : ranges) {
+        long min = range[0];
+        long max = Math.min(range[1], EXTENDED_ID_MASK);
+        if (min <= max) {
+          sorted[count++] = (min << 32) | max;
+        }
+      }
+      Arrays.sort(sorted, 0, count);
+      int[] mergedStarts = new int[count];
+      int[] mergedEnds = new int[count];
+      int merged = 0;
+      for (int i = 0; i < count; i++) {
+        int start = (int) (sorted[i] >>> 32);
+        int end = (int) sorted[i];
+        if ((merged > 0) && (start <= mergedEnds[merged - 1] + 1)) {
+          mergedEnds[merged - 1] = Math.max(mergedEnds[merged - 1], end);
+        } else {
+          mergedStarts[merged] = start;
+          mergedEnds[merged] = end;
+          merged++;
+        }
+      }
+      starts = Arrays.copyOf(mergedStarts, merged);
+      ends = Arrays.copyOf(mergedEnds, merged);
+    }
+
+    boolean contains(int id) {
+      int index = Arrays.binarySearch(starts, id);
+      if (index < 0) {
+        // The interval starting before the ID, if any
+        index = -index - 2;
+      }
+      return (index >= 0) && (id <= ends[index]);
+    }
+  }
+
+  /**
+   * The mask filters with the same mask, i.e. the IDs which masked equal one of the codes.
+   */
+  private static final class MaskGroup {
+
+    private final int mask;
+    private final int[] codes; // Sorted
+    private final IdIntervals[] ranges; // The IDs that pass for each code
+
+    MaskGroup(int mask, Map<Integer, List<long[]>> codeRanges) {
+      this.mask = mask;
+      codes = new int[codeRanges.size()];
+      ranges = new IdIntervals[codeRanges.size()];
+      int i = 0;
+      for (Map.Entry<Integer, List<long[]>> entry : codeRanges.entrySet()) {
+        codes[i] = entry.getKey();
+        ranges[i] = new IdIntervals(entry.getValue());
+        i++;
+      }
+    }
+
+    boolean passes(int id) {
+      int index = Arrays.binarySearch(codes, id & mask);
+      return (index >= 0) && ranges[index].contains(id);
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.kvaser.canlib;
+
+/**
+ * Implement this interface to get a listener to register with a {@link KvFuture} for being
+ * notified when an asynchronous operation has finished.
+ *
+ * The listener is called from CanLib's USB receive thread, or from CanLib's timeout thread in case
+ * the device did not respond. It must return quickly and must not wait for other CanLib operations
+ * to finish, since no responses from the device can be handled while it runs.
+ *
+ * @param <V> The type of the operation's result.
+ */
+public interface CompletionListener<V> {
+
+  /**
+   * Called by CanLib when the operation has finished successfully.
+   *
+   * @param result The result of the operation, null for operations without a result.
+   */
+  void completed(V result);
+
+  /**
+   * Called by CanLib when the operation has failed, e.g. because the device did not respond.
+   *
+   * @param exception The reason for the failure.
+   */
+  void failed(CanLibException exception);
+}
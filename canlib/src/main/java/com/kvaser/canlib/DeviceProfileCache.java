@@ -0,0 +1,215 @@
+package com.kvaser.canlib;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Persistent cache of the information a driver reads from a device when the device is attached,
+ * e.g. the channel map and the auto tx buffer capabilities. The profiles are keyed by EAN, serial
+ * number and firmware version, so a driver only has to read these from the device to find out if a
+ * cached profile can be used. A device with another firmware version gets a new profile.
+ *
+ * The profiles are stored in a properties file. The cache is only an optimization, if the file can
+ * not be read or written the drivers query the device as if the profile was not cached.
+ */
+class DeviceProfileCache {
+
+  private final File file;
+  private Properties properties; // Read from the file on first use
+
+  /**
+   * Creates a cache stored in the given file. The file is created when the first profile is
+   * stored.
+   *
+   * @param file The file to store the profiles in.
+   */
+  DeviceProfileCache(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Returns the key of the profile for a device.
+   */
+  static String key(Ean ean, long serialNumber, int firmwareVersionMajor,
+                    int firmwareVersionMinor, int firmwareVersionBuild) {
+    return ean.getEanString().trim() + "/" + serialNumber + "/" + firmwareVersionMajor + "."
+           + firmwareVersionMinor + "." + firmwareVersionBuild;
+  }
+
+  /**
+   * Returns the cached profile with the given key.
+   *
+   * @param key The key of the profile, see {@link #key}.
+   * @return The profile, or null if there is no profile with the given key.
+   */
+  synchronized Profile get(String key) {
+    load();
+    Profile profile = null;
+    String prefix = key + ".";
+    for (String name : properties.stringPropertyNames()) {
+      if (name.startsWith(prefix)) {
+        if (profile == null) {
+          profile = new Profile(key);
+        }
+        profile.values.setProperty(name.substring(prefix.length()), properties.getProperty(name));
+      }
+    }
+    return profile;
+  }
+
+  /**
+   * Stores a profile, replacing any earlier profile with the same key.
+   *
+   * @param profile The profile to store.
+   */
+  synchronized void put(Profile profile) {
+    load();
+    removeProfile(profile.key);
+    for (String name : profile.values.stringPropertyNames()) {
+      properties.setProperty(profile.key + "." + name, profile.values.getProperty(name));
+    }
+    save();
+  }
+
+  /**
+   * Removes a profile, e.g. when it turned out not to match the device.
+   *
+   * @param key The key of the profile to remove.
+   */
+  synchronized void remove(String key) {
+    load();
+    if (removeProfile(key)) {
+      save();
+    }
+  }
+
+  /**
+   * Removes all cached profiles.
+   */
+  synchronized void clear() {
+    properties = new Properties();
+    file.delete();
+  }
+
+  private boolean removeProfile(String key) {
+    boolean removed = false;
+    String prefix = key + ".";
+    for (String name : properties.stringPropertyNames()) {
+      if (name.startsWith(prefix)) {
+        properties.remove(name);
+        removed = true;
+      }
+    }
+    return removed;
+  }
+
+  private void load() {
+    if (properties != null) {
+      return;
+    }
+    properties = new Properties();
+    if (!file.exists()) {
+      return;
+    }
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      // A file that can not be read is treated as empty and is replaced on the next save
+      properties = new Properties();
+    }
+  }
+
+  private void save() {
+    // Write to a temporary file first, so that a power loss while writing does not leave a
+    // truncated file behind
+    File tmpFile = new File(file.getPath() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(tmpFile);
+      try {
+        properties.store(out, "CanLib device profiles");
+      } finally {
+        out.close();
+      }
+      // Some platforms do not rename onto an existing file, then the old file is removed first.
+      // Should that also fail the file is written directly, so that the cache is still updated.
+      if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+        tmpFile.delete();
+        out = new FileOutputStream(file);
+        try {
+          properties.store(out, "CanLib device profiles");
+        } finally {
+          out.close();
+        }
+      }
+    } catch (IOException e) {
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * The cached information about one device. The driver decides what to store, values that are
+   * missing or can not be parsed make the getters return null, in which case the driver should
+   * query the device instead.
+   */
+  static class Profile {
+
+    final String key;
+    private final Properties values = new Properties();
+
+    Profile(String key) {
+      this.key = key;
+    }
+
+    void putInt(String name, int value) {
+      values.setProperty(name, Integer.toString(value));
+    }
+
+    void putIntArray(String name, int[] array) {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < array.length; i++) {
+        if (i > 0) {
+          builder.append(',');
+        }
+        builder.append(array[i]);
+      }
+      values.setProperty(name, builder.toString());
+    }
+
+    Integer getInt(String name) {
+      String value = values.getProperty(name);
+      if (value == null) {
+        return null;
+      }
+      try {
+        return Integer.valueOf(value);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    int[] getIntArray(String name) {
+      String value = values.getProperty(name);
+      if (value == null) {
+        return null;
+      }
+      if (value.isEmpty()) {
+        return new int[0];
+      }
+      String[] items = value.split(",");
+      int[] array = new int[items.length];
+      try {
+        for (int i = 0; i < items.length; i++) {
+          array[i] = Integer.parseInt(items[i]);
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      return array;
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package com.kvaser.canlib;
+
+import java.util.*;
+
+/**
+ * The message listeners of a KvChannel that are registered for specific IDs, indexed by ID so that
+ * dispatching a message costs one lookup instead of one call per listener. Listeners for standard
+ * IDs are kept in an array indexed by the ID. Listeners for extended IDs are kept in an open
+ * addressing hash map from ID to listeners, except for listeners of large ID ranges, which are
+ * checked one by one.
+ *
+ * The table is immutable, adding or removing a listener returns a new table, so it can be used as
+ * a copy-on-write snapshot like the listener arrays, see {@link ListenerArrays}.
+ */
+class IdListenerTable {
+
+  static final IdListenerTable EMPTY = new IdListenerTable(new Entry[0]);
+
+  private static final int NUMBER_OF_STANDARD_IDS = 1 << 11;
+  private static final int EXTENDED_ID_MASK = 0x1FFFFFFF;
+  // Extended ranges up to this size are put in the hash map, one key per ID
+  private static final int MAX_HASHED_RANGE_SIZE = 256;
+  private static final int NO_KEY = -1; // Not a valid ID
+
+  private final Entry[] entries;
+  private final CanMessageListener[][] standardListeners; // Null if there are none
+  private final int[] extendedKeys;
+  private final CanMessageListener[][] extendedValues;
+  private final Entry[] extendedRanges;
+
+  private IdListenerTable(Entry[] entries) {
+    this.entries = entries;
+    CanMessageListener[][] standard = null;
+    Map<Integer, CanMessageListener[]> extended = new LinkedHashMap<>();
+    List<Entry> ranges = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (!entry.extended) {
+        if (standard == null) {
+          standard = new CanMessageListener[NUMBER_OF_STANDARD_IDS][];
+        }
+        for (int id = entry.idMin; id <= entry.idMax; id++) {
+          standard[id] = add(standard[id], entry.listener);
+        }
+      } else if (entry.idMax - entry.idMin < MAX_HASHED_RANGE_SIZE) {
+        for (int id = entry.idMin; id <= entry.idMax; id++) {
+          extended.put(id, add(extended.get(id), entry.listener));
+        }
+      } else {
+        ranges.add(entry);
+      }
+    }
+    standardListeners = standard;
+    extendedRanges = ranges.toArray(new Entry[ranges.size()]);
+
+    // Power of two capacity with a load factor of at most one half
+    int capacity = 2;
+    while (capacity < extended.size() * 2) {
+      capacity <<= 1;
+    }
+    extendedKeys = new int[capacity];
+    Arrays.fill(extendedKeys, NO_KEY);
+    extendedValues = new CanMessageListener[capacity][];
+    for (Map.Entry<Integer, CanMessageListener[]> mapEntry : extended.entrySet()) {
+      int index = hash(mapEntry.getKey(), capacity);
+      while (extendedKeys[index] != NO_KEY) {
+        index = (index + 1) & (capacity - 1);
+      }
+      extendedKeys[index] = mapEntry.getKey();
+      extendedValues[index] = mapEntry.getValue();
+    }
+  }
+
+  /**
+   * Returns a table with a listener added for a range of IDs.
+   *
+   * @param idMin    The lowest ID.
+   * @param idMax    The highest ID, inclusive.
+   * @param extended True for extended IDs, false for standard IDs.
+   * @param listener The listener.
+   */
+  IdListenerTable add(int idMin, int idMax, boolean extended, CanMessageListener listener) {
+    return new IdListenerTable(ListenerArrays.add(entries,
+                                                  new Entry(idMin, idMax, extended, listener)));
+  }
+
+  /**
+   * Returns a table without any of the registrations of a listener, or the same table if the
+   * listener has none.
+   */
+  IdListenerTable remove(CanMessageListener listener) {
+    List<Entry> remaining = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (entry.listener != listener) {
+        remaining.add(entry);
+      }
+    }
+    if (remaining.size() == entries.length) {
+      return this;
+    }
+    if (remaining.isEmpty()) {
+      return EMPTY;
+    }
+    return new IdListenerTable(remaining.toArray(new Entry[remaining.size()]));
+  }
+
+  boolean isEmpty() {
+    return entries.length == 0;
+  }
+
+  /**
+   * Passes a message to the listeners registered for its ID. Each listener gets its own reference
+   * to the message, see {@link CanMessage#release()}.
+   */
+  void dispatch(CanMessage message) {
+    boolean extended = (message.flags & CanMessage.FLAG_EXTENDED_ID) != 0;
+    CanMessageListener[] listeners = get(message.id, extended);
+    if (listeners != null) {
+      for (CanMessageListener listener : listeners) {
+        message.retain();
+        listener.canMessageReceived(message);
+      }
+    }
+    if (extended && (extendedRanges.length > 0)) {
+      int id = message.id & EXTENDED_ID_MASK;
+      for (Entry entry : extendedRanges) {
+        if ((id >= entry.idMin) && (id <= entry.idMax)) {
+          message.retain();
+          entry.listener.canMessageReceived(message);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the listeners registered for an ID, except those for large ranges of extended IDs.
+   *
+   * @return The listeners, or null if there are none.
+   */
+  CanMessageListener[] get(int id, boolean extended) {
+    if (!extended) {
+      return (standardListeners != null) ? standardListeners[id & (NUMBER_OF_STANDARD_IDS - 1)]
+                                         : null;
+    }
+    int key = id & EXTENDED_ID_MASK;
+    int mask = extendedKeys.length - 1;
+    for (int index = hash(key, extendedKeys.length); ; index = (index + 1) & mask) {
+      int candidate = extendedKeys[index];
+      if (candidate == key) {
+        return extendedValues[index];
+      }
+      if (candidate == NO_KEY) {
+        return null;
+      }
+    }
+  }
+
+  private static int hash(int key, int capacity) {
+    // Fibonacci hashing, consecutive IDs are spread over the table
+    return (key * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(capacity));
+  }
+
+  private static CanMessageListener[] add(CanMessageListener[] listeners,
+                                          CanMessageListener listener) {
+    return (listeners == null) ? new CanMessageListener[] {listener}
+                               : ListenerArrays.add(listeners, listener);
+  }
+
+  private static final class Entry {
+
+    final int idMin;
+    final int idMax;
+    final boolean extended;
+    final CanMessageListener listener;
+
+    Entry(int idMin, int idMax, boolean extended, CanMessageListener listener) {
+      this.idMin = idMin;
+      this.idMax = idMax;
+      this.extended = extended;
+      this.listener = listener;
+    }
+  }
+}
@@ -6,6 +6,7 @@ import android.util.*;
 import java.nio.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import com.kvaser.canlib.CanLibException.ErrorDetail;
 import com.kvaser.canlib.CanLibException.ErrorCode;
@@ -14,10 +15,25 @@ class KCanl implements KvDeviceInterface {
 
   private final static boolean debugInLogcat = false;
 
-  // The response timeout in number of 100 ms
-  private final static int LEAF_CMD_RESPONSE_WAIT_TIME = 20;
+  // The response timeout in ms
+  private final static int LEAF_CMD_RESPONSE_TIMEOUT_MS = 2000;
+  // The longest time to wait for the chips to be reset when the device is opened
+  private final static int CHIP_RESET_TIMEOUT_MS = 100;
+  // The largest number of messages queued on the transport at once by a batched write
+  private final static int MAX_COMMANDS_PER_SEND = 64;
+  // Bounds the transmit requests of all channels together that are queued in the send buffer of
+  // the transport to half of it, i.e. 128 requests of 20 bytes in 5120 bytes. The rest is left for
+  // the other commands.
+  private final static int LEAF_MAX_OUTSTANDING_TX = 128;
+  private final static int NUMBER_OF_TRANS_IDS = 0x100;
+  private final static KvFuture.Function<ByteBuffer[], Void> DISCARD_RESPONSE =
+      new KvFuture.Function<ByteBuffer[], Void>() {
+        public Void apply(ByteBuffer[] value) {
+          return null;
+        }
+      };
 
-  private final UsbCanlDeviceHandle usbHandle;
+  private final KvTransport         usbHandle;
   private final KvDevices           deviceType;
 
   private byte          hwType;
@@ -31,6 +47,7 @@ class KCanl implements KvDeviceInterface {
 
   private long manufacturingDate;
   private byte channelCount;
+  private int maxOutstandingTx;
 
   private boolean cardRefuseToUseCan = false;        // Major problem detected
   private boolean cardFirmwareBeta = false;          // Firmware is beta
@@ -41,36 +58,66 @@ class KCanl implements KvDeviceInterface {
   private int hiresTimerFq = 1;
   private boolean timeoffsetValid = false;
 
-  private final List<CanChannelEventListener> canChannelListeners = new ArrayList<>();
+  // Copy-on-write, see ListenerArrays. The receive thread iterates it without locking.
+  private volatile CanChannelEventListener[] canChannelListeners = new CanChannelEventListener[0];
 
-  private final List<WaitNode> waitList = new ArrayList<>();
+  private final PendingResponseTable pendingResponses = new PendingResponseTable();
+  private final RxLogMessage rxLogMessage = new RxLogMessage();
+  private final RxMessage rxMessage = new RxMessage();
+  private MessagePools messagePools;
+  private CanBatchDelivery batchDelivery;
+  private final CanMessage batchOnlyMessage = new CanMessage(); // Only used by the receive thread
 
   private final long numberOfBitsFromAckToValidMsg = 8;
 
   private int[]                 autoTxBufferCount;
   private int[]                 autoTxBufferResolution;
-  private final byte[]          nextTransId;
+  private TransIdAllocator      transIds;
+  private TxCreditWindow[]      txCreditWindows;
   private long[]                timestampAdjustment;
   private long[]                bitrate;
   private CanMessage[][]        sentMsgs;                // Tx messages sorted by transaction id
+  private ByteBuffer            receiveBuffer;
+  private volatile Thread       receiveThread;
+
+  KCanl(KvTransport usbHandle, KvDevices deviceType) throws CanLibException {
+    this(usbHandle, deviceType, null);
+  }
 
-  KCanl(UsbCanlDeviceHandle usbHandle, KvDevices deviceType) throws CanLibException {
+  /**
+   * @param profileCache Cache of device profiles, or null to always query the device for its
+   *                     capabilities.
+   */
+  KCanl(KvTransport usbHandle, KvDevices deviceType, DeviceProfileCache profileCache)
+      throws CanLibException {
     this.usbHandle = usbHandle;
     this.deviceType = deviceType;
 
     usbHandle.addListener(this);
 
-    GetCardInfo();
-    GetSoftwareDetails();
+    // Card info and software details do not depend on each other, so both requests are sent
+    // before waiting for the responses
+    KvFuture<ByteBuffer[]> cardInfo = RequestCardInfo();
+    KvFuture<ByteBuffer[]> softwareDetails = RequestSoftwareDetails();
+    HandleCardInfo(cardInfo.getResult());
+    HandleSoftwareDetails(softwareDetails.getResult());
 
     autoTxBufferCount      = new int[channelCount];
     autoTxBufferResolution = new int[channelCount];
-    nextTransId            = new byte[channelCount];
+    transIds               = new TransIdAllocator(channelCount, NUMBER_OF_TRANS_IDS - 1);
+    txCreditWindows        = new TxCreditWindow[channelCount];
     timestampAdjustment    = new long[channelCount];
     bitrate                = new long[channelCount];
     sentMsgs               = new CanMessage[channelCount][256];
+    messagePools           = new MessagePools(channelCount);
+    batchDelivery          = new CanBatchDelivery(channelCount);
 
-    Arrays.fill(nextTransId, (byte) 1);
+    for (int i = 0; i < channelCount; i++) {
+      txCreditWindows[i] = new TxCreditWindow(maxOutstandingTx, NUMBER_OF_TRANS_IDS);
+      for (int tId = 0; tId < sentMsgs[i].length; tId++) {
+        sentMsgs[i][tId] = new CanMessage();
+      }
+    }
     Arrays.fill(timestampAdjustment, 0);
     Arrays.fill(bitrate, 125000);
 
@@ -78,14 +125,7 @@ class KCanl implements KvDeviceInterface {
     // necessary but the test code fails if not. The test code probably relies on the
     // defaults for a hydra chip. Setting up here makes the changes to the test code minimal.
     for (byte i = 0; i < channelCount; i++ ) SendCommand(new ResetChipReq(i).data);
-    try {
-      Thread.sleep(100);
-    }
-    catch (Exception e) {
-      throw new CanLibException(ErrorCode.ERR_INTERNAL,
-                                ErrorDetail.INTERRUPTED_THREAD,
-                                e.getMessage());
-    }
+    awaitChipReset();
 
     CanBusParams busParams = new CanBusParams();
     for (byte i = 0; i < channelCount; i++ ) {
@@ -95,13 +135,72 @@ class KCanl implements KvDeviceInterface {
 
     // Auto Tx Buffer is set up here in KCany, should we do the same?
     // Leave the issue to future changes. At the moment we just get the information
+    // The capabilities only change with the firmware, so for a known device they are taken from
+    // the cache instead of being queried again
     if (cardAutoTxObjectBuffers) {
-      for (byte i = 0; i < channelCount; i++) {
-        GetAutoTxInfo(i);
+      String profileKey = DeviceProfileCache.key(ean, serialNumber, firmwareVersionMajor,
+                                                 firmwareVersionMinor, firmwareVersionBuild);
+      DeviceProfileCache.Profile profile = null;
+      if (profileCache != null) {
+        profile = profileCache.get(profileKey);
+      }
+      if (profile == null || !restoreDeviceProfile(profile)) {
+        // The responses do not tell which channel they belong to, so only one request at a time
+        for (byte i = 0; i < channelCount; i++) {
+          GetAutoTxInfoAsync(i).getResult();
+        }
+        if (profileCache != null) {
+          profile = new DeviceProfileCache.Profile(profileKey);
+          profile.putIntArray("autoTxBufferCount", autoTxBufferCount);
+          profile.putIntArray("autoTxBufferResolution", autoTxBufferResolution);
+          profileCache.put(profile);
+        }
       }
     }
   }
 
+  /*
+   * Waits until the chips have been reset. The reset has no response, so a request is sent on each
+   * channel after its reset and the chip is regarded as reset when the channel has responded. If
+   * the responses do not arrive within the time a reset used to be given, the wait ends anyway.
+   */
+  private void awaitChipReset() throws CanLibException {
+    List<KvFuture<?>> futures = new ArrayList<>();
+    byte[] respCmds = {GetBusParamsResp.RespId};
+    for (byte i = 0; i < channelCount; i++) {
+      futures.add(SendCommandAsync(new GetBusParamsReq(i).data, respCmds, false));
+    }
+    KvFuture<Void> allReset = KvFuture.allOf(futures);
+    try {
+      allReset.get(CHIP_RESET_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw new CanLibException(ErrorCode.ERR_INTERNAL, ErrorDetail.INTERRUPTED_THREAD,
+                                e.getMessage());
+    } catch (ExecutionException | TimeoutException e) {
+      debugLog("No response after chip reset, continuing after " + CHIP_RESET_TIMEOUT_MS + " ms");
+      for (KvFuture<?> future : futures) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  /*
+   * Takes the capabilities from a cached profile. Returns false if the profile is incomplete or
+   * does not match the number of channels, in which case nothing is changed.
+   */
+  private boolean restoreDeviceProfile(DeviceProfileCache.Profile profile) {
+    int[] cachedAutoTxBufferCount = profile.getIntArray("autoTxBufferCount");
+    int[] cachedAutoTxBufferResolution = profile.getIntArray("autoTxBufferResolution");
+    if (cachedAutoTxBufferCount == null || cachedAutoTxBufferCount.length != channelCount
+        || cachedAutoTxBufferResolution == null
+        || cachedAutoTxBufferResolution.length != channelCount) {
+      return false;
+    }
+    autoTxBufferCount = cachedAutoTxBufferCount;
+    autoTxBufferResolution = cachedAutoTxBufferResolution;
+    return true;
+  }
+
   @Override
   public void close() {
     CanChannelAccess.releaseAccessPerDevice("" + (int) serialNumber, ean.getEanString(), channelCount);
@@ -109,6 +208,10 @@ class KCanl implements KvDeviceInterface {
     if (usbHandle != null) {
       usbHandle.close();
     }
+    // Nothing more is acknowledged, fail the confirmations still waiting
+    for (TxCreditWindow txCredits : txCreditWindows) {
+      txCredits.reset();
+    }
   }
 
   @Override
@@ -123,40 +226,69 @@ class KCanl implements KvDeviceInterface {
 
   @Override
   public void setBusParams(int channelIndex, CanBusParams busParams) {
+    setBusParamsAsync(channelIndex, busParams);
+  }
+
+  @Override
+  public KvFuture<Void> setBusParamsAsync(int channelIndex, CanBusParams busParams) {
     SetBusParamsReq req = new SetBusParamsReq((byte) channelIndex, busParams);
     SendCommand(req.data);
     // Unless we assume that this command succeed the timestamp will be wrong.
     updateTimestampAdjustment(channelIndex, busParams.bitRate);
+    // There is no response to this command
+    return KvFuture.completedFuture(null);
   }
 
   @Override
   public CanBusParams getBusParams(int channelIndex) throws CanLibException {
+    return getBusParamsAsync(channelIndex).getResult();
+  }
+
+  @Override
+  public KvFuture<CanBusParams> getBusParamsAsync(final int channelIndex) {
     GetBusParamsReq request = new GetBusParamsReq((byte)channelIndex);
     byte[] respCmds = {GetBusParamsResp.RespId};
 
-    ByteBuffer[] buffer = SendCommandAndWaitResponse(request.data, respCmds);
-    GetBusParamsResp response = new GetBusParamsResp(buffer[0]);
+    return SendCommandAsync(request.data, respCmds, false)
+        .then(new KvFuture.Function<ByteBuffer[], CanBusParams>() {
+          public CanBusParams apply(ByteBuffer[] buffer) throws CanLibException {
+            GetBusParamsResp response = new GetBusParamsResp(buffer[0]);
 
-    // If we get here we assume that the command was successful.
-    updateTimestampAdjustment(channelIndex, response.busParams.bitRate);
+            // If we get here we assume that the command was successful.
+            updateTimestampAdjustment(channelIndex, response.busParams.bitRate);
 
-    return response.busParams;
+            return response.busParams;
+          }
+        });
   }
 
   @Override
   public void busOn(int channelIndex) throws CanLibException {
+    busOnAsync(channelIndex).getResult();
+  }
+
+  @Override
+  public KvFuture<Void> busOnAsync(int channelIndex) {
     StartChipReq req = new StartChipReq((byte) channelIndex);
     byte[] respCmds = {StartChipResp.RespId};
+    resetTxCredits(channelIndex);
     // We don't have any use for the response so just discard it. It's enough just to wait for it
-    SendCommandAndWaitResponse(req.data, respCmds);
+    return SendCommandAsync(req.data, respCmds, false).then(DISCARD_RESPONSE);
   }
 
   @Override
   public void busOff(int channelIndex) throws CanLibException {
+    busOffAsync(channelIndex).getResult();
+  }
+
+  @Override
+  public KvFuture<Void> busOffAsync(int channelIndex) {
     StopChipReq req = new StopChipReq((byte) channelIndex);
     byte[] respCmds = {StopChipResp.RespId};
+    // The device discards the messages in its transmit queue, they are never acknowledged
+    resetTxCredits(channelIndex);
     // We don't have any use for the response so just discard it. It's enough just to wait for it
-    SendCommandAndWaitResponse(req.data, respCmds);
+    return SendCommandAsync(req.data, respCmds, false).then(DISCARD_RESPONSE);
   }
 
   @Override
@@ -168,18 +300,208 @@ class KCanl implements KvDeviceInterface {
 
   @Override
   public CanDriverType getBusOutputControl(int channelIndex) throws CanLibException {
+    return getBusOutputControlAsync(channelIndex).getResult();
+  }
+
+  @Override
+  public KvFuture<CanDriverType> getBusOutputControlAsync(int channelIndex) {
     GetDriverModeReq req = new GetDriverModeReq((byte) channelIndex);
     byte[] respCmds = {GetDriverModeResp.RespId};
-    ByteBuffer[] buffer = SendCommandAndWaitResponse(req.data, respCmds);
-    GetDriverModeResp resp = new GetDriverModeResp(buffer[0]);
-    return resp.ctrlMode;
+    return SendCommandAsync(req.data, respCmds, false)
+        .then(new KvFuture.Function<ByteBuffer[], CanDriverType>() {
+          public CanDriverType apply(ByteBuffer[] buffer) throws CanLibException {
+            GetDriverModeResp resp = new GetDriverModeResp(buffer[0]);
+            return resp.ctrlMode;
+          }
+        });
+  }
+
+  @Override
+  public void enableCanFdMode(int channelIndex, CanFdMode mode) throws CanLibException {
+    if (mode != CanFdMode.CLASSIC) {
+      throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED,
+                                "CAN FD is not supported by the device");
+    }
+  }
+
+  @Override
+  public void disableCanFdMode(int channelIndex) {
+    // No channel is ever in a CAN FD mode
+  }
+
+  @Override
+  public KvFuture<Void> setBusParamsFdAsync(int channelIndex, CanBusParams dataBusParams) {
+    return KvFuture.failedFuture(new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED,
+                                                     "CAN FD is not supported by the device"));
+  }
+
+  @Override
+  public KvFuture<CanBusParams> getBusParamsFdAsync(int channelIndex) {
+    return KvFuture.failedFuture(new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED,
+                                                     "CAN FD is not supported by the device"));
   }
 
   @Override
   public void write(int channelIndex, CanMessage msg) throws CanLibException {
-    TxReq req = new TxReq((byte) channelIndex, msg);
-    sentMsgs[channelIndex][(int)req.tId & 0xFF] = new CanMessage(msg);
-    SendCommand(req.data);
+    writeMessage(channelIndex, msg, null);
+  }
+
+  @Override
+  public KvFuture<Long> writeAndConfirm(int channelIndex, CanMessage msg) throws CanLibException {
+    KvFuture<Long> confirmation = new KvFuture<>();
+    writeMessage(channelIndex, msg, confirmation);
+    return confirmation;
+  }
+
+  /*
+   * Sends a message, and completes the confirmation, if any, when the device acknowledges it.
+   */
+  private void writeMessage(int channelIndex, CanMessage msg, KvFuture<Long> confirmation)
+      throws CanLibException {
+    long writeTime = System.nanoTime();
+    if ((msg.flags & CanMessage.FLAG_FD_EDL) != 0) {
+      throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED,
+                                "CAN FD is not supported by the device");
+    }
+    checkTxMessage(msg.id, msg.flags);
+    TxCreditWindow txCredits = txCreditWindows[channelIndex];
+    txCredits.acquire(1, !isReceiveThread());
+    byte tId = getNextTransId(channelIndex);
+    byte[] data = new byte[TxReq.MsgLen];
+    TxReq.encode(data, 0, (byte) channelIndex, tId, msg.id, msg.flags, msg.dlc, msg.data, 0,
+                 msg.data.length);
+    keepSentMessage(channelIndex, tId, msg.id, msg.flags, msg.dlc, msg.data, 0, msg.data.length);
+    txCredits.sent(tId & 0xFF, writeTime, confirmation);
+    if (!SendCommand(data)) {
+      txCredits.unsent(tId & 0xFF);
+      throw sendBufferFull();
+    }
+  }
+
+  @Override
+  public void write(int channelIndex, TxFrames frames) throws CanLibException {
+    int length = frames.size();
+    // Check all messages first, so that none is sent if one is invalid
+    for (int i = 0; i < length; i++) {
+      int flags = frames.getFlags(i);
+      if ((flags & CanMessage.FLAG_FD_EDL) != 0) {
+        throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED,
+                                  "CAN FD is not supported by the device");
+      }
+      checkTxMessage(frames.getId(i), flags);
+    }
+    long writeTime = System.nanoTime();
+    TxCreditWindow txCredits = txCreditWindows[channelIndex];
+    int maxCommands = Math.min(MAX_COMMANDS_PER_SEND, txCredits.getSize());
+    byte[] buffer = new byte[Math.min(length, maxCommands) * TxReq.MsgLen];
+    int i = 0;
+    while (i < length) {
+      int count = Math.min(maxCommands, length - i);
+      txCredits.acquire(count, !isReceiveThread());
+      for (int used = 0; used < count * TxReq.MsgLen; used += TxReq.MsgLen, i++) {
+        byte tId = getNextTransId(channelIndex);
+        int id = frames.getId(i);
+        int flags = frames.getFlags(i);
+        int dlc = frames.getDlc(i);
+        byte[] data = frames.getData(i);
+        int dataOffset = frames.getDataOffset(i);
+        int dataLength = frames.getDataLength(i);
+        TxReq.encode(buffer, used, (byte) channelIndex, tId, id, flags, dlc, data, dataOffset,
+                     dataLength);
+        keepSentMessage(channelIndex, tId, id, flags, dlc, data, dataOffset, dataLength);
+        txCredits.sent(tId & 0xFF, writeTime, null);
+      }
+      if (!SendCommands(buffer, count * TxReq.MsgLen)) {
+        // None of the group was queued, the transaction id is the fourth byte of each request
+        for (int used = 0; used < count * TxReq.MsgLen; used += TxReq.MsgLen) {
+          txCredits.unsent(buffer[used + 3] & 0xFF);
+        }
+        throw sendBufferFull();
+      }
+    }
+  }
+
+  /*
+   * Copies a sent message to the entry of its transaction id, where it is kept until the device
+   * acknowledges it, since the acknowledgement does not hold the message. The entries are reused,
+   * so the acknowledgement is delivered as a copy of the entry.
+   */
+  private void keepSentMessage(int channelIndex, byte tId, int id, int flags, int dlc,
+                               byte[] data, int dataOffset, int dataLength) {
+    CanMessage sentMsg = sentMsgs[channelIndex][tId & 0xFF];
+    sentMsg.id = id;
+    sentMsg.flags = flags;
+    sentMsg.dlc = dlc;
+    int length = Math.max(0, Math.min(sentMsg.data.length, dataLength));
+    System.arraycopy(data, dataOffset, sentMsg.data, 0, length);
+    Arrays.fill(sentMsg.data, length, sentMsg.data.length, (byte) 0);
+  }
+
+  @Override
+  public void setWriteTimeout(int channelIndex, long timeoutMs) {
+    txCreditWindows[channelIndex].setTimeout(timeoutMs);
+  }
+
+  @Override
+  public LatencyHistogram getTxLatencyHistogram(int channelIndex) {
+    return txCreditWindows[channelIndex].getLatencyHistogram();
+  }
+
+  /**
+   * Returns the number of messages written on a channel that the device has not acknowledged yet.
+   */
+  public int getOutstandingTxCount(int channelIndex) {
+    return txCreditWindows[channelIndex].getOutstandingCount();
+  }
+
+  private void resetTxCredits(int channelIndex) {
+    if ((channelIndex >= 0) && (channelIndex < channelCount)) {
+      txCreditWindows[channelIndex].reset();
+    }
+  }
+
+  @Override
+  public void enableMessagePool(int channelIndex, int poolSize) {
+    messagePools.enable(channelIndex, poolSize);
+  }
+
+  @Override
+  public void disableMessagePool(int channelIndex) {
+    messagePools.disable(channelIndex);
+  }
+
+  CanMessagePool getMessagePool(int channelIndex) {
+    return messagePools.get(channelIndex);
+  }
+
+  /*
+   * Returns a message for a received frame, taken from the channel's pool if it has one. The
+   * message must be released when it has been passed to the listeners.
+   */
+  private CanMessage obtainMessage(int channelIndex) {
+    CanMessagePool pool = messagePools.get(channelIndex);
+    return (pool != null) ? pool.obtain() : new CanMessage();
+  }
+
+  /*
+   * Returns true if any channel event listener is registered for the channel. When there is none,
+   * received frames are only decoded for the batch listeners, into a message that is reused.
+   */
+  private boolean hasChannelListener(int channelIndex) {
+    for (CanChannelEventListener listener : canChannelListeners) {
+      if (listener.getChannelIndex() == channelIndex) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * Returns the batch to append the frames received on the channel to, or null if it has no batch
+   * listeners.
+   */
+  private CanFrameBatch getBatch(int channelIndex) {
+    return (batchDelivery != null) ? batchDelivery.getBatch(channelIndex) : null;
   }
 
   @Override
@@ -230,78 +552,130 @@ class KCanl implements KvDeviceInterface {
   }
 
   @Override
-  public void registerCanChannelEventListener(CanChannelEventListener listener) {
-    canChannelListeners.add(listener);
+  public synchronized void registerCanChannelEventListener(CanChannelEventListener listener) {
+    canChannelListeners = ListenerArrays.add(canChannelListeners, listener);
   }
 
   @Override
-  public void unregisterCanChannelEventListener(CanChannelEventListener listener) {
-    canChannelListeners.remove(listener);
+  public synchronized void unregisterCanChannelEventListener(CanChannelEventListener listener) {
+    canChannelListeners = ListenerArrays.remove(canChannelListeners, listener);
   }
 
   @Override
-  public void UsbDataReceived(byte[] bytes) {
+  public void registerCanBatchListener(int channelIndex, CanBatchListener listener) {
+    batchDelivery.register(channelIndex, listener);
+  }
+
+  @Override
+  public void unregisterCanBatchListener(int channelIndex, CanBatchListener listener) {
+    batchDelivery.unregister(channelIndex, listener);
+  }
+
+  @Override
+  public void UsbDataReceived(byte[] bytes, int length) {
+    // Writes made from this thread do not wait for transmit credits, see isReceiveThread()
+    receiveThread = Thread.currentThread();
+    if (receiveBuffer == null || receiveBuffer.array() != bytes) {
+      // The transport normally reuses the same receive buffer, so only wrap it when it changes
+      receiveBuffer = ByteBuffer.wrap(bytes);
+      receiveBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Since bulk transfer is used it should be safe to assume that what we get here is one or
+    // more complete packages so process them one by one, in place in the receive buffer.
+    int offset = 0;
+    while (length - offset >= 3 && bytes[offset] != 0) {
+      int packageLength = bytes[offset] & 0xFF;
+      if (offset + packageLength > length) {
+        break;
+      }
+      HandlePackage(bytes, offset, packageLength);
+      offset += packageLength;
+    }
+
+    // The frames of the whole transfer are delivered to the batch listeners at once
+    if (batchDelivery != null) {
+      batchDelivery.flush();
+    }
+  }
+
+  private void HandlePackage(byte[] bytes, int offset, int packageLength) {
 
     try {
-      boolean processed = HandleUsbCommand(bytes);
-
-      // Notify all waiters of this response
-      synchronized (waitList) {
-        for (int i = 0; i < waitList.size(); i++) {
-          synchronized (waitList.get(i)) {
-            if ((waitList.get(i).responseCmd == bytes[1]) &&
-                (waitList.get(i).ignoreTransId || (waitList.get(i).transId == bytes[2]))) {
-              waitList.get(i).responseReceived = true;
-              waitList.get(i).receivedData = bytes;
-              waitList.get(i).notifyAll();
-
-            } else {
-              if (!processed) {
-                if (waitList.get(i).ignoreTransId) {
-                  debugLog("Un-processed package " + bytes[1] + " with length " + bytes[0]);
-                }
-                else {
-                  debugLog("Un-processed package " + bytes[1] + " with length " + bytes[0]
-                           + " and transId " + bytes[2]);
-                }
-              }
-            }
-          }
-        }
+      boolean processed = HandleUsbCommand(receiveBuffer, offset);
+
+      // Complete the request waiting for this response, if any
+      boolean completed = pendingResponses.complete(bytes[offset + 1] & 0xFF,
+                                                    bytes[offset + 2] & 0xFF, bytes, offset,
+                                                    packageLength);
+      if (!processed && !completed) {
+        debugLog("Un-processed package " + bytes[offset + 1] + " with length " + packageLength
+                 + " and transId " + bytes[offset + 2]);
       }
     } catch (CanLibException e) {
       debugLog(e.getMessage());
     }
   }
 
-  private boolean HandleUsbCommand(byte[] data) throws CanLibException {
+  /**
+   * Decodes one package in place in the receive buffer.
+   *
+   * @param buffer The receive buffer, in little endian order.
+   * @param offset The index of the first byte of the package, i.e. its length byte.
+   * @return true if the package was handled as an event, false otherwise.
+   */
+  private boolean HandleUsbCommand(ByteBuffer buffer, int offset) throws CanLibException {
 
     boolean result = false;
-    ByteBuffer buffer = ByteBuffer.wrap(data);
-    buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-    buffer.get(); // receivedMsgLen
-    byte receivedRespId = buffer.get();
+    byte receivedRespId = buffer.get(offset + 1);
 
     switch (receivedRespId) {
-      case TxAcknowledge.RespId:
+      case TxAcknowledge.RespId: {
         result = true;
-        TxAcknowledge txAcknowledge = new TxAcknowledge(buffer);
+        TxAcknowledge txAcknowledge = new TxAcknowledge(buffer, offset);
+        byte channel = txAcknowledge.channel;
+        if ((channel < 0) || (channel >= channelCount)) {
+          break;
+        }
+        int tId = txAcknowledge.tId & 0xFF;
+        CanFrameBatch txBatch = getBatch(channel);
+        boolean dispatch = hasChannelListener(channel);
+        CanMessage txAckMsg = null;
+        if (dispatch || (txBatch != null)) {
+          // Copied before the credit is given back, after which the entry may be reused
+          CanMessage sentMsg = sentMsgs[channel][tId];
+          txAckMsg = dispatch ? obtainMessage(channel) : batchOnlyMessage;
+          txAckMsg.id = sentMsg.id;
+          txAckMsg.dlc = sentMsg.dlc;
+          txAckMsg.flags = sentMsg.flags | CanMessage.FLAG_TX_ACK;
+          txAckMsg.ensureDataCapacity(sentMsg.data.length);
+          System.arraycopy(sentMsg.data, 0, txAckMsg.data, 0, sentMsg.data.length);
+          txAckMsg.time = txAcknowledge.time;
+          txAckMsg.direction = CanMessage.Direction.TX;
+        }
+        txCreditWindows[channel].acknowledged(tId, txAcknowledge.time);
 
-        CanMessage txAckMsg = sentMsgs[txAcknowledge.channel][(int)txAcknowledge.tId & 0xFF];
-        txAckMsg.flags.add(CanMessage.MessageFlags.TX_ACK);
-        txAckMsg.time = txAcknowledge.time;
-        txAckMsg.direction = CanMessage.Direction.TX;
-        for (CanChannelEventListener listener : canChannelListeners) {
-          if (listener.getChannelIndex() == txAcknowledge.channel) {
-            listener.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, txAckMsg);
+        if (txAckMsg == null) {
+          break;
+        }
+        if (txBatch != null) {
+          txBatch.add(txAckMsg);
+        }
+        if (dispatch) {
+          for (CanChannelEventListener listener : canChannelListeners) {
+            if (listener.getChannelIndex() == channel) {
+              listener.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE,
+                                       txAckMsg);
+            }
           }
+          txAckMsg.release();
         }
         break;
+      }
 
       case ChipStateResp.RespId:
         result = true;
-        ChipStateResp chipStateResp = new ChipStateResp(buffer);
+        ChipStateResp chipStateResp = new ChipStateResp(buffer, offset);
 
         for (CanChannelEventListener listener : canChannelListeners) {
           if (listener.getChannelIndex() == chipStateResp.chipState.channel) {
@@ -311,32 +685,60 @@ class KCanl implements KvDeviceInterface {
         }
         break;
 
-      case RxLogMessage.RespId:
+      case RxLogMessage.RespId: {
         result = true;
-        RxLogMessage logMsg = new RxLogMessage(buffer);
-        for (CanChannelEventListener listener : canChannelListeners) {
-          if (listener.getChannelIndex() == logMsg.channel) {
-            listener.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, logMsg.canMsg);
+        byte channel = buffer.get(offset + 2);
+        CanFrameBatch batch = getBatch(channel);
+        boolean dispatch = hasChannelListener(channel);
+        if (!dispatch && batch == null) {
+          break;
+        }
+        CanMessage canMsg = dispatch ? obtainMessage(channel) : batchOnlyMessage;
+        rxLogMessage.decode(buffer, offset, canMsg);
+        if (batch != null) {
+          batch.add(canMsg);
+        }
+        if (dispatch) {
+          for (CanChannelEventListener listener : canChannelListeners) {
+            if (listener.getChannelIndex() == channel) {
+              listener.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, canMsg);
+            }
           }
+          canMsg.release();
         }
         break;
+      }
 
       case RxMessage.RespIdStd:
-      case RxMessage.RespIdExt:
+      case RxMessage.RespIdExt: {
         result = true;
-        RxMessage rxMsg = new RxMessage(buffer);
-        for (CanChannelEventListener listener : canChannelListeners) {
-          if (listener.getChannelIndex() == rxMsg.channel) {
-            listener.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, rxMsg.canMsg);
+        byte channel = buffer.get(offset + 2);
+        CanFrameBatch batch = getBatch(channel);
+        boolean dispatch = hasChannelListener(channel);
+        if (!dispatch && batch == null) {
+          break;
+        }
+        CanMessage canMsg = dispatch ? obtainMessage(channel) : batchOnlyMessage;
+        rxMessage.decode(buffer, offset, canMsg);
+        if (batch != null) {
+          batch.add(canMsg);
+        }
+        if (dispatch) {
+          for (CanChannelEventListener listener : canChannelListeners) {
+            if (listener.getChannelIndex() == channel) {
+              listener.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, canMsg);
+            }
           }
+          canMsg.release();
         }
         break;
+      }
 
       case ErrorEvent.RespId:
         result = true;
         if (BuildConfig.BUILD_TYPE.equals("debug")) {
           // Unhandled for now but handy breakpoint location if needed
-          ErrorEvent errorEvent = new ErrorEvent(buffer);
+          ErrorEvent errorEvent = new ErrorEvent(buffer, offset);
         }
         break;
 
@@ -344,7 +746,7 @@ class KCanl implements KvDeviceInterface {
         result = true;
         if (BuildConfig.BUILD_TYPE.equals("debug")) {
           // Unhandled for now but handy breakpoint location if needed
-          CanErrorEvent canErrorEvent = new CanErrorEvent(buffer);
+          CanErrorEvent canErrorEvent = new CanErrorEvent(buffer, offset);
         }
         break;
 
@@ -359,7 +761,7 @@ class KCanl implements KvDeviceInterface {
         result = true;
         if (BuildConfig.BUILD_TYPE.equals("debug")) {
           // Unhandled for now but handy breakpoint location if needed
-          TxRequest txRequest = new TxRequest(buffer);
+          TxRequest txRequest = new TxRequest(buffer, offset);
         }
         break;
     }
@@ -372,77 +774,88 @@ class KCanl implements KvDeviceInterface {
   }
 
   private ByteBuffer[] SendCommandAndWaitResponse(byte[] requestData, byte[] responseCmd, boolean ignoreTransId) throws CanLibException {
-    WaitNode[] waitNodes = new WaitNode[responseCmd.length];
-    for (int i = 0; i < waitNodes.length; i++) {
-      waitNodes[i] = new WaitNode(responseCmd[i], requestData[2], ignoreTransId);
-      synchronized (waitList) {
-        waitList.add(waitNodes[i]);
-      }
+    return SendCommandAsync(requestData, responseCmd, ignoreTransId).getResult();
+  }
+
+  private KvFuture<ByteBuffer[]> SendCommandAsync(byte[] requestData, byte[] responseCmd, final boolean ignoreTransId) {
+    final int transId = ignoreTransId ? PendingResponseTable.ANY_TRANS_ID : (requestData[2] & 0xFF);
+    final PendingResponse[] responses = new PendingResponse[responseCmd.length];
+    for (int i = 0; i < responses.length; i++) {
+      responses[i] = pendingResponses.register(responseCmd[i] & 0xFF, transId,
+                                               LEAF_CMD_RESPONSE_TIMEOUT_MS);
     }
-    ByteBuffer[] respData = new ByteBuffer[responseCmd.length];
     debugLog("Req", requestData);
-    for (int i = 0; i < waitNodes.length; i++) {
-
-      synchronized (waitNodes[i]) {
-        if (i == 0) {
-          usbHandle.send((requestData));
-        }
-        int timeoutCounter = 0;
-        while ((!waitNodes[i].responseReceived) && (timeoutCounter < LEAF_CMD_RESPONSE_WAIT_TIME)) {
-          try {
-            waitNodes[i].wait(100);
-          } catch (InterruptedException e) {
-            throw new CanLibException(ErrorCode.ERR_INTERNAL,
-                                      ErrorDetail.INTERRUPTED_THREAD,
-                                      "Thread was interrupted while waiting for response from device");
-          }
-          timeoutCounter++;
-        }
-        if (timeoutCounter == LEAF_CMD_RESPONSE_WAIT_TIME) {
-          if (waitNodes[i].ignoreTransId) {
-            debugLog("Timeout occurred while waiting for response cmd " +
-                     (((int) waitNodes[i].responseCmd) & 0xFF));
-          }
-          else {
-            debugLog("Timeout occurred while waiting for response cmd " +
-                     (((int) waitNodes[i].responseCmd) & 0xFF) +
-                     " (transId " + waitNodes[i].transId + ")");
-          }
-        }
+    if (!usbHandle.send(requestData)) {
+      // No response will come, so the responses are not left waiting for their timeout
+      for (PendingResponse response : responses) {
+        response.cancel(false);
       }
+      return KvFuture.failedFuture(sendBufferFull());
+    }
+    KvFuture<ByteBuffer[]> future = PendingResponseTable.allOf(responses);
+    if (debugInLogcat) {
+      future.addCompletionListener(new CompletionListener<ByteBuffer[]>() {
+        public void completed(ByteBuffer[] result) {
+        }
 
-      synchronized (waitList) {
-        waitList.remove(waitNodes[i]);
-      }
-      synchronized (waitNodes[i]) {
-        if (waitNodes[i].responseReceived) {
-          respData[i] = ByteBuffer.wrap(waitNodes[i].receivedData);
-          respData[i].order(ByteOrder.LITTLE_ENDIAN);
-        } else {
-          throw new CanLibException(ErrorCode.ERR_DEVICE, ErrorDetail.COMMUNICATION_TIMEOUT);
+        public void failed(CanLibException exception) {
+          for (PendingResponse response : responses) {
+            if (!response.isTimedOut()) {
+              continue;
+            }
+            if (ignoreTransId) {
+              debugLog("Timeout occurred while waiting for response cmd " +
+                       response.responseCmd);
+            }
+            else {
+              debugLog("Timeout occurred while waiting for response cmd " +
+                       response.responseCmd + " (transId " + transId + ")");
+            }
+          }
         }
-      }
+      });
     }
-
-    return respData;
+    return future;
   }
 
-  private void SendCommand(byte[] requestData) {
+  /*
+   * Sends a command. Returns false if the send buffer of the transport had no room for it.
+   */
+  private boolean SendCommand(byte[] requestData) {
     debugLog(" Req", requestData);
-    usbHandle.send(requestData);
+    return usbHandle.send(requestData);
   }
 
-  private byte getNextTransId(int channelIndex) {
-    byte transId;
-    synchronized (nextTransId) {
-      transId = nextTransId[channelIndex];
-      nextTransId[channelIndex]++;
-      if (nextTransId[channelIndex] == 0) {
-        nextTransId[channelIndex] = 1;
-      }
+  /*
+   * Sends several commands, stored back to back from index 0, with one call to the transport.
+   * Returns false if the send buffer of the transport had no room for them, and none was sent.
+   */
+  private boolean SendCommands(byte[] requestData, int length) {
+    if (length == 0) {
+      return true;
+    }
+    if (debugInLogcat) {
+      debugLog(" Req", Arrays.copyOf(requestData, length));
     }
+    return usbHandle.send(requestData, 0, length);
+  }
+
+  private static CanLibException sendBufferFull() {
+    return new CanLibException(ErrorCode.ERR_DEVICE, ErrorDetail.TX_BUFFER_FULL,
+                               "The send buffer of the transport is full");
+  }
 
-    return transId;
+  /*
+   * Returns true if called from the thread that handles the received data, e.g. by a listener. A
+   * write from there must not wait for transmit credits, since the acknowledgements that give
+   * them back are handled by that same thread.
+   */
+  private boolean isReceiveThread() {
+    return Thread.currentThread() == receiveThread;
+  }
+
+  private byte getNextTransId(int channelIndex) {
+    return (byte) transIds.next(channelIndex);
   }
 
   private void updateTimestampAdjustment(int channelIndex, long bitrate) {
@@ -450,10 +863,11 @@ class KCanl implements KvDeviceInterface {
     this.bitrate[channelIndex] = bitrate;
   }
 
-  private long translateTimestamp(short[] timestamps, int channelIndex, byte timeOffset) {
-    long time = ((((long)timestamps[2]) & 0xFFFF) << 32) |
-                ((((long)timestamps[1]) & 0xFFFF) << 16) |
-                ((long)timestamps[0] & 0xFFFF);
+  private long translateTimestamp(short timestamp0, short timestamp1, short timestamp2,
+                                  int channelIndex, byte timeOffset) {
+    long time = ((((long)timestamp2) & 0xFFFF) << 32) |
+                ((((long)timestamp1) & 0xFFFF) << 16) |
+                ((long)timestamp0 & 0xFFFF);
 
     // returned timestamp is in 10 us resolution.
     time = time / (10 * this.hiresTimerFq);
@@ -469,21 +883,6 @@ class KCanl implements KvDeviceInterface {
     return time;
   }
 
-  private class WaitNode {
-
-    final byte responseCmd;
-    final short transId;
-    final boolean ignoreTransId;
-    boolean responseReceived = false;
-    byte[] receivedData;
-
-    WaitNode(byte responseCmd, short transId, boolean ignoreTransId) {
-      this.responseCmd = responseCmd;
-      this.transId = transId;
-      this.ignoreTransId = ignoreTransId;
-    }
-  }
-
   private void debugLog(String description, byte[] data) {
     if (debugInLogcat) {
       String msg = description + ": ";
@@ -500,26 +899,34 @@ class KCanl implements KvDeviceInterface {
     }
   }
 
-  private void GetAutoTxInfo(byte channel) throws CanLibException {
+  private KvFuture<Void> GetAutoTxInfoAsync(final byte channel) {
     AutoTxBufferReq
         request = new AutoTxBufferReq(AutoTxBufferReq.AUTOTXBUFFER_GET_INFO, channel, 0, (byte)0);
 
     byte[] respCmds = {AutoTxBufferResp.RespId};
-    ByteBuffer[] buffer = SendCommandAndWaitResponse(request.data, respCmds, true);
-
-    AutoTxBufferResp response = new AutoTxBufferResp(buffer[0]);
-
-    if (response.responseType == AutoTxBufferReq.AUTOTXBUFFER_GET_INFO) {
-      autoTxBufferCount[channel] = response.bufferCount;
-      autoTxBufferResolution[channel] = response.timerResolution;
-    }
+    // The response carries neither the transaction ID nor the channel, so the caller must not
+    // have more than one request outstanding
+    return SendCommandAsync(request.data, respCmds, true)
+        .then(new KvFuture.Function<ByteBuffer[], Void>() {
+          public Void apply(ByteBuffer[] buffer) throws CanLibException {
+            AutoTxBufferResp response = new AutoTxBufferResp(buffer[0]);
+
+            if (response.responseType == AutoTxBufferReq.AUTOTXBUFFER_GET_INFO) {
+              autoTxBufferCount[channel] = response.bufferCount;
+              autoTxBufferResolution[channel] = response.timerResolution;
+            }
+            return null;
+          }
+        });
   }
 
-  private void GetCardInfo() throws CanLibException {
+  private KvFuture<ByteBuffer[]> RequestCardInfo() {
     CardInfoReq cardInfoReq = new CardInfoReq();
     byte[] respCmds     = {CardInfoResp.RespId};
-    ByteBuffer[] buffer = SendCommandAndWaitResponse(cardInfoReq.data, respCmds);
+    return SendCommandAsync(cardInfoReq.data, respCmds, false);
+  }
 
+  private void HandleCardInfo(ByteBuffer[] buffer) throws CanLibException {
     CardInfoResp response = new CardInfoResp(buffer[0]);
 
     this.serialNumber      = response.serialNumber;
@@ -530,16 +937,23 @@ class KCanl implements KvDeviceInterface {
     this.ean.setEan(response.ean);
   }
 
-  private void GetSoftwareDetails() throws CanLibException {
+  private KvFuture<ByteBuffer[]> RequestSoftwareDetails() {
     SoftInfoReq req = new SoftInfoReq();
     byte[] respCmds = {SoftInfoResp.RespId};
-    ByteBuffer[] buffer = SendCommandAndWaitResponse(req.data, respCmds);
+    return SendCommandAsync(req.data, respCmds, false);
+  }
 
+  private void HandleSoftwareDetails(ByteBuffer[] buffer) throws CanLibException {
     SoftInfoResp response = new SoftInfoResp(buffer[0]);
     firmwareVersionMajor = (response.fw_version >> 24) & 0xFF;
     firmwareVersionMinor = (response.fw_version >> 16) & 0xFF;
     firmwareVersionBuild = (response.fw_version & 0xFFFF);
 
+    // Each channel can hold this many transmit requests, see TxCreditWindow. The channels share
+    // the send buffer of the transport.
+    int channelShare = LEAF_MAX_OUTSTANDING_TX / Math.max(channelCount, 1);
+    maxOutstandingTx = Math.max(Math.min(response.max_outstanding_tx, channelShare), 1);
+
     int swOptions = response.sw_options;
     if ((swOptions & SoftInfoResp.SWOPTION_BAD_MOOD) != 0) {
       cardRefuseToUseCan = true;
@@ -660,8 +1074,8 @@ class KCanl implements KvDeviceInterface {
     private final byte    busStatus;
     private final byte    errorFactor;
 
-    CanErrorEvent(ByteBuffer buffer) throws CanLibException {
-      buffer.rewind();
+    CanErrorEvent(ByteBuffer buffer, int offset) throws CanLibException {
+      buffer.position(offset);
       buffer.order(ByteOrder.LITTLE_ENDIAN);
 
       byte recMsgLen = buffer.get();
@@ -675,11 +1089,10 @@ class KCanl implements KvDeviceInterface {
       this.tId   = buffer.get();
       this.flags = buffer.get();
 
-      short[] recTime = new short[3];
-      recTime[0] = buffer.getShort();
-      recTime[1] = buffer.getShort();
-      recTime[2] = buffer.getShort();
-      time = translateTimestamp(recTime, -1, (byte)0);
+      short recTime0 = buffer.getShort();
+      short recTime1 = buffer.getShort();
+      short recTime2 = buffer.getShort();
+      time = translateTimestamp(recTime0, recTime1, recTime2, -1, (byte)0);
 
       this.channel        = buffer.get();
       this.txErrorCounter = buffer.get();
@@ -774,8 +1187,8 @@ class KCanl implements KvDeviceInterface {
     private final static byte BUS_STATUS_BUS_PASSIVE_MASK = 0x20;
     private final static byte BUS_STATUS_BUS_OFF_MASK     = 0x40;
 
-    ChipStateResp(ByteBuffer buffer) throws  CanLibException {
-      buffer.rewind();
+    ChipStateResp(ByteBuffer buffer, int offset) throws  CanLibException {
+      buffer.position(offset);
 
       byte recMsgLen = buffer.get();
       byte recRespId = buffer.get();
@@ -788,11 +1201,11 @@ class KCanl implements KvDeviceInterface {
       buffer.get(); //tId
       this.chipState.channel = buffer.get();
 
-      short[] recTime = new short[3];
-      recTime[0] = buffer.getShort();
-      recTime[1] = buffer.getShort();
-      recTime[2] = buffer.getShort();
-      this.chipState.time = translateTimestamp(recTime, this.chipState.channel, (byte)0);
+      short recTime0 = buffer.getShort();
+      short recTime1 = buffer.getShort();
+      short recTime2 = buffer.getShort();
+      this.chipState.time = translateTimestamp(recTime0, recTime1, recTime2,
+                                               this.chipState.channel, (byte)0);
 
       this.chipState.txErrorCounter = buffer.get();
       this.chipState.rxErrorCounter = buffer.get();
@@ -856,8 +1269,8 @@ class KCanl implements KvDeviceInterface {
     private final short   addInfo1;
     private final short   addInfo2;
 
-    ErrorEvent(ByteBuffer buffer) throws CanLibException {
-      buffer.rewind();
+    ErrorEvent(ByteBuffer buffer, int offset) throws CanLibException {
+      buffer.position(offset);
       buffer.order(ByteOrder.LITTLE_ENDIAN);
 
       byte recMsgLen = buffer.get();
@@ -872,11 +1285,10 @@ class KCanl implements KvDeviceInterface {
       this.tId       = buffer.get();
       this.errorCode = buffer.get();
 
-      short[] recTime = new short[3];
-      recTime[0] = buffer.getShort();
-      recTime[1] = buffer.getShort();
-      recTime[2] = buffer.getShort();
-      this.time = translateTimestamp(recTime, -1, (byte)0);
+      short recTime0 = buffer.getShort();
+      short recTime1 = buffer.getShort();
+      short recTime2 = buffer.getShort();
+      this.time = translateTimestamp(recTime0, recTime1, recTime2, -1, (byte)0);
 
       this.addInfo1 = buffer.getShort();
       this.addInfo2 = buffer.getShort();
@@ -1118,11 +1530,11 @@ class KCanl implements KvDeviceInterface {
     static private final byte MsgLen = 24;
     static private final byte RespId = 106;
 
-    private final byte       channel;
-    private final CanMessage canMsg = new CanMessage();
-
-    RxLogMessage(ByteBuffer buffer) throws CanLibException {
-      buffer.rewind();
+    /**
+     * Decodes the package into canMsg, setting all its fields.
+     */
+    void decode(ByteBuffer buffer, int offset, CanMessage canMsg) throws CanLibException {
+      buffer.position(offset);
 
       byte recMsgLen = buffer.get();
       byte respId    = buffer.get();
@@ -1133,35 +1545,34 @@ class KCanl implements KvDeviceInterface {
             , "Received an unexpected message: " + RxLogMessage.MsgLen + " " + respId);
       }
 
-      this.channel = buffer.get();
+      byte channel = buffer.get();
 
-      this.canMsg.setFlagsUsingBitField(buffer.get());
+      canMsg.setFlagsUsingBitField(buffer.get());
 
-      short[] recTime = new short[3];
-      recTime[0] = buffer.getShort();
-      recTime[1] = buffer.getShort();
-      recTime[2] = buffer.getShort();
+      short recTime0 = buffer.getShort();
+      short recTime1 = buffer.getShort();
+      short recTime2 = buffer.getShort();
 
-      this.canMsg.dlc = buffer.get();
+      canMsg.dlc = buffer.get();
 
       byte timeOffset = buffer.get();
 
-      this.canMsg.time = translateTimestamp(recTime, this.channel, timeOffset);
+      canMsg.time = translateTimestamp(recTime0, recTime1, recTime2, channel, timeOffset);
 
       int id = buffer.getInt();
 
       if ((id & 0x80000000) != 0) {
-        this.canMsg.id = 0x1FFFFFFF & id;
-        this.canMsg.setFlag(CanMessage.MessageFlags.EXTENDED_ID);
+        canMsg.id = 0x1FFFFFFF & id;
+        canMsg.flags |= CanMessage.FLAG_EXTENDED_ID;
       }
       else {
-        this.canMsg.id = 0x7FF & id;
-        this.canMsg.setFlag(CanMessage.MessageFlags.STANDARD_ID);
+        canMsg.id = 0x7FF & id;
+        canMsg.flags |= CanMessage.FLAG_STANDARD_ID;
       }
 
-      buffer.get(this.canMsg.data);
+      buffer.get(canMsg.data);
 
-      this.canMsg.direction = CanMessage.Direction.RX;
+      canMsg.direction = CanMessage.Direction.RX;
     }
   }
 
@@ -1180,13 +1591,12 @@ class KCanl implements KvDeviceInterface {
     static private final byte MSGFLAG_TX           = (byte)0x40; // TX acknowledge
     static private final byte MSGFLAG_TXRQ         = (byte)0x80; // TX request
 
-    private final byte channel;
+    /**
+     * Decodes the package into canMsg, setting all its fields.
+     */
+    void decode(ByteBuffer buffer, int offset, CanMessage canMsg) throws CanLibException {
 
-    private final CanMessage canMsg = new CanMessage();
-
-    RxMessage(ByteBuffer buffer) throws CanLibException {
-
-      buffer.rewind();
+      buffer.position(offset);
       buffer.order(ByteOrder.LITTLE_ENDIAN);
 
       byte recMsgLen = buffer.get();
@@ -1197,22 +1607,22 @@ class KCanl implements KvDeviceInterface {
             , "Received an unexpected message: " + MsgLen + " " + recRespId);
       }
 
-      this.channel = buffer.get();
+      byte channel = buffer.get();
 
       byte recFlags = buffer.get();
-      this.canMsg.flags.clear();
+      int flags = 0;
 
-      if ((recFlags & RxMessage.MSGFLAG_ERROR_FRAME) != 0) canMsg.flags.add(CanMessage.MessageFlags.ERROR_FRAME);
-      if ((recFlags & RxMessage.MSGFLAG_OVERRUN) != 0) canMsg.flags.add(CanMessage.MessageFlags.ERR_HW_OVERRUN);
-      if ((recFlags & RxMessage.MSGFLAG_REMOTE_FRAME) != 0) canMsg.flags.add(CanMessage.MessageFlags.REMOTE_REQUEST);
-      if ((recFlags & RxMessage.MSGFLAG_TX) != 0) canMsg.flags.add(CanMessage.MessageFlags.TX_ACK);
-      if ((recFlags & RxMessage.MSGFLAG_TXRQ) != 0) canMsg.flags.add(CanMessage.MessageFlags.TX_RQ);
+      if ((recFlags & RxMessage.MSGFLAG_ERROR_FRAME) != 0) flags |= CanMessage.FLAG_ERROR_FRAME;
+      if ((recFlags & RxMessage.MSGFLAG_OVERRUN) != 0) flags |= CanMessage.FLAG_ERR_HW_OVERRUN;
+      if ((recFlags & RxMessage.MSGFLAG_REMOTE_FRAME) != 0) flags |= CanMessage.FLAG_REMOTE_REQUEST;
+      if ((recFlags & RxMessage.MSGFLAG_TX) != 0) flags |= CanMessage.FLAG_TX_ACK;
+      if ((recFlags & RxMessage.MSGFLAG_TXRQ) != 0) flags |= CanMessage.FLAG_TX_RQ;
+      canMsg.flags = flags;
 
-      short[] recTime = new short[3];
-      recTime[0] = buffer.getShort();
-      recTime[1] = buffer.getShort();
-      recTime[2] = buffer.getShort();
-      this.canMsg.time = translateTimestamp(recTime, this.channel, (byte)0);
+      short recTime0 = buffer.getShort();
+      short recTime1 = buffer.getShort();
+      short recTime2 = buffer.getShort();
+      canMsg.time = translateTimestamp(recTime0, recTime1, recTime2, channel, (byte)0);
 
       int id = buffer.get() & 0x1F;
       id = id << 6;
@@ -1224,28 +1634,28 @@ class KCanl implements KvDeviceInterface {
         id += buffer.get() & 0xFF;
         id = id << 6;
         id += buffer.get() & 0x3F;
-        this.canMsg.flags.add(CanMessage.MessageFlags.EXTENDED_ID);
+        canMsg.flags |= CanMessage.FLAG_EXTENDED_ID;
       }
       else {
         //Skip 3 bytes
         buffer.getShort();
         buffer.get();
-        this.canMsg.flags.add(CanMessage.MessageFlags.STANDARD_ID);
+        canMsg.flags |= CanMessage.FLAG_STANDARD_ID;
       }
-      this.canMsg.id = id;
+      canMsg.id = id;
 
-      this.canMsg.dlc = buffer.get() & 0x0F;
+      canMsg.dlc = buffer.get() & 0x0F;
 
-      this.canMsg.data[0] = buffer.get();
-      this.canMsg.data[1] = buffer.get();
-      this.canMsg.data[2] = buffer.get();
-      this.canMsg.data[3] = buffer.get();
-      this.canMsg.data[4] = buffer.get();
-      this.canMsg.data[5] = buffer.get();
-      this.canMsg.data[6] = buffer.get();
-      this.canMsg.data[7] = buffer.get();
+      canMsg.data[0] = buffer.get();
+      canMsg.data[1] = buffer.get();
+      canMsg.data[2] = buffer.get();
+      canMsg.data[3] = buffer.get();
+      canMsg.data[4] = buffer.get();
+      canMsg.data[5] = buffer.get();
+      canMsg.data[6] = buffer.get();
+      canMsg.data[7] = buffer.get();
 
-      this.canMsg.direction = CanMessage.Direction.RX;
+      canMsg.direction = CanMessage.Direction.RX;
     }
   }
 
@@ -1523,8 +1933,8 @@ class KCanl implements KvDeviceInterface {
     private final byte    flags;
     private final byte    timeOffset;
 
-    TxAcknowledge(ByteBuffer buffer) throws CanLibException {
-      buffer.rewind();
+    TxAcknowledge(ByteBuffer buffer, int offset) throws CanLibException {
+      buffer.position(offset);
       buffer.order(ByteOrder.LITTLE_ENDIAN);
 
       byte recMsgLen = buffer.get();
@@ -1538,95 +1948,86 @@ class KCanl implements KvDeviceInterface {
       this.channel = buffer.get();
       this.tId     = buffer.get();
 
-      short[] recTime = new short[3];
-      recTime[0] = buffer.getShort();
-      recTime[1] = buffer.getShort();
-      recTime[2] = buffer.getShort();
+      short recTime0 = buffer.getShort();
+      short recTime1 = buffer.getShort();
+      short recTime2 = buffer.getShort();
 
       this.flags      = buffer.get();
       this.timeOffset = buffer.get();
 
-      this.time = translateTimestamp(recTime, this.channel, this.timeOffset);
+      this.time = translateTimestamp(recTime0, recTime1, recTime2, this.channel,
+                                     this.timeOffset);
     }
   }
 
-  private class TxReq {
-
-    static private final byte MsgLen = 20;
-
-    private final byte ReqId;
-    private final byte tId;
-
-    private final byte[] data = new byte[TxReq.MsgLen];
-
-    TxReq(byte channel, CanMessage msg) throws CanLibException {
-
-      if (msg.flags.contains(CanMessage.MessageFlags.EXTENDED_ID)) {
-        this.ReqId = 15;
-        if (msg.id < 0 || msg.id > 0x1FFFFFFF) {
-          this.tId = 0;
-          throw new CanLibException(CanLibException.ErrorCode.ERR_PARAM,
-                                    CanLibException.ErrorDetail.ILLEGAL_ID,
-                                    "Valid range for extended message id is 0 - 0x1FFFFFFF");
-        }
-      }
-      else if (msg.flags.contains(CanMessage.MessageFlags.STANDARD_ID)) {
-        this.ReqId = 13;
-        if (msg.id < 0 || msg.id > 0x7FF) {
-          this.tId = 0;
-          throw new CanLibException(CanLibException.ErrorCode.ERR_PARAM,
-                                    CanLibException.ErrorDetail.ILLEGAL_ID,
-                                    "Valid range for standard message id is 0 - 0x7FF");
-        }
+  /*
+   * Throws if a message can not be sent, before a transaction id is taken for it.
+   */
+  private static void checkTxMessage(int id, int flags) throws CanLibException {
+    if ((flags & CanMessage.FLAG_EXTENDED_ID) != 0) {
+      if (id < 0 || id > 0x1FFFFFFF) {
+        throw new CanLibException(CanLibException.ErrorCode.ERR_PARAM,
+                                  CanLibException.ErrorDetail.ILLEGAL_ID,
+                                  "Valid range for extended message id is 0 - 0x1FFFFFFF");
       }
-      else {
-        this.ReqId = 0;
-        this.tId = 0;
+    }
+    else if ((flags & CanMessage.FLAG_STANDARD_ID) != 0) {
+      if (id < 0 || id > 0x7FF) {
         throw new CanLibException(CanLibException.ErrorCode.ERR_PARAM,
-                                  CanLibException.ErrorDetail.NOT_SUPPORTED,
-                                  "Message has to be of either extended or standard type");
+                                  CanLibException.ErrorDetail.ILLEGAL_ID,
+                                  "Valid range for standard message id is 0 - 0x7FF");
       }
+    }
+    else {
+      throw new CanLibException(CanLibException.ErrorCode.ERR_PARAM,
+                                CanLibException.ErrorDetail.NOT_SUPPORTED,
+                                "Message has to be of either extended or standard type");
+    }
+  }
 
-      this.tId = getNextTransId(channel);
-
-      byte msgByteCount = 1;
-
-      data[msgByteCount++] = this.ReqId;
-      data[msgByteCount++] = channel;
-      data[msgByteCount++] = tId;
-
-      if (msg.flags.contains(CanMessage.MessageFlags.EXTENDED_ID)) {
-        data[msgByteCount++] = (byte)((0x1F & (msg.id >>> 24) | 0x80));
-        data[msgByteCount++] = (byte)(0x3F & (msg.id >>> 18));
-        data[msgByteCount++] = (byte)(0x0F & (msg.id >>> 14));
-        data[msgByteCount++] = (byte)(0xFF & (msg.id >>> 6));
-        data[msgByteCount++] = (byte)(0x3F & msg.id);
+  /*
+   * Encodes transmit requests directly into a send buffer, so that messages are written without
+   * creating a request object per message.
+   */
+  private static class TxReq {
+
+    static private final byte MsgLen   = 20;
+    static private final byte ReqIdStd = 13;
+    static private final byte ReqIdExt = 15;
+
+    /*
+     * Encodes a request at the given offset. The data bytes are data[dataOffset] up to
+     * data[dataOffset + dataLength - 1], of which only the first 8 are sent.
+     */
+    static void encode(byte[] dst, int offset, byte channel, byte tId, int id, int flags, int dlc,
+                       byte[] data, int dataOffset, int dataLength) {
+      dst[offset]     = TxReq.MsgLen;
+      dst[offset + 2] = channel;
+      dst[offset + 3] = tId;
+
+      if ((flags & CanMessage.FLAG_EXTENDED_ID) != 0) {
+        dst[offset + 1] = TxReq.ReqIdExt;
+        dst[offset + 4] = (byte)((0x1F & (id >>> 24) | 0x80));
+        dst[offset + 5] = (byte)(0x3F & (id >>> 18));
+        dst[offset + 6] = (byte)(0x0F & (id >>> 14));
+        dst[offset + 7] = (byte)(0xFF & (id >>> 6));
+        dst[offset + 8] = (byte)(0x3F & id);
       }
       else {
-        data[msgByteCount++] = (byte)(0x1F & (msg.id >>> 6));
-        data[msgByteCount++] = (byte)(0x3F & msg.id);
-        data[msgByteCount++] = 0;
-        data[msgByteCount++] = 0;
-        data[msgByteCount++] = 0;
-      }
-
-      data[msgByteCount++] = (byte)(0x0F & msg.dlc);
-
-      for (byte i = 0; i < 8; i++)
-      {
-        data[msgByteCount++] = msg.data[i];
+        dst[offset + 1] = TxReq.ReqIdStd;
+        dst[offset + 4] = (byte)(0x1F & (id >>> 6));
+        dst[offset + 5] = (byte)(0x3F & id);
+        dst[offset + 6] = 0;
+        dst[offset + 7] = 0;
+        dst[offset + 8] = 0;
       }
 
-      data[msgByteCount++] = 0;     // padding
-      data[msgByteCount++] = (byte)msg.getFlagsAsMask();
-
-      data[0] = msgByteCount;
-
-      if(msgByteCount != TxReq.MsgLen)
-      {
-        throw new AssertionError("Message byte count differs from expected length. Expected: "
-                                 + TxReq.MsgLen + " Actual: " + msgByteCount);
-      }
+      dst[offset + 9] = (byte)(0x0F & dlc);
+      int length = Math.max(0, Math.min(8, dataLength));
+      System.arraycopy(data, dataOffset, dst, offset + 10, length);
+      Arrays.fill(dst, offset + 10 + length, offset + 18, (byte) 0);
+      dst[offset + 18] = 0;     // padding
+      dst[offset + 19] = (byte) CanMessage.flagsToMask(flags);
     }
   }
 
@@ -1642,8 +2043,8 @@ class KCanl implements KvDeviceInterface {
     private final long    time;
     // uint16_t padding;
 
-    TxRequest(ByteBuffer buffer) throws CanLibException {
-      buffer.rewind();
+    TxRequest(ByteBuffer buffer, int offset) throws CanLibException {
+      buffer.position(offset);
       buffer.order(ByteOrder.LITTLE_ENDIAN);
 
       byte recMsgLen = buffer.get();
@@ -1658,11 +2059,10 @@ class KCanl implements KvDeviceInterface {
       this.channel = buffer.get();
       this.tId     = buffer.get();
 
-      short[] recTime = new short[3];
-      recTime[0] = buffer.getShort();
-      recTime[1] = buffer.getShort();
-      recTime[2] = buffer.getShort();
-      this.time = translateTimestamp(recTime, this.channel, (byte)0);
+      short recTime0 = buffer.getShort();
+      short recTime1 = buffer.getShort();
+      short recTime2 = buffer.getShort();
+      this.time = translateTimestamp(recTime0, recTime1, recTime2, this.channel, (byte)0);
     }
   }
 }
@@ -6,22 +6,32 @@ import android.util.*;
 
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 import java.text.DateFormat;
 
 import com.kvaser.canlib.CanLibException.ErrorDetail;
 import com.kvaser.canlib.CanLibException.ErrorCode;
 
 /**
- * Device driver for KCany interfaces. Uses UsbDeviceHandle methods to communicate with device.
+ * Device driver for KCany interfaces. Uses a KvTransport, normally a UsbDeviceHandle, to communicate
+ * with the device.
  */
 class KCany implements KvDeviceInterface {
 
   final static int KCANY_CMD_SIZE = 32;
+  // The largest number of messages queued on the transport at once by a batched write
+  private final static int MAX_COMMANDS_PER_SEND = 64;
 
   private final static boolean debugInLogcat = false;
 
+  private final static int RESPONSE_TIMEOUT_MS = 2000;
   private final static int HYDRA_MAX_OUTSTANDING_TX = 200;
+  // Bounds the transmit requests of all channels together that are queued in the send buffer of
+  // the transport to half of it, i.e. 128 requests of 32 bytes in 8192 bytes. The rest is left for
+  // the other commands.
+  private final static int KCANY_MAX_OUTSTANDING_TX = 128;
   private final static int MAX_NUM_CHANNELS = 16;
+  private final static int NUMBER_OF_TRANS_IDS = 0x1000;
 
   private final static byte BROADCAST = 0x0f;
   private final static byte BROADCAST_DEBUG = 0x1f;
@@ -31,11 +41,12 @@ class KCany implements KvDeviceInterface {
   private final static byte ILLEGAL_HE = 0x3e;
 
   private final KvDevices deviceType;
-  private final List<WaitNode> waitList = new ArrayList<>();
-  List<CanChannelEventListener> canChannelListeners = new ArrayList<>();
+  private final PendingResponseTable pendingResponses = new PendingResponseTable();
+  // Copy-on-write, see ListenerArrays. The receive thread iterates it without locking.
+  private volatile CanChannelEventListener[] canChannelListeners = new CanChannelEventListener[0];
   private long serialNumber;
   private String pcbId = "";
-  private UsbDeviceHandle usbHandle;
+  private KvTransport usbHandle;
   private int maxPacketSizeIn;
   private int maxOutstandingTx;
   private int autoTxBufferCount;
@@ -45,6 +56,8 @@ class KCany implements KvDeviceInterface {
   private int firmwareVersionBuild;
   private Ean ean = new Ean();
   private long clockResolution;
+  private ByteBuffer receiveBuffer;
+  private volatile Thread receiveThread;
   private int hiresTimerFq = 1;
   private long manufacturingDate;
   private byte hwRevision;
@@ -58,45 +71,44 @@ class KCany implements KvDeviceInterface {
   private boolean cardRefuseToRun = false;           // Major problem detected
   private boolean cardRefuseToUseCan = false;        // Major problem detected
   private boolean cardAutoTxObjectBuffers = false;   // Firmware supports periodic tx object buffers
+  private boolean cardCanFd = false;                 // Firmware supports CAN FD
+  private boolean cardCanFdNonIso = false;           // Firmware supports non-ISO CAN FD
 
-  private short[] nextTransId = new short[MAX_NUM_CHANNELS];
+  private final TransIdAllocator transIds =
+      new TransIdAllocator(MAX_NUM_CHANNELS, NUMBER_OF_TRANS_IDS - 1);
+  // Created when the number of outstanding messages the device can hold is known
+  private final TxCreditWindow[] txCreditWindows = new TxCreditWindow[MAX_NUM_CHANNELS];
   private ChannelHeList channelHeList = new ChannelHeList(MAX_NUM_CHANNELS);
-
-  KCany(UsbDeviceHandle usbHandle, int maxPacketSizeIn,
+  private final MessagePools messagePools = new MessagePools(MAX_NUM_CHANNELS);
+  private final CanBatchDelivery batchDelivery = new CanBatchDelivery(MAX_NUM_CHANNELS);
+  private final CanMessage batchOnlyMessage = new CanMessage(); // Only used by the receive thread
+  private final CanFdMode[] canFdModes = new CanFdMode[MAX_NUM_CHANNELS];
+  private final CanFdModeUsers canFdModeUsers = new CanFdModeUsers(MAX_NUM_CHANNELS);
+  // The CAN FD messages waiting for their acknowledgements, per channel and indexed by transaction
+  // ID. The acknowledgement of a CAN FD message only holds its flags and time.
+  private final AtomicReferenceArray<AtomicReferenceArray<CanMessage>> sentFdMessages =
+      new AtomicReferenceArray<>(MAX_NUM_CHANNELS);
+
+  KCany(KvTransport usbHandle, int maxPacketSizeIn,
         KvDevices deviceType) throws CanLibException {
+    this(usbHandle, maxPacketSizeIn, deviceType, null);
+  }
+
+  /**
+   * @param profileCache Cache of device profiles, or null to always query the device for its
+   *                     channel map and capabilities.
+   */
+  KCany(KvTransport usbHandle, int maxPacketSizeIn, KvDevices deviceType,
+        DeviceProfileCache profileCache) throws CanLibException {
     this.usbHandle = usbHandle;
     this.maxPacketSizeIn = maxPacketSizeIn;
     this.deviceType = deviceType;
     usbHandle.addListener(this);
 
-    Arrays.fill(nextTransId, (byte) 1);
-
-    /* Map channels */
-    CmdMapChannel cmdMC = new CmdMapChannel(this);
-    cmdMC.req.destination = ROUTER_HE;
-    for (byte i = 0; i < MAX_NUM_CHANNELS; i++) {
-      cmdMC.req.transId = (short) (0x40 | i);
-      cmdMC.req.name = "CAN".getBytes();
-      cmdMC.req.channel = i;
-      cmdMC.sendAndWaitResponse();
+    Arrays.fill(canFdModes, CanFdMode.CLASSIC);
 
-      if (cmdMC.resp.transId > 0x007f || cmdMC.resp.transId < 0x0040) {
-        // The transaction ID is not as expected, we do not know what channel to map, device misbehaving.
-        throw new CanLibException(ErrorCode.ERR_DEVICE, ErrorDetail.INIT_ERROR,
-                                  "CMD_MAP_CHANNEL_RESP, invalid transId: " + cmdMC.resp.transId);
-      }
-
-      switch (cmdMC.resp.transId & 0x0ff0) {
-        case 0x40:
-          int channel = (int) cmdMC.resp.transId & 0x000f;
-          channelHeList.addPair(channel, cmdMC.resp.heAddress);
-          break;
-
-        default:
-          // Ignore
-          break;
-      }
-    }
+    // The card info and software details identify the device and are always read, both requests
+    // are sent before waiting for the responses.
 
     /* Get card info */
     CmdGetCardInfo cmdCI = new CmdGetCardInfo(this);
@@ -107,7 +119,16 @@ class KCany implements KvDeviceInterface {
     cmdCI.req.destination = ILLEGAL_HE;
     cmdCI.req.transId = 0x50;
     cmdCI.req.dataLevel = 0;
-    cmdCI.sendAndWaitResponse();
+    KvFuture<Void> cardInfo = cmdCI.sendAsync();
+
+    /* Get software details */
+    CmdGetSoftwareDetails cmdSD = new CmdGetSoftwareDetails(this);
+    cmdSD.req.destination = ILLEGAL_HE;
+    cmdSD.req.transId = 0x52;
+    KvFuture<Void> softwareDetails = cmdSD.sendAsync();
+
+    KvFuture.allOf(cardInfo, softwareDetails).getResult();
+
     serialNumber = cmdCI.resp.serialNumber;
     clockResolution = cmdCI.resp.clockResolution;
     manufacturingDate = cmdCI.resp.manufacturingDate;
@@ -119,23 +140,6 @@ class KCany implements KvDeviceInterface {
     channelCount = cmdCI.resp.channelCount;
     pcbId = cmdCI.resp.pcbId;
 
-    /* Get software info */
-    CmdGetSoftwareInfo cmdSI = new CmdGetSoftwareInfo(this);
-    cmdSI.req.destination = ILLEGAL_HE;
-    cmdSI.req.transId = 0x51;
-    cmdSI.sendAndWaitResponse();
-    maxOutstandingTx = cmdSI.resp.maxOutstandingTx;
-
-    if (maxOutstandingTx > HYDRA_MAX_OUTSTANDING_TX) {
-      maxOutstandingTx = HYDRA_MAX_OUTSTANDING_TX;
-    }
-    maxOutstandingTx--;   // Can't use all elements!
-
-    /* Get software details */
-    CmdGetSoftwareDetails cmdSD = new CmdGetSoftwareDetails(this);
-    cmdSD.req.destination = ILLEGAL_HE;
-    cmdSD.req.transId = 0x52;
-    cmdSD.sendAndWaitResponse();
     firmwareVersionMajor = (cmdSD.resp.swVersion >> 24) & 0xff;
     firmwareVersionMinor = (cmdSD.resp.swVersion >> 16) & 0xff;
     firmwareVersionBuild = (cmdSD.resp.swVersion & 0xffff);
@@ -156,6 +160,14 @@ class KCany implements KvDeviceInterface {
       cardAutoTxObjectBuffers = true;
     }
 
+    if ((cmdSD.resp.swOptions & CmdGetSoftwareDetails.SWOPTION_CAN_FD) != 0) {
+      cardCanFd = true;
+    }
+
+    if ((cmdSD.resp.swOptions & CmdGetSoftwareDetails.SWOPTION_CAN_FD_NON_ISO) != 0) {
+      cardCanFdNonIso = true;
+    }
+
     if ((cmdSD.resp.swOptions & CmdGetSoftwareDetails.SWOPTION_CPU_FQ_MASK)
         == CmdGetSoftwareDetails.SWOPTION_80_MHZ_CLK) {
       hiresTimerFq = 80;
@@ -166,6 +178,83 @@ class KCany implements KvDeviceInterface {
       hiresTimerFq = 1;
     }
 
+    // The channel map and the capabilities only change with the firmware, so for a known device
+    // they are taken from the cache instead of being queried again
+    String profileKey = DeviceProfileCache.key(ean, serialNumber, firmwareVersionMajor,
+                                               firmwareVersionMinor, firmwareVersionBuild);
+    DeviceProfileCache.Profile profile = null;
+    if (profileCache != null) {
+      profile = profileCache.get(profileKey);
+    }
+    if (profile == null || !restoreDeviceProfile(profile)) {
+      queryDeviceProfile();
+      if (profileCache != null) {
+        profileCache.put(createDeviceProfile(profileKey));
+      }
+    }
+
+    // Each channel can hold this many transmit requests, see TxCreditWindow. The channels share
+    // the send buffer of the transport.
+    int channelShare = KCANY_MAX_OUTSTANDING_TX / Math.max(channelCount, 1);
+    int windowSize = Math.max(Math.min(maxOutstandingTx, channelShare), 1);
+    for (int i = 0; i < MAX_NUM_CHANNELS; i++) {
+      txCreditWindows[i] = new TxCreditWindow(windowSize, NUMBER_OF_TRANS_IDS);
+    }
+  }
+
+  /*
+   * Queries the device for its channel map, software info and auto tx buffer capabilities.
+   */
+  private void queryDeviceProfile() throws CanLibException {
+    // The channel mapping and the software info requests do not depend on each other, so all of
+    // them are sent back to back and the responses are collected together.
+    List<KvFuture<?>> futures = new ArrayList<>();
+
+    /* Map channels */
+    CmdMapChannel[] cmdMCs = new CmdMapChannel[MAX_NUM_CHANNELS];
+    for (byte i = 0; i < MAX_NUM_CHANNELS; i++) {
+      cmdMCs[i] = new CmdMapChannel(this);
+      cmdMCs[i].req.destination = ROUTER_HE;
+      cmdMCs[i].req.transId = (short) (0x40 | i);
+      cmdMCs[i].req.name = "CAN".getBytes();
+      cmdMCs[i].req.channel = i;
+      futures.add(cmdMCs[i].sendAsync());
+    }
+
+    /* Get software info */
+    CmdGetSoftwareInfo cmdSI = new CmdGetSoftwareInfo(this);
+    cmdSI.req.destination = ILLEGAL_HE;
+    cmdSI.req.transId = 0x51;
+    futures.add(cmdSI.sendAsync());
+
+    KvFuture.allOf(futures).getResult();
+
+    for (CmdMapChannel cmdMC : cmdMCs) {
+      if (cmdMC.resp.transId > 0x007f || cmdMC.resp.transId < 0x0040) {
+        // The transaction ID is not as expected, we do not know what channel to map, device misbehaving.
+        throw new CanLibException(ErrorCode.ERR_DEVICE, ErrorDetail.INIT_ERROR,
+                                  "CMD_MAP_CHANNEL_RESP, invalid transId: " + cmdMC.resp.transId);
+      }
+
+      switch (cmdMC.resp.transId & 0x0ff0) {
+        case 0x40:
+          int channel = (int) cmdMC.resp.transId & 0x000f;
+          channelHeList.addPair(channel, cmdMC.resp.heAddress);
+          break;
+
+        default:
+          // Ignore
+          break;
+      }
+    }
+
+    maxOutstandingTx = cmdSI.resp.maxOutstandingTx;
+
+    if (maxOutstandingTx > HYDRA_MAX_OUTSTANDING_TX) {
+      maxOutstandingTx = HYDRA_MAX_OUTSTANDING_TX;
+    }
+    maxOutstandingTx--;   // Can't use all elements!
+
     /* Auto Tx Buffer */
     if (cardAutoTxObjectBuffers) {
       CmdAutoTxBuffer cmdATB = new CmdAutoTxBuffer(this);
@@ -180,6 +269,42 @@ class KCany implements KvDeviceInterface {
     }
   }
 
+  /*
+   * Takes the channel map and capabilities from a cached profile. Returns false if the profile is
+   * incomplete, in which case nothing is changed.
+   */
+  private boolean restoreDeviceProfile(DeviceProfileCache.Profile profile) {
+    int[] channelHe = profile.getIntArray("channelHe");
+    Integer cachedMaxOutstandingTx = profile.getInt("maxOutstandingTx");
+    Integer cachedAutoTxBufferCount = profile.getInt("autoTxBufferCount");
+    Integer cachedAutoTxBufferResolution = profile.getInt("autoTxBufferResolution");
+    if (channelHe == null || channelHe.length != MAX_NUM_CHANNELS
+        || cachedMaxOutstandingTx == null || cachedAutoTxBufferCount == null
+        || cachedAutoTxBufferResolution == null) {
+      return false;
+    }
+    for (int channel = 0; channel < MAX_NUM_CHANNELS; channel++) {
+      channelHeList.addPair(channel, channelHe[channel]);
+    }
+    maxOutstandingTx = cachedMaxOutstandingTx;
+    autoTxBufferCount = cachedAutoTxBufferCount;
+    autoTxBufferResolution = cachedAutoTxBufferResolution;
+    return true;
+  }
+
+  private DeviceProfileCache.Profile createDeviceProfile(String key) {
+    DeviceProfileCache.Profile profile = new DeviceProfileCache.Profile(key);
+    int[] channelHe = new int[MAX_NUM_CHANNELS];
+    for (int channel = 0; channel < MAX_NUM_CHANNELS; channel++) {
+      channelHe[channel] = channelHeList.channelToHe(channel);
+    }
+    profile.putIntArray("channelHe", channelHe);
+    profile.putInt("maxOutstandingTx", maxOutstandingTx);
+    profile.putInt("autoTxBufferCount", autoTxBufferCount);
+    profile.putInt("autoTxBufferResolution", autoTxBufferResolution);
+    return profile;
+  }
+
   public void close() {
     // Remove all access information as the device closes
     CanChannelAccess.releaseAccessPerDevice("" + (int) serialNumber, ean.getEanString(),
@@ -187,6 +312,16 @@ class KCany implements KvDeviceInterface {
     if(usbHandle != null) {
       usbHandle.close();
     }
+    // Nothing more is acknowledged, fail the confirmations still waiting
+    for (TxCreditWindow txCredits : txCreditWindows) {
+      if (txCredits != null) {
+        txCredits.reset();
+      }
+    }
+    Arrays.fill(canFdModes, CanFdMode.CLASSIC);
+    for (int i = 0; i < MAX_NUM_CHANNELS; i++) {
+      sentFdMessages.set(i, null);
+    }
   }
 
   public int getNumberOfChannels() {
@@ -198,36 +333,177 @@ class KCany implements KvDeviceInterface {
   }
 
   public void setBusParams(int channelIndex, CanBusParams busParams) throws CanLibException {
+    setBusParamsAsync(channelIndex, busParams).getResult();
+  }
+
+  public KvFuture<Void> setBusParamsAsync(int channelIndex, CanBusParams busParams) {
     CmdSetBusParams cmdBP = new CmdSetBusParams(this);
     cmdBP.req.destination = (byte) (channelHeList.channelToHe(channelIndex) & 0x7f);
     cmdBP.req.transId = getNextTransId(channelIndex);
     cmdBP.req.busParams = busParams;
     cmdBP.req.channel = (byte) channelIndex;
-    cmdBP.sendAndWaitResponse();
+    return cmdBP.sendAsync();
   }
 
   public CanBusParams getBusParams(int channelIndex) throws CanLibException {
-    CmdGetBusParams cmdBP = new CmdGetBusParams(this);
+    return getBusParamsAsync(channelIndex).getResult();
+  }
+
+  public KvFuture<CanBusParams> getBusParamsAsync(int channelIndex) {
+    final CmdGetBusParams cmdBP = new CmdGetBusParams(this);
     cmdBP.req.destination = (byte) (channelHeList.channelToHe(channelIndex) & 0x7f);
     cmdBP.req.transId = getNextTransId(channelIndex);
-    cmdBP.req.paramType = 0; // Do not use CAN FD
-    cmdBP.sendAndWaitResponse();
+    cmdBP.req.paramType = CmdGetBusParams.PARAM_TYPE_CAN;
+    return cmdBP.sendAsync().then(new KvFuture.Function<Void, CanBusParams>() {
+      public CanBusParams apply(Void value) {
+        return cmdBP.resp.busParams;
+      }
+    });
+  }
+
+  public void enableCanFdMode(int channelIndex, CanFdMode mode) throws CanLibException {
+    synchronized (canFdModeUsers) {
+      if (canFdModeUsers.enable(channelIndex, mode)) {
+        try {
+          setCanFdMode(channelIndex, mode);
+        } catch (CanLibException e) {
+          canFdModeUsers.disable(channelIndex);
+          throw e;
+        }
+      }
+    }
+  }
+
+  public void disableCanFdMode(int channelIndex) throws CanLibException {
+    synchronized (canFdModeUsers) {
+      if (canFdModeUsers.disable(channelIndex)) {
+        setCanFdMode(channelIndex, CanFdMode.CLASSIC);
+      }
+    }
+  }
 
-    return cmdBP.resp.busParams;
+  private void setCanFdMode(int channelIndex, CanFdMode mode) throws CanLibException {
+    if ((mode == CanFdMode.ISO && !cardCanFd) || (mode == CanFdMode.NON_ISO && !cardCanFdNonIso)) {
+      throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED,
+                                "CAN FD is not supported by the device");
+    }
+    canFdModes[channelIndex] = mode;
+    if (mode == CanFdMode.CLASSIC) {
+      // The last channel in a CAN FD mode is closed. Acknowledgements that are still on their way
+      // are ignored.
+      sentFdMessages.set(channelIndex, null);
+      applyCanFdMode(channelIndex, mode);
+    } else {
+      sentFdMessages.compareAndSet(channelIndex, null,
+                                   new AtomicReferenceArray<CanMessage>(NUMBER_OF_TRANS_IDS));
+      // Wait, so that the channel is in the mode when it is opened, also if setBusParamsFd is
+      // never called
+      applyCanFdMode(channelIndex, mode).getResult();
+    }
+  }
+
+  /*
+   * Sends the CAN FD mode to the device. The device only takes the mode together with the bus
+   * parameters of the data phase, so the parameters it has are read back and sent with the mode.
+   */
+  private KvFuture<Void> applyCanFdMode(final int channelIndex, final CanFdMode mode) {
+    final KvFuture<Void> applied = new KvFuture<>();
+    getBusParamsFdAsync(channelIndex).addCompletionListener(
+        new CompletionListener<CanBusParams>() {
+          public void completed(CanBusParams dataBusParams) {
+            sendBusParamsFd(channelIndex, dataBusParams, mode).addCompletionListener(
+                new CompletionListener<Void>() {
+                  public void completed(Void result) {
+                    applied.complete(null);
+                  }
+
+                  public void failed(CanLibException exception) {
+                    applied.fail(exception);
+                  }
+                });
+          }
+
+          public void failed(CanLibException exception) {
+            applied.fail(exception);
+          }
+        });
+    return applied;
+  }
+
+  public KvFuture<Void> setBusParamsFdAsync(int channelIndex, CanBusParams dataBusParams) {
+    CanFdMode mode = canFdModes[channelIndex];
+    if (mode == CanFdMode.CLASSIC) {
+      return KvFuture.failedFuture(
+          new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED,
+                              "The channel is not opened for CAN FD"));
+    }
+    return sendBusParamsFd(channelIndex, dataBusParams, mode);
+  }
+
+  private KvFuture<Void> sendBusParamsFd(int channelIndex, CanBusParams dataBusParams,
+                                         CanFdMode mode) {
+    CmdSetBusParamsFd cmdBP = new CmdSetBusParamsFd(this);
+    cmdBP.req.destination = (byte) (channelHeList.channelToHe(channelIndex) & 0x7f);
+    cmdBP.req.transId = getNextTransId(channelIndex);
+    cmdBP.req.dataBusParams = dataBusParams;
+    cmdBP.req.channel = (byte) channelIndex;
+    switch (mode) {
+      case ISO:
+        cmdBP.req.canFdMode = CmdSetBusParamsFd.CANFD_MODE_ISO;
+        break;
+
+      case NON_ISO:
+        cmdBP.req.canFdMode = CmdSetBusParamsFd.CANFD_MODE_NON_ISO;
+        break;
+
+      default:
+        cmdBP.req.canFdMode = CmdSetBusParamsFd.CANFD_MODE_CLASSIC;
+        break;
+    }
+    return cmdBP.sendAsync();
+  }
+
+  public KvFuture<CanBusParams> getBusParamsFdAsync(int channelIndex) {
+    final CmdGetBusParams cmdBP = new CmdGetBusParams(this);
+    cmdBP.req.destination = (byte) (channelHeList.channelToHe(channelIndex) & 0x7f);
+    cmdBP.req.transId = getNextTransId(channelIndex);
+    cmdBP.req.paramType = CmdGetBusParams.PARAM_TYPE_CAN_FD_DATA;
+    return cmdBP.sendAsync().then(new KvFuture.Function<Void, CanBusParams>() {
+      public CanBusParams apply(Void value) {
+        return cmdBP.resp.busParams;
+      }
+    });
   }
 
   public void busOn(int channelIndex) throws CanLibException {
+    busOnAsync(channelIndex).getResult();
+  }
+
+  public KvFuture<Void> busOnAsync(int channelIndex) {
     CmdBusOn cmdBO = new CmdBusOn(this);
     cmdBO.req.destination = (byte) (channelHeList.channelToHe(channelIndex) & 0x7f);
     cmdBO.req.transId = getNextTransId(channelIndex);
-    cmdBO.sendAndWaitResponse();
+    resetTxCredits(channelIndex);
+    return cmdBO.sendAsync();
   }
 
   public void busOff(int channelIndex) throws CanLibException {
+    busOffAsync(channelIndex).getResult();
+  }
+
+  public KvFuture<Void> busOffAsync(int channelIndex) {
     CmdBusOff cmdBO = new CmdBusOff(this);
     cmdBO.req.destination = (byte) (channelHeList.channelToHe(channelIndex) & 0x7f);
     cmdBO.req.transId = getNextTransId(channelIndex);
-    cmdBO.sendAndWaitResponse();
+    // The device discards the messages in its transmit queue, they are never acknowledged
+    resetTxCredits(channelIndex);
+    AtomicReferenceArray<CanMessage> sentMessages = sentFdMessages.get(channelIndex);
+    if (sentMessages != null) {
+      for (int i = 0; i < sentMessages.length(); i++) {
+        sentMessages.set(i, null);
+      }
+    }
+    return cmdBO.sendAsync();
   }
 
   public void setBusOutputControl(int channelIndex,
@@ -248,55 +524,236 @@ class KCany implements KvDeviceInterface {
         throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.UNSUPPORTED_DRIVER_MODE,
                                   driverType.toString());
     }
-    cmdDM.send();
+    if (!cmdDM.send()) {
+      throw sendBufferFull();
+    }
   }
 
   public CanDriverType getBusOutputControl(int channelIndex) throws CanLibException {
+    return getBusOutputControlAsync(channelIndex).getResult();
+  }
+
+  public KvFuture<CanDriverType> getBusOutputControlAsync(int channelIndex) {
     // First firmware version that is known to respond correctly to Get Driver Mode Request is 3.0.546
     if ((firmwareVersionMajor < 3) || (firmwareVersionMajor == 3) && (firmwareVersionMinor == 0)
                                       && (firmwareVersionBuild < 546)) {
-      throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED);
+      return KvFuture.failedFuture(
+          new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED));
     }
 
-    CanDriverType retVal;
-    CmdGetDriverMode cmdDM = new CmdGetDriverMode(this);
+    final CmdGetDriverMode cmdDM = new CmdGetDriverMode(this);
     cmdDM.req.destination = (byte) (channelHeList.channelToHe(channelIndex) & 0x7f);
     cmdDM.req.transId = getNextTransId(channelIndex);
     cmdDM.req.channel = (byte) channelIndex;
-    cmdDM.sendAndWaitResponse();
-    switch (cmdDM.resp.driverMode) {
-      case 0x01:
-        retVal = CanDriverType.NORMAL;
-        break;
-      case 0x02:
-        retVal = CanDriverType.SILENT;
-        break;
-      default:
-        throw new CanLibException(ErrorCode.ERR_DEVICE, ErrorDetail.UNSUPPORTED_DRIVER_MODE);
-    }
-
-    return retVal;
+    return cmdDM.sendAsync().then(new KvFuture.Function<Void, CanDriverType>() {
+      public CanDriverType apply(Void value) throws CanLibException {
+        switch (cmdDM.resp.driverMode) {
+          case 0x01:
+            return CanDriverType.NORMAL;
+          case 0x02:
+            return CanDriverType.SILENT;
+          default:
+            throw new CanLibException(ErrorCode.ERR_DEVICE, ErrorDetail.UNSUPPORTED_DRIVER_MODE);
+        }
+      }
+    });
   }
 
   public void write(int channelIndex, CanMessage msg) throws CanLibException {
+    writeMessage(channelIndex, msg, null);
+  }
 
-    if ((msg.isFlagSet(CanMessage.MessageFlags.EXTENDED_ID) && ((msg.id & 0x7FFFFFFF) >= (1 << 29)))
-        || (msg.isFlagSet(CanMessage.MessageFlags.STANDARD_ID) && (msg.id >= (1 << 11)))) {
-      // id out of range
-      throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.ILLEGAL_ID);
+  public KvFuture<Long> writeAndConfirm(int channelIndex, CanMessage msg) throws CanLibException {
+    KvFuture<Long> confirmation = new KvFuture<>();
+    writeMessage(channelIndex, msg, confirmation);
+    return confirmation;
+  }
+
+  /*
+   * Sends a message, and completes the confirmation, if any, when the device acknowledges it.
+   */
+  private void writeMessage(int channelIndex, CanMessage msg, KvFuture<Long> confirmation)
+      throws CanLibException {
+    long writeTime = System.nanoTime();
+    int flags = msg.flags;
+    if ((flags & CanMessage.FLAG_FD_EDL) != 0) {
+      writeFd(channelIndex, msg, writeTime, confirmation);
+      return;
     }
-    if (msg.isFlagSet(CanMessage.MessageFlags.EXTENDED_ID)) {
+    if ((flags & CanMessage.FLAG_EXTENDED_ID) != 0) {
+      if ((msg.id & 0x7FFFFFFF) >= (1 << 29)) {
+        // id out of range
+        throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.ILLEGAL_ID);
+      }
       msg.id |= 0x80000000;
+    } else if ((flags & CanMessage.FLAG_STANDARD_ID) != 0 && (msg.id >= (1 << 11))) {
+      // id out of range
+      throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.ILLEGAL_ID);
     }
+    TxCreditWindow txCredits = txCreditWindows[channelIndex];
+    txCredits.acquire(1, !isReceiveThread());
     CmdTxCanMessage cmdTxCanMessage = new CmdTxCanMessage(this);
     cmdTxCanMessage.req.destination = (byte) (channelHeList.channelToHe(channelIndex) & 0x7f);
     cmdTxCanMessage.req.transId = getNextTransId(channelIndex);
+    txCredits.sent(cmdTxCanMessage.req.transId, writeTime, confirmation);
     cmdTxCanMessage.req.id = msg.id;
     cmdTxCanMessage.req.data = msg.data.clone();
     cmdTxCanMessage.req.channel = (byte) channelIndex;
     cmdTxCanMessage.req.dlc = (byte) msg.dlc;
     cmdTxCanMessage.req.flags = (byte) (msg.getFlagsAsMask() & 0xff);
-    cmdTxCanMessage.send();
+    if (!cmdTxCanMessage.send()) {
+      txCredits.unsent(cmdTxCanMessage.req.transId);
+      throw sendBufferFull();
+    }
+  }
+
+  public void write(int channelIndex, TxFrames frames) throws CanLibException {
+    int length = frames.size();
+    // Check all messages first, so that none is sent if one is invalid
+    for (int i = 0; i < length; i++) {
+      int id = frames.getId(i);
+      int flags = frames.getFlags(i);
+      boolean extended = (flags & CanMessage.FLAG_EXTENDED_ID) != 0;
+      if ((extended && ((id & 0x7FFFFFFF) >= (1 << 29)))
+          || (!extended && ((flags & CanMessage.FLAG_STANDARD_ID) != 0) && (id >= (1 << 11)))) {
+        // id out of range
+        throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.ILLEGAL_ID);
+      }
+    }
+    long writeTime = System.nanoTime();
+    byte destination = (byte) (channelHeList.channelToHe(channelIndex) & 0x7f);
+    TxCreditWindow txCredits = txCreditWindows[channelIndex];
+    int maxCommands = Math.min(MAX_COMMANDS_PER_SEND, txCredits.getSize());
+    byte[] buffer = new byte[Math.min(length, maxCommands) * KCANY_CMD_SIZE];
+    CanMessage fdMessage = null;
+    int i = 0;
+    while (i < length) {
+      if ((frames.getFlags(i) & CanMessage.FLAG_FD_EDL) != 0) {
+        // Extended commands of their own size, sent one by one in the order of the messages
+        if (fdMessage == null) {
+          fdMessage = new CanMessage();
+        }
+        writeFd(channelIndex, frames.getMessage(i++, fdMessage), writeTime, null);
+        continue;
+      }
+      int count = 0;
+      while ((count < maxCommands) && (i + count < length)
+             && ((frames.getFlags(i + count) & CanMessage.FLAG_FD_EDL) == 0)) {
+        count++;
+      }
+      txCredits.acquire(count, !isReceiveThread());
+      for (int used = 0; used < count * KCANY_CMD_SIZE; used += KCANY_CMD_SIZE, i++) {
+        int id = frames.getId(i);
+        int flags = frames.getFlags(i);
+        if ((flags & CanMessage.FLAG_EXTENDED_ID) != 0) {
+          id |= 0x80000000;
+        }
+        short transId = getNextTransId(channelIndex);
+        txCredits.sent(transId, writeTime, null);
+        CmdTxCanMessage.encodeRequest(buffer, used, destination, transId, id, frames.getData(i),
+                                      frames.getDataOffset(i), frames.getDataLength(i),
+                                      (byte) frames.getDlc(i),
+                                      (byte) (CanMessage.flagsToMask(flags) & 0xff),
+                                      (byte) channelIndex);
+      }
+      if (!SendCommands(buffer, count * KCANY_CMD_SIZE)) {
+        // None of the group was queued, the transaction id is in the header of each request
+        for (int used = 0; used < count * KCANY_CMD_SIZE; used += KCANY_CMD_SIZE) {
+          txCredits.unsent(((buffer[used + 2] & 0xff) | (buffer[used + 3] << 8)) & 0x0fff);
+        }
+        throw sendBufferFull();
+      }
+    }
+  }
+
+  public void setWriteTimeout(int channelIndex, long timeoutMs) {
+    txCreditWindows[channelIndex].setTimeout(timeoutMs);
+  }
+
+  public LatencyHistogram getTxLatencyHistogram(int channelIndex) {
+    return txCreditWindows[channelIndex].getLatencyHistogram();
+  }
+
+  /**
+   * Returns the number of messages written on a channel that the device has not acknowledged yet.
+   */
+  public int getOutstandingTxCount(int channelIndex) {
+    return txCreditWindows[channelIndex].getOutstandingCount();
+  }
+
+  private void resetTxCredits(int channelIndex) {
+    if ((channelIndex >= 0) && (channelIndex < MAX_NUM_CHANNELS)) {
+      txCreditWindows[channelIndex].reset();
+    }
+  }
+
+  private void writeFd(int channelIndex, CanMessage msg, long writeTime,
+                       KvFuture<Long> confirmation) throws CanLibException {
+    boolean extended = (msg.flags & CanMessage.FLAG_EXTENDED_ID) != 0;
+    if ((extended && ((msg.id & 0x7FFFFFFF) >= (1 << 29)))
+        || (!extended && (msg.id >= (1 << 11)))) {
+      // id out of range
+      throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.ILLEGAL_ID);
+    }
+    AtomicReferenceArray<CanMessage> sentMessages = sentFdMessages.get(channelIndex);
+    if (sentMessages == null) {
+      throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED,
+                                "The channel is not opened for CAN FD");
+    }
+    TxCreditWindow txCredits = txCreditWindows[channelIndex];
+    txCredits.acquire(1, !isReceiveThread());
+    CmdTxCanMessageFd cmdTxCanMessage = new CmdTxCanMessageFd(this);
+    cmdTxCanMessage.req.destination = (byte) (channelHeList.channelToHe(channelIndex) & 0x7f);
+    cmdTxCanMessage.req.transId = getNextTransId(channelIndex);
+    txCredits.sent(cmdTxCanMessage.req.transId, writeTime, confirmation);
+    cmdTxCanMessage.req.id = msg.id;
+    cmdTxCanMessage.req.extended = extended;
+    cmdTxCanMessage.req.bitRateSwitch = (msg.flags & CanMessage.FLAG_FD_BRS) != 0;
+    cmdTxCanMessage.req.data = msg.data;
+    cmdTxCanMessage.req.length = msg.dlc;
+    // Kept until the acknowledgement, which does not hold the message
+    sentMessages.set(cmdTxCanMessage.req.transId, new CanMessage(msg));
+    if (!cmdTxCanMessage.send()) {
+      sentMessages.set(cmdTxCanMessage.req.transId, null);
+      txCredits.unsent(cmdTxCanMessage.req.transId);
+      throw sendBufferFull();
+    }
+  }
+
+  @Override
+  public void enableMessagePool(int channelIndex, int poolSize) {
+    messagePools.enable(channelIndex, poolSize);
+  }
+
+  @Override
+  public void disableMessagePool(int channelIndex) {
+    messagePools.disable(channelIndex);
+  }
+
+  CanMessagePool getMessagePool(int channelIndex) {
+    return messagePools.get(channelIndex);
+  }
+
+  /*
+   * Returns a message for a received frame, taken from the channel's pool if it has one. The
+   * message must be released when it has been passed to the listeners.
+   */
+  private CanMessage obtainMessage(int channelIndex) {
+    CanMessagePool pool = messagePools.get(channelIndex);
+    return (pool != null) ? pool.obtain() : new CanMessage();
+  }
+
+  /*
+   * Returns true if any channel event listener is registered for the channel. When there is none,
+   * received frames are only decoded for the batch listeners, into a message that is reused.
+   */
+  private boolean hasChannelListener(int channelIndex) {
+    for (CanChannelEventListener listener : canChannelListeners) {
+      if (listener.getChannelIndex() == channelIndex) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
@@ -335,47 +792,75 @@ class KCany implements KvDeviceInterface {
     flashThread.start();
   }
 
-  public void registerCanChannelEventListener(CanChannelEventListener listener) {
-    canChannelListeners.add(listener);
+  public synchronized void registerCanChannelEventListener(CanChannelEventListener listener) {
+    canChannelListeners = ListenerArrays.add(canChannelListeners, listener);
   }
 
-  public void unregisterCanChannelEventListener(CanChannelEventListener listener) {
-    canChannelListeners.remove(listener);
+  public synchronized void unregisterCanChannelEventListener(CanChannelEventListener listener) {
+    canChannelListeners = ListenerArrays.remove(canChannelListeners, listener);
   }
 
-  public void UsbDataReceived(byte[] data) {
-    int count = 0;
-    byte cmdNum;
+  public void registerCanBatchListener(int channelIndex, CanBatchListener listener) {
+    batchDelivery.register(channelIndex, listener);
+  }
 
-    while (count < data.length) {
-      if (data.length < (count + KCANY_CMD_SIZE)) {
-        break;
-      }
-      cmdNum = data[count];
-      if (cmdNum == 0) {
+  public void unregisterCanBatchListener(int channelIndex, CanBatchListener listener) {
+    batchDelivery.unregister(channelIndex, listener);
+  }
+
+  public void UsbDataReceived(byte[] data, int length) {
+    // Writes made from this thread do not wait for transmit credits, see isReceiveThread()
+    receiveThread = Thread.currentThread();
+    if (receiveBuffer == null || receiveBuffer.array() != data) {
+      // The transport normally reuses the same receive buffer, so only wrap it when it changes
+      receiveBuffer = ByteBuffer.wrap(data);
+      receiveBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    int count = 0;
+    while (count < length) {
+      if (data[count] == 0) {
         // Fast-forward count to the next maxPacketSizeIn boundary
         count = ((count + maxPacketSizeIn) / maxPacketSizeIn) * maxPacketSizeIn;
-      } else {
-        HandleUsbCommand(Arrays.copyOfRange(data, count, count + KCANY_CMD_SIZE));
-        count += KCANY_CMD_SIZE;
+        continue;
       }
+      int commandSize = KCANY_CMD_SIZE;
+      if (data[count] == CmdTxCanMessageFd.CMD_EXTENDED) {
+        // Extended commands have their size after the header
+        if (count + CmdTxCanMessageFd.EXT_HEADER_SIZE > length) {
+          break;
+        }
+        commandSize = receiveBuffer.getShort(count + 4) & 0xffff;
+        if (commandSize < CmdTxCanMessageFd.EXT_HEADER_SIZE) {
+          break;
+        }
+      }
+      if (count + commandSize > length) {
+        break;
+      }
+      HandleUsbCommand(receiveBuffer, count, commandSize);
+      count += commandSize;
     }
+
+    // The frames of the whole transfer are delivered to the batch listeners at once
+    batchDelivery.flush();
   }
 
-  private void HandleUsbCommand(@Size(KCANY_CMD_SIZE - 1) byte[] data) {
-    if (data.length != KCANY_CMD_SIZE) {
-      // Should not happen since this function shall only be called by UsbDataReceived that makes
-      // sure only the correct length is used. However, in case it would happen anyway we will not
-      // be able to pare it - so just return.
-      return;
-    }
-    debugLog("Resp", data);
+  /**
+   * Decodes one command in place in the receive buffer. Only absolute reads are used, i.e. the
+   * position of the buffer is not changed and no part of the command is copied unless it is a
+   * response that someone is waiting for.
+   *
+   * @param resp   The receive buffer, in little endian order.
+   * @param offset The index of the first byte of the command.
+   * @param size   The size of the command, larger than KCANY_CMD_SIZE for some extended commands.
+   */
+  private void HandleUsbCommand(ByteBuffer resp, int offset, int size) {
+    debugLog("Resp", resp.array(), offset);
 
-    ByteBuffer resp = ByteBuffer.wrap(data);
-    resp.order(ByteOrder.LITTLE_ENDIAN);
-    byte cmd = resp.get();
-    byte cmdIOP = resp.get();
-    short cmdIOPSeq = resp.getShort();
+    byte cmd = resp.get(offset);
+    byte cmdIOP = resp.get(offset + 1);
+    short cmdIOPSeq = resp.getShort(offset + 2);
     short transId = (short) (cmdIOPSeq & 0x0fff);
     byte sourceHE =
         (byte) ((((cmdIOP & 0xC0) >>> 2) & 0x30) | (((cmdIOPSeq & 0xf000) >>> 12) & 0x0f));
@@ -384,67 +869,61 @@ class KCany implements KvDeviceInterface {
     // responses to requests. This is where events to listeners shall be generated.
     switch (cmd) {
       case CmdTxCanMessage.CMD_TX_ACKNOWLEDGE:
-        CmdTxCanMessage cmdTxAck = new CmdTxCanMessage(this);
-        cmdTxAck.parseResponse(resp);
-        CanMessage txMsg = new CanMessage();
-        txMsg.setFlagsUsingBitField(cmdTxAck.resp.flags);
-        if ((cmdTxAck.resp.id & 0x80000000) == 0) {
-          /* Standard ID */
-          txMsg.setFlag(CanMessage.MessageFlags.STANDARD_ID);
-          txMsg.id = (cmdTxAck.resp.id & 0x7FF);
-        } else {
-          /* Extended ID */
-          txMsg.setFlag(CanMessage.MessageFlags.EXTENDED_ID);
-          txMsg.id = (cmdTxAck.resp.id & 0x1FFFFFFF);
-        }
-        txMsg.dlc = cmdTxAck.resp.dlc;
-        txMsg.time = ticksToTimestamp(cmdTxAck.resp.time);
-        txMsg.data = cmdTxAck.resp.data.clone();
-        txMsg.direction = CanMessage.Direction.TX;
+        // Layout as in CmdTxCanMessage.Resp: id, data[8], dlc, flags, time[3]
         int txChannel = channelHeList.heToChannel(sourceHE);
-        for (CanChannelEventListener listener : canChannelListeners) {
-          if (listener.getChannelIndex() == txChannel) {
-            listener.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, txMsg);
-          }
+        long txTime = ticksToTimestamp(resp.getShort(offset + 18) & 0xffff,
+                                       resp.getShort(offset + 20) & 0xffff,
+                                       resp.getShort(offset + 22) & 0xffff);
+        acknowledgeTx(txChannel, transId, txTime);
+        CanFrameBatch txBatch = batchDelivery.getBatch(txChannel);
+        boolean txDispatch = hasChannelListener(txChannel);
+        if (!txDispatch && txBatch == null) {
+          break;
         }
+        CanMessage txMsg = txDispatch ? obtainMessage(txChannel) : batchOnlyMessage;
+        txMsg.setFlagsUsingBitField(resp.get(offset + 17));
+        setId(txMsg, resp.getInt(offset + 4));
+        txMsg.dlc = resp.get(offset + 16);
+        txMsg.time = txTime;
+        System.arraycopy(resp.array(), offset + 8, txMsg.data, 0, 8);
+        txMsg.direction = CanMessage.Direction.TX;
+        deliverFrame(txChannel, txMsg, txBatch, txDispatch);
         break;
 
       case CmdLogMessage.CMD_LOG_MESSAGE:
-        CmdLogMessage cmdLog = new CmdLogMessage(this);
-        cmdLog.parseResponse(resp);
-        CanMessage rxMsg = new CanMessage();
-        rxMsg.setFlagsUsingBitField(cmdLog.resp.flags);
-        if ((cmdLog.resp.id & 0x80000000) == 0) {
-          /* Standard ID */
-          rxMsg.setFlag(CanMessage.MessageFlags.STANDARD_ID);
-          rxMsg.id = (cmdLog.resp.id & 0x7FF);
-        } else {
-          /* Extended ID */
-          rxMsg.setFlag(CanMessage.MessageFlags.EXTENDED_ID);
-          rxMsg.id = (cmdLog.resp.id & 0x1FFFFFFF);
-        }
-        rxMsg.dlc = cmdLog.resp.dlc;
-        rxMsg.time = ticksToTimestamp(cmdLog.resp.time);
-        rxMsg.data = cmdLog.resp.data.clone();
-        rxMsg.direction = CanMessage.Direction.RX;
+        // Layout as in CmdLogMessage.Resp: cmdLen, cmdNo, channel, flags, time[3], dlc, padding,
+        // id, data[8]
         int rxChannel = channelHeList.heToChannel(sourceHE);
-        for (CanChannelEventListener listener : canChannelListeners) {
-          if (listener.getChannelIndex() == rxChannel) {
-            listener.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, rxMsg);
-          }
+        CanFrameBatch rxBatch = batchDelivery.getBatch(rxChannel);
+        boolean rxDispatch = hasChannelListener(rxChannel);
+        if (!rxDispatch && rxBatch == null) {
+          break;
         }
+        CanMessage rxMsg = rxDispatch ? obtainMessage(rxChannel) : batchOnlyMessage;
+        rxMsg.setFlagsUsingBitField(resp.get(offset + 7));
+        setId(rxMsg, resp.getInt(offset + 16));
+        rxMsg.dlc = resp.get(offset + 14);
+        rxMsg.time = ticksToTimestamp(resp.getShort(offset + 8) & 0xffff,
+                                      resp.getShort(offset + 10) & 0xffff,
+                                      resp.getShort(offset + 12) & 0xffff);
+        System.arraycopy(resp.array(), offset + 20, rxMsg.data, 0, 8);
+        rxMsg.direction = CanMessage.Direction.RX;
+        deliverFrame(rxChannel, rxMsg, rxBatch, rxDispatch);
         break;
 
       case CmdChipState.CMD_CHIP_STATE_EVENT:
-        CmdChipState cmdCS = new CmdChipState(this);
-        cmdCS.parseResponse(resp);
+        // Layout as in CmdChipState.Resp: time[3], txErrorCounter, rxErrorCounter, busStatus,
+        // channel
         ChipState chipState = new ChipState();
-        chipState.time = ticksToTimestamp(cmdCS.resp.time);
-        chipState.channel = cmdCS.resp.channel;
-        chipState.rxErrorCounter = (int) cmdCS.resp.rxErrorCounter & 0xFF;
-        chipState.txErrorCounter = (int) cmdCS.resp.txErrorCounter & 0xFF;
-        switch (cmdCS.resp.busStatus & (CmdChipState.BUS_STATUS_BUS_PASSIVE_MASK
-                                        | CmdChipState.BUS_STATUS_BUS_OFF_MASK)) {
+        chipState.time = ticksToTimestamp(resp.getShort(offset + 4) & 0xffff,
+                                          resp.getShort(offset + 6) & 0xffff,
+                                          resp.getShort(offset + 8) & 0xffff);
+        chipState.txErrorCounter = (int) resp.get(offset + 10) & 0xFF;
+        chipState.rxErrorCounter = (int) resp.get(offset + 11) & 0xFF;
+        byte busStatus = resp.get(offset + 12);
+        chipState.channel = resp.get(offset + 13);
+        switch (busStatus & (CmdChipState.BUS_STATUS_BUS_PASSIVE_MASK
+                             | CmdChipState.BUS_STATUS_BUS_OFF_MASK)) {
           case 0:
             chipState.busStatus = EnumSet.of(ChipState.BusStatus.ERROR_ACTIVE);
             break;
@@ -469,7 +948,7 @@ class KCany implements KvDeviceInterface {
         }
 
         // Reset is treated like bus-off
-        if ((cmdCS.resp.busStatus & CmdChipState.BUS_STATUS_BUS_RESET_MASK) != 0) {
+        if ((busStatus & CmdChipState.BUS_STATUS_BUS_RESET_MASK) != 0) {
           chipState.busStatus = EnumSet.of(ChipState.BusStatus.BUSOFF);
           chipState.rxErrorCounter = 0;
           chipState.txErrorCounter = 0;
@@ -483,6 +962,10 @@ class KCany implements KvDeviceInterface {
         }
         break;
 
+      case CmdTxCanMessageFd.CMD_EXTENDED:
+        HandleExtendedCommand(resp, offset, size, sourceHE, transId);
+        break;
+
       case 45:
         debugLog(
             "CMD_ERROR_EVENT received. TODO: Implement handler."); //TODO Timeouts are currently used for error handling.
@@ -497,40 +980,193 @@ class KCany implements KvDeviceInterface {
         break;
     }
 
-    // Notify all waiters of this response
-    synchronized (waitList) {
-      for (int i = 0; i < waitList.size(); i++) {
-        synchronized (waitList.get(i)) {
-          if ((waitList.get(i).responseCmd == cmd) && (waitList.get(i).transId == transId)) {
-            waitList.get(i).responseReceived = true;
-            waitList.get(i).receivedData = Arrays.copyOf(data, waitList.get(i).receivedData.length);
-            waitList.get(i).notifyAll();
-          }
+    // Complete the request waiting for this response, if any
+    pendingResponses.complete(cmd & 0xff, transId, resp.array(), offset, size);
+  }
+
+  /*
+   * Decodes an extended command, i.e. a CAN FD message or the acknowledgement of one.
+   */
+  private void HandleExtendedCommand(ByteBuffer resp, int offset, int size, byte sourceHE,
+                                     short transId) {
+    if (size < CmdTxCanMessageFd.EXT_HEADER_SIZE) {
+      return;
+    }
+    switch (resp.get(offset + 6)) {
+      case CmdTxCanMessageFd.CMD_TX_ACKNOWLEDGE_FD: {
+        // Layout: header[8], flags, reserved[4], time (8 bytes)
+        int txChannel = channelHeList.heToChannel(sourceHE);
+        if (txChannel < 0 || txChannel >= MAX_NUM_CHANNELS || size < 24) {
+          break;
+        }
+        acknowledgeTx(txChannel, transId, ticksToTimestamp(resp.getLong(offset + 16)));
+        AtomicReferenceArray<CanMessage> sentMessages = sentFdMessages.get(txChannel);
+        CanMessage sentMsg = (sentMessages != null) ? sentMessages.getAndSet(transId, null) : null;
+        if (sentMsg == null) {
+          break;
+        }
+        CanFrameBatch txBatch = batchDelivery.getBatch(txChannel);
+        boolean txDispatch = hasChannelListener(txChannel);
+        if (!txDispatch && txBatch == null) {
+          break;
+        }
+        CanMessage txMsg = txDispatch ? obtainMessage(txChannel) : batchOnlyMessage;
+        txMsg.flags = extendedFlagsToFlags(resp.getInt(offset + 8)) | CanMessage.FLAG_TX_ACK
+                      | (sentMsg.flags & (CanMessage.FLAG_STANDARD_ID
+                                          | CanMessage.FLAG_EXTENDED_ID | CanMessage.FLAG_FD_EDL
+                                          | CanMessage.FLAG_FD_BRS));
+        txMsg.id = sentMsg.id;
+        txMsg.dlc = sentMsg.dlc;
+        txMsg.time = ticksToTimestamp(resp.getLong(offset + 16));
+        txMsg.ensureDataCapacity(sentMsg.dlc);
+        System.arraycopy(sentMsg.data, 0, txMsg.data, 0, sentMsg.dlc);
+        txMsg.direction = CanMessage.Direction.TX;
+        deliverFrame(txChannel, txMsg, txBatch, txDispatch);
+        break;
+      }
+
+      case CmdTxCanMessageFd.CMD_RX_MESSAGE_FD: {
+        // Layout: header[8], flags, id, kcanId, kcanHeader, time (8 bytes), data[64]
+        int rxChannel = channelHeList.heToChannel(sourceHE);
+        if (rxChannel < 0 || rxChannel >= MAX_NUM_CHANNELS) {
+          break;
+        }
+        CanFrameBatch rxBatch = batchDelivery.getBatch(rxChannel);
+        boolean rxDispatch = hasChannelListener(rxChannel);
+        if (!rxDispatch && rxBatch == null) {
+          break;
+        }
+        int extFlags = resp.getInt(offset + 8);
+        int id = resp.getInt(offset + 12);
+        int dlc = (resp.getInt(offset + 20) & CmdTxCanMessageFd.KCAN_HEADER_DLC_MASK)
+                  >>> CmdTxCanMessageFd.KCAN_HEADER_DLC_SHIFT;
+        boolean fd = (extFlags & CmdTxCanMessageFd.FLAG_FDF) != 0;
+        int length = fd ? CanMessage.fdDlcToLength(dlc) : Math.min(dlc, 8);
+        if (CmdTxCanMessageFd.EXT_MESSAGE_HEADER_SIZE + length > size) {
+          break;
+        }
+        CanMessage rxMsg = rxDispatch ? obtainMessage(rxChannel) : batchOnlyMessage;
+        rxMsg.flags = extendedFlagsToFlags(extFlags);
+        if ((id & CmdTxCanMessageFd.EXTENDED_ID) != 0) {
+          rxMsg.flags |= CanMessage.FLAG_EXTENDED_ID;
+          rxMsg.id = id & 0x1FFFFFFF;
+        } else {
+          rxMsg.flags |= CanMessage.FLAG_STANDARD_ID;
+          rxMsg.id = id & 0x7FF;
+        }
+        // The DLC of a CAN FD message is its number of data bytes
+        rxMsg.dlc = fd ? length : dlc;
+        rxMsg.time = ticksToTimestamp(resp.getLong(offset + 24));
+        rxMsg.ensureDataCapacity(length);
+        System.arraycopy(resp.array(), offset + CmdTxCanMessageFd.EXT_MESSAGE_HEADER_SIZE,
+                         rxMsg.data, 0, length);
+        rxMsg.direction = CanMessage.Direction.RX;
+        deliverFrame(rxChannel, rxMsg, rxBatch, rxDispatch);
+        break;
+      }
+
+      default:
+        break;
+    }
+  }
+
+  /*
+   * Appends a decoded frame to the batch of its channel, if any, and passes it to the channel
+   * event listeners if dispatch is true, in which case the message is released afterwards.
+   */
+  private void deliverFrame(int channelIndex, CanMessage msg, CanFrameBatch batch,
+                            boolean dispatch) {
+    if (batch != null) {
+      batch.add(msg);
+    }
+    if (dispatch) {
+      for (CanChannelEventListener listener : canChannelListeners) {
+        if (listener.getChannelIndex() == channelIndex) {
+          listener.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, msg);
         }
       }
+      msg.release();
     }
   }
 
-  private long ticksToTimestamp(int[] ticks) {
+  private static int extendedFlagsToFlags(int extFlags) {
+    int flags = 0;
+    if ((extFlags & CmdTxCanMessageFd.FLAG_ERROR_FRAME) != 0) {
+      flags |= CanMessage.FLAG_ERROR_FRAME;
+    }
+    if ((extFlags & CmdTxCanMessageFd.FLAG_OVERRUN) != 0) {
+      flags |= CanMessage.FLAG_ERR_HW_OVERRUN;
+    }
+    if ((extFlags & CmdTxCanMessageFd.FLAG_REMOTE_FRAME) != 0) {
+      flags |= CanMessage.FLAG_REMOTE_REQUEST;
+    }
+    if ((extFlags & CmdTxCanMessageFd.FLAG_TX_ACK) != 0) {
+      flags |= CanMessage.FLAG_TX_ACK;
+    }
+    if ((extFlags & CmdTxCanMessageFd.FLAG_FDF) != 0) {
+      flags |= CanMessage.FLAG_FD_EDL;
+    }
+    if ((extFlags & CmdTxCanMessageFd.FLAG_BRS) != 0) {
+      flags |= CanMessage.FLAG_FD_BRS;
+    }
+    if ((extFlags & CmdTxCanMessageFd.FLAG_ESI) != 0) {
+      flags |= CanMessage.FLAG_FD_ESI;
+    }
+    return flags;
+  }
+
+  private long ticksToTimestamp(long ticks) {
+    return ticksToTimestamp((int) (ticks & 0xffff), (int) ((ticks >>> 16) & 0xffff),
+                            (int) ((ticks >>> 32) & 0xffff));
+  }
+
+  private long ticksToTimestamp(int ticks0, int ticks1, int ticks2) {
     long temp;
     int divisor = 10 * hiresTimerFq;
-    int[] resTime = new int[3];
-    resTime[0] = ticks[2] / divisor;
-    temp = (ticks[2] % divisor) << 16;
-    resTime[1] = (int) ((temp + ticks[1]) / divisor);
-    temp = ((temp + ticks[1]) % divisor) << 16;
-    resTime[2] = (int) ((temp + ticks[0]) / divisor);
-    return (long) ((resTime[1] << 16) + resTime[2]);
+    int resTime1, resTime2;
+    temp = (ticks2 % divisor) << 16;
+    resTime1 = (int) ((temp + ticks1) / divisor);
+    temp = ((temp + ticks1) % divisor) << 16;
+    resTime2 = (int) ((temp + ticks0) / divisor);
+    return (long) ((resTime1 << 16) + resTime2);
+  }
+
+  private static void setId(CanMessage msg, int id) {
+    if ((id & 0x80000000) == 0) {
+      /* Standard ID */
+      msg.flags |= CanMessage.FLAG_STANDARD_ID;
+      msg.id = (id & 0x7FF);
+    } else {
+      /* Extended ID */
+      msg.flags |= CanMessage.FLAG_EXTENDED_ID;
+      msg.id = (id & 0x1FFFFFFF);
+    }
+  }
+
+  /*
+   * Returns true if called from the thread that handles the received data, e.g. by a listener. A
+   * write from there must not wait for transmit credits, since the acknowledgements that give
+   * them back are handled by that same thread.
+   */
+  private boolean isReceiveThread() {
+    return Thread.currentThread() == receiveThread;
   }
 
   private short getNextTransId(int channelIndex) {
-    short transId = nextTransId[channelIndex];
-    nextTransId[channelIndex]++;
-    nextTransId[channelIndex] = (short) (nextTransId[channelIndex] & 0x0fff);
-    if (nextTransId[channelIndex] == 0) {
-      nextTransId[channelIndex] = 1;
+    return (short) transIds.next(channelIndex);
+  }
+
+  /*
+   * Gives back the transmit credit of an acknowledged message and completes its confirmation.
+   * Called by the receive thread.
+   */
+  private void acknowledgeTx(int channelIndex, short transId, long txTime) {
+    if ((channelIndex >= 0) && (channelIndex < MAX_NUM_CHANNELS)) {
+      TxCreditWindow txCredits = txCreditWindows[channelIndex];
+      if (txCredits != null) {
+        txCredits.acknowledged(transId, txTime);
+      }
     }
-    return transId;
   }
 
   /**
@@ -540,68 +1176,99 @@ class KCany implements KvDeviceInterface {
    * @param requestData An array with the command bytes to send
    * @param responseCmd An array of command IDs in the expected response(s)
    * @param transId     The transaction ID in the expected response(s)
-   * @return array of ByteBuffers with the received response(s), or null in case of error or timeout
+   * @return array of ByteBuffers with the received response(s)
    */
   ByteBuffer[] SendCommandAndWaitResponse(byte[] requestData, byte[] responseCmd,
                                           short transId) throws CanLibException {
-    WaitNode[] waitNodes = new WaitNode[responseCmd.length];
-    for (int i = 0; i < waitNodes.length; i++) {
-      waitNodes[i] = new WaitNode(responseCmd[i], transId);
-      synchronized (waitList) {
-        waitList.add(waitNodes[i]);
-      }
+    return SendCommandAsync(requestData, responseCmd, transId).getResult();
+  }
+
+  /**
+   * Sends a command to the device over USB without waiting for the response(s). In case of no
+   * response the returned future fails after 2 seconds. If the send buffer of the transport has no
+   * room for the command, the returned future has already failed.
+   *
+   * @param requestData An array with the command bytes to send
+   * @param responseCmd An array of command IDs in the expected response(s)
+   * @param transId     The transaction ID in the expected response(s)
+   * @return future with the received response(s), in the order of responseCmd
+   */
+  KvFuture<ByteBuffer[]> SendCommandAsync(byte[] requestData, byte[] responseCmd,
+                                          final short transId) {
+    final PendingResponse[] responses = new PendingResponse[responseCmd.length];
+    for (int i = 0; i < responses.length; i++) {
+      responses[i] = pendingResponses.register(responseCmd[i] & 0xff, transId, RESPONSE_TIMEOUT_MS);
     }
-    ByteBuffer[] respData = new ByteBuffer[responseCmd.length];
     debugLog(" Req", requestData);
-    for (int i = 0; i < waitNodes.length; i++) {
-      synchronized (waitNodes[i]) {
-        if (i == 0) {
-          // Send shall only be done once, but it has to be within the "synchronized" block
-          usbHandle.send(requestData);
-        }
-        int timeoutCounter = 0;
-        while ((!waitNodes[i].responseReceived) && (timeoutCounter < 20)) {
-          try {
-            waitNodes[i].wait(100);
-          } catch (InterruptedException e) {
-            throw new CanLibException(ErrorCode.ERR_INTERNAL, ErrorDetail.INTERRUPTED_THREAD,
-                                      "Thread was interrupted while waiting for response from device.");
-          }
-          timeoutCounter++;
-        }
-        if (timeoutCounter == 20) {
-          debugLog(
-              "Timeout occurred while waiting for response cmd " + (((int) waitNodes[i].responseCmd)
-                                                                    & 0xff) + " (transId "
-              + waitNodes[i].transId + ")");
-        }
+    if (!usbHandle.send(requestData)) {
+      // No response will come, so the responses are not left waiting for their timeout
+      for (PendingResponse response : responses) {
+        response.cancel(false);
       }
+      return KvFuture.failedFuture(sendBufferFull());
+    }
+    KvFuture<ByteBuffer[]> future = PendingResponseTable.allOf(responses);
+    if (debugInLogcat) {
+      future.addCompletionListener(new CompletionListener<ByteBuffer[]>() {
+        public void completed(ByteBuffer[] result) {
+        }
 
-      synchronized (waitList) {
-        waitList.remove(waitNodes[i]);
-      }
-      synchronized (waitNodes[i]) {
-        if (waitNodes[i].responseReceived) {
-          respData[i] = ByteBuffer.wrap(waitNodes[i].receivedData);
-          respData[i].order(ByteOrder.LITTLE_ENDIAN);
-        } else {
-          throw new CanLibException(ErrorCode.ERR_DEVICE, ErrorDetail.COMMUNICATION_TIMEOUT);
+        public void failed(CanLibException exception) {
+          for (PendingResponse response : responses) {
+            if (response.isTimedOut()) {
+              debugLog("Timeout occurred while waiting for response cmd " + response.responseCmd
+                       + " (transId " + transId + ")");
+            }
+          }
         }
-      }
+      });
     }
-    return respData;
+    return future;
   }
 
-  void SendCommand(@Size(32) byte[] requestData) {
+  /**
+   * Sends a command to the device over USB.
+   *
+   * @param requestData An array with the command bytes to send
+   * @return false if the send buffer of the transport had no room for the command
+   */
+  boolean SendCommand(@Size(min = 32) byte[] requestData) {
     debugLog(" Req", requestData);
-    usbHandle.send(requestData);
+    return usbHandle.send(requestData);
+  }
+
+  /**
+   * Sends several commands of the normal size with one call to the transport.
+   *
+   * @param requestData The commands, back to back from index 0.
+   * @param length      The total length of the commands.
+   * @return false if the send buffer of the transport had no room for the commands, in which case
+   *         none of them was sent.
+   */
+  private boolean SendCommands(byte[] requestData, int length) {
+    if (length == 0) {
+      return true;
+    }
+    for (int offset = 0; offset < length; offset += KCANY_CMD_SIZE) {
+      debugLog(" Req", requestData, offset);
+    }
+    return usbHandle.send(requestData, 0, length);
+  }
+
+  static CanLibException sendBufferFull() {
+    return new CanLibException(ErrorCode.ERR_DEVICE, ErrorDetail.TX_BUFFER_FULL,
+                               "The send buffer of the transport is full");
   }
 
   private void debugLog(String description, byte[] data) {
+    debugLog(description, data, 0);
+  }
+
+  private void debugLog(String description, byte[] data, int offset) {
     if (debugInLogcat) {
       String msg = description + ": ";
-      for (byte dataByte : data) {
-        msg += (((int) dataByte) & 0xff) + ", ";
+      for (int i = offset; i < offset + KCANY_CMD_SIZE; i++) {
+        msg += (((int) data[i]) & 0xff) + ", ";
       }
       Log.v("CanLibDebug", msg);
     }
@@ -613,19 +1280,6 @@ class KCany implements KvDeviceInterface {
     }
   }
 
-  private class WaitNode {
-
-    byte responseCmd;
-    short transId;
-    boolean responseReceived = false;
-    byte[] receivedData = new byte[KCANY_CMD_SIZE];
-
-    WaitNode(byte responseCmd, short transId) {
-      this.responseCmd = responseCmd;
-      this.transId = transId;
-    }
-  }
-
   private class ChannelHeList {
 
     private List<Integer> channel2he;
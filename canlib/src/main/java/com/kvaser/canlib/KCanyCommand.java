@@ -1,6 +1,7 @@
 package com.kvaser.canlib;
 
 import java.nio.*;
+import java.util.*;
 
 class KCanyCommand {
 
@@ -22,7 +23,14 @@ class KCanyCommand {
   }
 
   protected ByteBuffer createRequestHeader(Req req) {
-    byte[] data = new byte[KCany.KCANY_CMD_SIZE];
+    return createRequestHeader(req, KCany.KCANY_CMD_SIZE);
+  }
+
+  /* Creates the header of a command with another size than the normal one, i.e. an extended
+   * command.
+   */
+  protected ByteBuffer createRequestHeader(Req req, int size) {
+    byte[] data = new byte[size];
     ByteBuffer reqData = ByteBuffer.wrap(data);
     reqData.order(ByteOrder.LITTLE_ENDIAN);
 
@@ -53,21 +61,41 @@ class KCanyCommand {
     return respId;
   }
 
-  public void send() {
-    device.SendCommand(createRequest().array());
+  /* Sends the request. Returns false if the send buffer of the transport had no room for it.
+   */
+  public boolean send() {
+    return device.SendCommand(createRequest().array());
   }
 
   public void sendAndWaitResponse() throws CanLibException {
+    sendAsync().getResult();
+  }
+
+  /* Sends the request without waiting for the response(s). The returned future completes when all
+   * responses have been received and parsed, i.e. when resp is valid. The responses are parsed on
+   * the receive thread.
+   */
+  public KvFuture<Void> sendAsync() {
+    if (responseCodes == null) {
+      if (!send()) {
+        return KvFuture.failedFuture(KCany.sendBufferFull());
+      }
+      return KvFuture.completedFuture(null);
+    }
     ByteBuffer reqData = createRequest();
     reqData.position(2);
     short transId = (short) (reqData.getShort() & 0x0fff);
-    ByteBuffer[] respData =
-        device.SendCommandAndWaitResponse(createRequest().array(), responseCodes, transId);
-    for (ByteBuffer resp : respData) {
-      if (resp != null) {
-        parseResponse(resp);
-      }
-    }
+    return device.SendCommandAsync(reqData.array(), responseCodes, transId)
+        .then(new KvFuture.Function<ByteBuffer[], Void>() {
+          public Void apply(ByteBuffer[] respData) {
+            for (ByteBuffer resp : respData) {
+              if (resp != null) {
+                parseResponse(resp);
+              }
+            }
+            return null;
+          }
+        });
   }
 
   class Req {
@@ -248,6 +276,8 @@ class CmdGetSoftwareDetails extends KCanyCommand {
   public final static int SWOPTION_CPU_FQ_MASK = 0x60;
   public final static int SWOPTION_80_MHZ_CLK = 0x20; // hires timers run at 80 MHZ
   public final static int SWOPTION_24_MHZ_CLK = 0x40; // hires timers run at 24 MHZ
+  public final static int SWOPTION_CAN_FD = 0x400; // Firmware supports CAN FD
+  public final static int SWOPTION_CAN_FD_NON_ISO = 0x800; // Firmware supports non-ISO CAN FD
 
   private final static byte CMD_GET_SOFTWARE_DETAILS_REQ = (byte) 202;
   private final static byte CMD_GET_SOFTWARE_DETAILS_RESP = (byte) 203;
@@ -371,9 +401,11 @@ class CmdSetDriverMode extends KCanyCommand {
     return reqData;
   }
 
-  public void sendAndWaitResponse() {
+  public void sendAndWaitResponse() throws CanLibException {
     // No response defined, override the super class' wait method
-    super.send();
+    if (!super.send()) {
+      throw KCany.sendBufferFull();
+    }
   }
 
 }
@@ -447,14 +479,39 @@ class CmdTxCanMessage extends KCanyCommand {
   }
 
   protected ByteBuffer createRequest() {
-    ByteBuffer reqData = super.createRequestHeader(req);
-    reqData.putInt(req.id);
-    reqData.put(req.data);
-    reqData.put(req.dlc);
-    reqData.put(req.flags);
-    reqData.putShort(req.transId);
-    reqData.put(req.channel);
-    return reqData;
+    byte[] request = new byte[KCany.KCANY_CMD_SIZE];
+    encodeRequest(request, 0, req.destination, req.transId, req.id, req.data, 0, req.data.length,
+                  req.dlc, req.flags, req.channel);
+    return ByteBuffer.wrap(request).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /* Encodes a request directly into a send buffer, without creating a command object, for writing
+   * many messages at once. The data bytes are data[dataOffset] up to
+   * data[dataOffset + dataLength - 1], of which only the first 8 are sent.
+   */
+  static void encodeRequest(byte[] dst, int offset, byte destination, short transId, int id,
+                            byte[] data, int dataOffset, int dataLength, byte dlc, byte flags,
+                            byte channel) {
+    dst[offset] = CMD_TX_CAN_MESSAGE;
+    dst[offset + 1] = (byte) (destination & 0x7f);
+    putShort(dst, offset + 2, transId);
+    dst[offset + 4] = (byte) id;
+    dst[offset + 5] = (byte) (id >>> 8);
+    dst[offset + 6] = (byte) (id >>> 16);
+    dst[offset + 7] = (byte) (id >>> 24);
+    int length = Math.max(0, Math.min(8, dataLength));
+    System.arraycopy(data, dataOffset, dst, offset + 8, length);
+    Arrays.fill(dst, offset + 8 + length, offset + 16, (byte) 0);
+    dst[offset + 16] = dlc;
+    dst[offset + 17] = flags;
+    putShort(dst, offset + 18, transId);
+    dst[offset + 20] = channel;
+    Arrays.fill(dst, offset + 21, offset + KCany.KCANY_CMD_SIZE, (byte) 0);
+  }
+
+  private static void putShort(byte[] dst, int offset, short value) {
+    dst[offset] = (byte) value;
+    dst[offset + 1] = (byte) (value >>> 8);
   }
 
   public void parseResponse(ByteBuffer respData) {
@@ -493,8 +550,9 @@ class CmdLogMessage extends KCanyCommand {
     byte[] data = new byte[8];
   }
 
-  public void send() {
+  public boolean send() {
     // Shall never be sent
+    return false;
   }
 
   public void sendAndWaitResponse() {
@@ -517,6 +575,93 @@ class CmdLogMessage extends KCanyCommand {
   }
 }
 
+/*------------------------------------------------------------------------------------------------*/
+class CmdTxCanMessageFd extends KCanyCommand {
+
+  // CAN FD messages do not fit in a normal command, they are sent in extended commands. An
+  // extended command has the command number CMD_EXTENDED and its length and extended command
+  // number after the header:
+  //   header[4], length (2 bytes, the size of the whole command), extendedCmd, reserved
+  public final static byte CMD_EXTENDED = (byte) 255;
+  public final static byte CMD_TX_CAN_MESSAGE_FD = (byte) 224;
+  // Layout: flags (4 bytes), reserved[4], time (8 bytes)
+  public final static byte CMD_TX_ACKNOWLEDGE_FD = (byte) 225;
+  // Layout: flags (4 bytes), id (4 bytes), kcanId (4 bytes), kcanHeader (4 bytes), time (8 bytes),
+  // data[64]
+  public final static byte CMD_RX_MESSAGE_FD = (byte) 226;
+  public final static int EXT_HEADER_SIZE = 8;
+  public final static int EXT_MESSAGE_HEADER_SIZE = 32; // Bytes before the data of a message
+
+  // Flags in extended messages
+  public final static int FLAG_ERROR_FRAME = 0x00000001;
+  public final static int FLAG_OVERRUN = 0x00000002;
+  public final static int FLAG_REMOTE_FRAME = 0x00000010;
+  public final static int FLAG_EXTENDED_ID = 0x00000020;
+  public final static int FLAG_TX_ACK = 0x00000040;
+  public final static int FLAG_FDF = 0x00010000;
+  public final static int FLAG_BRS = 0x00020000;
+  public final static int FLAG_ESI = 0x00040000;
+
+  // The id field has this bit set for extended IDs
+  public final static int EXTENDED_ID = 0x80000000;
+
+  // Bits of the CAN controller's view of the frame
+  public final static int KCAN_ID_IDE = 0x40000000;
+  public final static int KCAN_ID_SRR = 0x80000000;
+  public final static int KCAN_HEADER_DLC_SHIFT = 8;
+  public final static int KCAN_HEADER_DLC_MASK = 0x00000f00;
+  public final static int KCAN_HEADER_BRS = 0x00004000;
+  public final static int KCAN_HEADER_FDF = 0x00008000;
+  public final static int KCAN_HEADER_AREQ = 0x80000000;
+
+  public Req req = new Req();
+
+  CmdTxCanMessageFd(KCany device) {
+    super(device, CMD_EXTENDED, null);
+  }
+
+  class Req extends KCanyCommand.Req {
+
+    int id;
+    boolean extended;
+    boolean bitRateSwitch;
+    byte[] data;
+    int length;
+  }
+
+  /*
+   * The command is padded to a multiple of the normal command size, since the transport only sends
+   * whole blocks of that size.
+   */
+  static int commandSize(int length) {
+    int size = EXT_MESSAGE_HEADER_SIZE + length;
+    return ((size + KCany.KCANY_CMD_SIZE - 1) / KCany.KCANY_CMD_SIZE) * KCany.KCANY_CMD_SIZE;
+  }
+
+  protected ByteBuffer createRequest() {
+    int size = commandSize(req.length);
+    ByteBuffer reqData = super.createRequestHeader(req, size);
+    int id = req.extended ? (req.id & 0x1fffffff) : (req.id & 0x7ff);
+    int kcanHeader = ((CanMessage.fdLengthToDlc(req.length) << KCAN_HEADER_DLC_SHIFT)
+                      & KCAN_HEADER_DLC_MASK) | KCAN_HEADER_AREQ | KCAN_HEADER_FDF;
+    if (req.bitRateSwitch) {
+      kcanHeader |= KCAN_HEADER_BRS;
+    }
+    reqData.putShort((short) size);
+    reqData.put(CMD_TX_CAN_MESSAGE_FD);
+    reqData.put((byte) 0);
+    reqData.putInt(0);
+    reqData.putInt(req.extended ? (id | EXTENDED_ID) : id);
+    reqData.putInt(req.extended ? (id | KCAN_ID_IDE | KCAN_ID_SRR) : id);
+    reqData.putInt(kcanHeader);
+    reqData.put((byte) req.length);
+    reqData.put((byte) CanMessage.fdLengthToDlc(req.length));
+    reqData.position(EXT_MESSAGE_HEADER_SIZE);
+    reqData.put(req.data, 0, req.length);
+    return reqData;
+  }
+}
+
 /*------------------------------------------------------------------------------------------------*/
 class CmdSetBusParams extends KCanyCommand {
 
@@ -550,9 +695,54 @@ class CmdSetBusParams extends KCanyCommand {
 
 }
 
+/*------------------------------------------------------------------------------------------------*/
+class CmdSetBusParamsFd extends KCanyCommand {
+
+  public final static byte CANFD_MODE_CLASSIC = 0;
+  public final static byte CANFD_MODE_ISO = 1;
+  public final static byte CANFD_MODE_NON_ISO = 2;
+  private final static byte CMD_SET_BUSPARAMS_FD_REQ = 69;
+  private final static byte CMD_SET_BUSPARAMS_FD_RESP = 70;
+  public Req req = new Req();
+  public Resp resp = new Resp();
+
+  CmdSetBusParamsFd(KCany device) {
+    super(device, CMD_SET_BUSPARAMS_FD_REQ, new byte[] {CMD_SET_BUSPARAMS_FD_RESP});
+  }
+
+  class Req extends KCanyCommand.Req {
+
+    CanBusParams dataBusParams;
+    byte canFdMode;
+    byte channel;
+  }
+
+  protected ByteBuffer createRequest() {
+    // Same layout as CMD_SET_BUSPARAMS_REQ, followed by the bus parameters of the data phase and
+    // the CAN FD mode. The device only uses the latter two in this command.
+    ByteBuffer reqData = super.createRequestHeader(req);
+    reqData.position(12);
+    reqData.put(req.channel);
+    if (req.dataBusParams != null) {
+      reqData.position(16);
+      reqData.putInt((int) (req.dataBusParams.bitRate & 0xffffffff));
+      reqData.put((byte) (req.dataBusParams.tseg1 & 0xff));
+      reqData.put((byte) (req.dataBusParams.tseg2 & 0xff));
+      reqData.put((byte) (req.dataBusParams.sjw & 0xff));
+      reqData.put((byte) (CanBusParams.numSamplingPoints & 0xff));
+      reqData.put(req.canFdMode);
+    }
+    return reqData;
+  }
+
+}
+
 /*------------------------------------------------------------------------------------------------*/
 class CmdGetBusParams extends KCanyCommand {
 
+  public final static byte PARAM_TYPE_CAN = 0;
+  public final static byte PARAM_TYPE_CAN_FD_DATA = 1;
+
   private final static byte CMD_GET_BUSPARAMS_REQ = 17;
   private final static byte CMD_GET_BUSPARAMS_RESP = 18;
   public Req req = new Req();
@@ -582,9 +772,9 @@ class CmdGetBusParams extends KCanyCommand {
   protected void parseResponse(ByteBuffer respData) {
     parseResponseHeader(respData, resp);
     resp.busParams.bitRate = respData.getInt();
-    resp.busParams.tseg1 = respData.get();
-    resp.busParams.tseg2 = respData.get();
-    resp.busParams.sjw = respData.get();
+    resp.busParams.tseg1 = respData.get() & 0xff;
+    resp.busParams.tseg2 = respData.get() & 0xff;
+    resp.busParams.sjw = respData.get() & 0xff;
     int numberOfSamplingPoints = respData.get();
     resp.channel = respData.get();
   }
@@ -794,8 +984,6 @@ class CmdChipState extends KCanyCommand {
 //private final static byte CMD_FLUSH_QUEUE_RESP = 66;
 //private final static byte CMD_HYDRA_TX_INTERVAL_REQ = 67;
 //private final static byte CMD_HYDRA_TX_INTERVAL_RESP = 68;
-//private final static byte CMD_SET_BUSPARAMS_FD_REQ = 69;
-//private final static byte CMD_SET_BUSPARAMS_FD_RESP = 70;
 //// 71 can be reused
 //private final static byte CMD_SET_TRANSCEIVER_MODE_REQ = 74;
 //private final static byte CMD_TREF_SOFNR = 75;
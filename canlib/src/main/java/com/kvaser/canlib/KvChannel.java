@@ -4,6 +4,8 @@ import android.os.*;
 import android.support.annotation.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import com.kvaser.canlib.CanLibException.ErrorDetail;
 import com.kvaser.canlib.CanLibException.ErrorCode;
@@ -13,15 +15,48 @@ import com.kvaser.canlib.CanLibException.ErrorCode;
  */
 public class KvChannel {
 
-  private final List<CanMessageListener> canMessageListeners = new ArrayList<>();
-  private final List<CanMessageFilter> filterList = new ArrayList<>();
-  private final List<ChipStateListener> chipStateListeners = new ArrayList<>();
+  /** A write timeout that makes the writes wait until the device has room for the messages. */
+  public static final long WRITE_TIMEOUT_INFINITE = -1;
+
+  private static final int MAX_EVENT_QUEUE_CAPACITY = 1 << 20;
+  private static final int DEFAULT_SUBSCRIPTION_CAPACITY = 256;
+  private static final int MAX_SJW = 4;
+  private static final int MAX_TSEG1 = 16;
+  private static final int MAX_TSEG2 = 8;
+  private static final int MAX_FD_SJW = 16;
+  private static final int MAX_FD_TSEG1 = 255;
+  private static final int MAX_FD_TSEG2 = 32;
+  // The filters of the channels and of their listeners are checked this often for changes made to
+  // them after they were added, see addFilter()
+  static final long FILTER_CHECK_PERIOD_MS = 100;
+  private static final AtomicReferenceFieldUpdater<KvChannel, CompiledFilterSet> FILTERS =
+      AtomicReferenceFieldUpdater.newUpdater(KvChannel.class, CompiledFilterSet.class, "filters");
+  private static final Timer filterCheckTimer = new Timer("CanLib filter check", true);
+
+  // Copy-on-write, see ListenerArrays. Modified under the KvChannel's lock and read by the
+  // driver's receive thread without locking.
+  private volatile MessageListenerRegistration[] canMessageListeners =
+      new MessageListenerRegistration[0];
+  private volatile CompiledFilterSet filters = CompiledFilterSet.PASS_ALL;
+  private volatile IdListenerTable idListeners = IdListenerTable.EMPTY;
+  private volatile ChipStateListener[] chipStateListeners = new ChipStateListener[0];
   private AddressingType defaultAddressingType;
   private boolean acceptLargeDlc;
+  private CanFdMode canFdMode = CanFdMode.CLASSIC;
   private int channelIndex;
   private KvDeviceInterface deviceDriver;
   private KvDevice kvDevice;
   private EventListener canEventListener;
+  private CanChannelEventListener registeredListener;
+  private ChannelEventDispatcher eventDispatcher;
+  private int eventQueueCapacity;
+  private OverflowPolicy eventQueueOverflowPolicy;
+  private Executor eventQueueExecutor;
+  private volatile boolean messagePoolEnabled = false;
+  private volatile ChannelReadQueue readQueue;
+  private ReadQueueListener readQueueListener;
+  private MessageSubscription[] subscriptions = new MessageSubscription[0];
+  private TimerTask filterCheck;
 
   /**
    * @param channelIndex The channel index on this device defines which CAN channel this KvChannel
@@ -68,14 +103,20 @@ public class KvChannel {
       // 8 data bytes.
       this.acceptLargeDlc = flags.contains((ChannelFlags.ACCEPT_LARGE_DLC));
 
-      // TODO: CAN_FD shall be implemented in the future
-      if (flags.contains(ChannelFlags.CAN_FD)) {
-        // Shall this be supported by the Android CanLib? - Yes, in the future.
-      }
-
-      // TODO: CAN_FD_NON_ISO shall be implemented whenever CAN_FD is implemented
       if (flags.contains(ChannelFlags.CAN_FD_NON_ISO)) {
-        // Shall this be supported by the Android CanLib? - Yes, in the future.
+        canFdMode = CanFdMode.NON_ISO;
+      } else if (flags.contains(ChannelFlags.CAN_FD)) {
+        canFdMode = CanFdMode.ISO;
+      }
+      if (canFdMode != CanFdMode.CLASSIC) {
+        try {
+          deviceDriver.enableCanFdMode(channelIndex, canFdMode);
+        } catch (CanLibException e) {
+          // The device does not support the mode, or the channel is in use in the other mode, do
+          // not keep the channel locked
+          CanChannelAccess.releaseAccess(kvDevice, channelIndex);
+          throw e;
+        }
       }
 
       if (flags.contains(ChannelFlags.REQUIRE_EXTENDED)) {
@@ -95,6 +136,21 @@ public class KvChannel {
    * other KvChannels).
    */
   public void close() {
+    disableReadQueue();
+    disableEventQueue();
+    closeListenerQueues();
+    completeSubscriptions();
+    disableMessagePool();
+    stopFilterCheck();
+    if (canFdMode != CanFdMode.CLASSIC) {
+      try {
+        // The channel only returns to classic CAN when the last KvChannel in its mode is closed
+        deviceDriver.disableCanFdMode(channelIndex);
+      } catch (CanLibException e) {
+        // The channel is closed anyway
+      }
+      canFdMode = CanFdMode.CLASSIC;
+    }
     CanChannelAccess.releaseAccess(kvDevice, channelIndex);
   }
 
@@ -126,6 +182,15 @@ public class KvChannel {
     return deviceDriver.getBusParams(channelIndex);
   }
 
+  /**
+   * Gets the current bus timing parameters for the KvChannel without waiting for the device.
+   *
+   * @return A future with the applied bus parameters.
+   */
+  public KvFuture<CanBusParams> getBusParamsAsync() {
+    return deviceDriver.getBusParamsAsync(channelIndex);
+  }
+
   /**
    * Sets the bus timing parameters for the KvChannel.
    *
@@ -143,18 +208,77 @@ public class KvChannel {
    * @throws CanLibException in case of illegal parameter setting
    */
   public void setBusParams(@NonNull CanBusParams busParams) throws CanLibException {
-    assertParam((busParams != null), ErrorDetail.NULL_ARGUMENT, "busParams");
-    assertParam((busParams.bitRate > 0), ErrorDetail.ILLEGAL_BITRATE, busParams.bitRate);
-    assertParam(((busParams.sjw >= 1) && (busParams.sjw <= 4)), ErrorDetail.ILLEGAL_SJW,
-                busParams.sjw);
-    assertParam(((busParams.tseg1 >= 1) && (busParams.tseg1 <= 16)), ErrorDetail.ILLEGAL_TSEG1,
-                busParams.tseg1);
-    assertParam(((busParams.tseg2 >= 1) && (busParams.tseg2 <= 8)), ErrorDetail.ILLEGAL_TSEG2,
-                busParams.tseg2);
-
+    assertBusParams(busParams);
     deviceDriver.setBusParams(channelIndex, busParams);
   }
 
+  /**
+   * Sets the bus timing parameters for the KvChannel without waiting for the device. See
+   * {@link #setBusParams(CanBusParams)}.
+   *
+   * @param busParams The bus parameters that shall be applied.
+   * @return A future that completes when the device has applied the parameters.
+   * @throws CanLibException in case of illegal parameter setting
+   */
+  public KvFuture<Void> setBusParamsAsync(@NonNull CanBusParams busParams) throws CanLibException {
+    assertBusParams(busParams);
+    return deviceDriver.setBusParamsAsync(channelIndex, busParams);
+  }
+
+  /**
+   * Gets the current bus timing parameters of the data phase of CAN FD messages for the KvChannel.
+   * The channel must have been opened with {@link ChannelFlags#CAN_FD} or
+   * {@link ChannelFlags#CAN_FD_NON_ISO}.
+   *
+   * @return The applied data phase bus parameters.
+   */
+  public CanBusParams getBusParamsFd() throws CanLibException {
+    return getBusParamsFdAsync().getResult();
+  }
+
+  /**
+   * Gets the current bus timing parameters of the data phase for the KvChannel without waiting for
+   * the device. See {@link #getBusParamsFd()}.
+   *
+   * @return A future with the applied data phase bus parameters.
+   */
+  public KvFuture<CanBusParams> getBusParamsFdAsync() {
+    return deviceDriver.getBusParamsFdAsync(channelIndex);
+  }
+
+  /**
+   * Sets the bus timing parameters of the data phase of CAN FD messages, i.e. the bit rate used
+   * after the bit rate switch. The parameters of the arbitration phase are set with
+   * {@link #setBusParams(CanBusParams)}. The channel must have been opened with
+   * {@link ChannelFlags#CAN_FD} or {@link ChannelFlags#CAN_FD_NON_ISO}, and the parameters shall be
+   * set before the channel goes on bus.
+   *
+   * @param busParams The data phase bus parameters that shall be applied.
+   * @throws CanLibException in case of illegal parameter setting or if the channel is not a CAN FD
+   *                         channel
+   */
+  public void setBusParamsFd(@NonNull CanBusParams busParams) throws CanLibException {
+    setBusParamsFdAsync(busParams).getResult();
+  }
+
+  /**
+   * Sets the bus timing parameters of the data phase for the KvChannel without waiting for the
+   * device. See {@link #setBusParamsFd(CanBusParams)}.
+   *
+   * @param busParams The data phase bus parameters that shall be applied.
+   * @return A future that completes when the device has applied the parameters.
+   * @throws CanLibException in case of illegal parameter setting or if the channel is not a CAN FD
+   *                         channel
+   */
+  public KvFuture<Void> setBusParamsFdAsync(@NonNull CanBusParams busParams)
+      throws CanLibException {
+    if (canFdMode == CanFdMode.CLASSIC) {
+      throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED);
+    }
+    assertBusParams(busParams, MAX_FD_SJW, MAX_FD_TSEG1, MAX_FD_TSEG2);
+    return deviceDriver.setBusParamsFdAsync(channelIndex, busParams);
+  }
+
   /**
    * Takes the specified channel on bus.
    */
@@ -162,6 +286,15 @@ public class KvChannel {
     deviceDriver.busOn(channelIndex);
   }
 
+  /**
+   * Takes the specified channel on bus without waiting for the device.
+   *
+   * @return A future that completes when the channel is on bus.
+   */
+  public KvFuture<Void> busOnAsync() {
+    return deviceDriver.busOnAsync(channelIndex);
+  }
+
   /**
    * Takes the specified channel off bus.
    */
@@ -169,6 +302,15 @@ public class KvChannel {
     deviceDriver.busOff(channelIndex);
   }
 
+  /**
+   * Takes the specified channel off bus without waiting for the device.
+   *
+   * @return A future that completes when the channel is off bus.
+   */
+  public KvFuture<Void> busOffAsync() {
+    return deviceDriver.busOffAsync(channelIndex);
+  }
+
   /**
    * Gets the driver type for a CAN controller.
    *
@@ -178,6 +320,15 @@ public class KvChannel {
     return deviceDriver.getBusOutputControl(channelIndex);
   }
 
+  /**
+   * Gets the driver type for a CAN controller without waiting for the device.
+   *
+   * @return A future with the CAN driver type
+   */
+  public KvFuture<CanDriverType> getBusOutputControlAsync() {
+    return deviceDriver.getBusOutputControlAsync(channelIndex);
+  }
+
   /**
    * Sets the driver type for a CAN controller. This loosely corresponds to the bus
    * output control register in the CAN controller, hence the name of this function. CanLib does
@@ -197,98 +348,834 @@ public class KvChannel {
    * Note: The message has been queued for transmission when this calls return. It has not
    * necessarily been sent.
    *
+   * The device can only hold a limited number of messages that it has not sent yet. When that many
+   * messages are outstanding the call waits for the device to send one of them, as set with
+   * {@link #setWriteTimeout(long)}.
+   *
+   * A CAN FD message is sent by setting {@link CanMessage#FLAG_FD_EDL}, and optionally
+   * {@link CanMessage#FLAG_FD_BRS} to send the data phase with the bus parameters set with
+   * {@link #setBusParamsFd(CanBusParams)}. The dlc of a CAN FD message is the number of data bytes,
+   * which must be one of 0 to 8, 12, 16, 20, 24, 32, 48 and 64.
+   *
    * @param msg The CAN message to send
+   * @throws CanLibException if the message is invalid, or if the device had no room for it within
+   *                         the write timeout.
    */
   public void write(CanMessage msg) throws CanLibException {
-    CanMessage.MessageFlags addressTypeFlag;
-    if (msg.flags.contains(CanMessage.MessageFlags.EXTENDED_ID)) {
-      addressTypeFlag = CanMessage.MessageFlags.EXTENDED_ID;
-    } else if (msg.flags.contains(CanMessage.MessageFlags.STANDARD_ID)) {
-      addressTypeFlag = CanMessage.MessageFlags.STANDARD_ID;
-    } else if (defaultAddressingType == AddressingType.EXTENDED) {
-      addressTypeFlag = CanMessage.MessageFlags.EXTENDED_ID;
+    prepareWrite(msg);
+    deviceDriver.write(channelIndex, msg);
+  }
+
+  /**
+   * Sends a CAN message like {@link #write(CanMessage)}, and returns a future that completes when
+   * the device has sent the message on the bus. The result of the future is the time the message
+   * was sent, in the same time base as {@link CanMessage#getTimestamp()}.
+   *
+   * The future fails with {@link ErrorDetail#TX_DISCARDED} if the device discards the message,
+   * e.g. because the channel goes off bus before the message has been sent. Note that the future
+   * is completed by the receive thread of the device, so completion listeners should not block.
+   *
+   * @param msg The CAN message to send.
+   * @return The future of the transmission.
+   * @throws CanLibException if the message is invalid, or if the device had no room for it within
+   *                         the write timeout.
+   */
+  public KvFuture<Long> writeAndConfirm(@NonNull CanMessage msg) throws CanLibException {
+    assertParam((msg != null), ErrorDetail.NULL_ARGUMENT, "msg");
+    prepareWrite(msg);
+    return deviceDriver.writeAndConfirm(channelIndex, msg);
+  }
+
+  /**
+   * Returns the histogram of the time from a write call until the device has sent the message on
+   * the bus, for the messages written on the channel. The time includes waiting for room in the
+   * device, see {@link #setWriteTimeout(long)}. The histogram is shared by all KvChannel objects
+   * for the same channel of the device, and is updated as messages are sent.
+   *
+   * @return The latency histogram.
+   */
+  public LatencyHistogram getTxLatencyHistogram() {
+    return deviceDriver.getTxLatencyHistogram(channelIndex);
+  }
+
+  /**
+   * Sends several CAN messages at once. The messages are encoded directly into the send buffer of
+   * the driver and handed to the USB connection together, so that they are sent in as few USB
+   * transfers as possible, e.g. to keep a bus busy without one call per message. The messages are
+   * sent in order, and they are checked like in {@link #write(CanMessage)} before any of them is
+   * sent, so none of them is sent if one of them is invalid.
+   *
+   * The messages wait for room in the device like in {@link #write(CanMessage)}, in groups of at
+   * most 64 messages. If the device has no room within the write timeout the messages before the
+   * group that did not fit have been sent.
+   *
+   * @param msgs   The CAN messages to send.
+   * @param offset The index of the first message to send.
+   * @param length The number of messages to send.
+   * @throws CanLibException if a message is invalid, in case of illegal parameters or if the
+   *                         messages could not be sent.
+   */
+  public void write(@NonNull CanMessage[] msgs, int offset, int length) throws CanLibException {
+    assertParam((msgs != null), ErrorDetail.NULL_ARGUMENT, "msgs");
+    assertParam(((offset >= 0) && (length >= 0) && (offset <= msgs.length - length)),
+                ErrorDetail.ILLEGAL_BATCH_SIZE, length);
+    for (int i = offset; i < offset + length; i++) {
+      assertParam((msgs[i] != null), ErrorDetail.NULL_ARGUMENT, "msgs[" + i + "]");
+      prepareWrite(msgs[i]);
+    }
+    if (length > 0) {
+      deviceDriver.write(channelIndex, new TxFrames(msgs, offset, length));
+    }
+  }
+
+  /**
+   * Sends the frames of a batch at once, like {@link #write(CanMessage[], int, int)}. The ID,
+   * DLC, data and the flags of each frame are sent, e.g. to replay a batch of received frames.
+   *
+   * @param batch The frames to send.
+   * @throws CanLibException if a frame is invalid, in case of illegal parameters or if the frames
+   *                         could not be sent.
+   */
+  public void write(@NonNull CanFrameBatch batch) throws CanLibException {
+    assertParam((batch != null), ErrorDetail.NULL_ARGUMENT, "batch");
+    // The frames are sent from the arrays of the batch, which is not changed
+    TxFrames frames = new TxFrames(batch, getDefaultIdFlag());
+    for (int i = 0; i < frames.size(); i++) {
+      checkWrite(frames.getFlags(i), frames.getDlc(i), frames.getDataLength(i));
+    }
+    if (frames.size() > 0) {
+      deviceDriver.write(channelIndex, frames);
+    }
+  }
+
+  /**
+   * Sets how a write is handled when the device has no room for more messages, i.e. when the
+   * device has not yet sent as many of the written messages as it can hold:
+   * <ul>
+   * <li>0: The write fails at once.</li>
+   * <li>A positive timeout: The write waits up to the timeout for the device to send earlier
+   * messages, and fails if it does not.</li>
+   * <li>{@link #WRITE_TIMEOUT_INFINITE}: The write waits until the device has room.</li>
+   * </ul>
+   * A write that fails throws a CanLibException with {@link ErrorDetail#TX_BUFFER_FULL}, and the
+   * message is not sent. The default timeout is one second. The messages that the device holds
+   * when the channel goes off bus are discarded by the device and no longer count.
+   *
+   * A write made on the thread that receives from the device fails at once when the device has
+   * no room, whatever the timeout. That thread calls the listeners that are not given an
+   * executor, and completes the futures of {@link #writeAndConfirm(CanMessage)}, so a write from
+   * one of those callbacks would otherwise wait for acknowledgements that only that thread can
+   * handle.
+   *
+   * @param timeoutMs The write timeout in milliseconds.
+   */
+  public void setWriteTimeout(long timeoutMs) {
+    deviceDriver.setWriteTimeout(channelIndex, timeoutMs);
+  }
+
+  /**
+   * Sets the ID type and clears the flags that are not sent, and checks that the message can be
+   * sent on the channel.
+   */
+  private void prepareWrite(CanMessage msg) throws CanLibException {
+    msg.flags = CanMessage.txFlags(msg.flags, getDefaultIdFlag());
+    checkWrite(msg.flags, msg.dlc, msg.data.length);
+    msg.direction = CanMessage.Direction.TX;
+    msg.time = -1;
+  }
+
+  /**
+   * Checks that a frame with the given flags, as sent, and DLC can be sent on the channel.
+   *
+   * @param dataLength The number of data bytes the frame has.
+   */
+  private void checkWrite(int flags, int dlc, int dataLength) throws CanLibException {
+    if ((flags & CanMessage.FLAG_FD_EDL) != 0) {
+      // CAN FD has no remote frames
+      if ((canFdMode == CanFdMode.CLASSIC) || ((flags & CanMessage.FLAG_REMOTE_REQUEST) != 0)) {
+        throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED);
+      }
+      if ((CanMessage.fdLengthToDlc(dlc) < 0) || (dataLength < dlc)) {
+        throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.ILLEGAL_DLC);
+      }
     } else {
-      addressTypeFlag = CanMessage.MessageFlags.STANDARD_ID;
+      if ((flags & CanMessage.FLAG_FD_BRS) != 0) {
+        // Bit rate switch is only possible in CAN FD messages
+        throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED);
+      }
+      if (!isDlcOk(dlc)) {
+        throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.ILLEGAL_DLC);
+      }
+    }
+  }
+
+  /**
+   * Returns the ID flag of the default addressing type, which messages without an ID type are
+   * sent with.
+   */
+  private int getDefaultIdFlag() {
+    return (defaultAddressingType == AddressingType.EXTENDED) ? CanMessage.FLAG_EXTENDED_ID
+                                                              : CanMessage.FLAG_STANDARD_ID;
+  }
+
+  /**
+   * Makes the channel deliver its events from a queue instead of directly from the driver's receive
+   * thread. The driver only puts received messages and chip states in a bounded queue, and the
+   * listeners are called from a dedicated dispatcher thread. A slow listener will then not delay
+   * the reception on other channels of the device.
+   *
+   * See {@link #enableEventQueue(int, OverflowPolicy, Executor)}.
+   *
+   * @param capacity       The number of events the queue can hold. Rounded up to a power of two
+   *                       of at least two.
+   * @param overflowPolicy What to do when an event is received and the queue is full.
+   * @throws CanLibException in case of illegal parameters.
+   */
+  public void enableEventQueue(int capacity, @NonNull OverflowPolicy overflowPolicy)
+      throws CanLibException {
+    enableEventQueue(capacity, overflowPolicy, null);
+  }
+
+  /**
+   * Makes the channel deliver its events from a queue instead of directly from the driver's receive
+   * thread. The driver only puts received messages and chip states in a bounded queue, and the
+   * queue is drained by a task run on the given executor, which calls the listeners. A slow
+   * listener will then not delay the reception on other channels of the device.
+   *
+   * In case events are dropped because the queue is full, the next message delivered to the
+   * listeners has the {@link CanMessage.MessageFlags#ERR_SW_OVERRUN} flag set.
+   *
+   * Calling this method again replaces the current queue, events in the old queue are discarded.
+   *
+   * @param capacity       The number of events the queue can hold. Rounded up to a power of two
+   *                       of at least two.
+   * @param overflowPolicy What to do when an event is received and the queue is full.
+   * @param executor       The executor to call the listeners on. The listeners of one channel are
+   *                       never called concurrently. May be null, in which case a dedicated
+   *                       dispatcher thread is used.
+   * @throws CanLibException in case of illegal parameters.
+   */
+  public void enableEventQueue(int capacity, @NonNull OverflowPolicy overflowPolicy,
+                               @Nullable Executor executor) throws CanLibException {
+    assertParam(((capacity > 0) && (capacity <= MAX_EVENT_QUEUE_CAPACITY)),
+                ErrorDetail.ILLEGAL_QUEUE_CAPACITY, capacity);
+    assertParam((overflowPolicy != null), ErrorDetail.NULL_ARGUMENT, "overflowPolicy");
+    synchronized (this) {
+      eventQueueCapacity = capacity;
+      eventQueueOverflowPolicy = overflowPolicy;
+      eventQueueExecutor = executor;
+      reregisterCanListener();
+    }
+  }
+
+  /**
+   * Makes the channel deliver its events directly from the driver's receive thread again, which is
+   * the default. Events still in the queue are discarded.
+   */
+  public void disableEventQueue() {
+    synchronized (this) {
+      eventQueueCapacity = 0;
+      reregisterCanListener();
+    }
+  }
+
+  /**
+   * Makes the channel keep its received messages in a queue from which they can be read by
+   * polling, with {@link #read(long)} and {@link #readBatch(CanMessage[], int, long)}, as an
+   * alternative to the message listeners. The driver's receive thread puts the messages that pass
+   * the filters of the channel in a bounded lock-free queue, and readers only wait when the queue is
+   * empty. Reading many messages per call with readBatch costs one wakeup per burst of messages.
+   *
+   * When the queue is full new messages are dropped, and the next message that is read has the
+   * {@link CanMessage.MessageFlags#ERR_SW_OVERRUN} flag set. If the message pool is enabled, see
+   * {@link #enableMessagePool(int)}, the messages read must be released.
+   *
+   * Calling this method again replaces the current queue, messages in the old queue are
+   * discarded.
+   *
+   * @param capacity The number of messages the queue can hold. Rounded up to a power of two of at
+   *                 least two.
+   * @throws CanLibException in case of illegal parameters.
+   */
+  public void enableReadQueue(int capacity) throws CanLibException {
+    assertParam(((capacity > 0) && (capacity <= MAX_EVENT_QUEUE_CAPACITY)),
+                ErrorDetail.ILLEGAL_QUEUE_CAPACITY, capacity);
+    synchronized (this) {
+      disableReadQueue();
+      readQueue = new ChannelReadQueue(capacity);
+      readQueueListener = new ReadQueueListener(readQueue);
+      deviceDriver.registerCanChannelEventListener(readQueueListener);
     }
-    msg.setFlag(addressTypeFlag);
+  }
 
-    //Clear all flags except for EXTENDED_ID, STANDARD_ID and REMOTE_REQUEST
-    for (CanMessage.MessageFlags flag : msg.flags) {
-      if (flag != CanMessage.MessageFlags.EXTENDED_ID &&
-          flag != CanMessage.MessageFlags.STANDARD_ID &&
-          flag != CanMessage.MessageFlags.REMOTE_REQUEST) {
-        msg.flags.remove(flag);
+  /**
+   * Stops queueing received messages for reading, which is the default. Messages still in the
+   * queue are discarded and readers waiting for a message return.
+   */
+  public void disableReadQueue() {
+    synchronized (this) {
+      if (readQueue != null) {
+        deviceDriver.unregisterCanChannelEventListener(readQueueListener);
+        readQueue.close();
+        readQueue = null;
+        readQueueListener = null;
       }
     }
+  }
+
+  /**
+   * Reads the oldest message from the read queue without waiting, see
+   * {@link #enableReadQueue(int)}.
+   *
+   * @return The message, or null if the queue is empty.
+   * @throws CanLibException if the read queue is not enabled.
+   */
+  public CanMessage read() throws CanLibException {
+    return read(0);
+  }
 
-    if (!isDlcOk(msg.dlc)) {
-      throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.ILLEGAL_DLC);
+  /**
+   * Reads the oldest message from the read queue, waiting for a message if the queue is empty, see
+   * {@link #enableReadQueue(int)}.
+   *
+   * @param timeoutMs The maximum time to wait in milliseconds, 0 to not wait.
+   * @return The message, or null if no message was received within the timeout or if the read
+   *         queue was disabled while waiting.
+   * @throws CanLibException if the read queue is not enabled or if the thread was interrupted while
+   *                         waiting.
+   */
+  public CanMessage read(long timeoutMs) throws CanLibException {
+    ChannelReadQueue queue = getReadQueue();
+    try {
+      return queue.poll(timeoutMs);
+    } catch (InterruptedException e) {
+      throw new CanLibException(ErrorCode.ERR_INTERNAL, ErrorDetail.INTERRUPTED_THREAD,
+                                "Thread was interrupted while waiting for a message.");
+    }
+  }
+
+  /**
+   * Reads up to max messages from the read queue, waiting for the first message if the queue is
+   * empty, see {@link #enableReadQueue(int)}. The messages available when the first one has been
+   * read are read without waiting for more.
+   *
+   * @param messages  The array to store the messages in, from index 0.
+   * @param max       The maximum number of messages to read, at most messages.length.
+   * @param timeoutMs The maximum time to wait for the first message in milliseconds, 0 to not
+   *                  wait.
+   * @return The number of messages read, 0 if no message was received within the timeout.
+   * @throws CanLibException if the read queue is not enabled, in case of illegal parameters or if
+   *                         the thread was interrupted while waiting.
+   */
+  public int readBatch(@NonNull CanMessage[] messages, int max, long timeoutMs)
+      throws CanLibException {
+    assertParam((messages != null), ErrorDetail.NULL_ARGUMENT, "messages");
+    assertParam(((max > 0) && (max <= messages.length)), ErrorDetail.ILLEGAL_BATCH_SIZE, max);
+    ChannelReadQueue queue = getReadQueue();
+    try {
+      return queue.drainTo(messages, max, timeoutMs);
+    } catch (InterruptedException e) {
+      throw new CanLibException(ErrorCode.ERR_INTERNAL, ErrorDetail.INTERRUPTED_THREAD,
+                                "Thread was interrupted while waiting for a message.");
+    }
+  }
+
+  /**
+   * Reads up to max messages from the read queue into a batch, like
+   * {@link #readBatch(CanMessage[], int, long)}. The batch is emptied first and then holds the
+   * frames read, so one batch can be reused for all reads without allocating. Pooled messages are
+   * released by the channel when they have been copied to the batch.
+   *
+   * @param batch     The batch to read the frames into.
+   * @param max       The maximum number of frames to read.
+   * @param timeoutMs The maximum time to wait for the first frame in milliseconds, 0 to not wait.
+   * @return The number of frames read, 0 if no frame was received within the timeout.
+   * @throws CanLibException if the read queue is not enabled, in case of illegal parameters or if
+   *                         the thread was interrupted while waiting.
+   */
+  public int readBatch(@NonNull CanFrameBatch batch, int max, long timeoutMs)
+      throws CanLibException {
+    assertParam((batch != null), ErrorDetail.NULL_ARGUMENT, "batch");
+    assertParam((max > 0), ErrorDetail.ILLEGAL_BATCH_SIZE, max);
+    ChannelReadQueue queue = getReadQueue();
+    batch.clear();
+    try {
+      return queue.drainTo(batch, max, timeoutMs);
+    } catch (InterruptedException e) {
+      throw new CanLibException(ErrorCode.ERR_INTERNAL, ErrorDetail.INTERRUPTED_THREAD,
+                                "Thread was interrupted while waiting for a message.");
+    }
+  }
+
+  private ChannelReadQueue getReadQueue() throws CanLibException {
+    ChannelReadQueue queue = readQueue;
+    if (queue == null) {
+      throw new CanLibException(ErrorCode.ERR_ACCESS, ErrorDetail.READ_QUEUE_DISABLED);
+    }
+    return queue;
+  }
+
+  /**
+   * Replaces the listener registered with the driver, if any, to apply new event queue settings.
+   */
+  private synchronized void reregisterCanListener() {
+    // Close the dispatcher first, a receive thread blocked on a full queue is then released
+    closeEventDispatcher();
+    if (registeredListener != null) {
+      deviceDriver.unregisterCanChannelEventListener(registeredListener);
+      registeredListener = null;
+    }
+    if (canEventListener != null) {
+      deviceDriver.registerCanChannelEventListener(createRegisteredListener());
+    }
+  }
+
+  private CanChannelEventListener createRegisteredListener() {
+    if (eventQueueCapacity > 0) {
+      eventDispatcher = new ChannelEventDispatcher(canEventListener, eventQueueCapacity,
+                                                   eventQueueOverflowPolicy, eventQueueExecutor);
+      registeredListener = eventDispatcher;
+    } else {
+      registeredListener = canEventListener;
+    }
+    return registeredListener;
+  }
+
+  private void closeEventDispatcher() {
+    if (eventDispatcher != null) {
+      eventDispatcher.close();
+      eventDispatcher = null;
     }
-    msg.direction = CanMessage.Direction.TX;
-    msg.time = -1;
-    deviceDriver.write(channelIndex, msg);
   }
 
   /**
    * Registers KvChannel's listener with the driver if it was not already registered.
    */
-  private void registerCanListener() {
+  private synchronized void registerCanListener() {
     if (canEventListener == null) {
       canEventListener = new EventListener();
-      deviceDriver.registerCanChannelEventListener(canEventListener);
+      deviceDriver.registerCanChannelEventListener(createRegisteredListener());
     }
   }
 
   /**
    * Unregisters KvChannel's listener with the driver if it was registered.
    */
-  private void unregisterCanListener() {
-    if ((canEventListener != null) && canMessageListeners.isEmpty() && chipStateListeners
-        .isEmpty()) {
-      deviceDriver.unregisterCanChannelEventListener(canEventListener);
+  private synchronized void unregisterCanListener() {
+    if ((canEventListener != null) && (canMessageListeners.length == 0) && idListeners.isEmpty()
+        && (chipStateListeners.length == 0)) {
+      closeEventDispatcher();
+      deviceDriver.unregisterCanChannelEventListener(registeredListener);
+      registeredListener = null;
       canEventListener = null;
     }
   }
 
+  /**
+   * Makes the driver deliver the received messages of this channel in CanMessage objects taken from
+   * a pool, instead of allocating a new object for each message, to avoid garbage collections when
+   * receiving many messages. Every CanMessageListener registered with the channel must then call
+   * {@link CanMessage#release()} exactly once for each message it receives, when it is done with
+   * it, and must not use the message after that. A listener that wants to keep a message shall keep
+   * a copy, see {@link CanMessage#CanMessage(CanMessage)}.
+   *
+   * The pool is shared by all KvChannels on the same CAN channel that have enabled it, and is kept
+   * until the last of them disables it. It holds as many messages as the largest size asked for.
+   * KvChannels on the same CAN channel without a message pool get copies of the messages, which
+   * they need not release.
+   *
+   * @param poolSize The number of free messages the pool can hold. Rounded up to a power of two of
+   *                 at least two. Should be at least the number of messages the listeners hold at
+   *                 the same time, more messages are allocated when the pool is empty.
+   * @throws CanLibException in case of illegal parameters.
+   */
+  public void enableMessagePool(int poolSize) throws CanLibException {
+    assertParam(((poolSize > 0) && (poolSize <= MAX_EVENT_QUEUE_CAPACITY)),
+                ErrorDetail.ILLEGAL_POOL_SIZE, poolSize);
+    synchronized (this) {
+      deviceDriver.enableMessagePool(channelIndex, poolSize);
+      if (messagePoolEnabled) {
+        // Only the size changes, this channel is already counted as a user of the pool
+        deviceDriver.disableMessagePool(channelIndex);
+      }
+      messagePoolEnabled = true;
+    }
+  }
+
+  /**
+   * Makes the driver allocate a new CanMessage object for each received message again, which is
+   * the default. Messages delivered before the call must still be released.
+   */
+  public void disableMessagePool() {
+    synchronized (this) {
+      if (messagePoolEnabled) {
+        messagePoolEnabled = false;
+        deviceDriver.disableMessagePool(channelIndex);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of events dropped by the current event queue.
+   *
+   * @return The number of dropped events, 0 if no event queue is in use.
+   */
+  synchronized long getDroppedEventCount() {
+    return (eventDispatcher != null) ? eventDispatcher.getDroppedEventCount() : 0;
+  }
+
   /**
    * Registers a message listener.
    *
    * @param listener The CanMessageListener to register
    */
-  public void registerCanMessageListener(CanMessageListener listener) {
-    synchronized (canMessageListeners) {
+  public synchronized void registerCanMessageListener(CanMessageListener listener) {
+    registerCanListener();
+    MessageListenerRegistration registration =
+        new MessageListenerRegistration(listener, (CanMessageFilter[]) null);
+    canMessageListeners = ListenerArrays.add(canMessageListeners, registration);
+  }
+
+  /**
+   * Registers a message listener that only receives the messages that pass its own filters, in
+   * addition to the filters of the channel (see {@link #addFilter(CanMessageFilter)}). The listener
+   * filters are used in parallel like the channel filters, i.e. a message is passed to the listener
+   * if any of them passes it. To change which filters the listener has, unregister the listener and
+   * register it again. Like the channel filters, the filters may be altered after the listener has
+   * been registered.
+   *
+   * @param listener The CanMessageListener to register
+   * @param filters  The filters of the listener. The listener gets all messages that pass the
+   *                 channel filters if no filters are given.
+   */
+  public synchronized void registerCanMessageListener(CanMessageListener listener,
+                                                      CanMessageFilter... filters) {
+    registerCanListener();
+    canMessageListeners = ListenerArrays.add(canMessageListeners,
+                                             new MessageListenerRegistration(listener, filters));
+    if ((filters != null) && (filters.length > 0)) {
+      startFilterCheck();
+    }
+  }
+
+  /**
+   * Registers a message listener that is called on an executor instead of the driver's receive
+   * thread, e.g. a listener that writes to disk or updates a UI. The listener gets its own bounded
+   * queue, which the receive thread puts the messages in, and which is drained by a task run on
+   * the executor. A slow listener then only builds up its own backlog, it does not delay the
+   * reception or the other listeners of the channel, and listeners registered without an executor
+   * are still called directly on the receive thread.
+   *
+   * When the queue of the listener is full new messages are dropped for that listener, and the
+   * next message delivered to it has the {@link CanMessage.MessageFlags#ERR_SW_OVERRUN} flag set.
+   * See {@link #getDroppedMessageCount(CanMessageListener)}.
+   *
+   * @param listener The CanMessageListener to register
+   * @param executor The executor to call the listener on. The listener is never called
+   *                 concurrently. May be null, in which case a dedicated thread is used.
+   * @param capacity The number of messages the queue of the listener can hold. Rounded up to a
+   *                 power of two of at least two.
+   * @throws CanLibException in case of illegal parameters.
+   */
+  public void registerCanMessageListener(CanMessageListener listener, @Nullable Executor executor,
+                                         int capacity) throws CanLibException {
+    assertParam(((capacity > 0) && (capacity <= MAX_EVENT_QUEUE_CAPACITY)),
+                ErrorDetail.ILLEGAL_QUEUE_CAPACITY, capacity);
+    ChannelEventDispatcher dispatcher =
+        new ChannelEventDispatcher(new QueuedListenerTarget(channelIndex, listener), capacity,
+                                   OverflowPolicy.DROP_NEWEST, executor);
+    MessageListenerRegistration registration = new MessageListenerRegistration(listener,
+                                                                               dispatcher);
+    synchronized (this) {
       registerCanListener();
-      canMessageListeners.add(listener);
+      canMessageListeners = ListenerArrays.add(canMessageListeners, registration);
+    }
+  }
+
+  /**
+   * Returns the number of messages dropped because the queue of a listener registered with an
+   * executor was full, see {@link #registerCanMessageListener(CanMessageListener, Executor, int)}.
+   *
+   * @param listener The listener.
+   * @return The number of dropped messages, 0 if the listener is not registered with an executor.
+   */
+  public synchronized long getDroppedMessageCount(CanMessageListener listener) {
+    long dropped = 0;
+    for (MessageListenerRegistration registration : canMessageListeners) {
+      if ((registration.listener == listener) && (registration.dispatcher != null)) {
+        dropped += registration.dispatcher.getDroppedEventCount();
+      }
     }
+    return dropped;
+  }
+
+  /**
+   * Registers a message listener that only receives the messages with a given ID. The messages are
+   * routed to the listeners registered for their ID with one table lookup, which is much cheaper
+   * than passing every message to every listener when there are many listeners that each want a
+   * few IDs. The filters of the channel apply also to these listeners.
+   *
+   * The ID is a standard ID, or an extended ID if the channel was opened with
+   * {@link ChannelFlags#REQUIRE_EXTENDED}, like the messages written to the channel without an ID
+   * type flag. A listener can be registered for several IDs.
+   *
+   * @param id       The ID of the messages to pass to the listener.
+   * @param listener The CanMessageListener to register
+   * @throws CanLibException if the ID is not a valid ID.
+   */
+  public void registerCanMessageListener(int id, CanMessageListener listener)
+      throws CanLibException {
+    registerCanMessageListener(id, id, listener);
+  }
+
+  /**
+   * Registers a message listener that only receives the messages with an ID in a range. See
+   * {@link #registerCanMessageListener(int, CanMessageListener)}. Listeners of ranges of more than
+   * 256 extended IDs are not routed by a table lookup but checked for each extended message.
+   *
+   * @param idMin    The lowest ID of the messages to pass to the listener.
+   * @param idMax    The highest ID (inclusive) of the messages to pass to the listener.
+   * @param listener The CanMessageListener to register
+   * @throws CanLibException if the IDs are not valid IDs or if idMin is greater than idMax.
+   */
+  public synchronized void registerCanMessageListener(int idMin, int idMax,
+                                                      CanMessageListener listener)
+      throws CanLibException {
+    boolean extended = (defaultAddressingType == AddressingType.EXTENDED);
+    int maxId = extended ? 0x1FFFFFFF : 0x7FF;
+    assertParam(((idMin >= 0) && (idMin <= maxId)), ErrorDetail.ILLEGAL_ID, idMin);
+    assertParam(((idMax >= idMin) && (idMax <= maxId)), ErrorDetail.ILLEGAL_ID, idMax);
+    registerCanListener();
+    idListeners = idListeners.add(idMin, idMax, extended, listener);
   }
 
   /**
-   * Unregisters a message listener.
+   * Unregisters a message listener. All registrations of the listener for IDs are removed, and
+   * one registration for all messages.
    *
    * @param listener The CanMessageListener to unregister
    */
-  public void unregisterCanMessageListener(CanMessageListener listener) {
-    synchronized (canMessageListeners) {
-      canMessageListeners.remove(listener);
-      unregisterCanListener();
+  public synchronized void unregisterCanMessageListener(CanMessageListener listener) {
+    idListeners = idListeners.remove(listener);
+    for (MessageListenerRegistration registration : canMessageListeners) {
+      if (registration.listener == listener) {
+        canMessageListeners = ListenerArrays.remove(canMessageListeners, registration);
+        if (registration.dispatcher != null) {
+          registration.dispatcher.close();
+        }
+        break;
+      }
     }
+    unregisterCanListener();
+  }
+
+  /**
+   * Unregisters the listeners that are called on an executor and stops their dispatching.
+   */
+  private synchronized void closeListenerQueues() {
+    for (MessageListenerRegistration registration : canMessageListeners) {
+      if (registration.dispatcher != null) {
+        canMessageListeners = ListenerArrays.remove(canMessageListeners, registration);
+        registration.dispatcher.close();
+      }
+    }
+    unregisterCanListener();
+  }
+
+  /**
+   * Returns a publisher of the messages received on the channel, which delivers the messages as
+   * its subscribers request them, see {@link CanMessagePublisher}. Each subscriber gets its own
+   * queue, which only holds the messages the subscriber has requested but not yet received, and
+   * is called on a dedicated thread. Messages received when a subscriber has no outstanding demand
+   * are dropped for that subscriber.
+   *
+   * See {@link #messages(int, OverflowPolicy, Executor)}.
+   *
+   * @return The publisher.
+   */
+  public CanMessagePublisher messages() {
+    return createPublisher(DEFAULT_SUBSCRIPTION_CAPACITY, OverflowPolicy.DROP_NEWEST, null);
+  }
+
+  /**
+   * Returns a publisher of the messages received on the channel, which delivers the messages as
+   * its subscribers request them with {@link CanMessageSubscription#request(long)}. A subscriber
+   * can thereby slow down the delivery to what it can process, and the memory used for it stays
+   * bounded however slow it is.
+   *
+   * Each subscriber gets its own queue. A message that passes the filters of the channel is put in
+   * the queue if the subscriber has requested more messages than it has received, and the queue is
+   * drained by a task run on the executor, which calls the subscriber. A message received when the
+   * subscriber has no outstanding demand, or when its queue is full, is handled by the overflow
+   * policy:
+   * <ul>
+   * <li>{@link OverflowPolicy#DROP_NEWEST}: The message is dropped.</li>
+   * <li>{@link OverflowPolicy#DROP_OLDEST}: The message replaces the oldest message in the queue,
+   * so that a slow subscriber gets the most recent messages. The message is dropped if the queue
+   * is empty.</li>
+   * <li>{@link OverflowPolicy#BLOCK}: The receiving thread waits until the subscriber requests more
+   * messages. Note that this stalls the reception for all channels on the device.</li>
+   * </ul>
+   *
+   * The subscribers are completed when the channel is closed.
+   *
+   * @param capacity       The number of messages the queue of each subscriber can hold. Rounded up
+   *                       to a power of two of at least two.
+   * @param overflowPolicy What to do with messages beyond the demand of a subscriber.
+   * @param executor       The executor to call the subscribers on. A subscriber is never called
+   *                       concurrently. May be null, in which case each subscriber gets a dedicated
+   *                       thread.
+   * @return The publisher.
+   * @throws CanLibException in case of illegal parameters.
+   */
+  public CanMessagePublisher messages(int capacity, @NonNull OverflowPolicy overflowPolicy,
+                                      @Nullable Executor executor) throws CanLibException {
+    assertParam(((capacity > 0) && (capacity <= MAX_EVENT_QUEUE_CAPACITY)),
+                ErrorDetail.ILLEGAL_QUEUE_CAPACITY, capacity);
+    assertParam((overflowPolicy != null), ErrorDetail.NULL_ARGUMENT, "overflowPolicy");
+    return createPublisher(capacity, overflowPolicy, executor);
+  }
+
+  private CanMessagePublisher createPublisher(final int capacity,
+                                              final OverflowPolicy overflowPolicy,
+                                              final Executor executor) {
+    return new CanMessagePublisher() {
+      public void subscribe(CanMessageSubscriber subscriber) {
+        new MessageSubscription(KvChannel.this, subscriber, capacity, overflowPolicy, executor)
+            .start();
+      }
+    };
+  }
+
+  /**
+   * Registers a subscription as a message listener.
+   */
+  synchronized void registerSubscription(MessageSubscription subscription) {
+    subscriptions = ListenerArrays.add(subscriptions, subscription);
+    registerCanMessageListener(subscription);
+  }
+
+  /**
+   * Unregisters a subscription.
+   */
+  synchronized void unregisterSubscription(MessageSubscription subscription) {
+    if (ListenerArrays.contains(subscriptions, subscription)) {
+      subscriptions = ListenerArrays.remove(subscriptions, subscription);
+      unregisterCanMessageListener(subscription);
+    }
+  }
+
+  /**
+   * Unregisters all subscriptions and completes them.
+   */
+  private void completeSubscriptions() {
+    MessageSubscription[] completed;
+    synchronized (this) {
+      completed = subscriptions;
+      for (MessageSubscription subscription : completed) {
+        unregisterSubscription(subscription);
+      }
+    }
+    for (MessageSubscription subscription : completed) {
+      subscription.complete();
+    }
+  }
+
+  /**
+   * Registers a listener that gets all messages received on the channel in one USB transfer in a
+   * single call, see {@link CanBatchListener}. The batch listeners are called directly from the
+   * driver's receive thread, also when the event queue is enabled, and the filters of the channel
+   * do not apply to them. While no message or chip state listeners are registered for the CAN
+   * channel, the driver does not create a CanMessage object for each received message.
+   *
+   * @param listener The CanBatchListener to register
+   */
+  public void registerCanBatchListener(CanBatchListener listener) {
+    deviceDriver.registerCanBatchListener(channelIndex, listener);
+  }
+
+  /**
+   * Unregisters a batch listener.
+   *
+   * @param listener The CanBatchListener to unregister
+   */
+  public void unregisterCanBatchListener(CanBatchListener listener) {
+    deviceDriver.unregisterCanBatchListener(channelIndex, listener);
   }
 
   /**
-   * Adds a filter to the channel's list of filters. The filter can be altered to change filter
-   * characteristics after it has been added. Additional calls with the same filter objects are
-   * ignored. If multiple filters are added, they are used in parallel i.e. if any of the filters
-   * passes the message then the message passes all filters.
+   * Adds a filter to the channel's list of filters. If multiple filters are added, they are used in
+   * parallel i.e. if any of the filters passes the message then the message passes all filters.
+   *
+   * The filter can be altered to change filter characteristics after it has been added. Additional
+   * calls with the same filter objects are ignored.
+   *
+   * The filters are compiled into a lookup table when they are added or removed, so the cost of
+   * the filters for a message with a standard ID hardly depends on the number of filters. The
+   * filters are checked for changes every 100 ms and compiled again if any has been altered, so a
+   * change takes effect within that time. Adding the altered filter again applies the change at
+   * once. A filter that is altered often, e.g. for every few messages, is better replaced by a
+   * listener that filters the messages itself.
    *
    * @param filter The filter to add.
    */
-  public void addFilter(CanMessageFilter filter) {
-    synchronized (filterList) {
-      if (filter != null) {
-        if (!filterList.contains(filter)) {
-          filterList.add(filter);
-        }
+  public synchronized void addFilter(CanMessageFilter filter) {
+    if (filter != null) {
+      CompiledFilterSet current = filters;
+      if (ListenerArrays.contains(current.getFilters(), filter)) {
+        filters = current.recompile();
+      } else {
+        filters = current.add(filter);
       }
+      startFilterCheck();
+    }
+  }
+
+  /*
+   * Returns true if the message passes the filters of the channel, or if it has none. Called by
+   * the receive thread for each message.
+   */
+  boolean passesFilters(CanMessage message) {
+    return filters.passes(message);
+  }
+
+  /*
+   * Compiles the filters of the channel and of its listeners again if any of them has been
+   * altered. Run by the filter check timer, so that the receive path does not have to compare the
+   * filters for each message. A new set only replaces the one it was compiled from, so a
+   * concurrent change of the filter list is not lost.
+   */
+  void checkFilters() {
+    CompiledFilterSet current = filters;
+    CompiledFilterSet recompiled = current.recompile();
+    if (recompiled != current) {
+      FILTERS.compareAndSet(this, current, recompiled);
+    }
+    for (MessageListenerRegistration registration : canMessageListeners) {
+      registration.checkFilters();
+    }
+  }
+
+  private synchronized void startFilterCheck() {
+    if (filterCheck == null) {
+      filterCheck = new TimerTask() {
+        public void run() {
+          try {
+            checkFilters();
+          } catch (RuntimeException e) {
+            // A filter that is being altered may be invalid, e.g. have a null type, it is
+            // compiled when it is checked again. The timer is shared and must not be stopped.
+          }
+        }
+      };
+      filterCheckTimer.schedule(filterCheck, FILTER_CHECK_PERIOD_MS, FILTER_CHECK_PERIOD_MS);
+    }
+  }
+
+  private synchronized void stopFilterCheck() {
+    if (filterCheck != null) {
+      filterCheck.cancel();
+      filterCheck = null;
     }
   }
 
@@ -297,10 +1184,13 @@ public class KvChannel {
    *
    * @param filter The filter to remove.
    */
-  public void removeFilter(CanMessageFilter filter) {
-    synchronized (filterList) {
-      if (filter != null) {
-        filterList.remove(filter);
+  public synchronized void removeFilter(CanMessageFilter filter) {
+    if (filter != null) {
+      CanMessageFilter[] current = filters.getFilters();
+      CanMessageFilter[] updated = ListenerArrays.remove(current, filter);
+      if (updated != current) {
+        filters = (updated.length > 0) ? new CompiledFilterSet(updated)
+                                       : CompiledFilterSet.PASS_ALL;
       }
     }
   }
@@ -308,10 +1198,8 @@ public class KvChannel {
   /**
    * Removes all filters on the channel.
    */
-  public void clearFilters() {
-    synchronized (filterList) {
-      filterList.clear();
-    }
+  public synchronized void clearFilters() {
+    filters = CompiledFilterSet.PASS_ALL;
   }
 
   /**
@@ -319,11 +1207,9 @@ public class KvChannel {
    *
    * @param listener The ChipStateListener to register
    */
-  public void registerChipStateListener(ChipStateListener listener) {
-    synchronized (chipStateListeners) {
-      registerCanListener();
-      chipStateListeners.add(listener);
-    }
+  public synchronized void registerChipStateListener(ChipStateListener listener) {
+    registerCanListener();
+    chipStateListeners = ListenerArrays.add(chipStateListeners, listener);
   }
 
   /**
@@ -331,11 +1217,9 @@ public class KvChannel {
    *
    * @param listener The ChipStateListener to unregister
    */
-  public void unregisterChipStateListener(ChipStateListener listener) {
-    synchronized (chipStateListeners) {
-      unregisterCanListener();
-      chipStateListeners.remove(listener);
-    }
+  public synchronized void unregisterChipStateListener(ChipStateListener listener) {
+    chipStateListeners = ListenerArrays.remove(chipStateListeners, listener);
+    unregisterCanListener();
   }
 
   /**
@@ -361,7 +1245,8 @@ public class KvChannel {
   }
 
   private void fixDlc(CanMessage message) {
-    if (!isDlcOk(message)) {
+    // The dlc of a CAN FD message is its data length, which the driver has already decoded
+    if (((message.flags & CanMessage.FLAG_FD_EDL) == 0) && !isDlcOk(message)) {
       if (acceptLargeDlc) {
         message.dlc = 15;
       } else {
@@ -370,6 +1255,27 @@ public class KvChannel {
     }
   }
 
+  private void assertBusParams(CanBusParams busParams) throws CanLibException {
+    // The bit timing of a CAN FD controller has a finer resolution, also in the arbitration phase
+    if (canFdMode == CanFdMode.CLASSIC) {
+      assertBusParams(busParams, MAX_SJW, MAX_TSEG1, MAX_TSEG2);
+    } else {
+      assertBusParams(busParams, MAX_FD_SJW, MAX_FD_TSEG1, MAX_FD_TSEG2);
+    }
+  }
+
+  private void assertBusParams(CanBusParams busParams, int maxSjw, int maxTseg1,
+                               int maxTseg2) throws CanLibException {
+    assertParam((busParams != null), ErrorDetail.NULL_ARGUMENT, "busParams");
+    assertParam((busParams.bitRate > 0), ErrorDetail.ILLEGAL_BITRATE, busParams.bitRate);
+    assertParam(((busParams.sjw >= 1) && (busParams.sjw <= maxSjw)), ErrorDetail.ILLEGAL_SJW,
+                busParams.sjw);
+    assertParam(((busParams.tseg1 >= 1) && (busParams.tseg1 <= maxTseg1)),
+                ErrorDetail.ILLEGAL_TSEG1, busParams.tseg1);
+    assertParam(((busParams.tseg2 >= 1) && (busParams.tseg2 <= maxTseg2)),
+                ErrorDetail.ILLEGAL_TSEG2, busParams.tseg2);
+  }
+
   private void assertParam(boolean success, CanLibException.ErrorDetail detail,
                            long value) throws CanLibException {
     if (!success) {
@@ -386,6 +1292,76 @@ public class KvChannel {
 
   private enum AddressingType {STANDARD, EXTENDED}
 
+  /**
+   * A registered message listener and its own filters, null if it has none.
+   */
+  private static final class MessageListenerRegistration {
+
+    final CanMessageListener listener;
+    // Replaced by the filter check timer when a filter has been altered, see checkFilters()
+    private volatile CompiledFilterSet filters;
+    final ChannelEventDispatcher dispatcher; // Null if the listener is called directly
+
+    MessageListenerRegistration(CanMessageListener listener, CanMessageFilter[] filters) {
+      this.listener = listener;
+      this.filters = ((filters != null) && (filters.length > 0)) ? new CompiledFilterSet(filters)
+                                                                  : null;
+      this.dispatcher = null;
+    }
+
+    MessageListenerRegistration(CanMessageListener listener, ChannelEventDispatcher dispatcher) {
+      this.listener = listener;
+      this.filters = null;
+      this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Returns true if the message passes the filters of the listener, or if it has none.
+     */
+    boolean passes(CanMessage message) {
+      CompiledFilterSet current = filters;
+      return (current == null) || current.passes(message);
+    }
+
+    /**
+     * Compiles the filters of the listener again if any of them has been altered.
+     */
+    void checkFilters() {
+      CompiledFilterSet current = filters;
+      if (current != null) {
+        filters = current.recompile();
+      }
+    }
+  }
+
+  /**
+   * Passes the messages delivered by the dispatcher of a listener registered with an executor to
+   * the listener.
+   */
+  private static final class QueuedListenerTarget implements CanChannelEventListener {
+
+    private final int channelIndex;
+    private final CanMessageListener listener;
+
+    QueuedListenerTarget(int channelIndex, CanMessageListener listener) {
+      this.channelIndex = channelIndex;
+      this.listener = listener;
+    }
+
+    public int getChannelIndex() {
+      return channelIndex;
+    }
+
+    public void canChannelEvent(CanChannelEventType eventType, Object eventData) {
+      if (eventData instanceof CanMessage) {
+        // The dispatcher releases its own reference when the listener returns
+        CanMessage message = (CanMessage) eventData;
+        message.retain();
+        listener.canMessageReceived(message);
+      }
+    }
+  }
+
   /**
    * Enum containing flags used for configuring KvChannels.
    */
@@ -424,22 +1400,52 @@ public class KvChannel {
     ACCEPT_LARGE_DLC,
     /**
      * The channel will use the CAN FD protocol.<br>
-     * This flag is used in {@link KvDevice#openChannel(int, EnumSet)}.
-     *
-     * @deprecated This flag is not supported by the current CanLib version on Android. It may be
-     * removed or it may be implemented in the future. Until then - do not use it.
+     * This flag is used in {@link KvDevice#openChannel(int, EnumSet)}. Opening the channel fails
+     * if the device does not support CAN FD, or if the channel is open with
+     * {@link #CAN_FD_NON_ISO}. The bus parameters of the data phase are set with
+     * {@link KvChannel#setBusParamsFd(CanBusParams)}.
      */
     CAN_FD,
     /**
      * The channel will use the CAN FD NON-ISO  protocol.<br>
-     * This flag is used in {@link KvDevice#openChannel(int, EnumSet)}.
-     *
-     * @deprecated This flag is not supported by the current CanLib version on Android. It may be
-     * removed or it may be implemented in the future. Until then - do not use it.
+     * This flag is used in {@link KvDevice#openChannel(int, EnumSet)}. Opening the channel fails
+     * if the device does not support CAN FD NON-ISO, or if the channel is open with
+     * {@link #CAN_FD}.
      */
     CAN_FD_NON_ISO
   }
 
+  /**
+   * Listener in the device driver that puts the received messages in the read queue, directly on
+   * the driver's receive thread.
+   */
+  private class ReadQueueListener implements CanChannelEventListener {
+
+    private final ChannelReadQueue queue;
+
+    ReadQueueListener(ChannelReadQueue queue) {
+      this.queue = queue;
+    }
+
+    public int getChannelIndex() {
+      return channelIndex;
+    }
+
+    public void canChannelEvent(CanChannelEventType eventType, Object eventData) {
+      if ((eventType == CanChannelEventType.MESSAGE) && (eventData instanceof CanMessage)) {
+        CanMessage canMessage = (CanMessage) eventData;
+        if (!passesFilters(canMessage)) {
+          return;
+        }
+        if (canMessage.isPooled() && !messagePoolEnabled) {
+          canMessage = new CanMessage(canMessage);
+        }
+        fixDlc(canMessage);
+        queue.offer(canMessage);
+      }
+    }
+  }
+
   /**
    * Listener for channel events in the device driver.
    */
@@ -454,36 +1460,36 @@ public class KvChannel {
         case MESSAGE:
           if (eventData instanceof CanMessage) {
             CanMessage canMessage = (CanMessage) eventData;
+            // The channel filters give the same answer for all listeners, so they are only run
+            // once per message, before it is copied. Snapshots of the listeners and filters are
+            // used, a concurrent change applies to the next message.
+            if (!passesFilters(canMessage)) {
+              break;
+            }
+            if (canMessage.isPooled() && !messagePoolEnabled) {
+              // The message returns to the pool when the driver is done with it, while the
+              // listeners of this channel may keep it
+              canMessage = new CanMessage(canMessage);
+            }
             fixDlc(canMessage);
-            synchronized (canMessageListeners) {
-              for (CanMessageListener listener : canMessageListeners) {
-                boolean messagePassed = true;
-                synchronized (filterList) {
-                  if (filterList.size() > 0) {
-                    // Use filters in parallel, i.e. message passes if any filter returns true
-                    messagePassed = false;
-                    for (CanMessageFilter filter : filterList) {
-                      if (filter.filter(canMessage)) {
-                        messagePassed = true;
-                        break;
-                      }
-                    }
-                  }
-                }
-                if (messagePassed) {
-                  listener.canMessageReceived(canMessage);
-                }
+            for (MessageListenerRegistration registration : canMessageListeners) {
+              if (registration.dispatcher != null) {
+                // Queued for the listener, which is called on its executor
+                registration.dispatcher.canChannelEvent(CanChannelEventType.MESSAGE, canMessage);
+              } else if (registration.passes(canMessage)) {
+                // Each listener releases its own reference to a pooled message
+                canMessage.retain();
+                registration.listener.canMessageReceived(canMessage);
               }
             }
+            idListeners.dispatch(canMessage);
           }
           break;
 
         case CHIP_STATE:
           if (eventData instanceof ChipState) {
-            synchronized (chipStateListeners) {
-              for (ChipStateListener listener : chipStateListeners) {
-                listener.chipStateEvent((ChipState) eventData);
-              }
+            for (ChipStateListener listener : chipStateListeners) {
+              listener.chipStateEvent((ChipState) eventData);
             }
           }
           break;
@@ -15,11 +15,29 @@ interface KvDeviceInterface extends UsbListener {
   void busOff(int channelIndex) throws CanLibException;
   void setBusOutputControl(int channelIndex, CanDriverType driverType) throws CanLibException;
   CanDriverType getBusOutputControl(int channelIndex) throws CanLibException;
+  KvFuture<Void> setBusParamsAsync(int channelIndex, CanBusParams busParams);
+  KvFuture<CanBusParams> getBusParamsAsync(int channelIndex);
+  KvFuture<Void> busOnAsync(int channelIndex);
+  KvFuture<Void> busOffAsync(int channelIndex);
+  KvFuture<CanDriverType> getBusOutputControlAsync(int channelIndex);
+  void enableCanFdMode(int channelIndex, CanFdMode mode) throws CanLibException;
+  void disableCanFdMode(int channelIndex) throws CanLibException;
+  KvFuture<Void> setBusParamsFdAsync(int channelIndex, CanBusParams dataBusParams);
+  KvFuture<CanBusParams> getBusParamsFdAsync(int channelIndex);
   void write(int channelIndex, CanMessage msg) throws CanLibException;
+  void write(int channelIndex, TxFrames frames) throws CanLibException;
+  KvFuture<Long> writeAndConfirm(int channelIndex, CanMessage msg) throws CanLibException;
+  void setWriteTimeout(int channelIndex, long timeoutMs);
+  LatencyHistogram getTxLatencyHistogram(int channelIndex);
+  int getOutstandingTxCount(int channelIndex);
+  void enableMessagePool(int channelIndex, int poolSize);
+  void disableMessagePool(int channelIndex);
   Bundle getDeviceInfo();
   Ean getEan();
   int getSerialNumber();
   void flashLeds();
   void registerCanChannelEventListener(CanChannelEventListener listener);
   void unregisterCanChannelEventListener(CanChannelEventListener listener);
+  void registerCanBatchListener(int channelIndex, CanBatchListener listener);
+  void unregisterCanBatchListener(int channelIndex, CanBatchListener listener);
 }
\ No newline at end of file
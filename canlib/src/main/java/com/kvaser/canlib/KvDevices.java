@@ -23,6 +23,11 @@ enum KvDevices {
   LEAF_LIGHT_V2(0x120, "KCanl", "Kvaser Leaf Light v2"),
   LEAF_LIGHT_R_V2(0x127, "KCanl", "Kvaser Leaf Light R v2");
 
+  // The number of receive requests kept queued on the in endpoint unless configured otherwise. The
+  // Leaf devices use small transfers, so more of them are needed to cover the same time.
+  private static final int KCANY_RECEIVE_QUEUE_DEPTH = 4;
+  private static final int KCANL_RECEIVE_QUEUE_DEPTH = 8;
+
   private final int productId;
   private final String driverName;
   private final String deviceName;
@@ -55,18 +60,33 @@ enum KvDevices {
    * @param dev       The device connection that is used to send and receive through.
    * @param in        The endpoint for receiving data.
    * @param out       The endpoint for sending data.
+   * @param receiveQueueDepth The number of receive requests to keep queued on the in endpoint, or
+   *                          0 to use the default for the device.
+   * @param profileCache      Cache of device profiles, or null to query the device for all its
+   *                          information.
    * @return Returns a new device driver if the product ID is supported.
    * @throws CanLibException if the product ID is not supported or if the driver throws exception
    *                         when initializing device.
    */
-  public static KvDeviceInterface getDeviceInterface(int productId, UsbDeviceConnection dev, UsbEndpoint in, UsbEndpoint out) throws CanLibException {
+  public static KvDeviceInterface getDeviceInterface(int productId, UsbDeviceConnection dev, UsbEndpoint in, UsbEndpoint out,
+                                                     int receiveQueueDepth,
+                                                     DeviceProfileCache profileCache)
+      throws CanLibException {
     for (KvDevices device : KvDevices.values()) {
       if (productId == device.getProductId()) {
         switch (device.getDriverName()) {
           case "KCany":
-            return new KCany(new UsbDeviceHandle(dev, in, out), out.getMaxPacketSize(), device);
+            if (receiveQueueDepth <= 0) {
+              receiveQueueDepth = KCANY_RECEIVE_QUEUE_DEPTH;
+            }
+            return new KCany(new UsbDeviceHandle(dev, in, out, receiveQueueDepth),
+                             out.getMaxPacketSize(), device, profileCache);
           case "KCanl":
-            return new KCanl(new UsbCanlDeviceHandle(dev, in, out), device);
+            if (receiveQueueDepth <= 0) {
+              receiveQueueDepth = KCANL_RECEIVE_QUEUE_DEPTH;
+            }
+            return new KCanl(new UsbCanlDeviceHandle(dev, in, out, receiveQueueDepth), device,
+                             profileCache);
         }
       }
     }
@@ -0,0 +1,339 @@
+package com.kvaser.canlib;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.kvaser.canlib.CanLibException.ErrorCode;
+import com.kvaser.canlib.CanLibException.ErrorDetail;
+
+/**
+ * The result of an asynchronous CanLib operation, e.g. {@link KvChannel#busOnAsync()}. The request
+ * has been sent to the device when the future is returned and the future is completed when the
+ * device has responded. Several operations may be outstanding at the same time.
+ *
+ * Example, taking all channels of a device on bus in about one round-trip:
+ * <pre>
+ * {@code
+ * List<KvFuture<?>> futures = new ArrayList<>();
+ * for (KvChannel channel : channels) {
+ *   futures.add(channel.busOnAsync());
+ * }
+ * KvFuture.allOf(futures).getResult();
+ * }
+ * </pre>
+ *
+ * @param <V> The type of the result, Void for operations without a result.
+ */
+public class KvFuture<V> implements Future<V> {
+
+  private static final int PENDING = 0;
+  private static final int COMPLETED = 1;
+  private static final int FAILED = 2;
+  private static final int CANCELLED = 3;
+
+  private int state = PENDING;
+  private V result;
+  private CanLibException exception;
+  private List<CompletionListener<? super V>> listeners;
+
+  KvFuture() {
+  }
+
+  /**
+   * Returns a future that is already completed.
+   */
+  static <V> KvFuture<V> completedFuture(V result) {
+    KvFuture<V> future = new KvFuture<>();
+    future.complete(result);
+    return future;
+  }
+
+  /**
+   * Returns a future that has already failed.
+   */
+  static <V> KvFuture<V> failedFuture(CanLibException exception) {
+    KvFuture<V> future = new KvFuture<>();
+    future.fail(exception);
+    return future;
+  }
+
+  /**
+   * Returns a future that completes when all the given futures have completed, or fails as soon as
+   * one of them fails.
+   *
+   * @param futures The futures to wait for.
+   * @return A future without a result.
+   */
+  public static KvFuture<Void> allOf(Collection<? extends KvFuture<?>> futures) {
+    return allOf(futures, new KvFuture<Void>());
+  }
+
+  /**
+   * Completes a future when all the given futures have completed, or fails it as soon as one of
+   * them fails, see {@link #allOf(Collection)}.
+   *
+   * @param futures The futures to wait for.
+   * @param all     The future to complete.
+   * @return The future to complete.
+   */
+  static KvFuture<Void> allOf(Collection<? extends KvFuture<?>> futures, final KvFuture<Void> all) {
+    final int[] remaining = {futures.size()};
+    if (remaining[0] == 0) {
+      all.complete(null);
+      return all;
+    }
+    CompletionListener<Object> listener = new CompletionListener<Object>() {
+      public void completed(Object result) {
+        boolean last;
+        synchronized (remaining) {
+          last = (--remaining[0] == 0);
+        }
+        if (last) {
+          all.complete(null);
+        }
+      }
+
+      public void failed(CanLibException exception) {
+        all.fail(exception);
+      }
+    };
+    for (KvFuture<?> future : futures) {
+      future.addCompletionListener(listener);
+    }
+    return all;
+  }
+
+  /**
+   * Returns a future that completes when all the given futures have completed, or fails as soon as
+   * one of them fails.
+   *
+   * @param futures The futures to wait for.
+   * @return A future without a result.
+   */
+  public static KvFuture<Void> allOf(KvFuture<?>... futures) {
+    return allOf(Arrays.asList(futures));
+  }
+
+  /**
+   * Registers a listener that is called when the operation has finished. If the operation has
+   * already finished the listener is called directly, from the calling thread.
+   *
+   * @param listener The listener to register.
+   */
+  public void addCompletionListener(CompletionListener<? super V> listener) {
+    synchronized (this) {
+      if (state == PENDING) {
+        if (listeners == null) {
+          listeners = new ArrayList<>(1);
+        }
+        listeners.add(listener);
+        return;
+      }
+    }
+    notifyListener(listener);
+  }
+
+  /**
+   * Blocks until the operation has finished and returns its result.
+   *
+   * @return The result of the operation.
+   * @throws CanLibException if the operation failed, was cancelled or if the thread was interrupted
+   *                         while waiting.
+   */
+  public V getResult() throws CanLibException {
+    try {
+      awaitDone(0);
+    } catch (InterruptedException e) {
+      throw new CanLibException(ErrorCode.ERR_INTERNAL, ErrorDetail.INTERRUPTED_THREAD,
+                                "Thread was interrupted while waiting for response from device.");
+    }
+    synchronized (this) {
+      if (state == COMPLETED) {
+        return result;
+      }
+      // A new exception for each caller, so that each gets the stack trace of its own call
+      throw new CanLibException(exception);
+    }
+  }
+
+  /**
+   * Attempts to cancel the operation. Note that a request that has already been sent to the device
+   * will still be executed by the device, cancelling only means that the result is discarded and
+   * that the driver stops waiting for the response.
+   */
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    List<CompletionListener<? super V>> toNotify;
+    synchronized (this) {
+      if (state != PENDING) {
+        return false;
+      }
+      state = CANCELLED;
+      exception = new CanLibException(ErrorCode.ERR_INTERNAL, "The operation was cancelled.");
+      toNotify = takeListeners();
+    }
+    cancelled();
+    notifyListeners(toNotify);
+    return true;
+  }
+
+  /**
+   * Called once when the future has been cancelled, e.g. to cancel the operation the result
+   * depends on.
+   */
+  void cancelled() {
+  }
+
+  public synchronized boolean isCancelled() {
+    return state == CANCELLED;
+  }
+
+  public synchronized boolean isDone() {
+    return state != PENDING;
+  }
+
+  public V get() throws InterruptedException, ExecutionException {
+    awaitDone(0);
+    return report();
+  }
+
+  public V get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    long timeoutNanos = unit.toNanos(timeout);
+    if (timeoutNanos <= 0) {
+      synchronized (this) {
+        if (state == PENDING) {
+          throw new TimeoutException();
+        }
+      }
+    } else if (!awaitDone(timeoutNanos)) {
+      throw new TimeoutException();
+    }
+    return report();
+  }
+
+  /**
+   * Completes the future with a result. Returns false if it had already finished.
+   */
+  boolean complete(V value) {
+    List<CompletionListener<? super V>> toNotify;
+    synchronized (this) {
+      if (state != PENDING) {
+        return false;
+      }
+      result = value;
+      state = COMPLETED;
+      toNotify = takeListeners();
+    }
+    notifyListeners(toNotify);
+    return true;
+  }
+
+  /**
+   * Completes the future with an exception. Returns false if it had already finished.
+   */
+  boolean fail(CanLibException e) {
+    List<CompletionListener<? super V>> toNotify;
+    synchronized (this) {
+      if (state != PENDING) {
+        return false;
+      }
+      exception = e;
+      state = FAILED;
+      toNotify = takeListeners();
+    }
+    notifyListeners(toNotify);
+    return true;
+  }
+
+  /**
+   * Returns a future that completes with the result of the given function applied to the result of
+   * this future. The function is called from the thread completing this future. Cancelling the
+   * returned future also cancels this future.
+   */
+  <R> KvFuture<R> then(final Function<? super V, R> function) {
+    final KvFuture<R> next = new KvFuture<R>() {
+      @Override
+      void cancelled() {
+        KvFuture.this.cancel(false);
+      }
+    };
+    addCompletionListener(new CompletionListener<V>() {
+      public void completed(V value) {
+        try {
+          next.complete(function.apply(value));
+        } catch (CanLibException e) {
+          next.fail(e);
+        }
+      }
+
+      public void failed(CanLibException e) {
+        next.fail(e);
+      }
+    });
+    return next;
+  }
+
+  /**
+   * Transforms the result of a future, see {@link #then(Function)}.
+   */
+  interface Function<V, R> {
+
+    R apply(V value) throws CanLibException;
+  }
+
+  private synchronized boolean awaitDone(long timeoutNanos) throws InterruptedException {
+    long deadline = System.nanoTime() + timeoutNanos;
+    while (state == PENDING) {
+      if (timeoutNanos == 0) {
+        wait();
+      } else {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+    }
+    return true;
+  }
+
+  private synchronized V report() throws ExecutionException {
+    switch (state) {
+      case COMPLETED:
+        return result;
+      case CANCELLED:
+        throw new CancellationException();
+      default:
+        throw new ExecutionException(exception);
+    }
+  }
+
+  private List<CompletionListener<? super V>> takeListeners() {
+    notifyAll();
+    List<CompletionListener<? super V>> toNotify = listeners;
+    listeners = null;
+    return toNotify;
+  }
+
+  private void notifyListeners(List<CompletionListener<? super V>> toNotify) {
+    if (toNotify != null) {
+      for (CompletionListener<? super V> listener : toNotify) {
+        notifyListener(listener);
+      }
+    }
+  }
+
+  private void notifyListener(CompletionListener<? super V> listener) {
+    V value;
+    CanLibException e;
+    synchronized (this) {
+      value = result;
+      e = exception;
+    }
+    if (e == null) {
+      listener.completed(value);
+    } else {
+      listener.failed(e);
+    }
+  }
+}
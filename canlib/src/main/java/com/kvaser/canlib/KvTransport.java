@@ -0,0 +1,41 @@
+package com.kvaser.canlib;
+
+/**
+ * This interface describes the methods that should be implemented by a class that carries protocol
+ * data between a device driver and a device, e.g. a USB device connection.
+ */
+interface KvTransport {
+
+  /**
+   * Queues the supplied bytes for sending to the device.
+   *
+   * @param bytes The bytes to be sent, normally exactly one command.
+   * @return true if the bytes were queued, false if the transport had no room for them, in which
+   *         case nothing is queued.
+   */
+  boolean send(byte[] bytes);
+
+  /**
+   * Queues several commands for sending to the device at once, so that they can be sent in as few
+   * transfers as possible.
+   *
+   * @param bytes  The array holding the commands, back to back.
+   * @param offset The index of the first byte of the first command.
+   * @param length The total length of the commands.
+   * @return true if the commands were queued, false if the transport had no room for all of them,
+   *         in which case none of them is queued.
+   */
+  boolean send(byte[] bytes, int offset, int length);
+
+  /**
+   * Adds a listener which is called when data has been received from the device.
+   *
+   * @param usbListener The listener to register.
+   */
+  void addListener(UsbListener usbListener);
+
+  /**
+   * Closes the transport. No data is sent or received after this call.
+   */
+  void close();
+}
@@ -0,0 +1,151 @@
+package com.kvaser.canlib;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A histogram of latencies, e.g. the time from writing a message on a channel until the device
+ * acknowledged that it was sent, see {@link KvChannel#getTxLatencyHistogram()}. The latencies are
+ * counted in buckets that double in size: bucket 0 holds latencies below 1 µs and bucket i holds
+ * latencies from 2^(i-1) µs up to, but not including, 2^i µs. The last bucket also holds all
+ * longer latencies.
+ *
+ * The histogram is updated by the driver while it is read, so values read one after the other may
+ * not add up exactly.
+ */
+public final class LatencyHistogram {
+
+  private static final int NUMBER_OF_BUCKETS = 32;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalNs = new AtomicLong();
+  private final AtomicLong maxNs = new AtomicLong();
+
+  LatencyHistogram() {
+  }
+
+  /**
+   * Adds a latency to the histogram.
+   *
+   * @param latencyNs The latency in nanoseconds.
+   */
+  void record(long latencyNs) {
+    if (latencyNs < 0) {
+      latencyNs = 0;
+    }
+    long us = latencyNs / 1000;
+    int bucket = Math.min(64 - Long.numberOfLeadingZeros(us), NUMBER_OF_BUCKETS - 1);
+    buckets.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalNs.addAndGet(latencyNs);
+    long max = maxNs.get();
+    while ((latencyNs > max) && !maxNs.compareAndSet(max, latencyNs)) {
+      max = maxNs.get();
+    }
+  }
+
+  /**
+   * Returns the number of latencies in the histogram.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Returns the number of buckets.
+   */
+  public int getNumberOfBuckets() {
+    return NUMBER_OF_BUCKETS;
+  }
+
+  /**
+   * Returns the number of latencies in a bucket.
+   *
+   * @param bucket The index of the bucket, from 0 to {@link #getNumberOfBuckets()} - 1.
+   */
+  public long getCount(int bucket) {
+    return buckets.get(bucket);
+  }
+
+  /**
+   * Returns the upper bound of a bucket in microseconds, i.e. the latencies in the bucket are below
+   * the bound. The last bucket has no upper bound and Long.MAX_VALUE is returned.
+   *
+   * @param bucket The index of the bucket, from 0 to {@link #getNumberOfBuckets()} - 1.
+   */
+  public long getUpperBoundUs(int bucket) {
+    return (bucket < NUMBER_OF_BUCKETS - 1) ? (1L << bucket) : Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns the mean latency in microseconds, or 0 if the histogram is empty.
+   */
+  public long getMeanUs() {
+    long n = count.get();
+    return (n > 0) ? (totalNs.get() / n / 1000) : 0;
+  }
+
+  /**
+   * Returns the longest latency in microseconds.
+   */
+  public long getMaxUs() {
+    return maxNs.get() / 1000;
+  }
+
+  /**
+   * Returns an upper bound of a percentile of the latencies, i.e. the upper bound of the bucket
+   * that holds the percentile. E.g. getPercentileUs(99) returns a latency that at least 99 % of
+   * the latencies are below.
+   *
+   * @param percentile The percentile, from 0 to 100.
+   * @return The upper bound in microseconds, 0 if the histogram is empty, or the longest latency
+   *         if the percentile is in the last bucket.
+   */
+  public long getPercentileUs(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(n * Math.min(Math.max(percentile, 0), 100) / 100);
+    long seen = 0;
+    for (int bucket = 0; bucket < NUMBER_OF_BUCKETS - 1; bucket++) {
+      seen += buckets.get(bucket);
+      if (seen >= rank) {
+        return getUpperBoundUs(bucket);
+      }
+    }
+    return getMaxUs();
+  }
+
+  /**
+   * Removes all latencies from the histogram.
+   */
+  public void reset() {
+    for (int bucket = 0; bucket < NUMBER_OF_BUCKETS; bucket++) {
+      buckets.set(bucket, 0);
+    }
+    count.set(0);
+    totalNs.set(0);
+    maxNs.set(0);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("count ").append(getCount()).append(", mean ").append(getMeanUs())
+      .append(" us, max ").append(getMaxUs()).append(" us");
+    for (int bucket = 0; bucket < NUMBER_OF_BUCKETS; bucket++) {
+      long bucketCount = buckets.get(bucket);
+      if (bucketCount > 0) {
+        sb.append(", ");
+        if (bucket < NUMBER_OF_BUCKETS - 1) {
+          sb.append("<").append(getUpperBoundUs(bucket)).append(" us: ");
+        } else {
+          sb.append(">=").append(1L << (bucket - 1)).append(" us: ");
+        }
+        sb.append(bucketCount);
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,57 @@
+package com.kvaser.canlib;
+
+import java.util.*;
+
+/**
+ * Helpers for listener lists that are kept as copy-on-write arrays. The array in a listener field
+ * is never modified, registering or unregistering a listener replaces it with a new array. The
+ * receive thread reads the field once per event and iterates the array without taking a lock, and
+ * a listener that is registered or unregistered meanwhile takes effect from the next event.
+ *
+ * The field shall be volatile, and the read-modify-write of the field on register and unregister
+ * shall be done under a lock, so that concurrent updates are not lost.
+ */
+final class ListenerArrays {
+
+  private ListenerArrays() {
+  }
+
+  /**
+   * Returns a new array with the element appended.
+   */
+  static <T> T[] add(T[] array, T element) {
+    T[] updated = Arrays.copyOf(array, array.length + 1);
+    updated[array.length] = element;
+    return updated;
+  }
+
+  /**
+   * Returns a new array without the first occurrence of the element, or the same array if it does
+   * not contain the element.
+   */
+  static <T> T[] remove(T[] array, Object element) {
+    int index = indexOf(array, element);
+    if (index < 0) {
+      return array;
+    }
+    T[] updated = Arrays.copyOf(array, array.length - 1);
+    System.arraycopy(array, index + 1, updated, index, array.length - index - 1);
+    return updated;
+  }
+
+  /**
+   * Returns true if the array contains the element.
+   */
+  static boolean contains(Object[] array, Object element) {
+    return indexOf(array, element) >= 0;
+  }
+
+  private static int indexOf(Object[] array, Object element) {
+    for (int i = 0; i < array.length; i++) {
+      if ((element == null) ? (array[i] == null) : element.equals(array[i])) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,119 @@
+package com.kvaser.canlib;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class implements a bounded, lock-free circular buffer that may be used by several producers
+ * and several consumers at the same time. Each slot carries a sequence number telling whether it is
+ * free for the producer at a given position or holds an element for the consumer at that position,
+ * so producers and consumers only contend on their own position counter and never block each other.
+ *
+ * @param <E> The type of the elements in the buffer.
+ */
+class LockFreeCircularBuffer<E> {
+
+  private static final int MAX_CAPACITY = 1 << 30;
+
+  private final AtomicReferenceArray<E> elements;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * @param capacity The minimum number of elements the buffer shall hold. The capacity is rounded
+   *                 up to the nearest power of two, but is at least two since a single slot could
+   *                 not tell a free slot from a filled one.
+   */
+  LockFreeCircularBuffer(int capacity) {
+    if (capacity < 1 || capacity > MAX_CAPACITY) {
+      throw new IllegalArgumentException("Illegal capacity: " + capacity);
+    }
+    int size = 2;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    elements = new AtomicReferenceArray<>(size);
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+    mask = size - 1;
+  }
+
+  /**
+   * Adds an element to the buffer unless the buffer is full.
+   *
+   * @param element The element to add, must not be null.
+   * @return true if the element was added, false if the buffer was full.
+   */
+  boolean offer(E element) {
+    long position = head.get();
+    while (true) {
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          elements.lazySet(index, element);
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = head.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = head.get();
+      }
+    }
+  }
+
+  /**
+   * Removes the oldest element from the buffer.
+   *
+   * @return The removed element or null if the buffer was empty.
+   */
+  E poll() {
+    long position = tail.get();
+    while (true) {
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          E element = elements.get(index);
+          elements.lazySet(index, null);
+          sequences.set(index, position + mask + 1);
+          return element;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return null;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of elements in the buffer. The value is only a snapshot when the buffer is
+   * used concurrently.
+   *
+   * @return The number of elements in the buffer.
+   */
+  int size() {
+    long size = head.get() - tail.get();
+    return (int) Math.max(0, Math.min(size, capacity()));
+  }
+
+  boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+  /**
+   * Returns the maximum number of elements the buffer can hold.
+   *
+   * @return The capacity of the buffer.
+   */
+  int capacity() {
+    return mask + 1;
+  }
+}
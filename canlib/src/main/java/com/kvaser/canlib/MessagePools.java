@@ -0,0 +1,70 @@
+package com.kvaser.canlib;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * The message pools of the channels of a driver, see {@link CanMessagePool}. Several KvChannels may
+ * be open on the same CAN channel and share its pool, so the pool is counted per user and is only
+ * removed when the last user disables it. The pool holds as many messages as the largest size any
+ * of its users has asked for.
+ *
+ * The receive thread gets the pools without locking.
+ */
+class MessagePools {
+
+  private final AtomicReferenceArray<CanMessagePool> pools;
+  private final int[] users;
+  private final int[] sizes;
+
+  /**
+   * @param channelCount The number of channels.
+   */
+  MessagePools(int channelCount) {
+    pools = new AtomicReferenceArray<>(channelCount);
+    users = new int[channelCount];
+    sizes = new int[channelCount];
+  }
+
+  /**
+   * Adds a user of the pool of a channel, creating the pool if it has none or a larger pool is
+   * asked for.
+   *
+   * @param channelIndex The channel, ignored if out of range.
+   * @param poolSize     The number of free messages the pool shall hold.
+   */
+  synchronized void enable(int channelIndex, int poolSize) {
+    if ((channelIndex < 0) || (channelIndex >= users.length)) {
+      return;
+    }
+    users[channelIndex]++;
+    if (poolSize > sizes[channelIndex]) {
+      sizes[channelIndex] = poolSize;
+      pools.set(channelIndex, new CanMessagePool(poolSize));
+    }
+  }
+
+  /**
+   * Removes a user of the pool of a channel, and the pool itself when it was the last user.
+   *
+   * @param channelIndex The channel, ignored if out of range.
+   */
+  synchronized void disable(int channelIndex) {
+    if ((channelIndex < 0) || (channelIndex >= users.length) || (users[channelIndex] == 0)) {
+      return;
+    }
+    if (--users[channelIndex] == 0) {
+      sizes[channelIndex] = 0;
+      pools.set(channelIndex, null);
+    }
+  }
+
+  /**
+   * Returns the pool of a channel, or null if it has none or the channel is out of range.
+   */
+  CanMessagePool get(int channelIndex) {
+    if ((channelIndex < 0) || (channelIndex >= users.length)) {
+      return null;
+    }
+    return pools.get(channelIndex);
+  }
+}
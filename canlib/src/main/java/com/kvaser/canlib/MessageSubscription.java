@@ -0,0 +1,263 @@
+package com.kvaser.canlib;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A subscription to the messages of a KvChannel, see {@link KvChannel#messages}. The subscription
+ * is registered as a message listener with the channel. A received message is only put in the
+ * bounded queue of the subscription if the subscriber has requested it, i.e. each message in the
+ * queue is one unit of the subscriber's demand, and the queue is drained by a task run on an
+ * executor, which calls the subscriber. A message received when the subscriber has no outstanding
+ * demand, or when the queue is full, is handled by the overflow policy:
+ * <ul>
+ * <li>DROP_NEWEST: The message is dropped.</li>
+ * <li>DROP_OLDEST: The message replaces the oldest message in the queue, so that the subscriber
+ * gets the most recent messages. The message is dropped if the queue is empty.</li>
+ * <li>BLOCK: The receive thread waits until the subscriber has requested more messages and there
+ * is room in the queue.</li>
+ * </ul>
+ *
+ * Pooled messages are handed over to the subscriber, messages that are dropped or discarded are
+ * released by the subscription.
+ */
+class MessageSubscription implements CanMessageSubscription, CanMessageListener, Runnable {
+
+  // Maximum number of messages delivered per run of the drain task before it is resubmitted, so
+  // that a busy subscription does not starve other tasks on a shared executor.
+  private static final int MAX_MESSAGES_PER_RUN = 256;
+  private static final long BLOCK_WAIT_NS = 100000;
+
+  private final KvChannel channel;
+  private final CanMessageSubscriber subscriber;
+  private final LockFreeCircularBuffer<CanMessage> queue;
+  private final OverflowPolicy overflowPolicy;
+  private final Executor executor;
+  private final ExecutorService ownExecutor;
+  private final AtomicLong demand = new AtomicLong();
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  private final AtomicLong droppedMessages = new AtomicLong();
+  // An error to signal from the drain task, so that onError is not called while onNext runs
+  private final AtomicReference<Throwable> pendingError = new AtomicReference<>();
+  private volatile boolean cancelled = false;
+  private volatile boolean completed = false;
+
+  /**
+   * @param channel        The channel to subscribe to.
+   * @param subscriber     The subscriber.
+   * @param capacity       The number of messages the queue shall hold.
+   * @param overflowPolicy What to do with messages beyond the demand of the subscriber.
+   * @param executor       The executor to call the subscriber on, or null to use a dedicated
+   *                       thread.
+   */
+  MessageSubscription(KvChannel channel, CanMessageSubscriber subscriber, int capacity,
+                      OverflowPolicy overflowPolicy, Executor executor) {
+    this.channel = channel;
+    this.subscriber = subscriber;
+    this.queue = new LockFreeCircularBuffer<>(capacity);
+    this.overflowPolicy = overflowPolicy;
+    if (executor == null) {
+      ownExecutor = ChannelEventDispatcher.newDispatcherThread(
+          "CanLib subscription " + channel.getChannelIndex());
+      this.executor = ownExecutor;
+    } else {
+      ownExecutor = null;
+      this.executor = executor;
+    }
+  }
+
+  public void request(long n) {
+    if (cancelled) {
+      return;
+    }
+    if (n <= 0) {
+      if (pendingError.compareAndSet(
+          null, new IllegalArgumentException("Non-positive request: " + n))) {
+        schedule();
+      }
+      return;
+    }
+    addDemand(n);
+  }
+
+  public void cancel() {
+    if (cancelled) {
+      return;
+    }
+    cancelled = true;
+    channel.unregisterSubscription(this);
+    CanMessage message;
+    while ((message = queue.poll()) != null) {
+      message.release();
+    }
+    if (ownExecutor != null) {
+      ownExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Called by the channel's receive thread for each received message.
+   */
+  public void canMessageReceived(CanMessage message) {
+    while (!cancelled && !completed) {
+      if (claimDemand()) {
+        if (queue.offer(message)) {
+          schedule();
+          return;
+        }
+        // The queue is full
+        addDemand(1);
+      }
+      switch (overflowPolicy) {
+        case BLOCK:
+          schedule();
+          LockSupport.parkNanos(BLOCK_WAIT_NS);
+          break;
+
+        case DROP_OLDEST:
+          CanMessage oldest = queue.poll();
+          if (oldest != null) {
+            oldest.release();
+            droppedMessages.incrementAndGet();
+            // Only the receive thread adds messages, so there is room, and the new message takes
+            // the demand of the oldest one
+            if (queue.offer(message)) {
+              schedule();
+              return;
+            }
+          }
+          dropMessage(message);
+          return;
+
+        case DROP_NEWEST:
+        default:
+          dropMessage(message);
+          return;
+      }
+    }
+    message.release();
+  }
+
+  /**
+   * Drains the queue. Runs on the executor.
+   */
+  public void run() {
+    try {
+      int delivered = 0;
+      CanMessage message;
+      while (!cancelled && (pendingError.get() == null) && (message = queue.poll()) != null) {
+        subscriber.onNext(message);
+        if (++delivered == MAX_MESSAGES_PER_RUN) {
+          resubmit();
+          return;
+        }
+      }
+      Throwable error = pendingError.get();
+      if ((error != null) && !cancelled) {
+        scheduled.set(false);
+        cancel();
+        subscriber.onError(error);
+        return;
+      }
+      if (completed && !cancelled && queue.isEmpty()) {
+        cancelled = true;
+        subscriber.onComplete();
+        if (ownExecutor != null) {
+          ownExecutor.shutdown();
+        }
+        return;
+      }
+    } catch (RuntimeException e) {
+      scheduled.set(false);
+      cancel();
+      throw e;
+    }
+    scheduled.set(false);
+    // A message may have been added, or the channel closed, after the last poll but before the
+    // flag was cleared
+    if (!queue.isEmpty() || completed || (pendingError.get() != null)) {
+      schedule();
+    }
+  }
+
+  /**
+   * Subscribes to the channel and calls onSubscribe.
+   */
+  void start() {
+    subscriber.onSubscribe(this);
+    if (!cancelled && (pendingError.get() == null)) {
+      channel.registerSubscription(this);
+    }
+  }
+
+  /**
+   * Called by the channel when it is closed. The messages in the queue are delivered and then the
+   * subscriber is completed.
+   */
+  void complete() {
+    completed = true;
+    schedule();
+  }
+
+  public long getDroppedMessageCount() {
+    return droppedMessages.get();
+  }
+
+  public int getQueuedMessageCount() {
+    return queue.size();
+  }
+
+  private boolean claimDemand() {
+    while (true) {
+      long current = demand.get();
+      if (current == 0) {
+        return false;
+      }
+      // Long.MAX_VALUE is unbounded demand, which is never used up
+      if ((current == Long.MAX_VALUE) || demand.compareAndSet(current, current - 1)) {
+        return true;
+      }
+    }
+  }
+
+  private void addDemand(long n) {
+    while (true) {
+      long current = demand.get();
+      long updated = current + n;
+      if (updated < 0) {
+        updated = Long.MAX_VALUE;
+      }
+      if (demand.compareAndSet(current, updated)) {
+        return;
+      }
+    }
+  }
+
+  private void dropMessage(CanMessage message) {
+    message.release();
+    droppedMessages.incrementAndGet();
+  }
+
+  private void schedule() {
+    if (!cancelled && scheduled.compareAndSet(false, true)) {
+      submit();
+    }
+  }
+
+  private void resubmit() {
+    if (cancelled) {
+      scheduled.set(false);
+    } else {
+      submit();
+    }
+  }
+
+  private void submit() {
+    try {
+      executor.execute(this);
+    } catch (RejectedExecutionException e) {
+      scheduled.set(false);
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package com.kvaser.canlib;
+
+/**
+ * This enumeration contains the ways a full event queue can be handled when a new event arrives.
+ * See {@link KvChannel#enableEventQueue(int, OverflowPolicy, java.util.concurrent.Executor)}.
+ */
+public enum OverflowPolicy {
+  /** The new event is dropped. */
+  DROP_NEWEST,
+  /** The oldest event in the queue is dropped to make room for the new event. */
+  DROP_OLDEST,
+  /**
+   * The receiving thread waits until there is room for the new event. Note that this stalls the
+   * reception for all channels on the device while the queue is full.
+   */
+  BLOCK
+}
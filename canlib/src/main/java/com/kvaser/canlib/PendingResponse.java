@@ -0,0 +1,68 @@
+package com.kvaser.canlib;
+
+import java.nio.*;
+import java.util.*;
+
+import com.kvaser.canlib.CanLibException.ErrorCode;
+import com.kvaser.canlib.CanLibException.ErrorDetail;
+
+/**
+ * A response that a driver is waiting for. The response is registered in a
+ * {@link PendingResponseTable} before the request is sent and is completed by the receive thread
+ * when the response arrives, or failed by the table's timer when the timeout expires.
+ */
+class PendingResponse extends KvFuture<ByteBuffer> {
+
+  final int responseCmd;
+  final int transId;
+  PendingResponse next; // Next response in the same bucket, guarded by the table
+  TimerTask timeoutTask;
+  private final PendingResponseTable table;
+  private volatile boolean timedOut = false;
+
+  PendingResponse(PendingResponseTable table, int responseCmd, int transId) {
+    this.table = table;
+    this.responseCmd = responseCmd;
+    this.transId = transId;
+  }
+
+  /**
+   * Completes the response with a copy of the received bytes, in little endian order. Called by
+   * the table only.
+   */
+  void complete(byte[] bytes, int offset, int length) {
+    ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + length));
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    complete(buffer);
+  }
+
+  /**
+   * Fails the response as timed out. Called by the table only.
+   */
+  void expire() {
+    timedOut = true;
+    fail(new CanLibException(ErrorCode.ERR_DEVICE, ErrorDetail.COMMUNICATION_TIMEOUT));
+  }
+
+  /**
+   * Removes the response from the table when cancelled, so that it does not wait for its timeout.
+   */
+  @Override
+  void cancelled() {
+    table.remove(this);
+  }
+
+  boolean isTimedOut() {
+    return timedOut;
+  }
+
+  /**
+   * Blocks until the response has been received or has timed out.
+   *
+   * @return The received response, in little endian order.
+   * @throws CanLibException if the response timed out or the thread was interrupted.
+   */
+  ByteBuffer await() throws CanLibException {
+    return getResult();
+  }
+}
@@ -0,0 +1,164 @@
+package com.kvaser.canlib;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Table of the responses a driver is waiting for, keyed by response command and transaction ID.
+ * The receive thread looks up each received command in constant time and completes the matching
+ * response directly, without scanning all pending requests. A response can also be registered to
+ * match any transaction ID, for devices that do not echo it in all responses.
+ *
+ * All timeouts are run by a single timer thread shared by all tables.
+ */
+class PendingResponseTable {
+
+  static final int ANY_TRANS_ID = -1;
+
+  private static final int NUMBER_OF_BUCKETS = 256;
+  private static final Timer timeoutTimer = new Timer("CanLib response timeout", true);
+
+  private final PendingResponse[] buckets = new PendingResponse[NUMBER_OF_BUCKETS];
+  private volatile int pendingCount = 0;
+
+  /**
+   * Registers a response to wait for. Must be called before the request is sent.
+   *
+   * @param responseCmd The command ID of the expected response.
+   * @param transId     The transaction ID of the expected response, or {@link #ANY_TRANS_ID}.
+   * @param timeoutMs   The time after which the response is completed as timed out.
+   * @return The pending response.
+   */
+  PendingResponse register(int responseCmd, int transId, long timeoutMs) {
+    final PendingResponse response = new PendingResponse(this, responseCmd, transId);
+    response.timeoutTask = new TimerTask() {
+      @Override
+      public void run() {
+        if (remove(response)) {
+          response.expire();
+        }
+      }
+    };
+    synchronized (this) {
+      int bucket = bucketOf(responseCmd, transId);
+      // Append, so that responses with the same key are completed in the order they were requested
+      if (buckets[bucket] == null) {
+        buckets[bucket] = response;
+      } else {
+        PendingResponse last = buckets[bucket];
+        while (last.next != null) {
+          last = last.next;
+        }
+        last.next = response;
+      }
+      pendingCount++;
+      // Scheduled while holding the lock so the response cannot be completed before this
+      timeoutTimer.schedule(response.timeoutTask, timeoutMs);
+    }
+    return response;
+  }
+
+  /**
+   * Returns a future that completes with all the given responses, in the given order, when all of
+   * them have been received. It fails as soon as one of them fails. Cancelling the returned future
+   * cancels the responses that are still pending.
+   *
+   * @param responses The responses to wait for.
+   * @return A future with the received responses.
+   */
+  static KvFuture<ByteBuffer[]> allOf(final PendingResponse[] responses) {
+    KvFuture<Void> all = new KvFuture<Void>() {
+      @Override
+      void cancelled() {
+        for (PendingResponse response : responses) {
+          response.cancel(false);
+        }
+      }
+    };
+    KvFuture.allOf(Arrays.asList(responses), all);
+    return all.then(new KvFuture.Function<Void, ByteBuffer[]>() {
+      public ByteBuffer[] apply(Void value) throws CanLibException {
+        ByteBuffer[] buffers = new ByteBuffer[responses.length];
+        for (int i = 0; i < responses.length; i++) {
+          buffers[i] = responses[i].getResult();
+        }
+        return buffers;
+      }
+    });
+  }
+
+  /**
+   * Completes the oldest response registered for the given command and transaction ID, or if there
+   * is none, the oldest one registered for the given command and any transaction ID.
+   *
+   * @param responseCmd The command ID of the received command.
+   * @param transId     The transaction ID of the received command.
+   * @param bytes       The array holding the received command.
+   * @param offset      The index of the first byte of the command.
+   * @param length      The length of the command.
+   * @return true if a pending response was completed, false otherwise.
+   */
+  boolean complete(int responseCmd, int transId, byte[] bytes, int offset, int length) {
+    if (pendingCount == 0) {
+      return false;
+    }
+    PendingResponse response;
+    synchronized (this) {
+      response = take(responseCmd, transId);
+      if (response == null) {
+        response = take(responseCmd, ANY_TRANS_ID);
+      }
+    }
+    if (response == null) {
+      return false;
+    }
+    response.timeoutTask.cancel();
+    response.complete(bytes, offset, length);
+    return true;
+  }
+
+  /**
+   * Removes a response from the table, e.g. when the waiting thread gives up.
+   *
+   * @param response The response to remove.
+   * @return true if the response was still pending, false otherwise.
+   */
+  synchronized boolean remove(PendingResponse response) {
+    int bucket = bucketOf(response.responseCmd, response.transId);
+    PendingResponse previous = null;
+    for (PendingResponse r = buckets[bucket]; r != null; previous = r, r = r.next) {
+      if (r == response) {
+        unlink(bucket, previous, r);
+        response.timeoutTask.cancel();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private PendingResponse take(int responseCmd, int transId) {
+    int bucket = bucketOf(responseCmd, transId);
+    PendingResponse previous = null;
+    for (PendingResponse r = buckets[bucket]; r != null; previous = r, r = r.next) {
+      if ((r.responseCmd == responseCmd) && (r.transId == transId)) {
+        unlink(bucket, previous, r);
+        return r;
+      }
+    }
+    return null;
+  }
+
+  private void unlink(int bucket, PendingResponse previous, PendingResponse response) {
+    if (previous == null) {
+      buckets[bucket] = response.next;
+    } else {
+      previous.next = response.next;
+    }
+    response.next = null;
+    pendingCount--;
+  }
+
+  private static int bucketOf(int responseCmd, int transId) {
+    return ((responseCmd & 0xff) * 31 + transId) & (NUMBER_OF_BUCKETS - 1);
+  }
+}
@@ -0,0 +1,114 @@
+package com.kvaser.canlib;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class implements an in-memory transport where the device is simulated by a Peer, e.g. a
+ * scripted device used for running the device drivers without any hardware. Sent bytes are handed
+ * directly to the peer in the sending thread. Bytes delivered by the peer are passed on to the
+ * listeners from a separate receive thread, just like the USB device handles do.
+ */
+class PipeTransport implements KvTransport {
+
+  private final List<UsbListener> usbListeners = new ArrayList<>();
+  private final BlockingQueue<byte[]> receiveQueue = new LinkedBlockingQueue<>();
+  private final Thread receiveThread;
+  private final Peer peer;
+  private volatile boolean closed = false;
+  private volatile boolean full = false;
+
+  /**
+   * This interface describes the methods that should be implemented by the device end of the pipe.
+   */
+  interface Peer {
+
+    /**
+     * Called when the driver has sent bytes to the device.
+     *
+     * @param transport The transport the bytes were sent on, used for delivering any responses.
+     * @param bytes     The bytes that were sent.
+     */
+    void dataSent(PipeTransport transport, byte[] bytes);
+  }
+
+  /**
+   * @param peer The device end of the pipe.
+   */
+  PipeTransport(Peer peer) {
+    this.peer = peer;
+    receiveThread = new Thread(new ReceiveRunnable());
+    receiveThread.setDaemon(true);
+    receiveThread.start();
+  }
+
+  public boolean send(byte[] bytes) {
+    if (full) {
+      return false;
+    }
+    if (!closed && bytes.length != 0) {
+      peer.dataSent(this, bytes);
+    }
+    return true;
+  }
+
+  public boolean send(byte[] bytes, int offset, int length) {
+    if (full) {
+      return false;
+    }
+    if (!closed && length != 0) {
+      peer.dataSent(this, Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+    return true;
+  }
+
+  /**
+   * Makes the transport reject everything that is sent, as if its send buffer was full, e.g. to
+   * check how a driver handles a full transport.
+   *
+   * @param full true to reject the sent bytes, false to pass them to the peer again.
+   */
+  void setFull(boolean full) {
+    this.full = full;
+  }
+
+  public void addListener(UsbListener usbListener) {
+    usbListeners.add(usbListener);
+  }
+
+  public void close() {
+    closed = true;
+    receiveThread.interrupt();
+  }
+
+  /**
+   * Delivers bytes from the device to the driver. The bytes are treated as one USB transfer.
+   *
+   * @param bytes The bytes to deliver.
+   */
+  void deliver(byte[] bytes) {
+    if (!closed) {
+      receiveQueue.add(bytes);
+    }
+  }
+
+  /**
+   * This class provides a run method which blocks until the peer has delivered data, in which case
+   * a UsbListener event is generated. Should run in a separate thread.
+   */
+  private class ReceiveRunnable implements Runnable {
+
+    public void run() {
+      try {
+        while (!Thread.interrupted()) {
+          byte[] bytes = receiveQueue.take();
+          for (UsbListener l : usbListeners) {
+            l.UsbDataReceived(bytes, bytes.length);
+          }
+        }
+      } catch (InterruptedException e) {
+        // The transport has been closed
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package com.kvaser.canlib;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * This class provides a run method which keeps a number of receive requests queued on a
+ * ReceivePort, so that the device can keep transferring data while the listeners are called for an
+ * already completed request. A request is queued again as soon as its listeners have returned.
+ * Should run in a separate thread.
+ */
+class ReceiveEngine implements Runnable {
+
+  private final ReceivePort port;
+  private final List<UsbListener> usbListeners;
+  private final ByteBuffer[] buffers;
+
+  /**
+   * @param port         The port to receive from.
+   * @param queueDepth   The number of receive requests to keep queued, at least 1.
+   * @param transferSize The size of each receive request in bytes.
+   * @param usbListeners The listeners to call with the received data.
+   */
+  ReceiveEngine(ReceivePort port, int queueDepth, int transferSize,
+                List<UsbListener> usbListeners) {
+    this.port = port;
+    this.usbListeners = usbListeners;
+    buffers = new ByteBuffer[Math.max(queueDepth, 1)];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = ByteBuffer.allocate(transferSize);
+    }
+  }
+
+  public void run() {
+    for (int i = 0; i < buffers.length; i++) {
+      if (!port.queue(i, buffers[i])) {
+        return;
+      }
+    }
+    while (!Thread.interrupted()) {
+      int requestIndex = port.requestWait();
+      if (requestIndex < 0) {
+        // The port has been closed
+        return;
+      }
+      ByteBuffer buffer = buffers[requestIndex];
+      int receivedLength = buffer.position();
+      if (receivedLength > 0) {
+        // Call listeners, the receive buffer is handed over as is and reused when the request is
+        // queued again
+        for (UsbListener l : usbListeners) {
+          l.UsbDataReceived(buffer.array(), receivedLength);
+        }
+      }
+      buffer.clear();
+      if (!port.queue(requestIndex, buffer)) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package com.kvaser.canlib;
+
+import java.nio.*;
+
+/**
+ * This interface describes an IN endpoint that accepts several queued receive requests at once,
+ * e.g. a USB bulk endpoint used through UsbRequest. Requests are identified by an index chosen by
+ * the caller.
+ */
+interface ReceivePort {
+
+  /**
+   * Queues a receive request. When the request completes the position of the buffer is the number
+   * of received bytes.
+   *
+   * @param requestIndex The index identifying the request, 0 to queue depth - 1.
+   * @param buffer       The buffer to receive into, from position 0 up to its limit.
+   * @return true if the request was queued, false if the port is closed or failed.
+   */
+  boolean queue(int requestIndex, ByteBuffer buffer);
+
+  /**
+   * Blocks until one of the queued requests has completed. Requests complete in the order they
+   * were queued.
+   *
+   * @return The index of the completed request, or -1 if the port is closed or failed.
+   */
+  int requestWait();
+
+  /**
+   * Cancels all queued requests and releases the port.
+   */
+  void close();
+}
@@ -0,0 +1,79 @@
+package com.kvaser.canlib;
+
+/**
+ * This class implements a thread-safe circular buffer of primitive bytes with bulk operations.
+ * Writers add whole blocks of bytes and a single reader drains as many bytes as are available,
+ * blocking while the buffer is empty. The reader is only woken up when it is actually waiting, i.e.
+ * once per burst of writes rather than once per byte.
+ */
+class SynchronizedByteRingBuffer {
+
+  private final byte[] buffer;
+  private int head, tail, count;
+  private boolean readerWaiting = false;
+
+  SynchronizedByteRingBuffer(int bufferSize) {
+    buffer = new byte[bufferSize];
+    head = 0;
+    tail = 0;
+    count = 0;
+  }
+
+  /**
+   * Adds a block of bytes to the buffer. Either all bytes are added or, if there is not room for
+   * all of them, none of them.
+   *
+   * @param src    The array holding the bytes to add.
+   * @param offset The index of the first byte to add.
+   * @param length The number of bytes to add.
+   * @return true if the bytes were added, false if the buffer did not have room for them.
+   */
+  synchronized boolean write(byte[] src, int offset, int length) {
+    if (length > buffer.length - count) {
+      return false;
+    }
+    int firstPart = Math.min(length, buffer.length - head);
+    System.arraycopy(src, offset, buffer, head, firstPart);
+    System.arraycopy(src, offset + firstPart, buffer, 0, length - firstPart);
+    head = (head + length) % buffer.length;
+    count += length;
+    if (readerWaiting) {
+      readerWaiting = false;
+      notify();
+    }
+    return true;
+  }
+
+  /**
+   * Moves up to maxLength bytes from the buffer to dst, blocking while the buffer is empty. As long
+   * as all writes and maxLength are multiples of the same block size the drained bytes will always
+   * consist of whole blocks.
+   *
+   * @param dst       The array to copy the bytes to, starting at index 0.
+   * @param maxLength The maximum number of bytes to move.
+   * @return The number of bytes moved to dst.
+   * @throws InterruptedException if the thread is interrupted while waiting for data.
+   */
+  synchronized int drainTo(byte[] dst, int maxLength) throws InterruptedException {
+    while (count == 0) {
+      readerWaiting = true;
+      wait();
+    }
+    int length = Math.min(count, Math.min(maxLength, dst.length));
+    int firstPart = Math.min(length, buffer.length - tail);
+    System.arraycopy(buffer, tail, dst, 0, firstPart);
+    System.arraycopy(buffer, 0, dst, firstPart, length - firstPart);
+    tail = (tail + length) % buffer.length;
+    count -= length;
+    return length;
+  }
+
+  /**
+   * Returns the number of bytes currently in the buffer.
+   *
+   * @return The number of bytes in the buffer.
+   */
+  synchronized int size() {
+    return count;
+  }
+}
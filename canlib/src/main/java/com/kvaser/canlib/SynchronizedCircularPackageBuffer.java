@@ -1,44 +1,115 @@
 package com.kvaser.canlib;
 
 /**
- * This class implements a thread-safe circular package buffer.
+ * This class implements a thread-safe circular package buffer. The packages are stored back to back
+ * in a byte array and, as in the Leaf protocol, the first byte of each package holds its length.
+ * A single reader blocks until there are packages to read and then drains as many whole packages as
+ * fit in its transfer buffer.
  */
 class SynchronizedCircularPackageBuffer {
-  private final byte[][] buffer;
-  private int head, tail;
-  private final int bufferSize;
+  private final byte[] buffer;
+  private int head, tail, count;
+  private boolean readerWaiting = false;
 
   SynchronizedCircularPackageBuffer() {
     // The maximum size of an usb package is 512 bytes and the messages are less or equal to 32.
     // I.e. allocating a queue that can hold 10 usb worst case packages is likely to be sufficient
-    this.bufferSize = (10 * 512 / 32) + 1;
-    buffer = new byte[this.bufferSize][];
+    buffer = new byte[10 * 512];
     head = 0;
     tail = 0;
+    count = 0;
   }
 
-  synchronized void add(byte[] b) {
-    if ((head + 1) % bufferSize != tail) {
-      buffer[head] = b;
-      head = (head + 1) % bufferSize;
+  /**
+   * Adds one package to the buffer. The package is ignored if its length byte does not match the
+   * supplied length or if there is no room for it in the buffer.
+   *
+   * @param b      The array holding the package.
+   * @param offset The index of the package's length byte.
+   * @param length The length of the package.
+   * @return true if the package was added, false otherwise.
+   */
+  synchronized boolean add(byte[] b, int offset, int length) {
+    if (length == 0 || (b[offset] & 0xff) != length || length > buffer.length - count) {
+      return false;
     }
+    copyIn(b, offset, length);
+    return true;
   }
 
-  synchronized byte[] pop() {
-    if (head != tail) {
-      byte[] b = buffer[tail];
-      tail = (tail + 1) % bufferSize;
-      return b;
-    } else {
-      return null;
+  /**
+   * Adds several packages, stored back to back, to the buffer. Either all packages are added or,
+   * if a length byte does not match the supplied length or if there is not room for all of them,
+   * none of them.
+   *
+   * @param b      The array holding the packages.
+   * @param offset The index of the first package's length byte.
+   * @param length The total length of the packages.
+   * @return true if the packages were added, false otherwise.
+   */
+  synchronized boolean addAll(byte[] b, int offset, int length) {
+    if (length == 0 || length > buffer.length - count) {
+      return false;
+    }
+    int packageOffset = offset;
+    while (packageOffset < offset + length) {
+      int packageLength = b[packageOffset] & 0xff;
+      if (packageLength == 0) {
+        return false;
+      }
+      packageOffset += packageLength;
+    }
+    if (packageOffset != offset + length) {
+      return false;
+    }
+    copyIn(b, offset, length);
+    return true;
+  }
+
+  private void copyIn(byte[] b, int offset, int length) {
+    int firstPart = Math.min(length, buffer.length - head);
+    System.arraycopy(b, offset, buffer, head, firstPart);
+    System.arraycopy(b, offset + firstPart, buffer, 0, length - firstPart);
+    head = (head + length) % buffer.length;
+    count += length;
+    if (readerWaiting) {
+      readerWaiting = false;
+      notify();
     }
   }
 
-  synchronized byte peakSize() {
-    if (head != tail) {
-      return buffer[tail][0];
-    } else {
-      return 0;
+  /**
+   * Moves as many whole packages as fit in maxLength bytes to dst. Blocks until there is at least
+   * one package in the buffer or until the timeout expires.
+   *
+   * @param dst       The array to copy the packages to, starting at index 0.
+   * @param maxLength The maximum number of bytes to move.
+   * @param timeoutMs The maximum time to wait for a package, in milliseconds.
+   * @return The number of bytes moved to dst, 0 if the timeout expired with the buffer empty.
+   * @throws InterruptedException if the thread is interrupted while waiting for a package.
+   */
+  synchronized int drainTo(byte[] dst, int maxLength, long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    long remaining = timeoutMs;
+    while (count == 0 && remaining > 0) {
+      readerWaiting = true;
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    maxLength = Math.min(maxLength, dst.length);
+    int length = 0;
+    while (count > 0) {
+      int packageLength = buffer[tail] & 0xff;
+      if (length + packageLength > maxLength) {
+        break;
+      }
+      int firstPart = Math.min(packageLength, buffer.length - tail);
+      System.arraycopy(buffer, tail, dst, length, firstPart);
+      System.arraycopy(buffer, 0, dst, length + firstPart, packageLength - firstPart);
+      tail = (tail + packageLength) % buffer.length;
+      count -= packageLength;
+      length += packageLength;
     }
+    return length;
   }
 }
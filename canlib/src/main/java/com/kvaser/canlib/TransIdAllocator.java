@@ -0,0 +1,40 @@
+package com.kvaser.canlib;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Hands out the transaction IDs of the channels of a device. The IDs of a channel run from 1 to the
+ * highest ID and then start over at 1, 0 is never used. The IDs are taken without locking, and
+ * writers on the same channel never get the same ID unless all IDs have been handed out in
+ * between.
+ */
+class TransIdAllocator {
+
+  private final AtomicIntegerArray nextTransIds;
+  private final int maxTransId;
+
+  /**
+   * @param channelCount The number of channels.
+   * @param maxTransId   The highest transaction ID.
+   */
+  TransIdAllocator(int channelCount, int maxTransId) {
+    this.nextTransIds = new AtomicIntegerArray(channelCount);
+    this.maxTransId = maxTransId;
+    for (int i = 0; i < channelCount; i++) {
+      nextTransIds.set(i, 1);
+    }
+  }
+
+  /**
+   * Returns the next transaction ID of a channel.
+   */
+  int next(int channelIndex) {
+    while (true) {
+      int current = nextTransIds.get(channelIndex);
+      int next = (current >= maxTransId) ? 1 : current + 1;
+      if (nextTransIds.compareAndSet(channelIndex, current, next)) {
+        return current;
+      }
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package com.kvaser.canlib;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.kvaser.canlib.CanLibException.ErrorCode;
+import com.kvaser.canlib.CanLibException.ErrorDetail;
+
+/**
+ * The transmit credits of a channel, i.e. the number of messages that may have been sent to the
+ * device without having been acknowledged by it. The device only has room for a limited number of
+ * outstanding messages, and messages written beyond that would fill up the send buffer of the
+ * transport and be lost. A credit is taken for each message before it is sent and given back when
+ * the device acknowledges the message, so writers wait for the device instead.
+ *
+ * The messages are tracked by transaction ID, so that an acknowledgement only gives back a credit
+ * once, and so that acknowledgements that arrive after a {@link #reset()} are ignored. The table of
+ * outstanding messages also holds the futures of the messages written with
+ * {@link KvChannel#writeAndConfirm(CanMessage)}, and the time each message was written, for the
+ * latency histogram of the channel.
+ */
+class TxCreditWindow {
+
+  /** The default write timeout in milliseconds, see {@link #setTimeout(long)}. */
+  static final long DEFAULT_TIMEOUT_MS = 1000;
+
+  // Marks an outstanding message that nobody waits for
+  private static final Object SENT = new Object();
+
+  private final int size;
+  private final Semaphore credits;
+  // Indexed by transaction ID, null, SENT or the future of a message waiting for its ack
+  private final AtomicReferenceArray<Object> outstanding;
+  // System.nanoTime() of the write call, indexed by transaction ID. Written before the message is
+  // put in the table, so the ack handler that takes it out sees the time.
+  private final long[] writeTimes;
+  private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+  private volatile long timeoutMs = DEFAULT_TIMEOUT_MS;
+
+  /**
+   * @param size             The number of messages that may be outstanding.
+   * @param numberOfTransIds The number of transaction IDs of the channel.
+   */
+  TxCreditWindow(int size, int numberOfTransIds) {
+    this.size = size;
+    // Fair, so that a writer waiting for many credits is not starved by single messages
+    this.credits = new Semaphore(size, true);
+    this.outstanding = new AtomicReferenceArray<>(numberOfTransIds);
+    this.writeTimes = new long[numberOfTransIds];
+  }
+
+  /**
+   * Returns the number of messages that may be outstanding.
+   */
+  int getSize() {
+    return size;
+  }
+
+  /**
+   * Sets how long {@link #acquire(int, boolean)} waits for credits.
+   *
+   * @param timeoutMs The maximum time to wait in milliseconds, 0 to fail at once when there are
+   *                  not enough credits, or a negative value to wait until there are.
+   */
+  void setTimeout(long timeoutMs) {
+    this.timeoutMs = timeoutMs;
+  }
+
+  /**
+   * Takes credits for messages that are about to be sent, waiting for acknowledgements of earlier
+   * messages if there are not enough credits.
+   *
+   * @param count   The number of messages, at most the size of the window.
+   * @param mayWait false to fail at once when there are not enough credits, whatever the timeout.
+   *                Used on the receive thread, which handles the acknowledgements that give back
+   *                the credits, and would wait for itself.
+   * @throws CanLibException if the credits were not available within the timeout, or if the
+   *                         thread was interrupted while waiting.
+   */
+  void acquire(int count, boolean mayWait) throws CanLibException {
+    long timeout = mayWait ? timeoutMs : 0;
+    boolean acquired;
+    try {
+      if (timeout == 0) {
+        acquired = credits.tryAcquire(count);
+      } else if (timeout < 0) {
+        credits.acquire(count);
+        acquired = true;
+      } else {
+        acquired = credits.tryAcquire(count, timeout, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      throw new CanLibException(ErrorCode.ERR_INTERNAL, ErrorDetail.INTERRUPTED_THREAD,
+                                "Thread was interrupted while waiting for transmit credits.");
+    }
+    if (!acquired) {
+      throw new CanLibException(ErrorCode.ERR_DEVICE, ErrorDetail.TX_BUFFER_FULL,
+                                "The device has " + (size - credits.availablePermits())
+                                + " unacknowledged messages");
+    }
+  }
+
+  /**
+   * Marks a message as sent, after a credit has been taken for it. Must be called before the
+   * message is handed to the transport, since the acknowledgement may arrive at any time after
+   * that.
+   *
+   * @param transId      The transaction ID of the message.
+   * @param writeTime    The System.nanoTime() of the write call.
+   * @param confirmation The future to complete with the time of the acknowledgement, or null.
+   */
+  void sent(int transId, long writeTime, KvFuture<Long> confirmation) {
+    writeTimes[transId] = writeTime;
+    Object previous = outstanding.getAndSet(transId, (confirmation != null) ? confirmation : SENT);
+    if (previous != null) {
+      // The ID has wrapped around while an earlier message was still waiting for its ack, the
+      // earlier message is regarded as lost
+      discard(previous);
+    }
+  }
+
+  /**
+   * Gives back the credit of a message that was marked as sent but could not be handed to the
+   * transport, so it will never be acknowledged. Its future, if any, is not completed, since the
+   * write that created it fails.
+   *
+   * @param transId The transaction ID of the message.
+   */
+  void unsent(int transId) {
+    if (outstanding.getAndSet(transId, null) != null) {
+      credits.release();
+    }
+  }
+
+  /**
+   * Gives back the credit of a message that has been acknowledged by the device and completes its
+   * future, if any. Called by the receive thread.
+   *
+   * @param transId The transaction ID of the message.
+   * @param txTime  The time the message was sent on the bus, see {@link CanMessage#getTimestamp()}.
+   */
+  void acknowledged(int transId, long txTime) {
+    if ((transId < 0) || (transId >= outstanding.length())) {
+      return;
+    }
+    Object message = outstanding.getAndSet(transId, null);
+    if (message != null) {
+      latencyHistogram.record(System.nanoTime() - writeTimes[transId]);
+      credits.release();
+      if (message != SENT) {
+        @SuppressWarnings("unchecked")
+        KvFuture<Long> confirmation = (KvFuture<Long>) message;
+        confirmation.complete(txTime);
+      }
+    }
+  }
+
+  /**
+   * Gives back the credits of all outstanding messages, e.g. when the device has discarded its
+   * transmit queue when going bus off. The futures of the messages fail.
+   */
+  void reset() {
+    for (int i = 0; i < outstanding.length(); i++) {
+      Object message = outstanding.getAndSet(i, null);
+      if (message != null) {
+        discard(message);
+      }
+    }
+  }
+
+  /**
+   * Returns the histogram of the time from the write call of a message until its acknowledgement.
+   */
+  LatencyHistogram getLatencyHistogram() {
+    return latencyHistogram;
+  }
+
+  /**
+   * Returns the number of messages that have been sent but not acknowledged.
+   */
+  int getOutstandingCount() {
+    return size - credits.availablePermits();
+  }
+
+  private void discard(Object message) {
+    credits.release();
+    if (message != SENT) {
+      @SuppressWarnings("unchecked")
+      KvFuture<Long> confirmation = (KvFuture<Long>) message;
+      confirmation.fail(new CanLibException(ErrorCode.ERR_DEVICE, ErrorDetail.TX_DISCARDED,
+                                            "The message was discarded by the device"));
+    }
+  }
+}
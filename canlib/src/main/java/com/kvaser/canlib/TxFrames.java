@@ -0,0 +1,100 @@
+package com.kvaser.canlib;
+
+/**
+ * The frames of a batched write, read either from CanMessages or from the arrays of a
+ * {@link CanFrameBatch}. The drivers encode the frames from here, so that a batch is sent without
+ * copying each of its frames to a CanMessage first.
+ *
+ * The messages are sent as they are, they have been prepared by the KvChannel. The flags of the
+ * frames of a batch are changed like those of a written message as they are read, the batch itself
+ * is not changed.
+ */
+final class TxFrames {
+
+  private final CanMessage[] msgs;
+  private final int offset;
+  private final CanFrameBatch batch;
+  private final int defaultIdFlag;
+  private final int size;
+
+  /**
+   * @param msgs   The messages to send.
+   * @param offset The index of the first message to send.
+   * @param length The number of messages to send.
+   */
+  TxFrames(CanMessage[] msgs, int offset, int length) {
+    this.msgs = msgs;
+    this.offset = offset;
+    this.batch = null;
+    this.defaultIdFlag = 0;
+    this.size = length;
+  }
+
+  /**
+   * @param batch         The frames to send.
+   * @param defaultIdFlag The ID type of the frames that have none, {@link
+   *                      CanMessage#FLAG_EXTENDED_ID} or {@link CanMessage#FLAG_STANDARD_ID}.
+   */
+  TxFrames(CanFrameBatch batch, int defaultIdFlag) {
+    this.msgs = null;
+    this.offset = 0;
+    this.batch = batch;
+    this.defaultIdFlag = defaultIdFlag;
+    this.size = batch.size();
+  }
+
+  /** Returns the number of frames. */
+  int size() {
+    return size;
+  }
+
+  int getId(int index) {
+    return (batch == null) ? msgs[offset + index].id : batch.getIds()[index];
+  }
+
+  /** Returns the flags the frame is sent with, as a bit mask of the CanMessage.FLAG_ constants. */
+  int getFlags(int index) {
+    if (batch == null) {
+      return msgs[offset + index].flags;
+    }
+    return CanMessage.txFlags(batch.getFlags()[index], defaultIdFlag);
+  }
+
+  int getDlc(int index) {
+    return (batch == null) ? msgs[offset + index].dlc : batch.getDlcs()[index];
+  }
+
+  /** Returns the array holding the data bytes of the frame, see {@link #getDataOffset(int)}. */
+  byte[] getData(int index) {
+    return (batch == null) ? msgs[offset + index].data : batch.getData();
+  }
+
+  /** Returns the index in {@link #getData(int)} of the first data byte of the frame. */
+  int getDataOffset(int index) {
+    return (batch == null) ? 0 : batch.getDataOffsets()[index];
+  }
+
+  /** Returns the number of data bytes of the frame in {@link #getData(int)}. */
+  int getDataLength(int index) {
+    return (batch == null) ? msgs[offset + index].data.length : batch.getDataLengths()[index];
+  }
+
+  /**
+   * Returns the frame as a message to send, e.g. for the frames a driver does not encode itself.
+   *
+   * @param index   The index of the frame.
+   * @param scratch The message a frame of a batch is copied to. The message of the frame is
+   *                returned as it is.
+   * @return The message.
+   */
+  CanMessage getMessage(int index, CanMessage scratch) {
+    if (batch == null) {
+      return msgs[offset + index];
+    }
+    batch.getMessage(index, scratch);
+    scratch.flags = getFlags(index);
+    scratch.direction = CanMessage.Direction.TX;
+    scratch.time = -1;
+    return scratch;
+  }
+}
@@ -9,26 +9,30 @@ import java.util.*;
  * endpoints.
  */
 
-class UsbCanlDeviceHandle {
+class UsbCanlDeviceHandle implements KvTransport {
 
   private final List<UsbListener> usbListeners = new ArrayList<>();
   private final SynchronizedCircularPackageBuffer sendBuffer;
   private final Thread sendThread, receiveThread;
   private final UsbDeviceConnection deviceConnection;
+  private final ReceivePort receivePort;
 
   /**
    * The constructor requires handles to the device the class instance should handle.
    *
-   * @param deviceConnection The device connection that is used to send and receive through.
-   * @param inEndpoint       The endpoint for receiving data.
-   * @param outEndpoint      The endpoint for sending data.
+   * @param deviceConnection  The device connection that is used to send and receive through.
+   * @param inEndpoint        The endpoint for receiving data.
+   * @param outEndpoint       The endpoint for sending data.
+   * @param receiveQueueDepth The number of receive requests to keep queued on the in endpoint.
    */
   public UsbCanlDeviceHandle(UsbDeviceConnection deviceConnection, UsbEndpoint inEndpoint,
-                             UsbEndpoint outEndpoint) {
+                             UsbEndpoint outEndpoint, int receiveQueueDepth) {
     this.deviceConnection = deviceConnection;
 
     sendBuffer = new SynchronizedCircularPackageBuffer();
-    receiveThread = new Thread(new ReceiveRunnable(inEndpoint, deviceConnection));
+    receivePort = new UsbRequestReceivePort(deviceConnection, inEndpoint, receiveQueueDepth);
+    receiveThread = new Thread(new ReceiveEngine(receivePort, receiveQueueDepth,
+                                                 inEndpoint.getMaxPacketSize(), usbListeners));
     sendThread = new Thread(new SendRunnable(outEndpoint, deviceConnection, sendBuffer));
     receiveThread.start();
     sendThread.start();
@@ -40,6 +44,7 @@ class UsbCanlDeviceHandle {
   public void close() {
     sendThread.interrupt();
     receiveThread.interrupt();
+    receivePort.close();
     deviceConnection.close();
   }
 
@@ -58,20 +63,43 @@ class UsbCanlDeviceHandle {
    * supplied bytes should normally constitute exactly one command.
    *
    * @param bytes The bytes to be sent.
+   * @return true if the bytes were added, false if the send buffer did not have room for them.
    */
-  public void send(byte[] bytes) {
-    if (bytes.length != 0) {
-      sendBuffer.add(bytes);
+  public boolean send(byte[] bytes) {
+    if (bytes.length == 0) {
+      return true;
     }
+    return sendBuffer.add(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Adds several packages to the send buffer in one operation. The send thread drains them
+   * together, as many as fit in one USB packet.
+   *
+   * @param bytes  The array holding the packages back to back, each starting with its length.
+   * @param offset The index of the length byte of the first package.
+   * @param length The total length of the packages.
+   * @return true if the packages were added, false if the send buffer did not have room for all
+   *         of them, in which case none of them was added.
+   */
+  public boolean send(byte[] bytes, int offset, int length) {
+    if (length == 0) {
+      return true;
+    }
+    return sendBuffer.addAll(bytes, offset, length);
   }
 
   /**
    * This class provides a run method which blocks until there is data in the send buffer to send,
-   * in which case it is transferred over the USB device connection. Should run in a separate
-   * thread.
+   * in which case all queued packages that fit in one USB packet are transferred over the USB
+   * device connection. Should run in a separate thread.
    */
   private class SendRunnable implements Runnable {
 
+    // The longest time in ms the thread parks before it wakes up to check if it has been
+    // interrupted, even if no package has arrived.
+    private static final long SEND_WAIT_TIME = 1000;
+
     private final SynchronizedCircularPackageBuffer sendBuffer;
     private final UsbEndpoint endpoint;
     private final UsbDeviceConnection deviceConnection;
@@ -87,58 +115,15 @@ class UsbCanlDeviceHandle {
 
     public void run() {
       byte[] bytes = new byte[usbTransferBlockSize];
-      int count = 0;
-      while (!Thread.interrupted()) {
-        while (sendBuffer.peakSize() != 0 && (usbTransferBlockSize - count) > sendBuffer.peakSize()) {
-          byte[] b = sendBuffer.pop();
-          if (b != null) {
-            System.arraycopy(b, 0, bytes, count, b[0]);
-            count += b[0];
-          }
-        }
-        if (count != 0) {
-          deviceConnection.bulkTransfer(endpoint, bytes, count, 1000);
-          Arrays.fill(bytes, (byte) 0);
-          count = 0;
-        }
-      }
-    }
-  }
-
-  /**
-   * This class provides a run method which blocks until data has been received over the USB device
-   * connection, in which case a UsbListener event is generated. Should run in a separate thread.
-   */
-  private class ReceiveRunnable implements Runnable {
-
-    private final UsbEndpoint endpoint;
-    private final UsbDeviceConnection deviceConnection;
-    private final int usbTransferBlockSize;
-    private final byte[] bytes;
-
-    ReceiveRunnable(UsbEndpoint endpoint, UsbDeviceConnection deviceConnection) {
-      this.endpoint = endpoint;
-      this.deviceConnection = deviceConnection;
-      this.usbTransferBlockSize = endpoint.getMaxPacketSize();
-      bytes = new byte[this.usbTransferBlockSize];
-    }
-
-    public void run() {
-      while (!Thread.interrupted()) {
-        int receivedLength = deviceConnection.bulkTransfer(endpoint, bytes, bytes.length, 1000);
-        if (receivedLength > 0) {
-          // Since bulk transfer is used it should be safe to assume that what we get here is one or
-          // more complete packages so process them one by one.
-          int consumedBytes = 0;
-          while (receivedLength - consumedBytes >= 3 && bytes[consumedBytes] != 0) {
-            // Call listeners
-            byte[] packet = Arrays.copyOfRange(bytes, consumedBytes, consumedBytes + bytes[consumedBytes]);
-            consumedBytes += bytes[consumedBytes];
-            for (UsbListener l : usbListeners) {
-              l.UsbDataReceived(packet);
-            }
+      try {
+        while (!Thread.interrupted()) {
+          int count = sendBuffer.drainTo(bytes, usbTransferBlockSize, SEND_WAIT_TIME);
+          if (count != 0) {
+            deviceConnection.bulkTransfer(endpoint, bytes, count, 1000);
           }
         }
+      } catch (InterruptedException e) {
+        // The handle has been closed
       }
     }
   }
@@ -3,35 +3,37 @@ package com.kvaser.canlib;
 import android.hardware.usb.*;
 
 import java.util.*;
-import java.util.concurrent.*;
 
 /**
  * This class handles one USB device by sending and receiving through a device connection and its
  * endpoints.
  */
-class UsbDeviceHandle {
+class UsbDeviceHandle implements KvTransport {
 
   private static final int usbTransferBlockSize = 32;
   private static final int usbBufferSize = 8192;
 
   private List<UsbListener> usbListeners = new ArrayList<>();
-  private SynchronizedCircularBuffer sendBuffer;
-  private final Semaphore emptyLock = new Semaphore(0);
+  private SynchronizedByteRingBuffer sendBuffer;
   private Thread sendThread, receiveThread;
   private UsbDeviceConnection deviceConnection;
+  private ReceivePort receivePort;
 
   /**
    * The constructor requires handles to the device the class instance should handle.
    *
-   * @param deviceConnection The device connection that is used to send and receive through.
-   * @param inEndpoint       The endpoint for receiving data.
-   * @param outEndpoint      The endpoint for sending data.
+   * @param deviceConnection  The device connection that is used to send and receive through.
+   * @param inEndpoint        The endpoint for receiving data.
+   * @param outEndpoint       The endpoint for sending data.
+   * @param receiveQueueDepth The number of receive requests to keep queued on the in endpoint.
    */
   public UsbDeviceHandle(UsbDeviceConnection deviceConnection, UsbEndpoint inEndpoint,
-                         UsbEndpoint outEndpoint) {
+                         UsbEndpoint outEndpoint, int receiveQueueDepth) {
     this.deviceConnection = deviceConnection;
-    sendBuffer = new SynchronizedCircularBuffer(usbBufferSize, false);
-    receiveThread = new Thread(new ReceiveRunnable(inEndpoint, deviceConnection));
+    sendBuffer = new SynchronizedByteRingBuffer(usbBufferSize);
+    receivePort = new UsbRequestReceivePort(deviceConnection, inEndpoint, receiveQueueDepth);
+    receiveThread = new Thread(
+        new ReceiveEngine(receivePort, receiveQueueDepth, usbBufferSize, usbListeners));
     sendThread = new Thread(new SendRunnable(outEndpoint, deviceConnection, sendBuffer));
     receiveThread.start();
     sendThread.start();
@@ -43,6 +45,7 @@ class UsbDeviceHandle {
   public void close() {
     sendThread.interrupt();
     receiveThread.interrupt();
+    receivePort.close();
     deviceConnection.close();
   }
 
@@ -61,79 +64,59 @@ class UsbDeviceHandle {
    * supplied bytes should normally constitute exactly one command.
    *
    * @param bytes The bytes to be sent.
+   * @return true if the bytes were added, false if the send buffer did not have room for them.
    */
-  public void send(byte[] bytes) {
-    for (byte b : bytes) {
-      sendBuffer.add(b);
-      emptyLock.release();
-    }
+  public boolean send(byte[] bytes) {
+    return sendBuffer.write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Adds several commands to the send buffer in one operation. The send thread drains them
+   * together, as many as fit in one packet on the endpoint.
+   *
+   * @param bytes  The array holding the commands.
+   * @param offset The index of the first byte to send.
+   * @param length The number of bytes to send, a multiple of the command size.
+   * @return true if the commands were added, false if the send buffer did not have room for all
+   *         of them, in which case none of them was added.
+   */
+  public boolean send(byte[] bytes, int offset, int length) {
+    return sendBuffer.write(bytes, offset, length);
   }
 
   /**
    * This class provides a run method which blocks until there is data in the send buffer to send,
    * in which case it is transferred over the USB device connection. Should run in a separate
-   * thread.
+   * thread. All commands that are queued when the thread wakes up are sent together, as many as
+   * fit in one packet on the endpoint.
    */
   private class SendRunnable implements Runnable {
 
-    SynchronizedCircularBuffer sendBuffer;
+    SynchronizedByteRingBuffer sendBuffer;
     private UsbEndpoint endpoint;
     private UsbDeviceConnection deviceConnection;
-    private byte[] bytes = new byte[usbTransferBlockSize];
+    private byte[] bytes;
 
     SendRunnable(UsbEndpoint endpoint, UsbDeviceConnection deviceConnection,
-                 SynchronizedCircularBuffer sendBuffer) {
+                 SynchronizedByteRingBuffer sendBuffer) {
       this.endpoint = endpoint;
       this.deviceConnection = deviceConnection;
       this.sendBuffer = sendBuffer;
+      // Only whole commands may be sent, so round the packet size down to a multiple of the
+      // command size
+      int transferSize = (endpoint.getMaxPacketSize() / usbTransferBlockSize) * usbTransferBlockSize;
+      bytes = new byte[Math.max(transferSize, usbTransferBlockSize)];
     }
 
     public void run() {
-      Byte b;
       try {
         while (!Thread.interrupted()) {
-          for (int i = 0; i < bytes.length; i++) {
-            emptyLock.acquire();
-            b = sendBuffer.pop();
-            if (b != null) {
-              bytes[i] = b;
-            } else {
-              i--;
-            }
-          }
-          deviceConnection.bulkTransfer(endpoint, bytes, bytes.length, 1000);
+          int length = sendBuffer.drainTo(bytes, bytes.length);
+          deviceConnection.bulkTransfer(endpoint, bytes, length, 1000);
         }
       } catch (InterruptedException e) {
         // Exit thread if interrupted
       }
     }
   }
-
-  /**
-   * This class provides a run method which blocks until data has been received over the USB device
-   * connection, in which case a UsbListener event is generated. Should run in a separate thread.
-   */
-  private class ReceiveRunnable implements Runnable {
-
-    private UsbEndpoint endpoint;
-    private UsbDeviceConnection deviceConnection;
-    private byte[] bytes = new byte[usbBufferSize];
-
-    ReceiveRunnable(UsbEndpoint endpoint, UsbDeviceConnection deviceConnection) {
-      this.endpoint = endpoint;
-      this.deviceConnection = deviceConnection;
-    }
-
-    public void run() {
-      while (!Thread.interrupted()) {
-        int receivedLength = deviceConnection.bulkTransfer(endpoint, bytes, bytes.length, 1000);
-        if (receivedLength > 0) {
-          // Call listeners
-          for (UsbListener l : usbListeners) {
-            l.UsbDataReceived(Arrays.copyOf(bytes, receivedLength));
-          }
-        }
-      }
-    }
-  }
 }
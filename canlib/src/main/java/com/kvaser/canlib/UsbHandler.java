@@ -9,6 +9,7 @@ import android.hardware.usb.*;
 import android.os.*;
 import android.support.v4.util.*;
 
+import java.io.*;
 import java.util.*;
 
 /**
@@ -18,6 +19,7 @@ class UsbHandler {
 
   private static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
   private static final int KvaserVendorId = 0x0bfd;
+  private static final String DEVICE_PROFILE_FILE = "canlib_device_profiles.properties";
   // Lock for synchronizing send operations
   private final Object permissionWaitLock = new Object();
   private final Context context;
@@ -40,6 +42,10 @@ class UsbHandler {
       new SimpleArrayMap<>();
   // List of active drivers
   private final List<KvDeviceInterface> deviceDrivers = new ArrayList<>();
+  // Map of product IDs to configured receive queue depths
+  private final SimpleArrayMap<Integer, Integer> receiveQueueDepths = new SimpleArrayMap<>();
+  private final DeviceProfileCache profileCache;
+  private volatile boolean profileCacheEnabled = true;
   private final BroadcastReceiver mUsbDetachedReceiver = new BroadcastReceiver() {
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -90,6 +96,7 @@ class UsbHandler {
   UsbHandler(Context context) {
     this.context = context;
     usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+    profileCache = new DeviceProfileCache(new File(context.getFilesDir(), DEVICE_PROFILE_FILE));
 
     HandlerThread handlerThread = new HandlerThread("ReceiverThread");
     handlerThread.start();
@@ -127,6 +134,32 @@ class UsbHandler {
     return deviceDrivers.size();
   }
 
+  /**
+   * Sets the number of receive requests to keep queued for devices with a certain product ID. Only
+   * affects devices that are set up after the call.
+   *
+   * @param productId  The USB product ID of the devices.
+   * @param queueDepth The queue depth, or 0 to use the default for the device.
+   */
+  public void setReceiveQueueDepth(int productId, int queueDepth) {
+    synchronized (receiveQueueDepths) {
+      receiveQueueDepths.put(productId, queueDepth);
+    }
+  }
+
+  /**
+   * Enables or disables the use of cached device profiles for devices that are set up after the
+   * call. Disabling the cache also removes all cached profiles.
+   *
+   * @param enabled True to use the cache, false to always query the devices.
+   */
+  public void setDeviceProfileCacheEnabled(boolean enabled) {
+    profileCacheEnabled = enabled;
+    if (!enabled) {
+      profileCache.clear();
+    }
+  }
+
   public KvDevice getKvDevice(int deviceIndex) {
     if (deviceIndex >= 0 && deviceIndex < deviceDrivers.size()) {
       return new KvDevice(deviceDrivers.get(deviceIndex));
@@ -219,8 +252,14 @@ class UsbHandler {
       if (deviceConnection != null) {
         deviceConnection.claimInterface(usbInterface, true);
 
+        Integer receiveQueueDepth;
+        synchronized (receiveQueueDepths) {
+          receiveQueueDepth = receiveQueueDepths.get(device.getProductId());
+        }
         KvDeviceInterface driver;
-        driver = KvDevices.getDeviceInterface(device.getProductId(), deviceConnection, inEndpoint, outEndpoint);
+        driver = KvDevices.getDeviceInterface(device.getProductId(), deviceConnection, inEndpoint, outEndpoint,
+                                              receiveQueueDepth != null ? receiveQueueDepth : 0,
+                                              profileCacheEnabled ? profileCache : null);
         deviceDrivers.add(driver);
         driverMap.put(device, driver);
       }
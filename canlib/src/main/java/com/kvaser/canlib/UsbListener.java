@@ -7,6 +7,14 @@ package com.kvaser.canlib;
  */
 interface UsbListener {
 
-  public void UsbDataReceived(byte[] bytes);
+  /**
+   * Called when data has been received. The buffer is owned by the caller and reused for the next
+   * transfer, i.e. its content is only valid during the call and must be copied if it is needed
+   * afterwards.
+   *
+   * @param bytes  The buffer holding the received data, starting at index 0.
+   * @param length The number of valid bytes in the buffer.
+   */
+  public void UsbDataReceived(byte[] bytes, int length);
 }
 
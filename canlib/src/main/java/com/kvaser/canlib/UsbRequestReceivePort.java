@@ -0,0 +1,52 @@
+package com.kvaser.canlib;
+
+import android.hardware.usb.*;
+
+import java.nio.*;
+
+/**
+ * This class implements a ReceivePort on a USB IN endpoint with one UsbRequest per queue slot.
+ * Only the receive requests may be queued on the device connection, since requestWait returns any
+ * completed request on the connection.
+ */
+class UsbRequestReceivePort implements ReceivePort {
+
+  private final UsbDeviceConnection deviceConnection;
+  private final UsbRequest[] requests;
+
+  /**
+   * @param deviceConnection The device connection that is used to receive through.
+   * @param endpoint         The endpoint for receiving data.
+   * @param queueDepth       The maximum number of requests that can be queued at once.
+   */
+  UsbRequestReceivePort(UsbDeviceConnection deviceConnection, UsbEndpoint endpoint,
+                        int queueDepth) {
+    this.deviceConnection = deviceConnection;
+    requests = new UsbRequest[queueDepth];
+    for (int i = 0; i < queueDepth; i++) {
+      requests[i] = new UsbRequest();
+      requests[i].initialize(deviceConnection, endpoint);
+      requests[i].setClientData(i);
+    }
+  }
+
+  public boolean queue(int requestIndex, ByteBuffer buffer) {
+    return requests[requestIndex].queue(buffer, buffer.limit());
+  }
+
+  public int requestWait() {
+    // Returns null when the device connection is closed
+    UsbRequest request = deviceConnection.requestWait();
+    if (request == null) {
+      return -1;
+    }
+    return (Integer) request.getClientData();
+  }
+
+  public void close() {
+    for (UsbRequest request : requests) {
+      request.cancel();
+      request.close();
+    }
+  }
+}
@@ -16,8 +16,12 @@ class VirtualDriver implements KvDeviceInterface {
 
   private long startTimestamp;
   private int errorCounter = 0;
-  private final List<CanChannelEventListener> canChannelListeners = new ArrayList<>();
+  // Copy-on-write, see ListenerArrays. The receive thread iterates it without locking.
+  private volatile CanChannelEventListener[] canChannelListeners = new CanChannelEventListener[0];
   private final ChannelState[] channelStates = new ChannelState[NUMBER_OF_CHANNELS];
+  private final CanBatchDelivery batchDelivery = new CanBatchDelivery(NUMBER_OF_CHANNELS);
+  private final LatencyHistogram[] txLatencyHistograms = new LatencyHistogram[NUMBER_OF_CHANNELS];
+  private final CanFdModeUsers canFdModeUsers = new CanFdModeUsers(NUMBER_OF_CHANNELS);
 
   VirtualDriver() {
     // Initialize default bus parameters
@@ -26,6 +30,9 @@ class VirtualDriver implements KvDeviceInterface {
       channelStates[i].busParams = new CanBusParams(); //Use default settings
       channelStates[i].busIsOn = false;
       channelStates[i].driverType = CanDriverType.NORMAL;
+      channelStates[i].canFdMode = CanFdMode.CLASSIC;
+      channelStates[i].dataBusParams = new CanBusParams(); //Use default settings
+      txLatencyHistograms[i] = new LatencyHistogram();
     }
     startTimestamp = System.nanoTime();
   }
@@ -73,18 +80,122 @@ class VirtualDriver implements KvDeviceInterface {
     return channelStates[channelIndex].driverType;
   }
 
+  public KvFuture<Void> setBusParamsAsync(int channelIndex, CanBusParams busParams) {
+    try {
+      setBusParams(channelIndex, busParams);
+      return KvFuture.completedFuture(null);
+    } catch (CanLibException e) {
+      return KvFuture.failedFuture(e);
+    }
+  }
+
+  public KvFuture<CanBusParams> getBusParamsAsync(int channelIndex) {
+    try {
+      return KvFuture.completedFuture(getBusParams(channelIndex));
+    } catch (CanLibException e) {
+      return KvFuture.failedFuture(e);
+    }
+  }
+
+  public void enableCanFdMode(int channelIndex, CanFdMode mode) throws CanLibException {
+    checkChannelIndex(channelIndex);
+    synchronized (canFdModeUsers) {
+      if (canFdModeUsers.enable(channelIndex, mode)) {
+        channelStates[channelIndex].canFdMode = mode;
+      }
+    }
+  }
+
+  public void disableCanFdMode(int channelIndex) throws CanLibException {
+    checkChannelIndex(channelIndex);
+    synchronized (canFdModeUsers) {
+      if (canFdModeUsers.disable(channelIndex)) {
+        channelStates[channelIndex].canFdMode = CanFdMode.CLASSIC;
+      }
+    }
+  }
+
+  public KvFuture<Void> setBusParamsFdAsync(int channelIndex, CanBusParams dataBusParams) {
+    try {
+      checkChannelIndex(channelIndex);
+      checkCanFd(channelIndex);
+      channelStates[channelIndex].dataBusParams = dataBusParams;
+      return KvFuture.completedFuture(null);
+    } catch (CanLibException e) {
+      return KvFuture.failedFuture(e);
+    }
+  }
+
+  public KvFuture<CanBusParams> getBusParamsFdAsync(int channelIndex) {
+    try {
+      checkChannelIndex(channelIndex);
+      checkCanFd(channelIndex);
+      return KvFuture.completedFuture(channelStates[channelIndex].dataBusParams);
+    } catch (CanLibException e) {
+      return KvFuture.failedFuture(e);
+    }
+  }
+
+  public KvFuture<Void> busOnAsync(int channelIndex) {
+    try {
+      busOn(channelIndex);
+      return KvFuture.completedFuture(null);
+    } catch (CanLibException e) {
+      return KvFuture.failedFuture(e);
+    }
+  }
+
+  public KvFuture<Void> busOffAsync(int channelIndex) {
+    try {
+      busOff(channelIndex);
+      return KvFuture.completedFuture(null);
+    } catch (CanLibException e) {
+      return KvFuture.failedFuture(e);
+    }
+  }
+
+  public KvFuture<CanDriverType> getBusOutputControlAsync(int channelIndex) {
+    try {
+      return KvFuture.completedFuture(getBusOutputControl(channelIndex));
+    } catch (CanLibException e) {
+      return KvFuture.failedFuture(e);
+    }
+  }
+
   public void write(int channelIndex, CanMessage msg) throws CanLibException {
+    send(channelIndex, msg);
+  }
+
+  public KvFuture<Long> writeAndConfirm(int channelIndex, CanMessage msg) throws CanLibException {
+    long txTime = send(channelIndex, msg);
+    if (txTime < 0) {
+      return KvFuture.failedFuture(new CanLibException(ErrorCode.ERR_DEVICE,
+                                                       ErrorDetail.TX_DISCARDED,
+                                                       "The channel is off bus"));
+    }
+    return KvFuture.completedFuture(txTime);
+  }
+
+  /*
+   * Sends a message on the virtual bus. Returns the time of the TX acknowledgement, or -1 if the
+   * channel is off bus and the message was not sent.
+   */
+  private long send(int channelIndex, CanMessage msg) throws CanLibException {
+    long writeTime = System.nanoTime();
     checkChannelIndex(channelIndex);
 
     if (channelStates[channelIndex].busIsOn) {
       errorCounter = 0;
 
-      if ((msg.isFlagSet(CanMessage.MessageFlags.EXTENDED_ID) && ((msg.id & 0x7FFFFFFF) >= (1
-                                                                                            << 29)))
-          || (msg.isFlagSet(CanMessage.MessageFlags.STANDARD_ID) && (msg.id >= (1 << 11)))) {
+      if ((((msg.flags & CanMessage.FLAG_EXTENDED_ID) != 0) && ((msg.id & 0x7FFFFFFF) >= (1 << 29)))
+          || (((msg.flags & CanMessage.FLAG_STANDARD_ID) != 0) && (msg.id >= (1 << 11)))) {
         // ID out of range
         throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.ILLEGAL_ID);
       }
+      boolean isFd = (msg.flags & CanMessage.FLAG_FD_EDL) != 0;
+      if (isFd) {
+        checkCanFd(channelIndex);
+      }
 
       //Send TX acknowledgement to listeners
       CanMessage txAckMsg = new CanMessage(msg);
@@ -96,6 +207,8 @@ class VirtualDriver implements KvDeviceInterface {
           listener.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, txAckMsg);
         }
       }
+      deliverBatch(channelIndex, txAckMsg);
+      txLatencyHistograms[channelIndex].record(System.nanoTime() - writeTime);
 
       //Send RX message to listeners
       CanMessage rxMsg = new CanMessage(msg);
@@ -103,16 +216,21 @@ class VirtualDriver implements KvDeviceInterface {
       rxMsg.time = getTimestamp();
       for (CanChannelEventListener listener : canChannelListeners) {
         //Loopback to all other channels that are bus on
-        if (listener.getChannelIndex() != channelIndex && channelStates[listener
-            .getChannelIndex()].busIsOn) {
+        if (listener.getChannelIndex() != channelIndex
+            && canReceive(listener.getChannelIndex(), channelIndex, isFd)) {
           listener.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, rxMsg);
         }
       }
+      for (int i = 0; i < NUMBER_OF_CHANNELS; i++) {
+        if (i != channelIndex && canReceive(i, channelIndex, isFd)) {
+          deliverBatch(i, rxMsg);
+        }
+      }
 
       //Find if there is at least one other channel which is bus on. (No one has to be listening.)
       boolean messageWasReceived = false;
       for (int i = 0; i < NUMBER_OF_CHANNELS; i++) {
-        if (i != channelIndex && channelStates[i].busIsOn) {
+        if (i != channelIndex && canReceive(i, channelIndex, isFd)) {
           messageWasReceived = true;
         }
       }
@@ -128,7 +246,9 @@ class VirtualDriver implements KvDeviceInterface {
             listener.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, errorMsg);
           }
         }
+        deliverBatch(channelIndex, errorMsg);
       }
+      return txAckMsg.time;
     } else {
       //Send bus off chip state
       errorCounter++;
@@ -143,9 +263,38 @@ class VirtualDriver implements KvDeviceInterface {
               .canChannelEvent(CanChannelEventListener.CanChannelEventType.CHIP_STATE, chipState);
         }
       }
+      return -1;
+    }
+  }
+
+  public void write(int channelIndex, TxFrames frames) throws CanLibException {
+    // The virtual bus has no transfers to pack the messages into, and copies each message it sends
+    CanMessage scratch = new CanMessage();
+    for (int i = 0; i < frames.size(); i++) {
+      write(channelIndex, frames.getMessage(i, scratch));
     }
   }
 
+  public void setWriteTimeout(int channelIndex, long timeoutMs) {
+    // Written messages are delivered at once, nothing is outstanding
+  }
+
+  public LatencyHistogram getTxLatencyHistogram(int channelIndex) {
+    return txLatencyHistograms[channelIndex];
+  }
+
+  public int getOutstandingTxCount(int channelIndex) {
+    // The written messages are delivered, and acknowledged, before write returns
+    return 0;
+  }
+
+  public void enableMessagePool(int channelIndex, int poolSize) {
+    // The virtual driver delivers copies of the written messages, which are not pooled
+  }
+
+  public void disableMessagePool(int channelIndex) {
+  }
+
   public Bundle getDeviceInfo() {
     Bundle b = new Bundle();
     b.putString("Device Name", "Kvaser Virtual CAN Driver");
@@ -170,16 +319,38 @@ class VirtualDriver implements KvDeviceInterface {
     //Flashing virtual LEDs...
   }
 
-  public void registerCanChannelEventListener(CanChannelEventListener listener) {
-    canChannelListeners.add(listener);
+  public synchronized void registerCanChannelEventListener(CanChannelEventListener listener) {
+    canChannelListeners = ListenerArrays.add(canChannelListeners, listener);
+  }
+
+  public synchronized void unregisterCanChannelEventListener(CanChannelEventListener listener) {
+    canChannelListeners = ListenerArrays.remove(canChannelListeners, listener);
+  }
+
+  public void registerCanBatchListener(int channelIndex, CanBatchListener listener) {
+    batchDelivery.register(channelIndex, listener);
+  }
+
+  public void unregisterCanBatchListener(int channelIndex, CanBatchListener listener) {
+    batchDelivery.unregister(channelIndex, listener);
   }
 
-  public void unregisterCanChannelEventListener(CanChannelEventListener listener) {
-    canChannelListeners.remove(listener);
+  /*
+   * Delivers a message to the batch listeners of a channel. The virtual driver has no transfers, so
+   * each message is delivered in a batch of its own.
+   */
+  private void deliverBatch(int channelIndex, CanMessage msg) {
+    synchronized (batchDelivery) {
+      CanFrameBatch batch = batchDelivery.getBatch(channelIndex);
+      if (batch != null) {
+        batch.add(msg);
+        batchDelivery.flush();
+      }
+    }
   }
 
   @Override
-  public void UsbDataReceived(byte[] bytes) {
+  public void UsbDataReceived(byte[] bytes, int length) {
     //Unused in the virtual driver
   }
 
@@ -189,6 +360,19 @@ class VirtualDriver implements KvDeviceInterface {
     }
   }
 
+  private void checkCanFd(int channelIndex) throws CanLibException {
+    if (channelStates[channelIndex].canFdMode == CanFdMode.CLASSIC) {
+      throw new CanLibException(ErrorCode.ERR_PARAM, ErrorDetail.NOT_SUPPORTED);
+    }
+  }
+
+  private boolean canReceive(int channelIndex, int senderChannelIndex, boolean isFd) {
+    //A CAN FD frame is only acknowledged by channels in the same CAN FD mode as the sender
+    return channelStates[channelIndex].busIsOn
+           && (!isFd || channelStates[channelIndex].canFdMode
+                        == channelStates[senderChannelIndex].canFdMode);
+  }
+
   private long getTimestamp() {
     //Return a timestamp with 10µs resolution
     return (System.nanoTime() - startTimestamp) / 10000;
@@ -199,5 +383,7 @@ class VirtualDriver implements KvDeviceInterface {
     private CanBusParams busParams;
     private  boolean busIsOn;
     private CanDriverType driverType;
+    private CanFdMode canFdMode;
+    private CanBusParams dataBusParams;
   }
 }
@@ -0,0 +1,280 @@
+package com.kvaser.canlib;
+
+import org.junit.*;
+
+import java.util.*;
+
+/**
+ * Benchmarks of the drivers and of the receive path, mostly run against the scripted devices. They
+ * measure wall-clock time and print the results instead of checking them, so they are not part of
+ * the unit tests, and are only run when the system property canlib.benchmark is true, e.g. with
+ * "gradlew test -Pbenchmark".
+ */
+public class CanLibBenchmark {
+
+  private static final int NUMBER_OF_MESSAGES = 20000;
+  private static final int NUMBER_OF_REQUESTS = 2000;
+  private static final int BATCH_SIZE = 50;
+  // The response delay of the devices when opening them, like the round-trip time of a USB bus
+  private static final long RESPONSE_DELAY_MS = 5;
+  // The fixed sleep after the chip reset of the sequential KCanl bring-up
+  private static final long OLD_LEAF_RESET_SLEEP_MS = 100;
+  // The filter benchmarks report the best of several rounds, the first ones warm up the JIT
+  private static final int FILTER_ROUNDS = 200;
+  private static final int DISPATCH_ROUNDS = 50;
+
+  @BeforeClass
+  public static void assumeEnabled() {
+    Assume.assumeTrue("Run with -Dcanlib.benchmark=true", Boolean.getBoolean("canlib.benchmark"));
+  }
+
+  @Test
+  public void benchmarkKCany() throws CanLibException, InterruptedException {
+    ScriptedHydraDevice device = new ScriptedHydraDevice(2);
+    PipeTransport transport = new PipeTransport(device);
+    try {
+      KCany driver = new KCany(transport, 512, KvDevices.LEAF_PRO_HS_V2);
+      System.out.println("KCany request round-trip: " + measureRequest(driver) + " us");
+      System.out.println("KCany write -> rx: " + measureWrite(driver) + " frames/s");
+      System.out.println("KCany batched write -> rx: " + measureBatchWrite(driver)
+                         + " frames/s");
+      System.out.println("KCany write to ack latency: " + driver.getTxLatencyHistogram(0));
+    } finally {
+      transport.close();
+    }
+  }
+
+  @Test
+  public void benchmarkKCanl() throws CanLibException, InterruptedException {
+    ScriptedLeafDevice device = new ScriptedLeafDevice(2);
+    PipeTransport transport = new PipeTransport(device);
+    try {
+      KCanl driver = new KCanl(transport, KvDevices.LEAF_LIGHT_V2);
+      System.out.println("KCanl request round-trip: " + measureRequest(driver) + " us");
+      System.out.println("KCanl write -> rx: " + measureWrite(driver) + " frames/s");
+      System.out.println("KCanl batched write -> rx: " + measureBatchWrite(driver)
+                         + " frames/s");
+      System.out.println("KCanl write to ack latency: " + driver.getTxLatencyHistogram(0));
+    } finally {
+      transport.close();
+    }
+  }
+
+  /*
+   * The sequential bring-up waited for each init response before sending the next request, so
+   * its startup time is estimated as the number of answered requests times the response delay.
+   */
+  @Test
+  public void benchmarkKCanyStartup() throws CanLibException {
+    ScriptedHydraDevice device = new ScriptedHydraDevice(2);
+    device.setResponseDelay(RESPONSE_DELAY_MS);
+    PipeTransport transport = new PipeTransport(device);
+    try {
+      long start = System.nanoTime();
+      new KCany(transport, 512, KvDevices.LEAF_PRO_HS_V2);
+      long newMs = (System.nanoTime() - start) / 1000000;
+      long oldMs = device.getAnsweredCount() * RESPONSE_DELAY_MS;
+      System.out.println("KCany startup: " + newMs + " ms, sequential (estimated): " + oldMs
+                         + " ms");
+    } finally {
+      transport.close();
+      device.close();
+    }
+  }
+
+  /*
+   * Like benchmarkKCanyStartup, plus the sleep after the chip reset of the sequential bring-up.
+   */
+  @Test
+  public void benchmarkKCanlStartup() throws CanLibException {
+    ScriptedLeafDevice device = new ScriptedLeafDevice(2);
+    device.setResponseDelay(RESPONSE_DELAY_MS);
+    PipeTransport transport = new PipeTransport(device);
+    try {
+      long start = System.nanoTime();
+      new KCanl(transport, KvDevices.LEAF_LIGHT_V2);
+      long newMs = (System.nanoTime() - start) / 1000000;
+      // The request after the chip reset replaces the sleep and was not sent by the old driver
+      long oldMs = (device.getAnsweredCount() - 1) * RESPONSE_DELAY_MS + OLD_LEAF_RESET_SLEEP_MS;
+      System.out.println("KCanl startup: " + newMs + " ms, sequential (estimated): " + oldMs
+                         + " ms");
+    } finally {
+      transport.close();
+      device.close();
+    }
+  }
+
+  @Test
+  public void benchmarkReceiveQueueDepth() {
+    System.out.println("Receive queue depth benchmark, " + ReceiveEngineTest.FRAME_RATE
+                       + " frames/s offered");
+    for (int depth : new int[] {1, 2, 4, 8}) {
+      long[] result = ReceiveEngineTest.run(depth);
+      System.out.println("depth " + depth + ": " + result[0] + " frames/s delivered, " + result[1]
+                         + " overruns");
+    }
+  }
+
+  /*
+   * Compares the cost of running a message with a standard ID through the filters one by one, as
+   * the channel did before, to the filters of a channel, which look the ID up in the compiled
+   * table. Pass filters only, so that most frames are run through all filters as on a busy bus
+   * where the application wants a few IDs.
+   */
+  @Test
+  public void benchmarkStandardIdFilters() throws CanLibException {
+    Random random = new Random(2);
+    CanMessage[] messages =
+        CompiledFilterSetTest.createMessages(random, 2048, CanMessage.FLAG_STANDARD_ID);
+    System.out.println("Filter cost per standard ID frame:");
+    for (int count : new int[] {1, 10, 100}) {
+      printFilterCost(CompiledFilterSetTest.createFilters(random, count, false), messages,
+                      FILTER_ROUNDS);
+    }
+  }
+
+  /*
+   * Compares iterated and compiled evaluation of frames with extended IDs, for J1939 style filters
+   * that pass a number of PGNs, on a bus with mostly other traffic.
+   */
+  @Test
+  public void benchmarkExtendedIdFilters() throws CanLibException {
+    Random random = new Random(4);
+    CanMessage[] messages =
+        CompiledFilterSetTest.createMessages(random, 1 << 29, CanMessage.FLAG_EXTENDED_ID);
+    System.out.println("Filter cost per extended ID frame:");
+    for (int count : new int[] {1, 10, 100, 500}) {
+      printFilterCost(CompiledFilterSetTest.createPgnFilters(random, count), messages,
+                      FILTER_ROUNDS / 4);
+    }
+  }
+
+  /*
+   * Compares passing each frame to every listener, each of which checks the ID itself, to the
+   * lookup in the ID listener table, for listeners that each want one extended ID.
+   */
+  @Test
+  public void benchmarkIdDispatch() {
+    Random random = new Random(1);
+    System.out.println("Dispatch cost per extended ID frame:");
+    for (int count : new int[] {1, 10, 100, 500}) {
+      IdListenerTableTest.CheckingListener[] listeners =
+          IdListenerTableTest.createCheckingListeners(random, count);
+      IdListenerTable table = IdListenerTableTest.createTable(listeners);
+      CanMessage[] messages = IdListenerTableTest.createMessages(random, listeners);
+      long iteratedNs = Long.MAX_VALUE;
+      long tableNs = Long.MAX_VALUE;
+      for (int round = 0; round < DISPATCH_ROUNDS; round++) {
+        long start = System.nanoTime();
+        for (CanMessage msg : messages) {
+          for (IdListenerTableTest.CheckingListener listener : listeners) {
+            listener.canMessageReceived(msg);
+          }
+        }
+        iteratedNs = Math.min(iteratedNs, System.nanoTime() - start);
+        start = System.nanoTime();
+        for (CanMessage msg : messages) {
+          table.dispatch(msg);
+        }
+        tableNs = Math.min(tableNs, System.nanoTime() - start);
+      }
+      System.out.println(String.format("%3d listeners: iterated %.1f ns, table %.1f ns", count,
+                                       (double) iteratedNs / messages.length,
+                                       (double) tableNs / messages.length));
+    }
+  }
+
+  /*
+   * Runs the messages through the filters one by one and through the filters of a channel, as the
+   * receive thread does, and prints the best time per message of each.
+   */
+  private static void printFilterCost(CanMessageFilter[] filters, CanMessage[] messages,
+                                      int rounds) throws CanLibException {
+    KvChannel channel = new KvDevice(new VirtualDriver()).openChannel(0, null);
+    for (CanMessageFilter filter : filters) {
+      channel.addFilter(filter);
+    }
+    long iteratedNs = Long.MAX_VALUE;
+    long channelNs = Long.MAX_VALUE;
+    // Counted so that the JIT can not drop the loops
+    int passed = 0;
+    for (int round = 0; round < rounds; round++) {
+      long start = System.nanoTime();
+      for (CanMessage msg : messages) {
+        if (CompiledFilterSetTest.passesAny(filters, msg)) {
+          passed++;
+        }
+      }
+      iteratedNs = Math.min(iteratedNs, System.nanoTime() - start);
+      start = System.nanoTime();
+      for (CanMessage msg : messages) {
+        if (channel.passesFilters(msg)) {
+          passed--;
+        }
+      }
+      channelNs = Math.min(channelNs, System.nanoTime() - start);
+    }
+    channel.close();
+    System.out.println(String.format("%3d filters: iterated %.1f ns, channel %.1f ns%s",
+                                     filters.length, (double) iteratedNs / messages.length,
+                                     (double) channelNs / messages.length,
+                                     (passed != 0) ? " (results differ)" : ""));
+  }
+
+  /*
+   * Returns the mean time of a request to the device in microseconds.
+   */
+  private static long measureRequest(KvDeviceInterface driver) throws CanLibException {
+    long start = System.nanoTime();
+    for (int i = 0; i < NUMBER_OF_REQUESTS; i++) {
+      driver.getBusParams(0);
+    }
+    return (System.nanoTime() - start) / NUMBER_OF_REQUESTS / 1000;
+  }
+
+  /*
+   * Writes messages one by one on channel 0 and returns the number of frames per second received
+   * on channel 1.
+   */
+  private static long measureWrite(KvDeviceInterface driver)
+      throws CanLibException, InterruptedException {
+    CountingChannelListener rx = new CountingChannelListener(1);
+    driver.registerCanChannelEventListener(rx);
+    driver.busOn(0);
+    driver.busOn(1);
+    long start = System.nanoTime();
+    for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+      CanMessage msg = new CanMessage(i & 0x7ff, 8, new byte[] {1, 2, 3, 4, 5, 6, 7, (byte) i});
+      msg.setFlag(CanMessage.MessageFlags.STANDARD_ID);
+      driver.write(0, msg);
+    }
+    rx.await(NUMBER_OF_MESSAGES);
+    long elapsed = System.nanoTime() - start;
+    driver.unregisterCanChannelEventListener(rx);
+    return NUMBER_OF_MESSAGES * 1000000000L / elapsed;
+  }
+
+  /*
+   * Like measureWrite, but writes the messages in batches of BATCH_SIZE.
+   */
+  private static long measureBatchWrite(KvDeviceInterface driver)
+      throws CanLibException, InterruptedException {
+    CountingChannelListener rx = new CountingChannelListener(1);
+    driver.registerCanChannelEventListener(rx);
+    driver.busOn(0);
+    driver.busOn(1);
+    CanMessage[] msgs = new CanMessage[BATCH_SIZE];
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      msgs[i] = new CanMessage(0x100 + i, 8, new byte[] {1, 2, 3, 4, 5, 6, 7, (byte) i});
+      msgs[i].setFlag(CanMessage.MessageFlags.STANDARD_ID);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < NUMBER_OF_MESSAGES; i += BATCH_SIZE) {
+      driver.write(0, new TxFrames(msgs, 0, BATCH_SIZE));
+    }
+    rx.await(NUMBER_OF_MESSAGES);
+    long elapsed = System.nanoTime() - start;
+    driver.unregisterCanChannelEventListener(rx);
+    return NUMBER_OF_MESSAGES * 1000000000L / elapsed;
+  }
+}
@@ -0,0 +1,64 @@
+package com.kvaser.canlib;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.util.*;
+
+public class CanMessageTest {
+
+  @Test
+  public void testFlagsHaveDistinctBits() {
+    int allBits = 0;
+    for (CanMessage.MessageFlags flag : CanMessage.MessageFlags.values()) {
+      assertEquals(1, Integer.bitCount(flag.getBit()));
+      assertEquals(0, allBits & flag.getBit());
+      allBits |= flag.getBit();
+    }
+  }
+
+  @Test
+  public void testOverrunFlagsAreIndependent() {
+    CanMessage msg = new CanMessage();
+    msg.setFlag(CanMessage.MessageFlags.ERR_SW_OVERRUN);
+    assertTrue(msg.isFlagSet(CanMessage.MessageFlags.ERR_SW_OVERRUN));
+    assertFalse(msg.isFlagSet(CanMessage.MessageFlags.ERR_HW_OVERRUN));
+    msg.removeFlag(CanMessage.MessageFlags.ERR_SW_OVERRUN);
+    assertEquals(0, msg.getFlagBits());
+  }
+
+  @Test
+  public void testUsbFlags() {
+    CanMessage msg = new CanMessage();
+    msg.setFlagsUsingBitField((byte) 0xc3);
+    assertEquals(CanMessage.FLAG_ERROR_FRAME | CanMessage.FLAG_ERR_HW_OVERRUN
+                 | CanMessage.FLAG_TX_ACK | CanMessage.FLAG_TX_RQ, msg.getFlagBits());
+    assertEquals(EnumSet.of(CanMessage.MessageFlags.ERROR_FRAME,
+                            CanMessage.MessageFlags.ERR_HW_OVERRUN,
+                            CanMessage.MessageFlags.TX_ACK, CanMessage.MessageFlags.TX_RQ),
+                 msg.getFlags());
+    assertEquals(0xc3, msg.getFlagsAsMask() & 0xff);
+
+    msg.setFlagBits(CanMessage.FLAG_EXTENDED_ID | CanMessage.FLAG_REMOTE_REQUEST);
+    assertEquals(0x10, msg.getFlagsAsMask());
+    CanMessage copy = new CanMessage(msg);
+    assertEquals(msg.getFlagBits(), copy.getFlagBits());
+  }
+
+  @Test
+  public void testFdDataLengths() {
+    int[] lengths = {0, 1, 2, 3, 4, 5, 6, 7, 8, 12, 16, 20, 24, 32, 48, 64};
+    for (int dlc = 0; dlc < lengths.length; dlc++) {
+      assertEquals(lengths[dlc], CanMessage.fdDlcToLength(dlc));
+      assertEquals(dlc, CanMessage.fdLengthToDlc(lengths[dlc]));
+    }
+    assertEquals(-1, CanMessage.fdLengthToDlc(9));
+    assertEquals(-1, CanMessage.fdLengthToDlc(65));
+
+    byte[] data = new byte[64];
+    data[63] = 63;
+    CanMessage msg = new CanMessage(0x100, 64, data);
+    assertEquals(63, new CanMessage(msg).data[63]);
+  }
+}
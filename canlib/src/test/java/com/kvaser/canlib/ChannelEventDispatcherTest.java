@@ -0,0 +1,242 @@
+package com.kvaser.canlib;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Tests the queued event delivery between the driver and KvChannel.
+ */
+public class ChannelEventDispatcherTest {
+
+  private static final int QUEUE_CAPACITY = 16;
+  private static final int NUMBER_OF_MESSAGES = 100;
+
+  @Test
+  public void testSlowListenerDoesNotStallOtherChannels()
+      throws CanLibException, InterruptedException {
+    ScriptedHydraDevice device = new ScriptedHydraDevice(2);
+    PipeTransport transport = new PipeTransport(device);
+    try {
+      KvDevice kvDevice = new KvDevice(new KCany(transport, 512, KvDevices.LEAF_PRO_HS_V2));
+      KvChannel slowChannel = kvDevice.openChannel(0, null);
+      KvChannel fastChannel = kvDevice.openChannel(1, null);
+      slowChannel.enableEventQueue(QUEUE_CAPACITY, OverflowPolicy.DROP_NEWEST);
+
+      final CountDownLatch blocked = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final List<CanMessage> slowMessages =
+          Collections.synchronizedList(new ArrayList<CanMessage>());
+      slowChannel.registerCanMessageListener(new CanMessageListener() {
+        public void canMessageReceived(CanMessage msg) {
+          slowMessages.add(msg);
+          blocked.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+      final CountDownLatch fastMessages = new CountDownLatch(NUMBER_OF_MESSAGES);
+      fastChannel.registerCanMessageListener(new CanMessageListener() {
+        public void canMessageReceived(CanMessage msg) {
+          fastMessages.countDown();
+        }
+      });
+
+      // Let the first message block the listener before the queue is filled
+      device.receive(transport, 0, 0, false, new byte[] {0});
+      assertTrue(blocked.await(10, TimeUnit.SECONDS));
+      for (int i = 1; i < NUMBER_OF_MESSAGES; i++) {
+        device.receive(transport, 0, i, false, new byte[] {(byte) i});
+      }
+      for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+        device.receive(transport, 1, i, false, new byte[] {(byte) i});
+      }
+      assertTrue("Other channel stalled by slow listener",
+                 fastMessages.await(10, TimeUnit.SECONDS));
+
+      release.countDown();
+      long deadline = System.currentTimeMillis() + 10000;
+      while (slowMessages.size() < QUEUE_CAPACITY + 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(QUEUE_CAPACITY + 1, slowMessages.size());
+      assertEquals(NUMBER_OF_MESSAGES - QUEUE_CAPACITY - 1, slowChannel.getDroppedEventCount());
+      assertFalse(slowMessages.get(0).isFlagSet(CanMessage.MessageFlags.ERR_SW_OVERRUN));
+      assertTrue(slowMessages.get(1).isFlagSet(CanMessage.MessageFlags.ERR_SW_OVERRUN));
+      assertFalse(slowMessages.get(2).isFlagSet(CanMessage.MessageFlags.ERR_SW_OVERRUN));
+      slowChannel.close();
+      fastChannel.close();
+    } finally {
+      transport.close();
+    }
+  }
+
+  @Test
+  public void testDropOldest() {
+    ManualExecutor executor = new ManualExecutor();
+    CountingChannelListener target = new CountingChannelListener(0);
+    ChannelEventDispatcher dispatcher =
+        new ChannelEventDispatcher(target, 4, OverflowPolicy.DROP_OLDEST, executor);
+    for (int i = 0; i < 10; i++) {
+      dispatcher.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE,
+                                 new CanMessage(i, 0, new byte[0]));
+    }
+    assertEquals("Drain task expected to be submitted once", 1, executor.tasks.size());
+    executor.runAll();
+    assertEquals(4, target.count);
+    assertEquals(9, target.lastMessage.id);
+    assertEquals(6, dispatcher.getDroppedEventCount());
+  }
+
+  @Test
+  public void testOverrunFlagDoesNotChangeOriginal() {
+    ManualExecutor executor = new ManualExecutor();
+    final List<CanMessage> delivered = new ArrayList<>();
+    ChannelEventDispatcher dispatcher =
+        new ChannelEventDispatcher(new CanChannelEventListener() {
+          public int getChannelIndex() {
+            return 0;
+          }
+
+          public void canChannelEvent(CanChannelEventType eventType, Object eventData) {
+            delivered.add((CanMessage) eventData);
+          }
+        }, 2, OverflowPolicy.DROP_NEWEST, executor);
+    CanMessage[] messages = new CanMessage[3];
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = new CanMessage(i, 0, new byte[0]);
+      dispatcher.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, messages[i]);
+    }
+    executor.runAll();
+    assertEquals(2, delivered.size());
+    assertTrue(delivered.get(0).isFlagSet(CanMessage.MessageFlags.ERR_SW_OVERRUN));
+    assertEquals(0, delivered.get(0).id);
+    assertFalse(messages[0].isFlagSet(CanMessage.MessageFlags.ERR_SW_OVERRUN));
+    assertSame(messages[1], delivered.get(1));
+  }
+
+  @Test
+  public void testPooledMessagesAreReleased() {
+    ManualExecutor executor = new ManualExecutor();
+    CountingChannelListener target = new CountingChannelListener(0);
+    ChannelEventDispatcher dispatcher =
+        new ChannelEventDispatcher(target, 4, OverflowPolicy.DROP_OLDEST, executor);
+    CanMessagePool pool = new CanMessagePool(16);
+    long allocated = 0;
+    for (int round = 0; round < 10; round++) {
+      // More messages than the queue holds, so that some are dropped
+      for (int i = 0; i < 6; i++) {
+        CanMessage message = pool.obtain();
+        dispatcher.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, message);
+        message.release(); // The driver's reference
+      }
+      executor.runAll();
+      if (round == 0) {
+        allocated = pool.getAllocatedCount();
+      }
+    }
+    assertEquals(40, target.count);
+    assertEquals("Delivered and dropped messages expected to return to the pool", allocated,
+                 pool.getAllocatedCount());
+
+    CanMessagePool closePool = new CanMessagePool(2);
+    CanMessage queued = closePool.obtain();
+    dispatcher.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE, queued);
+    queued.release();
+    dispatcher.close();
+    assertSame("Queued message expected to be released on close", queued, closePool.obtain());
+  }
+
+  @Test
+  public void testMessageReleasedTooManyTimes() {
+    CanMessage message = new CanMessagePool(2).obtain();
+    message.release();
+    try {
+      message.release();
+      fail("IllegalStateException expected");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    new CanMessage().release(); // No effect for messages that are not pooled
+  }
+
+  @Test
+  public void testBlockDeliversAll() throws InterruptedException {
+    CountingChannelListener target = new CountingChannelListener(0);
+    ChannelEventDispatcher dispatcher =
+        new ChannelEventDispatcher(target, 8, OverflowPolicy.BLOCK, null);
+    int messages = 10000;
+    for (int i = 0; i < messages; i++) {
+      dispatcher.canChannelEvent(CanChannelEventListener.CanChannelEventType.MESSAGE,
+                                 new CanMessage(i & 0x7ff, 0, new byte[0]));
+    }
+    target.await(messages);
+    assertEquals(messages, target.count);
+    assertEquals(0, dispatcher.getDroppedEventCount());
+    assertFalse(target.lastMessage.isFlagSet(CanMessage.MessageFlags.ERR_SW_OVERRUN));
+    dispatcher.close();
+  }
+
+  @Test
+  public void testCircularBufferConcurrentProducers() throws InterruptedException {
+    final LockFreeCircularBuffer<Integer> buffer = new LockFreeCircularBuffer<>(64);
+    final int producers = 4;
+    final int perProducer = 20000;
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      final int base = p * perProducer;
+      threads[p] = new Thread(new Runnable() {
+        public void run() {
+          for (int i = 0; i < perProducer; i++) {
+            while (!buffer.offer(base + i)) {
+              Thread.yield();
+            }
+          }
+        }
+      });
+      threads[p].start();
+    }
+    int[] last = new int[producers];
+    Arrays.fill(last, -1);
+    int received = 0;
+    while (received < producers * perProducer) {
+      Integer value = buffer.poll();
+      if (value == null) {
+        Thread.yield();
+        continue;
+      }
+      int producer = value / perProducer;
+      assertTrue("Elements from one producer out of order", value % perProducer > last[producer]);
+      last[producer] = value % perProducer;
+      received++;
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(buffer.isEmpty());
+    assertNull(buffer.poll());
+  }
+
+  /**
+   * Executor that keeps the submitted tasks until they are run by the test.
+   */
+  private static class ManualExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<>();
+
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+}
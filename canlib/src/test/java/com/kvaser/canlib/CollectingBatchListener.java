@@ -0,0 +1,23 @@
+package com.kvaser.canlib;
+
+import java.util.*;
+
+/**
+ * A batch listener that keeps copies of the received batches.
+ */
+class CollectingBatchListener implements CanBatchListener {
+
+  final List<CanFrameBatch> batches = new ArrayList<>();
+
+  public synchronized void canFramesReceived(CanFrameBatch batch) {
+    batches.add(new CanFrameBatch(batch));
+    notifyAll();
+  }
+
+  synchronized void await(int expectedCount) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (batches.size() < expectedCount && System.currentTimeMillis() < deadline) {
+      wait(100);
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package com.kvaser.canlib;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.util.*;
+
+public class CompiledFilterSetTest {
+
+  private static final int FRAMES = 1 << 12;
+
+  @Test
+  public void testMatchesFilters() {
+    Random random = new Random(1);
+    for (int count : new int[] {1, 2, 5, 20}) {
+      CanMessageFilter[] filters = createFilters(random, count, true);
+      CompiledFilterSet set = new CompiledFilterSet(filters);
+      CanMessage msg = new CanMessage();
+      for (int id = 0; id < 2048; id++) {
+        msg.id = id;
+        msg.setFlagBits(CanMessage.FLAG_STANDARD_ID);
+        assertEquals("id " + id, passesAny(filters, msg), set.passes(msg));
+      }
+      for (int i = 0; i < 2048; i++) {
+        msg.id = random.nextInt(1 << 29);
+        msg.setFlagBits(CanMessage.FLAG_EXTENDED_ID);
+        assertEquals("id " + msg.id, passesAny(filters, msg), set.passes(msg));
+      }
+    }
+  }
+
+  @Test
+  public void testAlteredFilter() {
+    CanMessageFilter filter = new CanMessageFilter();
+    filter.idMax = 0xff;
+    CompiledFilterSet set = new CompiledFilterSet(new CanMessageFilter[] {filter});
+    CanMessage msg = new CanMessage();
+    msg.id = 0x150;
+    msg.setFlagBits(CanMessage.FLAG_STANDARD_ID);
+    assertTrue(set.isCurrent());
+    assertSame(set, set.recompile());
+    assertFalse(set.passes(msg));
+
+    filter.idMax = 0x1ff;
+    assertFalse("Altered filter expected to be detected", set.isCurrent());
+    CompiledFilterSet recompiled = set.recompile();
+    assertTrue(recompiled.isCurrent());
+    assertTrue(recompiled.passes(msg));
+    filter.filterType = CanMessageFilter.FilterType.STOP;
+    assertFalse(recompiled.isCurrent());
+    assertFalse(recompiled.recompile().passes(msg));
+    // A set made by adding a filter to a stale set does not reuse the stale table
+    CanMessageFilter other = new CanMessageFilter();
+    other.idMin = 0x700;
+    assertFalse(recompiled.add(other).passes(msg));
+  }
+
+  @Test
+  public void testMatchesExtendedFilters() {
+    Random random = new Random(3);
+    for (int count : new int[] {1, 3, 10, 50}) {
+      for (boolean stopFilters : new boolean[] {false, true}) {
+        CanMessageFilter[] filters = createExtendedFilters(random, count, stopFilters);
+        CompiledFilterSet set = new CompiledFilterSet(filters);
+        // Incrementally added filters give the same set
+        CompiledFilterSet added = CompiledFilterSet.PASS_ALL;
+        for (CanMessageFilter filter : filters) {
+          added = added.add(filter);
+        }
+        CanMessage msg = new CanMessage();
+        msg.setFlagBits(CanMessage.FLAG_EXTENDED_ID);
+        for (int id : interestingIds(random, filters)) {
+          msg.id = id;
+          boolean expected = passesAny(filters, msg);
+          assertEquals("id " + id, expected, set.passes(msg));
+          assertEquals("id " + id, expected, added.passes(msg));
+        }
+        msg.setFlagBits(CanMessage.FLAG_STANDARD_ID);
+        for (int id = 0; id < 2048; id++) {
+          msg.id = id;
+          assertEquals("id " + id, passesAny(filters, msg), added.passes(msg));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testDefaultFilterPassesStandardIds() {
+    CompiledFilterSet set = new CompiledFilterSet(new CanMessageFilter[] {new CanMessageFilter()});
+    CanMessage msg = new CanMessage();
+    msg.id = 0x7ff;
+    msg.setFlagBits(CanMessage.FLAG_STANDARD_ID);
+    assertTrue(set.passes(msg));
+    msg.setFlagBits(CanMessage.FLAG_EXTENDED_ID);
+    assertFalse(set.passes(msg));
+    assertTrue(CompiledFilterSet.PASS_ALL.passes(msg));
+  }
+
+  /*
+   * Pass filters only, so that most frames are run through all filters as on a busy bus where the
+   * application wants a few IDs. The cost of the filters is measured by CanLibBenchmark.
+   */
+  @Test
+  public void testMatchesPassFilters() {
+    Random random = new Random(2);
+    CanMessage[] messages = createMessages(random, 2048, CanMessage.FLAG_STANDARD_ID);
+    for (int count : new int[] {1, 10, 100}) {
+      CanMessageFilter[] filters = createFilters(random, count, false);
+      CompiledFilterSet set = new CompiledFilterSet(filters);
+      for (CanMessage msg : messages) {
+        assertEquals("id " + msg.id, passesAny(filters, msg), set.passes(msg));
+      }
+    }
+  }
+
+  /*
+   * J1939 style filters that pass a number of PGNs, on a bus with mostly other traffic. The cost
+   * of the filters is measured by CanLibBenchmark.
+   */
+  @Test
+  public void testMatchesPgnFilters() {
+    Random random = new Random(4);
+    CanMessage[] messages = createMessages(random, 1 << 29, CanMessage.FLAG_EXTENDED_ID);
+    for (int count : new int[] {1, 10, 100, 500}) {
+      CanMessageFilter[] filters = createPgnFilters(random, count);
+      CompiledFilterSet set = new CompiledFilterSet(filters);
+      for (CanMessage msg : messages) {
+        assertEquals("id " + msg.id, passesAny(filters, msg), set.passes(msg));
+      }
+    }
+  }
+
+  /*
+   * Returns messages with random IDs below maxId and the given ID flag.
+   */
+  static CanMessage[] createMessages(Random random, int maxId, int idFlag) {
+    CanMessage[] messages = new CanMessage[FRAMES];
+    for (int i = 0; i < FRAMES; i++) {
+      messages[i] = new CanMessage(random.nextInt(maxId), 8, new byte[8]);
+      messages[i].setFlagBits(idFlag);
+    }
+    return messages;
+  }
+
+  static boolean passesAny(CanMessageFilter[] filters, CanMessage msg) {
+    for (CanMessageFilter filter : filters) {
+      if (filter.filter(msg)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static CanMessageFilter[] createFilters(Random random, int count, boolean stopFilters) {
+    CanMessageFilter.FilterMatchType[] matchTypes = CanMessageFilter.FilterMatchType.values();
+    CanMessageFilter.FilterIdType[] idTypes = CanMessageFilter.FilterIdType.values();
+    CanMessageFilter[] filters = new CanMessageFilter[count];
+    for (int i = 0; i < count; i++) {
+      CanMessageFilter filter = new CanMessageFilter();
+      filter.filterMatchType = matchTypes[random.nextInt(matchTypes.length)];
+      filter.filterIdType = idTypes[random.nextInt(idTypes.length)];
+      // Mostly pass filters, a stop filter passes almost everything
+      filter.filterType = (stopFilters && random.nextInt(8) == 0)
+                          ? CanMessageFilter.FilterType.STOP : CanMessageFilter.FilterType.PASS;
+      filter.idMin = random.nextInt(2048);
+      filter.idMax = filter.idMin + random.nextInt(16);
+      filter.mask = random.nextInt(2048) | 0x700;
+      filter.code = random.nextInt(2048);
+      filters[i] = filter;
+    }
+    return filters;
+  }
+
+  /*
+   * Filters on extended IDs like J1939 filters: mostly masks on the PGN, with a few different
+   * masks, and some ranges.
+   */
+  private static CanMessageFilter[] createExtendedFilters(Random random, int count,
+                                                          boolean stopFilters) {
+    int[] masks = {0x03FFFF00, 0x03FF0000, 0x1C000000, 0x000000FF};
+    CanMessageFilter.FilterMatchType[] matchTypes = CanMessageFilter.FilterMatchType.values();
+    CanMessageFilter[] filters = new CanMessageFilter[count];
+    for (int i = 0; i < count; i++) {
+      CanMessageFilter filter = new CanMessageFilter();
+      filter.filterMatchType = matchTypes[random.nextInt(matchTypes.length)];
+      filter.filterIdType = (random.nextInt(4) == 0) ? CanMessageFilter.FilterIdType.BOTH
+                                                     : CanMessageFilter.FilterIdType.EXTENDED;
+      filter.filterType = (stopFilters && random.nextInt(4) == 0)
+                          ? CanMessageFilter.FilterType.STOP : CanMessageFilter.FilterType.PASS;
+      filter.mask = masks[random.nextInt(masks.length)];
+      filter.code = random.nextInt(1 << 29);
+      filter.idMin = random.nextInt(1 << 29);
+      filter.idMax = filter.idMin + random.nextInt(1 << 20);
+      filters[i] = filter;
+    }
+    return filters;
+  }
+
+  /*
+   * Pass filters on the PGN (the 18 bits above the source address), and every tenth filter on a
+   * range of IDs.
+   */
+  static CanMessageFilter[] createPgnFilters(Random random, int count) {
+    CanMessageFilter[] filters = new CanMessageFilter[count];
+    for (int i = 0; i < count; i++) {
+      CanMessageFilter filter = new CanMessageFilter();
+      filter.filterIdType = CanMessageFilter.FilterIdType.EXTENDED;
+      if (i % 10 == 9) {
+        filter.filterMatchType = CanMessageFilter.FilterMatchType.RANGE;
+        filter.idMin = random.nextInt(1 << 29) & ~0xFF;
+        filter.idMax = filter.idMin + 0xFF;
+      } else {
+        filter.filterMatchType = CanMessageFilter.FilterMatchType.MASK;
+        filter.mask = 0x03FFFF00;
+        filter.code = random.nextInt(1 << 18) << 8;
+      }
+      filters[i] = filter;
+    }
+    return filters;
+  }
+
+  /*
+   * IDs at the edges of the ranges and matching the codes of the filters, plus random IDs.
+   */
+  private static int[] interestingIds(Random random, CanMessageFilter[] filters) {
+    List<Integer> ids = new ArrayList<>();
+    for (CanMessageFilter filter : filters) {
+      for (int delta = -1; delta <= 1; delta++) {
+        ids.add((filter.idMin + delta) & 0x1FFFFFFF);
+        ids.add((filter.idMax + delta) & 0x1FFFFFFF);
+      }
+      int matching = (filter.code & filter.mask) | (random.nextInt(1 << 29) & ~filter.mask);
+      ids.add(matching & 0x1FFFFFFF);
+      // Matching the code and in the range
+      ids.add(((filter.idMin & ~filter.mask) | (filter.code & filter.mask)) & 0x1FFFFFFF);
+    }
+    for (int i = 0; i < 1000; i++) {
+      ids.add(random.nextInt(1 << 29));
+    }
+    int[] array = new int[ids.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = ids.get(i);
+    }
+    return array;
+  }
+}
@@ -0,0 +1,34 @@
+package com.kvaser.canlib;
+
+/**
+ * A channel event listener that counts the received messages and keeps the last one.
+ */
+class CountingChannelListener implements CanChannelEventListener {
+
+  private final int channelIndex;
+  int count = 0;
+  CanMessage lastMessage;
+
+  CountingChannelListener(int channelIndex) {
+    this.channelIndex = channelIndex;
+  }
+
+  public int getChannelIndex() {
+    return channelIndex;
+  }
+
+  public synchronized void canChannelEvent(CanChannelEventType eventType, Object eventData) {
+    if (eventType == CanChannelEventType.MESSAGE) {
+      lastMessage = (CanMessage) eventData;
+      count++;
+      notifyAll();
+    }
+  }
+
+  synchronized void await(int expectedCount) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (count < expectedCount && System.currentTimeMillis() < deadline) {
+      wait(100);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.kvaser.canlib;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+import java.io.*;
+
+public class DeviceProfileCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testProfileIsPersisted() throws IOException {
+    File file = new File(folder.getRoot(), "profiles");
+    Ean ean = new Ean("73-30130-00778-9");
+    String key = DeviceProfileCache.key(ean, 1234, 3, 9, 100);
+    DeviceProfileCache.Profile profile = new DeviceProfileCache.Profile(key);
+    profile.putInt("maxOutstandingTx", 199);
+    profile.putIntArray("channelHe", new int[] {16, 17, 62});
+    new DeviceProfileCache(file).put(profile);
+
+    DeviceProfileCache cache = new DeviceProfileCache(file);
+    DeviceProfileCache.Profile cached = cache.get(key);
+    assertNotNull(cached);
+    assertEquals(Integer.valueOf(199), cached.getInt("maxOutstandingTx"));
+    assertArrayEquals(new int[] {16, 17, 62}, cached.getIntArray("channelHe"));
+    assertNull(cached.getInt("missing"));
+    assertNull("Another firmware version expected to have another profile",
+               cache.get(DeviceProfileCache.key(ean, 1234, 3, 9, 101)));
+    assertNull(cache.get(DeviceProfileCache.key(ean, 1235, 3, 9, 100)));
+
+    cache.remove(key);
+    assertNull(new DeviceProfileCache(file).get(key));
+  }
+
+  @Test
+  public void testUnreadableFileIsIgnored() throws IOException {
+    File file = new File(folder.getRoot(), "profiles");
+    OutputStream out = new FileOutputStream(file);
+    out.write("key.channelHe=16,x\n\\u00".getBytes());
+    out.close();
+
+    DeviceProfileCache cache = new DeviceProfileCache(file);
+    assertNull(cache.get("key"));
+    DeviceProfileCache.Profile profile = new DeviceProfileCache.Profile("key");
+    profile.putIntArray("channelHe", new int[] {16});
+    cache.put(profile);
+    assertArrayEquals(new int[] {16},
+                      new DeviceProfileCache(file).get("key").getIntArray("channelHe"));
+  }
+
+  @Test
+  public void testExistingFileIsUpdated() {
+    File file = new File(folder.getRoot(), "profiles");
+    DeviceProfileCache.Profile first = new DeviceProfileCache.Profile("first");
+    first.putInt("maxOutstandingTx", 1);
+    new DeviceProfileCache(file).put(first);
+    DeviceProfileCache.Profile second = new DeviceProfileCache.Profile("second");
+    second.putInt("maxOutstandingTx", 2);
+    new DeviceProfileCache(file).put(second);
+
+    DeviceProfileCache cache = new DeviceProfileCache(file);
+    assertEquals(Integer.valueOf(1), cache.get("first").getInt("maxOutstandingTx"));
+    assertEquals(Integer.valueOf(2), cache.get("second").getInt("maxOutstandingTx"));
+    assertFalse(new File(folder.getRoot(), "profiles.tmp").exists());
+  }
+}
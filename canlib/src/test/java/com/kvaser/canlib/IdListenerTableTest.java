@@ -0,0 +1,161 @@
+package com.kvaser.canlib;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.util.*;
+
+public class IdListenerTableTest {
+
+  private static final int FRAMES = 1 << 12;
+
+  @Test
+  public void testStandardIds() {
+    RecordingListener a = new RecordingListener();
+    RecordingListener b = new RecordingListener();
+    IdListenerTable table = IdListenerTable.EMPTY.add(0x100, 0x100, false, a)
+                                                 .add(0x100, 0x10f, false, b);
+    assertArrayEquals(new CanMessageListener[] {a, b}, table.get(0x100, false));
+    assertArrayEquals(new CanMessageListener[] {b}, table.get(0x10f, false));
+    assertNull(table.get(0x110, false));
+    assertNull(table.get(0x100, true));
+
+    table.dispatch(createMessage(0x105, false));
+    table.dispatch(createMessage(0x105, true));
+    assertEquals(Arrays.asList(0x105), b.ids);
+    assertTrue(a.ids.isEmpty());
+  }
+
+  @Test
+  public void testExtendedIds() {
+    RecordingListener hashed = new RecordingListener();
+    RecordingListener range = new RecordingListener();
+    IdListenerTable table = IdListenerTable.EMPTY;
+    for (int i = 0; i < 100; i++) {
+      table = table.add(0x18FEF000 + i * 0x100, 0x18FEF000 + i * 0x100, true, hashed);
+    }
+    // Too large to be hashed, checked for each extended message
+    table = table.add(0x10000000, 0x1000FFFF, true, range);
+    assertArrayEquals(new CanMessageListener[] {hashed}, table.get(0x18FEF500, true));
+    assertNull(table.get(0x18FEF501, true));
+    assertNull(table.get(0x10000000, true));
+
+    table.dispatch(createMessage(0x18FEF500, true));
+    table.dispatch(createMessage(0x18FEF501, true));
+    table.dispatch(createMessage(0x1000FFFF, true));
+    table.dispatch(createMessage(0x10010000, true));
+    assertEquals(Arrays.asList(0x18FEF500), hashed.ids);
+    assertEquals(Arrays.asList(0x1000FFFF), range.ids);
+  }
+
+  @Test
+  public void testRemove() {
+    RecordingListener a = new RecordingListener();
+    RecordingListener b = new RecordingListener();
+    IdListenerTable table = IdListenerTable.EMPTY.add(0x10, 0x10, false, a)
+                                                 .add(0x20, 0x20, false, a)
+                                                 .add(0x10, 0x10, true, b);
+    assertSame(table, table.remove(new RecordingListener()));
+    table = table.remove(a);
+    assertNull(table.get(0x10, false));
+    assertNull(table.get(0x20, false));
+    assertArrayEquals(new CanMessageListener[] {b}, table.get(0x10, true));
+    assertFalse(table.isEmpty());
+    assertSame(IdListenerTable.EMPTY, table.remove(b));
+  }
+
+  /*
+   * Passing each frame to every listener, each of which checks the ID itself, reaches the same
+   * listeners as the lookup in the table. The cost of both is measured by CanLibBenchmark.
+   */
+  @Test
+  public void testDispatchMatchesIteration() {
+    Random random = new Random(1);
+    for (int count : new int[] {1, 10, 100, 500}) {
+      CheckingListener[] listeners = createCheckingListeners(random, count);
+      IdListenerTable table = createTable(listeners);
+      CanMessage[] messages = createMessages(random, listeners);
+      CheckingListener.received = 0;
+      for (CanMessage msg : messages) {
+        for (CheckingListener listener : listeners) {
+          listener.canMessageReceived(msg);
+        }
+      }
+      int receivedIterated = CheckingListener.received;
+      CheckingListener.received = 0;
+      for (CanMessage msg : messages) {
+        table.dispatch(msg);
+      }
+      assertTrue(receivedIterated >= FRAMES / 2);
+      assertEquals(receivedIterated, CheckingListener.received);
+    }
+  }
+
+  /*
+   * Returns listeners that each want one random extended ID.
+   */
+  static CheckingListener[] createCheckingListeners(Random random, int count) {
+    CheckingListener[] listeners = new CheckingListener[count];
+    for (int i = 0; i < count; i++) {
+      listeners[i] = new CheckingListener(random.nextInt(1 << 29));
+    }
+    return listeners;
+  }
+
+  static IdListenerTable createTable(CheckingListener[] listeners) {
+    IdListenerTable table = IdListenerTable.EMPTY;
+    for (CheckingListener listener : listeners) {
+      table = table.add(listener.id, listener.id, true, listener);
+    }
+    return table;
+  }
+
+  /*
+   * Returns frames with extended IDs, half of which are for one of the listeners.
+   */
+  static CanMessage[] createMessages(Random random, CheckingListener[] listeners) {
+    CanMessage[] messages = new CanMessage[FRAMES];
+    for (int i = 0; i < FRAMES; i++) {
+      int id = (i % 2 == 0) ? listeners[random.nextInt(listeners.length)].id
+                            : random.nextInt(1 << 29);
+      messages[i] = createMessage(id, true);
+    }
+    return messages;
+  }
+
+  private static CanMessage createMessage(int id, boolean extended) {
+    CanMessage msg = new CanMessage(id, 8, new byte[8]);
+    msg.setFlagBits(extended ? CanMessage.FLAG_EXTENDED_ID : CanMessage.FLAG_STANDARD_ID);
+    return msg;
+  }
+
+  private static class RecordingListener implements CanMessageListener {
+
+    final List<Integer> ids = new ArrayList<>();
+
+    public void canMessageReceived(CanMessage msg) {
+      ids.add(msg.id);
+    }
+  }
+
+  /*
+   * A listener that checks the ID of each message, as a listener registered for all messages has
+   * to.
+   */
+  static class CheckingListener implements CanMessageListener {
+
+    static int received;
+    private final int id;
+
+    CheckingListener(int id) {
+      this.id = id;
+    }
+
+    public void canMessageReceived(CanMessage msg) {
+      if (msg.id == id) {
+        received++;
+      }
+    }
+  }
+}
@@ -0,0 +1,299 @@
+package com.kvaser.canlib;
+
+import static com.kvaser.canlib.PipeTestHelper.*;
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Runs the KCanl driver against a scripted Leaf device over an in-memory transport.
+ */
+public class KCanlPipeTest {
+
+  private static final int NUMBER_OF_MESSAGES = 20000;
+
+  private ScriptedLeafDevice device;
+  private PipeTransport transport;
+  private KCanl driver;
+
+  @Before
+  public void setUp() throws CanLibException {
+    device = new ScriptedLeafDevice(2);
+    transport = new PipeTransport(device);
+    driver = new KCanl(transport, KvDevices.LEAF_LIGHT_V2);
+  }
+
+  @After
+  public void tearDown() {
+    transport.close();
+  }
+
+  @Test
+  public void testInit() throws CanLibException {
+    assertEquals(2, driver.getNumberOfChannels());
+    assertEquals(ScriptedLeafDevice.SERIAL_NUMBER, driver.getSerialNumber());
+  }
+
+  /*
+   * The device is opened with its init requests outstanding at the same time, so a slow device
+   * does not delay each of them.
+   */
+  @Test
+  public void testInitWithResponseDelay() throws CanLibException {
+    ScriptedLeafDevice slowDevice = new ScriptedLeafDevice(2);
+    slowDevice.setResponseDelay(5);
+    PipeTransport slowTransport = new PipeTransport(slowDevice);
+    try {
+      KCanl slowDriver = new KCanl(slowTransport, KvDevices.LEAF_LIGHT_V2);
+      assertEquals(2, slowDriver.getNumberOfChannels());
+      assertEquals(ScriptedLeafDevice.SERIAL_NUMBER, slowDriver.getSerialNumber());
+    } finally {
+      slowTransport.close();
+      slowDevice.close();
+    }
+  }
+
+  @Test
+  public void testBusParams() throws CanLibException {
+    CanBusParams busParams = new CanBusParams();
+    busParams.bitRate = 500000;
+    driver.setBusParams(1, busParams);
+    assertEquals(500000, driver.getBusParams(1).bitRate);
+    assertEquals(125000, driver.getBusParams(0).bitRate);
+  }
+
+  @Test
+  public void testBusOutputControl() throws CanLibException {
+    driver.setBusOutputControl(0, CanDriverType.SILENT);
+    assertEquals(CanDriverType.SILENT, driver.getBusOutputControl(0));
+  }
+
+  @Test
+  public void testWrite() throws CanLibException, InterruptedException {
+    CountingChannelListener tx = new CountingChannelListener(0);
+    CountingChannelListener rx = new CountingChannelListener(1);
+    driver.registerCanChannelEventListener(tx);
+    driver.registerCanChannelEventListener(rx);
+    driver.busOn(0);
+    driver.busOn(1);
+
+    for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+      CanMessage msg = new CanMessage(i & 0x7ff, 8, new byte[] {1, 2, 3, 4, 5, 6, 7, (byte) i});
+      msg.setFlag(CanMessage.MessageFlags.STANDARD_ID);
+      driver.write(0, msg);
+    }
+    rx.await(NUMBER_OF_MESSAGES);
+    tx.await(NUMBER_OF_MESSAGES);
+
+    assertEquals(NUMBER_OF_MESSAGES, rx.count);
+    assertEquals(0x7ff & (NUMBER_OF_MESSAGES - 1), rx.lastMessage.id);
+    assertEquals(CanMessage.Direction.RX, rx.lastMessage.getDirection());
+    assertEquals(CanMessage.Direction.TX, tx.lastMessage.getDirection());
+  }
+
+  @Test
+  public void testBatchWrite() throws CanLibException, InterruptedException {
+    CountingChannelListener rx = new CountingChannelListener(1);
+    driver.registerCanChannelEventListener(rx);
+    driver.busOn(0);
+    driver.busOn(1);
+
+    int batchSize = 50;
+    CanMessage[] msgs = new CanMessage[batchSize];
+    for (int i = 0; i < batchSize; i++) {
+      msgs[i] = new CanMessage(0x100 + i, 8, new byte[] {1, 2, 3, 4, 5, 6, 7, (byte) i});
+      msgs[i].setFlag(CanMessage.MessageFlags.STANDARD_ID);
+    }
+    long transfers = device.getTransferCount();
+    for (int i = 0; i < NUMBER_OF_MESSAGES; i += batchSize) {
+      driver.write(0, new TxFrames(msgs, 0, batchSize));
+    }
+    rx.await(NUMBER_OF_MESSAGES);
+
+    assertEquals(NUMBER_OF_MESSAGES, rx.count);
+    assertEquals(0x100 + batchSize - 1, rx.lastMessage.id);
+    assertEquals(batchSize - 1, rx.lastMessage.data[7]);
+    // One transfer per batch
+    assertEquals(NUMBER_OF_MESSAGES / batchSize, device.getTransferCount() - transfers);
+  }
+
+  @Test
+  public void testFrameBatchWrite() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel txChannel = kvDevice.openChannel(0, null);
+    final List<CanMessage> received = Collections.synchronizedList(new ArrayList<CanMessage>());
+    final List<CanMessage> acknowledged =
+        Collections.synchronizedList(new ArrayList<CanMessage>());
+    driver.registerCanChannelEventListener(new CountingChannelListener(1) {
+      public void canChannelEvent(CanChannelEventType eventType, Object eventData) {
+        if (eventType == CanChannelEventType.MESSAGE) {
+          received.add(new CanMessage((CanMessage) eventData));
+        }
+      }
+    });
+    driver.registerCanChannelEventListener(new CountingChannelListener(0) {
+      public void canChannelEvent(CanChannelEventType eventType, Object eventData) {
+        if (eventType == CanChannelEventType.MESSAGE) {
+          acknowledged.add(new CanMessage((CanMessage) eventData));
+        }
+      }
+    });
+    driver.busOn(0);
+    driver.busOn(1);
+
+    // More frames than there are transaction ids, so that the kept messages are reused
+    int frames = 300;
+    CanFrameBatch batch = new CanFrameBatch(0, frames);
+    for (int i = 0; i < frames; i++) {
+      byte[] data = new byte[8];
+      Arrays.fill(data, (byte) i);
+      CanMessage msg = new CanMessage((i % 2 == 0) ? 0x10000 + i : i, i % 9, data);
+      msg.flags = (i % 2 == 0) ? CanMessage.FLAG_EXTENDED_ID : CanMessage.FLAG_STANDARD_ID;
+      batch.add(msg);
+    }
+    int[] flags = Arrays.copyOf(batch.getFlags(), frames);
+    txChannel.write(batch);
+    waitForMessages(received, frames);
+    waitForMessages(acknowledged, frames);
+
+    assertArrayEquals("The written batch is not changed", flags,
+                      Arrays.copyOf(batch.getFlags(), frames));
+    assertEquals(frames, received.size());
+    assertEquals(frames, acknowledged.size());
+    for (int i = 0; i < frames; i++) {
+      for (CanMessage msg : new CanMessage[] {received.get(i), acknowledged.get(i)}) {
+        assertEquals(batch.getIds()[i], msg.id);
+        assertEquals(i % 9, msg.dlc);
+        assertEquals((i % 2 == 0), msg.isFlagSet(CanMessage.MessageFlags.EXTENDED_ID));
+        for (int j = 0; j < 8; j++) {
+          assertEquals((j < i % 9) ? (byte) i : 0, msg.data[j]);
+        }
+      }
+      assertTrue(acknowledged.get(i).isFlagSet(CanMessage.MessageFlags.TX_ACK));
+    }
+    txChannel.close();
+  }
+
+  /*
+   * The two channels share the send buffer of the transport, so each of them has half of the
+   * transmit requests that the driver queues on it, see LEAF_MAX_OUTSTANDING_TX.
+   */
+  @Test
+  public void testTxCredits() throws Exception {
+    driver.busOn(0);
+    driver.busOn(1);
+    device.holdResponses();
+    for (int channel = 0; channel < 2; channel++) {
+      driver.setWriteTimeout(channel, 0);
+      for (int i = 0; i < 64; i++) {
+        driver.write(channel, createMessage(i));
+      }
+      assertEquals(64, driver.getOutstandingTxCount(channel));
+    }
+    long commands = device.getCommandCount();
+    try {
+      driver.write(0, createMessage(64));
+      fail("Message written without credit");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.TX_BUFFER_FULL, e.getErrorDetail());
+    }
+    assertEquals(commands, device.getCommandCount());
+    device.releaseResponses(transport);
+    waitForOutstandingTx(driver, 0, 0);
+    waitForOutstandingTx(driver, 1, 0);
+    assertEquals(0, driver.getOutstandingTxCount(0));
+
+    // A write that the transport has no room for fails, and gives back its credits
+    transport.setFull(true);
+    try {
+      driver.write(0, createMessage(1));
+      fail("Message not queued by the transport");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.TX_BUFFER_FULL, e.getErrorDetail());
+    }
+    CanMessage[] msgs = new CanMessage[100];
+    for (int i = 0; i < msgs.length; i++) {
+      msgs[i] = createMessage(i);
+    }
+    try {
+      driver.write(0, new TxFrames(msgs, 0, msgs.length));
+      fail("Batch not queued by the transport");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.TX_BUFFER_FULL, e.getErrorDetail());
+    }
+    try {
+      driver.writeAndConfirm(0, createMessage(1));
+      fail("Message not queued by the transport");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.TX_BUFFER_FULL, e.getErrorDetail());
+    }
+    assertEquals(0, driver.getOutstandingTxCount(0));
+    assertEquals(commands, device.getCommandCount());
+
+    // The batch is larger than the window, so it waits for the acknowledgements of its first part
+    transport.setFull(false);
+    driver.setWriteTimeout(0, KvChannel.WRITE_TIMEOUT_INFINITE);
+    driver.write(0, new TxFrames(msgs, 0, msgs.length));
+    waitForOutstandingTx(driver, 0, 0);
+    assertEquals(0, driver.getOutstandingTxCount(0));
+  }
+
+  @Test
+  public void testPooledReception() throws InterruptedException {
+    driver.enableMessagePool(1, 16);
+    CountingChannelListener rx = new CountingChannelListener(1);
+    driver.registerCanChannelEventListener(rx);
+    byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+    for (int i = 0; i < 100; i++) {
+      device.receive(transport, 1, i, i % 2 == 0, data);
+    }
+    rx.await(100);
+    long allocated = driver.getMessagePool(1).getAllocatedCount();
+    for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+      device.receive(transport, 1, i & 0x7ff, false, data);
+    }
+    rx.await(100 + NUMBER_OF_MESSAGES);
+    assertEquals(100 + NUMBER_OF_MESSAGES, rx.count);
+    assertEquals("Steady state reception expected to allocate no messages", allocated,
+                 driver.getMessagePool(1).getAllocatedCount());
+  }
+
+  @Test
+  public void testBatchReception() throws InterruptedException {
+    CollectingBatchListener batchListener = new CollectingBatchListener();
+    driver.registerCanBatchListener(1, batchListener);
+    int[] ids = new int[20];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = 0x10000 + i;
+    }
+    byte[] data = {1, 2, 3, 4, 5};
+    device.receive(transport, 1, ids, true, data);
+    batchListener.await(1);
+
+    assertEquals(1, batchListener.batches.size());
+    CanFrameBatch batch = batchListener.batches.get(0);
+    assertEquals(1, batch.getChannelIndex());
+    assertEquals(ids.length, batch.size());
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals(ids[i], batch.getIds()[i]);
+      assertEquals(5, batch.getDlcs()[i]);
+      assertEquals(5, batch.getDataLengths()[i]);
+      assertTrue((batch.getFlags()[i] & CanMessage.FLAG_EXTENDED_ID) != 0);
+      assertEquals(5, batch.getData()[batch.getDataOffsets()[i] + 4]);
+    }
+    CanMessage msg = batch.getMessage(3, new CanMessage());
+    assertEquals(ids[3], msg.id);
+    assertEquals(CanMessage.Direction.RX, msg.getDirection());
+
+    // Nothing more is delivered to an unregistered listener
+    driver.unregisterCanBatchListener(1, batchListener);
+    CountingChannelListener rx = new CountingChannelListener(1);
+    driver.registerCanChannelEventListener(rx);
+    device.receive(transport, 1, ids, true, data);
+    rx.await(ids.length);
+    assertEquals(ids.length, rx.count);
+    assertEquals(1, batchListener.batches.size());
+  }
+}
@@ -0,0 +1,1090 @@
+package com.kvaser.canlib;
+
+import static com.kvaser.canlib.PipeTestHelper.*;
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import org.junit.rules.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs the KCany driver against a scripted Hydra device over an in-memory transport.
+ */
+public class KCanyPipeTest {
+
+  private static final int NUMBER_OF_MESSAGES = 20000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ScriptedHydraDevice device;
+  private PipeTransport transport;
+  private KCany driver;
+
+  @Before
+  public void setUp() throws CanLibException {
+    device = new ScriptedHydraDevice(2);
+    transport = new PipeTransport(device);
+    driver = new KCany(transport, 512, KvDevices.LEAF_PRO_HS_V2);
+  }
+
+  @After
+  public void tearDown() {
+    transport.close();
+  }
+
+  @Test
+  public void testInit() throws CanLibException {
+    assertEquals(2, driver.getNumberOfChannels());
+    assertEquals(ScriptedHydraDevice.SERIAL_NUMBER, driver.getSerialNumber());
+  }
+
+  /*
+   * The device is opened with its init requests outstanding at the same time, so a slow device
+   * does not delay each of them.
+   */
+  @Test
+  public void testInitWithResponseDelay() throws CanLibException {
+    ScriptedHydraDevice slowDevice = new ScriptedHydraDevice(2);
+    slowDevice.setResponseDelay(5);
+    PipeTransport slowTransport = new PipeTransport(slowDevice);
+    try {
+      KCany slowDriver = new KCany(slowTransport, 512, KvDevices.LEAF_PRO_HS_V2);
+      assertEquals(2, slowDriver.getNumberOfChannels());
+      assertEquals(ScriptedHydraDevice.SERIAL_NUMBER, slowDriver.getSerialNumber());
+    } finally {
+      slowTransport.close();
+      slowDevice.close();
+    }
+  }
+
+  @Test
+  public void testBusParams() throws CanLibException {
+    CanBusParams busParams = new CanBusParams();
+    busParams.bitRate = 500000;
+    driver.setBusParams(1, busParams);
+    assertEquals(500000, driver.getBusParams(1).bitRate);
+    assertEquals(125000, driver.getBusParams(0).bitRate);
+  }
+
+  @Test
+  public void testBusOutputControl() throws CanLibException {
+    driver.setBusOutputControl(0, CanDriverType.SILENT);
+    assertEquals(CanDriverType.SILENT, driver.getBusOutputControl(0));
+  }
+
+  @Test
+  public void testPooledReception() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel pooledChannel = kvDevice.openChannel(1, null);
+    KvChannel copyingChannel = kvDevice.openChannel(1, null);
+    pooledChannel.enableMessagePool(16);
+
+    final int warmUpMessages = 100;
+    final int steadyStateMessages = 10000;
+    final CountDownLatch warmedUp = new CountDownLatch(warmUpMessages);
+    final CountDownLatch pooledMessages = new CountDownLatch(warmUpMessages + steadyStateMessages);
+    final CountDownLatch copiedMessages = new CountDownLatch(warmUpMessages + steadyStateMessages);
+    final boolean[] copiedWerePooled = {false};
+    pooledChannel.registerCanMessageListener(new CanMessageListener() {
+      public void canMessageReceived(CanMessage msg) {
+        warmedUp.countDown();
+        pooledMessages.countDown();
+        msg.release();
+      }
+    });
+    copyingChannel.registerCanMessageListener(new CanMessageListener() {
+      public void canMessageReceived(CanMessage msg) {
+        copiedWerePooled[0] |= msg.isPooled();
+        copiedMessages.countDown();
+      }
+    });
+
+    byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+    for (int i = 0; i < warmUpMessages; i++) {
+      device.receive(transport, 1, i, false, data);
+    }
+    assertTrue(warmedUp.await(10, TimeUnit.SECONDS));
+    long allocated = driver.getMessagePool(1).getAllocatedCount();
+    for (int i = 0; i < steadyStateMessages; i++) {
+      device.receive(transport, 1, i & 0x7ff, false, data);
+    }
+    assertTrue(pooledMessages.await(10, TimeUnit.SECONDS));
+    assertTrue(copiedMessages.await(10, TimeUnit.SECONDS));
+
+    assertEquals("Steady state reception expected to allocate no messages", allocated,
+                 driver.getMessagePool(1).getAllocatedCount());
+    assertFalse("Channel without pool expected to get copies", copiedWerePooled[0]);
+
+    pooledChannel.close();
+    assertNull(driver.getMessagePool(1));
+  }
+
+  @Test
+  public void testSharedMessagePool() throws CanLibException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel first = kvDevice.openChannel(1, null);
+    KvChannel second = kvDevice.openChannel(1, null);
+    first.enableMessagePool(16);
+    second.enableMessagePool(16);
+    CanMessagePool pool = driver.getMessagePool(1);
+    first.enableMessagePool(32);
+    assertNotSame("A larger pool expected to replace the pool", pool, driver.getMessagePool(1));
+
+    first.close();
+    assertNotNull("Pool expected to be kept while another channel uses it",
+                  driver.getMessagePool(1));
+    second.disableMessagePool();
+    assertNull(driver.getMessagePool(1));
+    second.close();
+  }
+
+  @Test
+  public void testRegisterDuringReception() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    final KvChannel channel = kvDevice.openChannel(1, null);
+    final int messages = 10000;
+    final CountDownLatch received = new CountDownLatch(messages);
+    channel.registerCanMessageListener(new CanMessageListener() {
+      public void canMessageReceived(CanMessage msg) {
+        received.countDown();
+      }
+    });
+
+    // Listeners and filters come and go on another thread while the driver dispatches
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread churn = new Thread(new Runnable() {
+      public void run() {
+        CanMessageListener listener = new CanMessageListener() {
+          public void canMessageReceived(CanMessage msg) {
+          }
+        };
+        CanMessageFilter filter = new CanMessageFilter();
+        filter.idMax = 0x7ff;
+        CountingChannelListener channelListener = new CountingChannelListener(1);
+        try {
+          while (running.get()) {
+            channel.registerCanMessageListener(listener);
+            channel.addFilter(filter);
+            driver.registerCanChannelEventListener(channelListener);
+            channel.unregisterCanMessageListener(listener);
+            channel.removeFilter(filter);
+            driver.unregisterCanChannelEventListener(channelListener);
+          }
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    });
+    churn.start();
+    byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+    for (int i = 0; i < messages; i++) {
+      device.receive(transport, 1, i & 0x7ff, false, data);
+    }
+    boolean allReceived = received.await(10, TimeUnit.SECONDS);
+    running.set(false);
+    churn.join();
+
+    assertNull(failure.get());
+    assertTrue(allReceived);
+    channel.close();
+  }
+
+  @Test
+  public void testFilterAlteredInPlace() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel channel = kvDevice.openChannel(1, null);
+    CanMessageFilter channelFilter = new CanMessageFilter();
+    channelFilter.idMax = 0xff;
+    channel.addFilter(channelFilter);
+    CanMessageFilter listenerFilter = new CanMessageFilter();
+    listenerFilter.idMax = 0xff;
+    final List<Integer> ids = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch first = new CountDownLatch(1);
+    final CountDownLatch received = new CountDownLatch(2);
+    channel.registerCanMessageListener(new CanMessageListener() {
+      public void canMessageReceived(CanMessage msg) {
+        ids.add(msg.id);
+        first.countDown();
+        received.countDown();
+      }
+    }, listenerFilter);
+
+    byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+    device.receive(transport, 1, 0x150, false, data);
+    device.receive(transport, 1, 0x050, false, data);
+    assertTrue(first.await(10, TimeUnit.SECONDS));
+    // Both filters are retuned without being added again, the change takes effect when the filters
+    // are checked next, see KvChannel.FILTER_CHECK_PERIOD_MS
+    channelFilter.idMax = 0x1ff;
+    listenerFilter.idMin = 0x100;
+    listenerFilter.idMax = 0x1ff;
+    long deadline = System.currentTimeMillis() + 10000;
+    while ((received.getCount() > 0) && (System.currentTimeMillis() < deadline)) {
+      device.receive(transport, 1, 0x150, false, data);
+      Thread.sleep(10);
+    }
+    device.receive(transport, 1, 0x050, false, data);
+    device.receive(transport, 1, 0x151, false, data);
+    deadline = System.currentTimeMillis() + 10000;
+    while (!ids.contains(0x151) && (System.currentTimeMillis() < deadline)) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(0x050, (int) ids.get(0));
+    assertEquals(0x150, (int) ids.get(1));
+    assertEquals("Filtered out after the change", 1, Collections.frequency(ids, 0x050));
+    assertEquals(0x151, (int) ids.get(ids.size() - 1));
+    channel.close();
+  }
+
+  @Test
+  public void testListenerFilters() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel channel = kvDevice.openChannel(1, null);
+    final AtomicInteger channelFilterRuns = new AtomicInteger();
+    CanMessageFilter channelFilter = new CanMessageFilter() {
+      boolean filter(int id, boolean extended) {
+        channelFilterRuns.incrementAndGet();
+        return super.filter(id, extended);
+      }
+    };
+    channelFilter.idMax = 0x2ff;
+    channel.addFilter(channelFilter);
+    channelFilterRuns.set(0);
+    CanMessageFilter listenerFilter = new CanMessageFilter();
+    listenerFilter.idMin = 0x100;
+    listenerFilter.idMax = 0x1ff;
+
+    final List<Integer> filteredIds = Collections.synchronizedList(new ArrayList<Integer>());
+    final List<Integer> allIds = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch received = new CountDownLatch(2);
+    channel.registerCanMessageListener(new CanMessageListener() {
+      public void canMessageReceived(CanMessage msg) {
+        filteredIds.add(msg.id);
+      }
+    }, listenerFilter);
+    channel.registerCanMessageListener(new CanMessageListener() {
+      public void canMessageReceived(CanMessage msg) {
+        allIds.add(msg.id);
+        received.countDown();
+      }
+    });
+
+    byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+    device.receive(transport, 1, 0x350, false, data);
+    device.receive(transport, 1, 0x050, false, data);
+    device.receive(transport, 1, 0x150, false, data);
+    assertTrue(received.await(10, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList(0x150), filteredIds);
+    assertEquals(Arrays.asList(0x050, 0x150), allIds);
+    // Standard IDs are looked up in the table compiled when the filter was added
+    assertEquals(0, channelFilterRuns.get());
+    channel.close();
+  }
+
+  @Test
+  public void testIdListeners() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel channel = kvDevice.openChannel(1, null);
+    final List<Integer> singleIds = Collections.synchronizedList(new ArrayList<Integer>());
+    final List<Integer> rangeIds = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch received = new CountDownLatch(3);
+    CanMessageListener singleListener = new CanMessageListener() {
+      public void canMessageReceived(CanMessage msg) {
+        singleIds.add(msg.id);
+        received.countDown();
+      }
+    };
+    channel.registerCanMessageListener(0x123, singleListener);
+    channel.registerCanMessageListener(0x200, 0x2ff, new CanMessageListener() {
+      public void canMessageReceived(CanMessage msg) {
+        rangeIds.add(msg.id);
+        received.countDown();
+      }
+    });
+    try {
+      channel.registerCanMessageListener(0x800, singleListener);
+      fail("Extended ID registered on a standard channel");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorCode.ERR_PARAM, e.getErrorCode());
+    }
+
+    byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+    device.receive(transport, 1, 0x123, false, data);
+    device.receive(transport, 1, 0x124, false, data);
+    device.receive(transport, 1, 0x123, true, data);
+    device.receive(transport, 1, 0x200, false, data);
+    device.receive(transport, 1, 0x2ff, false, data);
+    assertTrue(received.await(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList(0x123), singleIds);
+    assertEquals(Arrays.asList(0x200, 0x2ff), rangeIds);
+
+    channel.unregisterCanMessageListener(singleListener);
+    final CountDownLatch last = new CountDownLatch(1);
+    channel.registerCanMessageListener(0x124, new CanMessageListener() {
+      public void canMessageReceived(CanMessage msg) {
+        last.countDown();
+      }
+    });
+    device.receive(transport, 1, 0x123, false, data);
+    device.receive(transport, 1, 0x124, false, data);
+    assertTrue(last.await(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList(0x123), singleIds);
+    channel.close();
+  }
+
+  @Test
+  public void testListenerExecutor() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel channel = kvDevice.openChannel(1, null);
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final List<CanMessage> slowMessages = Collections.synchronizedList(new ArrayList<CanMessage>());
+    final List<Thread> slowThreads = Collections.synchronizedList(new ArrayList<Thread>());
+    CanMessageListener slowListener = new CanMessageListener() {
+      public void canMessageReceived(CanMessage msg) {
+        slowThreads.add(Thread.currentThread());
+        slowMessages.add(msg);
+        try {
+          blocked.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    final CountDownLatch inlineReceived = new CountDownLatch(16);
+    final List<Thread> inlineThreads = Collections.synchronizedList(new ArrayList<Thread>());
+    channel.registerCanMessageListener(slowListener, null, 4);
+    channel.registerCanMessageListener(new CanMessageListener() {
+      public void canMessageReceived(CanMessage msg) {
+        inlineThreads.add(Thread.currentThread());
+        inlineReceived.countDown();
+      }
+    });
+
+    int[] ids = new int[16];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = 0x100 + i;
+    }
+    byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+    device.receive(transport, 1, ids, false, data);
+    // The blocked listener does not hold up the reception or the inline listener
+    assertTrue(inlineReceived.await(10, TimeUnit.SECONDS));
+    long dropped = channel.getDroppedMessageCount(slowListener);
+    assertTrue(dropped >= ids.length - 5);
+
+    blocked.countDown();
+    int queued = (int) (ids.length - dropped);
+    long deadline = System.currentTimeMillis() + 10000;
+    while ((slowMessages.size() < queued) && (System.currentTimeMillis() < deadline)) {
+      Thread.sleep(10);
+    }
+    assertEquals(queued, slowMessages.size());
+    // The first message delivered after the drops is flagged
+    int flagged = 0;
+    for (CanMessage msg : slowMessages) {
+      if (msg.isFlagSet(CanMessage.MessageFlags.ERR_SW_OVERRUN)) {
+        flagged++;
+      }
+    }
+    assertEquals(1, flagged);
+    assertNotSame(inlineThreads.get(0), slowThreads.get(0));
+
+    channel.unregisterCanMessageListener(slowListener);
+    assertEquals(0, channel.getDroppedMessageCount(slowListener));
+    channel.close();
+  }
+
+  @Test
+  public void testReadQueue() throws Exception {
+    KvDevice kvDevice = new KvDevice(driver);
+    final KvChannel channel = kvDevice.openChannel(1, null);
+    try {
+      channel.read();
+      fail("Read without a read queue");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.READ_QUEUE_DISABLED, e.getErrorDetail());
+    }
+    channel.enableReadQueue(64);
+    assertNull(channel.read());
+    assertNull(channel.read(10));
+
+    // A reader waiting on an empty queue is woken up by the receive thread
+    ExecutorService reader = Executors.newSingleThreadExecutor();
+    Future<CanMessage> waiting = reader.submit(new Callable<CanMessage>() {
+      public CanMessage call() throws CanLibException {
+        return channel.read(10000);
+      }
+    });
+    Thread.sleep(50);
+    byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+    device.receive(transport, 1, 0x100, false, data);
+    assertEquals(0x100, waiting.get(10, TimeUnit.SECONDS).id);
+    reader.shutdown();
+
+    int[] ids = new int[16];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = 0x200 + i;
+    }
+    device.receive(transport, 1, ids, false, data);
+    CanMessage[] messages = new CanMessage[10];
+    assertEquals(10, channel.readBatch(messages, 10, 10000));
+    assertEquals(0x200, messages[0].id);
+    assertEquals(0x209, messages[9].id);
+    CanFrameBatch batch = new CanFrameBatch(1, 4);
+    int count = 0;
+    while (count < 6) {
+      count += channel.readBatch(batch, 6 - count, 10000);
+      assertEquals(0x20a + count - 1, batch.getIds()[batch.size() - 1]);
+    }
+    assertEquals(0, channel.readBatch(batch, 6, 0));
+    assertEquals(0, batch.size());
+
+    // Frames that do not fit are dropped and the next message read is flagged
+    CountingChannelListener counter = new CountingChannelListener(1);
+    driver.registerCanChannelEventListener(counter);
+    for (int transfer = 0; transfer < 5; transfer++) {
+      device.receive(transport, 1, ids, false, data);
+    }
+    counter.await(5 * ids.length);
+    assertTrue(channel.read().isFlagSet(CanMessage.MessageFlags.ERR_SW_OVERRUN));
+    int read = 1;
+    CanMessage msg;
+    while ((msg = channel.read()) != null) {
+      assertFalse(msg.isFlagSet(CanMessage.MessageFlags.ERR_SW_OVERRUN));
+      read++;
+    }
+    assertEquals(64, read);
+
+    channel.disableReadQueue();
+    try {
+      channel.read(10);
+      fail("Read after the read queue was disabled");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.READ_QUEUE_DISABLED, e.getErrorDetail());
+    }
+    channel.close();
+  }
+
+  @Test
+  public void testBatchReception() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel channel = kvDevice.openChannel(1, null);
+    CollectingBatchListener batchListener = new CollectingBatchListener();
+    channel.registerCanBatchListener(batchListener);
+
+    // One transfer of 16 commands fills a 512 byte packet
+    int[] ids = new int[16];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = 0x100 + i;
+    }
+    byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+    device.receive(transport, 1, ids, false, data);
+    batchListener.await(1);
+
+    assertEquals(1, batchListener.batches.size());
+    CanFrameBatch batch = batchListener.batches.get(0);
+    assertEquals(1, batch.getChannelIndex());
+    assertEquals(ids.length, batch.size());
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals(ids[i], batch.getIds()[i]);
+      assertEquals(8, batch.getDlcs()[i]);
+      assertEquals(i * 8, batch.getDataOffsets()[i]);
+      assertTrue((batch.getFlags()[i] & CanMessage.FLAG_STANDARD_ID) != 0);
+      assertEquals(8, batch.getData()[batch.getDataOffsets()[i] + 7]);
+    }
+
+    // Message listeners still get every frame on their own
+    CountingChannelListener rx = new CountingChannelListener(1);
+    driver.registerCanChannelEventListener(rx);
+    device.receive(transport, 1, ids, true, data);
+    rx.await(ids.length);
+    batchListener.await(2);
+    assertEquals(ids.length, rx.count);
+    assertEquals(2, batchListener.batches.size());
+    assertTrue((batchListener.batches.get(1).getFlags()[0] & CanMessage.FLAG_EXTENDED_ID) != 0);
+
+    channel.unregisterCanBatchListener(batchListener);
+    channel.close();
+  }
+
+  @Test
+  public void testCanFdModeAppliedOnOpen() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel channel = kvDevice.openChannel(0, EnumSet.of(KvChannel.ChannelFlags.CAN_FD));
+    assertEquals("Mode expected to be sent on open, without setBusParamsFd",
+                 CmdSetBusParamsFd.CANFD_MODE_ISO, device.getCanFdMode(0));
+    assertEquals("Data phase parameters expected to be kept", 1000000,
+                 channel.getBusParamsFd().bitRate);
+    channel.busOn();
+    CanMessage msg = new CanMessage(0x123, 12, new byte[12]);
+    msg.setFlagBits(CanMessage.FLAG_FD_EDL);
+    channel.write(msg);
+    channel.busOff();
+
+    channel.close();
+    // The mode is sent without waiting for the response
+    for (int i = 0; i < 100 && device.getCanFdMode(0) != CmdSetBusParamsFd.CANFD_MODE_CLASSIC;
+         i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(CmdSetBusParamsFd.CANFD_MODE_CLASSIC, device.getCanFdMode(0));
+
+    KvChannel classic = kvDevice.openChannel(0, EnumSet.noneOf(KvChannel.ChannelFlags.class));
+    classic.busOn();
+    try {
+      classic.write(msg);
+      fail("CAN FD message expected to be rejected on a channel reopened without CAN FD");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorCode.ERR_PARAM, e.getErrorCode());
+    }
+    classic.close();
+  }
+
+  @Test
+  public void testCanFdModeSharedByChannels() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel first = kvDevice.openChannel(0, EnumSet.of(KvChannel.ChannelFlags.CAN_FD));
+    KvChannel second = kvDevice.openChannel(0, EnumSet.of(KvChannel.ChannelFlags.CAN_FD));
+    try {
+      kvDevice.openChannel(0, EnumSet.of(KvChannel.ChannelFlags.CAN_FD_NON_ISO));
+      fail("Channel opened in another CAN FD mode while in use");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorCode.ERR_ACCESS, e.getErrorCode());
+    }
+
+    // The channel stays in CAN FD mode while the other KvChannel is open
+    first.close();
+    Thread.sleep(50);
+    assertEquals(CmdSetBusParamsFd.CANFD_MODE_ISO, device.getCanFdMode(0));
+    second.busOn();
+    CanMessage msg = new CanMessage(0x123, 12, new byte[12]);
+    msg.setFlagBits(CanMessage.FLAG_FD_EDL);
+    second.write(msg);
+    second.busOff();
+
+    second.close();
+    for (int i = 0; i < 100 && device.getCanFdMode(0) != CmdSetBusParamsFd.CANFD_MODE_CLASSIC;
+         i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(CmdSetBusParamsFd.CANFD_MODE_CLASSIC, device.getCanFdMode(0));
+    // The failed open did not keep the channel locked
+    kvDevice.openChannel(0, EnumSet.of(KvChannel.ChannelFlags.EXCLUSIVE)).close();
+  }
+
+  @Test
+  public void testCanFd() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel sender = kvDevice.openChannel(0, EnumSet.of(KvChannel.ChannelFlags.CAN_FD));
+    KvChannel receiver = kvDevice.openChannel(1, EnumSet.of(KvChannel.ChannelFlags.CAN_FD));
+    CanBusParams dataBusParams = new CanBusParams(2000000, 15, 4, 4);
+    sender.setBusParamsFd(dataBusParams);
+    receiver.setBusParamsFd(dataBusParams);
+    assertEquals(2000000, receiver.getBusParamsFd().bitRate);
+
+    CollectingBatchListener txAcks = new CollectingBatchListener();
+    CollectingBatchListener rx = new CollectingBatchListener();
+    sender.registerCanBatchListener(txAcks);
+    receiver.registerCanBatchListener(rx);
+    receiver.busOn();
+    sender.busOn();
+
+    byte[] data = new byte[64];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    CanMessage msg = new CanMessage(0x1234567, 64, data);
+    msg.setFlagBits(CanMessage.FLAG_EXTENDED_ID | CanMessage.FLAG_FD_EDL
+                    | CanMessage.FLAG_FD_BRS);
+    sender.write(msg);
+    rx.await(1);
+    txAcks.await(1);
+
+    assertEquals(1, rx.batches.size());
+    CanMessage received = rx.batches.get(0).getMessage(0, new CanMessage());
+    assertEquals(0x1234567, received.id);
+    assertEquals(64, received.dlc);
+    assertTrue(received.isFlagSet(CanMessage.MessageFlags.EXTENDED_ID));
+    assertTrue(received.isFlagSet(CanMessage.MessageFlags.FD_EDL));
+    assertTrue(received.isFlagSet(CanMessage.MessageFlags.FD_BRS));
+    assertArrayEquals(data, Arrays.copyOf(received.data, 64));
+
+    assertEquals(1, txAcks.batches.size());
+    CanMessage ack = txAcks.batches.get(0).getMessage(0, new CanMessage());
+    assertEquals(CanMessage.Direction.TX, ack.direction);
+    assertEquals(64, ack.dlc);
+    assertArrayEquals(data, Arrays.copyOf(ack.data, 64));
+
+    // 10 is not a CAN FD data length
+    msg.dlc = 10;
+    try {
+      sender.write(msg);
+      fail("Illegal DLC expected");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.ILLEGAL_DLC, e.getErrorDetail());
+    }
+
+    sender.close();
+    receiver.close();
+  }
+
+  @Test
+  public void testCachedDeviceProfile() throws CanLibException {
+    DeviceProfileCache cache = new DeviceProfileCache(new File(folder.getRoot(), "profiles"));
+    ScriptedHydraDevice firstDevice = new ScriptedHydraDevice(2);
+    PipeTransport firstTransport = new PipeTransport(firstDevice);
+    try {
+      new KCany(firstTransport, 512, KvDevices.LEAF_PRO_HS_V2, cache);
+    } finally {
+      firstTransport.close();
+    }
+
+    ScriptedHydraDevice cachedDevice = new ScriptedHydraDevice(2);
+    PipeTransport cachedTransport = new PipeTransport(cachedDevice);
+    try {
+      KCany cachedDriver = new KCany(cachedTransport, 512, KvDevices.LEAF_PRO_HS_V2, cache);
+      assertEquals("Only the card info and software details expected to be queried", 2,
+                   cachedDevice.getCommandCount());
+      assertTrue(firstDevice.getCommandCount() > cachedDevice.getCommandCount());
+      assertEquals(ScriptedHydraDevice.SERIAL_NUMBER, cachedDriver.getSerialNumber());
+
+      // The cached channel map must address the right channels
+      CanBusParams busParams = new CanBusParams();
+      busParams.bitRate = 250000;
+      cachedDriver.setBusParams(1, busParams);
+      assertEquals(250000, cachedDriver.getBusParams(1).bitRate);
+      assertEquals(125000, cachedDriver.getBusParams(0).bitRate);
+    } finally {
+      cachedTransport.close();
+    }
+  }
+
+  @Test
+  public void testPipelinedReconfiguration() throws CanLibException {
+    int channels = 5;
+    ScriptedHydraDevice device5 = new ScriptedHydraDevice(channels);
+    PipeTransport transport5 = new PipeTransport(device5);
+    try {
+      KCany driver5 = new KCany(transport5, 512, KvDevices.LEAF_PRO_HS_V2);
+      CanBusParams busParams = new CanBusParams();
+      busParams.bitRate = 500000;
+
+      device5.holdResponses();
+      long commandsBefore = device5.getCommandCount();
+      List<KvFuture<?>> futures = new ArrayList<>();
+      for (int i = 0; i < channels; i++) {
+        futures.add(driver5.setBusParamsAsync(i, busParams));
+        futures.add(driver5.busOnAsync(i));
+      }
+      KvFuture<Void> all = KvFuture.allOf(futures);
+      assertEquals("All requests expected to be sent before any response",
+                   2 * channels, device5.getCommandCount() - commandsBefore);
+      assertFalse(all.isDone());
+
+      device5.releaseResponses(transport5);
+      all.getResult();
+      List<KvFuture<CanBusParams>> params = new ArrayList<>();
+      for (int i = 0; i < channels; i++) {
+        params.add(driver5.getBusParamsAsync(i));
+      }
+      for (KvFuture<CanBusParams> param : params) {
+        assertEquals(500000, param.getResult().bitRate);
+      }
+    } finally {
+      transport5.close();
+    }
+  }
+
+  @Test
+  public void testWrite() throws CanLibException, InterruptedException {
+    CountingChannelListener tx = new CountingChannelListener(0);
+    CountingChannelListener rx = new CountingChannelListener(1);
+    driver.registerCanChannelEventListener(tx);
+    driver.registerCanChannelEventListener(rx);
+    driver.busOn(0);
+    driver.busOn(1);
+
+    for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+      CanMessage msg = new CanMessage(i & 0x7ff, 8, new byte[] {1, 2, 3, 4, 5, 6, 7, (byte) i});
+      msg.setFlag(CanMessage.MessageFlags.STANDARD_ID);
+      driver.write(0, msg);
+    }
+    rx.await(NUMBER_OF_MESSAGES);
+    tx.await(NUMBER_OF_MESSAGES);
+
+    assertEquals(NUMBER_OF_MESSAGES, rx.count);
+    assertEquals(0x7ff & (NUMBER_OF_MESSAGES - 1), rx.lastMessage.id);
+    assertEquals(CanMessage.Direction.RX, rx.lastMessage.getDirection());
+    assertEquals(CanMessage.Direction.TX, tx.lastMessage.getDirection());
+  }
+
+  @Test
+  public void testBatchWrite() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel txChannel = kvDevice.openChannel(0, null);
+    final List<CanMessage> received = Collections.synchronizedList(new ArrayList<CanMessage>());
+    driver.registerCanChannelEventListener(new CountingChannelListener(1) {
+      public void canChannelEvent(CanChannelEventType eventType, Object eventData) {
+        if (eventType == CanChannelEventType.MESSAGE) {
+          received.add(new CanMessage((CanMessage) eventData));
+        }
+      }
+    });
+    driver.busOn(0);
+    driver.busOn(1);
+
+    CanMessage[] msgs = new CanMessage[52];
+    for (int i = 0; i < msgs.length; i++) {
+      msgs[i] = new CanMessage((i % 2 == 0) ? i : 0x18FEF000 + i, 8,
+                               new byte[] {1, 2, 3, 4, 5, 6, 7, (byte) i});
+      msgs[i].setFlag((i % 2 == 0) ? CanMessage.MessageFlags.STANDARD_ID
+                                   : CanMessage.MessageFlags.EXTENDED_ID);
+    }
+    // An invalid message stops the whole batch
+    msgs[51].id = 0x800;
+    msgs[51].setFlagBits(CanMessage.FLAG_STANDARD_ID);
+    long commands = device.getCommandCount();
+    try {
+      txChannel.write(msgs, 1, 51);
+      fail("Invalid ID written");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.ILLEGAL_ID, e.getErrorDetail());
+    }
+    assertEquals(commands, device.getCommandCount());
+
+    long transfers = device.getTransferCount();
+    txChannel.write(msgs, 1, 50);
+    waitForMessages(received, 50);
+    // All messages were handed to the transport at once
+    assertEquals(transfers + 1, device.getTransferCount());
+    assertEquals(50, received.size());
+    for (int i = 0; i < 50; i++) {
+      CanMessage msg = received.get(i);
+      assertEquals(msgs[i + 1].id, msg.id);
+      assertEquals((byte) (i + 1), msg.data[7]);
+      assertEquals((i % 2 == 0), msg.isFlagSet(CanMessage.MessageFlags.EXTENDED_ID));
+    }
+
+    // Replaying the received frames
+    CanFrameBatch batch = new CanFrameBatch(1, 4);
+    for (int i = 0; i < 10; i++) {
+      batch.add(received.get(i));
+    }
+    received.clear();
+    int[] flags = Arrays.copyOf(batch.getFlags(), batch.size());
+    txChannel.write(batch);
+    waitForMessages(received, 10);
+    assertArrayEquals("The written batch is not changed", flags,
+                      Arrays.copyOf(batch.getFlags(), batch.size()));
+    for (int i = 0; i < 10; i++) {
+      CanMessage msg = received.get(i);
+      assertEquals(msgs[i + 1].id, msg.id);
+      assertEquals((byte) (i + 1), msg.data[7]);
+      assertEquals((i % 2 == 0), msg.isFlagSet(CanMessage.MessageFlags.EXTENDED_ID));
+    }
+    txChannel.close();
+  }
+
+  @Test
+  public void testBatchWriteTransfers() throws CanLibException, InterruptedException {
+    KvDevice kvDevice = new KvDevice(driver);
+    KvChannel txChannel = kvDevice.openChannel(0, null);
+    CountingChannelListener rx = new CountingChannelListener(1);
+    driver.registerCanChannelEventListener(rx);
+    driver.busOn(0);
+    driver.busOn(1);
+
+    int batchSize = 50;
+    CanMessage[] msgs = new CanMessage[batchSize];
+    for (int i = 0; i < batchSize; i++) {
+      msgs[i] = new CanMessage(i, 8, new byte[] {1, 2, 3, 4, 5, 6, 7, (byte) i});
+    }
+    long transfers = device.getTransferCount();
+    for (int i = 0; i < NUMBER_OF_MESSAGES; i += batchSize) {
+      txChannel.write(msgs, 0, batchSize);
+    }
+    rx.await(NUMBER_OF_MESSAGES);
+    assertEquals(NUMBER_OF_MESSAGES, rx.count);
+    // One transfer per batch
+    assertEquals(NUMBER_OF_MESSAGES / batchSize, device.getTransferCount() - transfers);
+    txChannel.close();
+  }
+
+  /*
+   * The two channels share the send buffer of the transport, so each of them has half of the
+   * transmit requests that the driver queues on it, see KCANY_MAX_OUTSTANDING_TX.
+   */
+  @Test
+  public void testTxCredits() throws Exception {
+    driver.busOn(0);
+    driver.busOn(1);
+    device.holdResponses();
+    for (int channel = 0; channel < 2; channel++) {
+      driver.setWriteTimeout(channel, 0);
+      for (int i = 0; i < 64; i++) {
+        driver.write(channel, createMessage(i));
+      }
+      assertEquals(64, driver.getOutstandingTxCount(channel));
+    }
+    long commands = device.getCommandCount();
+    try {
+      driver.write(0, createMessage(64));
+      fail("Message written without credit");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.TX_BUFFER_FULL, e.getErrorDetail());
+    }
+    try {
+      driver.write(0, new TxFrames(new CanMessage[] {createMessage(64)}, 0, 1));
+      fail("Batch written without credit");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.TX_BUFFER_FULL, e.getErrorDetail());
+    }
+    assertEquals(commands, device.getCommandCount());
+
+    driver.setWriteTimeout(0, 100);
+    long start = System.nanoTime();
+    try {
+      driver.write(0, createMessage(64));
+      fail("Message written without credit");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.TX_BUFFER_FULL, e.getErrorDetail());
+    }
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+
+    // A blocked writer continues when the device acknowledges the messages
+    driver.setWriteTimeout(0, KvChannel.WRITE_TIMEOUT_INFINITE);
+    final AtomicReference<Exception> error = new AtomicReference<>();
+    Thread writer = new Thread(new Runnable() {
+      public void run() {
+        try {
+          driver.write(0, createMessage(64));
+        } catch (CanLibException e) {
+          error.set(e);
+        }
+      }
+    });
+    writer.start();
+    writer.join(100);
+    assertTrue(writer.isAlive());
+    device.releaseResponses(transport);
+    writer.join(10000);
+    assertFalse(writer.isAlive());
+    assertNull(error.get());
+    waitForOutstandingTx(driver, 0, 0);
+    waitForOutstandingTx(driver, 1, 0);
+    assertEquals(0, driver.getOutstandingTxCount(0));
+
+    // A write that the transport has no room for fails, and gives back its credits
+    commands = device.getCommandCount();
+    transport.setFull(true);
+    try {
+      driver.write(0, createMessage(1));
+      fail("Message not queued by the transport");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.TX_BUFFER_FULL, e.getErrorDetail());
+    }
+    CanMessage[] msgs = new CanMessage[100];
+    for (int i = 0; i < msgs.length; i++) {
+      msgs[i] = createMessage(i);
+    }
+    try {
+      driver.write(0, new TxFrames(msgs, 0, msgs.length));
+      fail("Batch not queued by the transport");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.TX_BUFFER_FULL, e.getErrorDetail());
+    }
+    try {
+      driver.writeAndConfirm(0, createMessage(1));
+      fail("Message not queued by the transport");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.TX_BUFFER_FULL, e.getErrorDetail());
+    }
+    // A request fails at once instead of after the response timeout
+    start = System.nanoTime();
+    try {
+      driver.getBusParams(0);
+      fail("Request not queued by the transport");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.TX_BUFFER_FULL, e.getErrorDetail());
+    }
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+    assertEquals(0, driver.getOutstandingTxCount(0));
+    assertEquals(commands, device.getCommandCount());
+
+    // The batch is larger than the window, so it waits for the acknowledgements of its first part
+    transport.setFull(false);
+    driver.write(0, new TxFrames(msgs, 0, msgs.length));
+    waitForOutstandingTx(driver, 0, 0);
+    assertEquals(0, driver.getOutstandingTxCount(0));
+
+    // Messages held by the device when it goes bus off are never acknowledged
+    device.holdResponses();
+    for (int i = 0; i < 10; i++) {
+      driver.write(0, createMessage(i));
+    }
+    assertEquals(10, driver.getOutstandingTxCount(0));
+    KvFuture<Void> busOff = driver.busOffAsync(0);
+    assertEquals(0, driver.getOutstandingTxCount(0));
+    device.releaseResponses(transport);
+    busOff.getResult();
+    // The late acknowledgements do not give back any credits
+    assertEquals(0, driver.getOutstandingTxCount(0));
+  }
+
+  /*
+   * A listener called by the receive thread can not wait for credits, since the acknowledgements
+   * that give them back are handled by that same thread.
+   */
+  @Test
+  public void testWriteFromListenerWithFullWindow() throws Exception {
+    final List<CanLibException> errors =
+        Collections.synchronizedList(new ArrayList<CanLibException>());
+    final CountDownLatch listenerCalls = new CountDownLatch(2);
+    CanChannelEventListener listener = new CountingChannelListener(1) {
+      public void canChannelEvent(CanChannelEventType eventType, Object eventData) {
+        if (eventType == CanChannelEventType.MESSAGE) {
+          try {
+            driver.write(0, createMessage(((CanMessage) eventData).id));
+          } catch (CanLibException e) {
+            errors.add(e);
+          }
+          listenerCalls.countDown();
+        }
+      }
+    };
+    driver.registerCanChannelEventListener(listener);
+    driver.busOn(0);
+    driver.busOn(1);
+    device.holdResponses();
+    driver.setWriteTimeout(0, 0);
+    for (int i = 0; i < 64; i++) {
+      driver.write(0, createMessage(i));
+    }
+    driver.setWriteTimeout(0, KvChannel.WRITE_TIMEOUT_INFINITE);
+
+    // Both writes fail at once instead of blocking the reception
+    device.receive(transport, 1, 0x10, false, new byte[8]);
+    device.receive(transport, 1, 0x11, false, new byte[8]);
+    assertTrue(listenerCalls.await(10, TimeUnit.SECONDS));
+    assertEquals(2, errors.size());
+    for (CanLibException e : errors) {
+      assertEquals(CanLibException.ErrorDetail.TX_BUFFER_FULL, e.getErrorDetail());
+    }
+    assertEquals(64, driver.getOutstandingTxCount(0));
+
+    driver.unregisterCanChannelEventListener(listener);
+    device.releaseResponses(transport);
+    waitForOutstandingTx(driver, 0, 0);
+    driver.write(0, createMessage(64));
+  }
+
+  @Test
+  public void testConcurrentWriters() throws Exception {
+    final int writers = 4;
+    final int messagesPerWriter = 2500;
+    final int[] received = new int[writers];
+    driver.registerCanChannelEventListener(new CountingChannelListener(1) {
+      public synchronized void canChannelEvent(CanChannelEventType eventType, Object eventData) {
+        if (eventType == CanChannelEventType.MESSAGE) {
+          received[((CanMessage) eventData).id]++;
+        }
+        super.canChannelEvent(eventType, eventData);
+      }
+    });
+    CountingChannelListener rx = new CountingChannelListener(1);
+    driver.registerCanChannelEventListener(rx);
+    driver.busOn(0);
+    driver.busOn(1);
+    driver.setWriteTimeout(0, KvChannel.WRITE_TIMEOUT_INFINITE);
+
+    final AtomicReference<Exception> error = new AtomicReference<>();
+    Thread[] threads = new Thread[writers];
+    for (int i = 0; i < writers; i++) {
+      final int id = i;
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            // Single messages and batches of ten messages, interleaved with the other writers
+            CanMessage[] msgs = new CanMessage[10];
+            for (int j = 0; j < messagesPerWriter; j += msgs.length) {
+              for (int k = 0; k < msgs.length; k++) {
+                msgs[k] = createMessage(id);
+              }
+              if (j % (2 * msgs.length) == 0) {
+                driver.write(0, new TxFrames(msgs, 0, msgs.length));
+              } else {
+                for (CanMessage msg : msgs) {
+                  driver.write(0, msg);
+                }
+              }
+            }
+          } catch (CanLibException e) {
+            error.set(e);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(error.get());
+    rx.await(writers * messagesPerWriter);
+    assertEquals(writers * messagesPerWriter, rx.count);
+    for (int i = 0; i < writers; i++) {
+      assertEquals(messagesPerWriter, received[i]);
+    }
+    waitForOutstandingTx(driver, 0, 0);
+    assertEquals(0, driver.getOutstandingTxCount(0));
+  }
+
+  @Test
+  public void testWriteAndConfirm() throws Exception {
+    CountingChannelListener tx = new CountingChannelListener(0);
+    driver.registerCanChannelEventListener(tx);
+    driver.busOn(0);
+    driver.busOn(1);
+    long acknowledged = driver.getTxLatencyHistogram(0).getCount();
+
+    List<KvFuture<Long>> confirmations = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      confirmations.add(driver.writeAndConfirm(0, createMessage(i)));
+      // Messages without a confirmation in between
+      driver.write(0, createMessage(i));
+    }
+    long previousTime = -1;
+    for (KvFuture<Long> confirmation : confirmations) {
+      long txTime = confirmation.get(10, TimeUnit.SECONDS);
+      // The scripted device's clock runs slowly, several messages may have the same time
+      assertTrue(txTime >= previousTime);
+      previousTime = txTime;
+    }
+    tx.await(200);
+    waitForOutstandingTx(driver, 0, 0);
+    LatencyHistogram histogram = driver.getTxLatencyHistogram(0);
+    assertEquals(acknowledged + 200, histogram.getCount());
+    assertTrue(histogram.getPercentileUs(50) <= histogram.getPercentileUs(100));
+
+    // The confirmation of a message discarded by the device fails
+    device.holdResponses();
+    KvFuture<Long> discarded = driver.writeAndConfirm(0, createMessage(0));
+    assertFalse(discarded.isDone());
+    KvFuture<Void> busOff = driver.busOffAsync(0);
+    try {
+      discarded.getResult();
+      fail("Discarded message confirmed");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.TX_DISCARDED, e.getErrorDetail());
+    }
+    device.releaseResponses(transport);
+    busOff.getResult();
+  }
+}
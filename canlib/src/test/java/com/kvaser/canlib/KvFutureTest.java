@@ -0,0 +1,104 @@
+package com.kvaser.canlib;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.nio.*;
+import java.util.concurrent.*;
+
+public class KvFutureTest {
+
+  @Test
+  public void testCompletionListener() throws CanLibException {
+    KvFuture<Integer> future = new KvFuture<>();
+    final int[] received = {0};
+    future.addCompletionListener(new CompletionListener<Integer>() {
+      public void completed(Integer result) {
+        received[0] = result;
+      }
+
+      public void failed(CanLibException exception) {
+        fail("Not expected to fail");
+      }
+    });
+    assertFalse(future.isDone());
+    assertTrue(future.complete(42));
+    assertFalse("Future expected to complete only once", future.complete(43));
+    assertEquals(42, received[0]);
+    assertEquals(42, (int) future.getResult());
+  }
+
+  @Test
+  public void testFailure() throws InterruptedException {
+    KvFuture<Void> future = new KvFuture<>();
+    future.fail(new CanLibException(CanLibException.ErrorCode.ERR_DEVICE,
+                                    CanLibException.ErrorDetail.COMMUNICATION_TIMEOUT));
+    try {
+      future.get();
+      fail("ExecutionException expected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CanLibException);
+    }
+    CanLibException first = null;
+    try {
+      future.getResult();
+      fail("CanLibException expected");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.COMMUNICATION_TIMEOUT, e.getErrorDetail());
+      first = e;
+    }
+    try {
+      future.getResult();
+      fail("CanLibException expected");
+    } catch (CanLibException e) {
+      assertNotSame("Each caller expected to get its own exception", first, e);
+      assertSame(first.getCause(), e.getCause());
+    }
+  }
+
+  @Test
+  public void testCancelRemovesPendingResponse() {
+    PendingResponseTable table = new PendingResponseTable();
+    PendingResponse response = table.register(1, 2, 10000);
+    KvFuture<ByteBuffer[]> future = PendingResponseTable.allOf(new PendingResponse[] {response});
+    assertTrue(future.cancel(false));
+    assertTrue(response.isCancelled());
+    assertFalse("Cancelled response expected to be removed from the table",
+                table.complete(1, 2, new byte[4], 0, 4));
+  }
+
+  @Test
+  public void testAllOf() throws CanLibException {
+    KvFuture<Void> first = new KvFuture<>();
+    KvFuture<String> second = new KvFuture<>();
+    KvFuture<Void> all = KvFuture.allOf(first, second);
+    first.complete(null);
+    assertFalse(all.isDone());
+    second.complete("done");
+    assertTrue(all.isDone());
+    all.getResult();
+
+    KvFuture<Void> third = new KvFuture<>();
+    KvFuture<Void> failing = KvFuture.allOf(third, new KvFuture<Void>());
+    third.fail(new CanLibException(CanLibException.ErrorCode.ERR_DEVICE));
+    assertTrue("allOf expected to fail as soon as one future fails", failing.isDone());
+  }
+
+  @Test
+  public void testThen() throws CanLibException {
+    KvFuture<Integer> future = new KvFuture<>();
+    KvFuture<String> next = future.then(new KvFuture.Function<Integer, String>() {
+      public String apply(Integer value) {
+        return "value " + value;
+      }
+    });
+    future.complete(1);
+    assertEquals("value 1", next.getResult());
+  }
+
+  @Test(expected = TimeoutException.class)
+  public void testGetTimeout() throws Exception {
+    new KvFuture<Void>().get(10, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,45 @@
+package com.kvaser.canlib;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBuckets() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(500);        // Below 1 us
+    histogram.record(1000);       // 1 us
+    histogram.record(3999);       // 3 us
+    histogram.record(100000);     // 100 us
+    histogram.record(-1);         // Counted as 0
+    assertEquals(5, histogram.getCount());
+    assertEquals(2, histogram.getCount(0));
+    assertEquals(1, histogram.getCount(1));
+    assertEquals(1, histogram.getCount(2));
+    assertEquals(1, histogram.getCount(7));
+    assertEquals(128, histogram.getUpperBoundUs(7));
+    assertEquals(100, histogram.getMaxUs());
+    assertEquals((500 + 1000 + 3999 + 100000) / 5 / 1000, histogram.getMeanUs());
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentileUs(99));
+    for (int i = 0; i < 99; i++) {
+      histogram.record(150000); // 150 us
+    }
+    histogram.record(3600000000000L); // One hour, in the last bucket
+    assertEquals(256, histogram.getPercentileUs(50));
+    assertEquals(256, histogram.getPercentileUs(99));
+    assertEquals(1, histogram.getCount(histogram.getNumberOfBuckets() - 1));
+    // The last bucket has no upper bound
+    assertEquals(3600000000L, histogram.getPercentileUs(100));
+
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMaxUs());
+  }
+}
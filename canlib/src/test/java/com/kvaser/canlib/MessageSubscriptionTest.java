@@ -0,0 +1,240 @@
+package com.kvaser.canlib;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs subscriptions to KvChannel.messages() on the virtual driver, where a message written on one
+ * channel is received on the other one on the writing thread.
+ */
+public class MessageSubscriptionTest {
+
+  private KvChannel txChannel;
+  private KvChannel rxChannel;
+
+  @Before
+  public void setUp() throws CanLibException {
+    KvDevice device = new KvDevice(new VirtualDriver());
+    txChannel = device.openChannel(0, null);
+    rxChannel = device.openChannel(1, null);
+    txChannel.busOn();
+    rxChannel.busOn();
+  }
+
+  @After
+  public void tearDown() {
+    txChannel.close();
+    rxChannel.close();
+  }
+
+  @Test
+  public void testRequest() throws Exception {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    rxChannel.messages().subscribe(subscriber);
+    assertNotNull(subscriber.subscription);
+    write(0, 10);
+    Thread.sleep(100);
+    assertTrue(subscriber.ids.isEmpty());
+
+    subscriber.subscription.request(5);
+    write(10, 10);
+    subscriber.await(5);
+    assertEquals(Arrays.asList(10, 11, 12, 13, 14), subscriber.ids);
+    assertEquals(15, subscriber.subscription.getDroppedMessageCount());
+
+    subscriber.subscription.request(Long.MAX_VALUE);
+    write(20, 3);
+    subscriber.await(8);
+    assertEquals(Arrays.asList(10, 11, 12, 13, 14, 20, 21, 22), subscriber.ids);
+
+    subscriber.subscription.request(0);
+    subscriber.awaitError();
+    assertTrue(subscriber.error instanceof IllegalArgumentException);
+    write(30, 1);
+    Thread.sleep(100);
+    assertEquals(8, subscriber.ids.size());
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    ManualExecutor executor = new ManualExecutor();
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    rxChannel.messages(16, OverflowPolicy.DROP_OLDEST, executor).subscribe(subscriber);
+    subscriber.subscription.request(4);
+    write(0, 10);
+    executor.runAll();
+    // The queue only held the requested number of messages, the most recent ones
+    assertEquals(Arrays.asList(6, 7, 8, 9), subscriber.ids);
+    assertEquals(6, subscriber.subscription.getDroppedMessageCount());
+  }
+
+  @Test
+  public void testErrorSignalledFromDrainTask() throws Exception {
+    ManualExecutor executor = new ManualExecutor();
+    final AtomicBoolean inOnNext = new AtomicBoolean(false);
+    final AtomicBoolean concurrent = new AtomicBoolean(false);
+    RecordingSubscriber subscriber = new RecordingSubscriber() {
+      public synchronized void onNext(CanMessage msg) {
+        inOnNext.set(true);
+        // An invalid request made while a message is delivered
+        subscription.request(-1);
+        super.onNext(msg);
+        inOnNext.set(false);
+      }
+
+      public void onError(Throwable throwable) {
+        concurrent.set(inOnNext.get());
+        super.onError(throwable);
+      }
+    };
+    rxChannel.messages(16, OverflowPolicy.DROP_NEWEST, executor).subscribe(subscriber);
+    subscriber.subscription.request(10);
+    write(0, 3);
+    assertNull(subscriber.error);
+    executor.runAll();
+    assertTrue(subscriber.error instanceof IllegalArgumentException);
+    assertFalse("onError expected after onNext has returned", concurrent.get());
+    assertEquals("No messages expected after the error", Arrays.asList(0), subscriber.ids);
+
+    RecordingSubscriber idle = new RecordingSubscriber();
+    rxChannel.messages(16, OverflowPolicy.DROP_NEWEST, executor).subscribe(idle);
+    idle.subscription.request(0);
+    assertNull("onError expected from the drain task", idle.error);
+    executor.runAll();
+    assertTrue(idle.error instanceof IllegalArgumentException);
+  }
+
+  @Test
+  public void testComplete() throws Exception {
+    ManualExecutor executor = new ManualExecutor();
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    rxChannel.messages(16, OverflowPolicy.DROP_NEWEST, executor).subscribe(subscriber);
+    subscriber.subscription.request(Long.MAX_VALUE);
+    write(0, 3);
+    rxChannel.close();
+    write(3, 3);
+    executor.runAll();
+    assertEquals(Arrays.asList(0, 1, 2), subscriber.ids);
+    assertTrue(subscriber.completed);
+  }
+
+  /*
+   * A subscriber that takes a millisecond per message and requests one message at a time, while
+   * messages are written as fast as possible. The subscription only keeps the requested message,
+   * the rest is dropped.
+   */
+  @Test
+  public void testSlowSubscriberBoundedMemory() throws Exception {
+    final int messages = 5000;
+    final AtomicInteger received = new AtomicInteger();
+    final AtomicLong requested = new AtomicLong();
+    final CanMessageSubscription[] subscription = new CanMessageSubscription[1];
+    rxChannel.messages(64, OverflowPolicy.DROP_NEWEST, null).subscribe(new CanMessageSubscriber() {
+      public void onSubscribe(CanMessageSubscription s) {
+        subscription[0] = s;
+        requested.incrementAndGet();
+        s.request(1);
+      }
+
+      public void onNext(CanMessage msg) {
+        received.incrementAndGet();
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        requested.incrementAndGet();
+        subscription[0].request(1);
+      }
+
+      public void onError(Throwable throwable) {
+      }
+
+      public void onComplete() {
+      }
+    });
+
+    CanMessageSubscription queued = subscription[0];
+    int maxQueued = 0;
+    for (int i = 0; i < messages; i++) {
+      write(i & 0x7ff, 1);
+      maxQueued = Math.max(maxQueued, queued.getQueuedMessageCount());
+      assertTrue(received.get() <= requested.get());
+    }
+    Thread.sleep(50);
+    long dropped = queued.getDroppedMessageCount();
+    assertTrue(maxQueued <= 1);
+    assertTrue(dropped > 0);
+    assertEquals(messages, received.get() + dropped);
+  }
+
+  private void write(int firstId, int count) throws CanLibException {
+    for (int i = 0; i < count; i++) {
+      txChannel.write(new CanMessage(firstId + i, 8, new byte[8]));
+    }
+  }
+
+  private static class RecordingSubscriber implements CanMessageSubscriber {
+
+    final List<Integer> ids = Collections.synchronizedList(new ArrayList<Integer>());
+    volatile CanMessageSubscription subscription;
+    volatile Throwable error;
+    volatile boolean completed;
+
+    public void onSubscribe(CanMessageSubscription subscription) {
+      this.subscription = subscription;
+    }
+
+    public synchronized void onNext(CanMessage msg) {
+      ids.add(msg.id);
+      notifyAll();
+    }
+
+    public synchronized void onError(Throwable throwable) {
+      error = throwable;
+      notifyAll();
+    }
+
+    public void onComplete() {
+      completed = true;
+    }
+
+    synchronized void await(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (ids.size() < count && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+    }
+
+    synchronized void awaitError() throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (error == null && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+    }
+  }
+
+  /*
+   * Runs the submitted tasks when the test asks for it.
+   */
+  private static class ManualExecutor implements Executor {
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+    }
+  }
+}
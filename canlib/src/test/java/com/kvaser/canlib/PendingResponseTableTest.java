@@ -0,0 +1,64 @@
+package com.kvaser.canlib;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class PendingResponseTableTest {
+
+  private final PendingResponseTable table = new PendingResponseTable();
+
+  @Test
+  public void testCompleteMatchesCmdAndTransId() throws CanLibException {
+    PendingResponse first = table.register(35, 1, 2000);
+    PendingResponse second = table.register(35, 2, 2000);
+    assertTrue(table.complete(35, 2, new byte[] {35, 0, 2}, 0, 3));
+    assertTrue(second.isDone());
+    assertFalse(first.isDone());
+    assertEquals(2, second.await().get(2));
+    assertFalse("Response expected to be completed only once",
+                table.complete(35, 2, new byte[] {35, 0, 2}, 0, 3));
+    assertFalse(table.complete(36, 1, new byte[] {36, 0, 1}, 0, 3));
+    assertTrue(table.remove(first));
+  }
+
+  @Test
+  public void testAnyTransId() throws CanLibException {
+    PendingResponse any = table.register(33, PendingResponseTable.ANY_TRANS_ID, 2000);
+    PendingResponse exact = table.register(33, 7, 2000);
+    byte[] bytes = {0, 0, 4, 33, 5};
+    assertTrue(table.complete(33, 5, bytes, 2, 3));
+    assertTrue(any.isDone());
+    assertFalse(exact.isDone());
+    assertEquals(5, any.await().get(2));
+    assertTrue(table.complete(33, 7, bytes, 2, 3));
+    assertTrue(exact.isDone());
+  }
+
+  @Test
+  public void testSameKeyCompletedInOrder() {
+    PendingResponse first = table.register(10, 1, 2000);
+    PendingResponse second = table.register(10, 1, 2000);
+    table.complete(10, 1, new byte[1], 0, 1);
+    assertTrue(first.isDone());
+    assertFalse(second.isDone());
+    table.complete(10, 1, new byte[1], 0, 1);
+    assertTrue(second.isDone());
+  }
+
+  @Test
+  public void testTimeout() {
+    PendingResponse response = table.register(10, 1, 50);
+    long start = System.nanoTime();
+    try {
+      response.await();
+      fail("Timeout expected");
+    } catch (CanLibException e) {
+      assertEquals(CanLibException.ErrorDetail.COMMUNICATION_TIMEOUT, e.getErrorDetail());
+    }
+    assertTrue((System.nanoTime() - start) >= 40000000L);
+    assertTrue(response.isTimedOut());
+    assertFalse("Timed out response expected to be removed",
+                table.complete(10, 1, new byte[1], 0, 1));
+  }
+}
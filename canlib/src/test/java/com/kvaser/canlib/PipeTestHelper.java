@@ -0,0 +1,44 @@
+package com.kvaser.canlib;
+
+import java.util.*;
+
+/**
+ * Messages and waits shared by the tests that run the drivers against the scripted devices.
+ */
+final class PipeTestHelper {
+
+  private PipeTestHelper() {
+  }
+
+  /**
+   * Returns a message with a standard ID and 8 data bytes.
+   */
+  static CanMessage createMessage(int id) {
+    CanMessage msg = new CanMessage(id, 8, new byte[8]);
+    msg.setFlag(CanMessage.MessageFlags.STANDARD_ID);
+    return msg;
+  }
+
+  /**
+   * Waits at most 10 seconds for the number of messages on a channel that the device has not
+   * acknowledged to become count.
+   */
+  static void waitForOutstandingTx(KvDeviceInterface driver, int channelIndex, int count)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (driver.getOutstandingTxCount(channelIndex) != count
+           && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Waits at most 10 seconds for a list filled by a listener to hold count messages.
+   */
+  static void waitForMessages(List<CanMessage> messages, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (messages.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+}
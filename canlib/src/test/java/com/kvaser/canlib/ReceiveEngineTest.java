@@ -0,0 +1,75 @@
+package com.kvaser.canlib;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+import java.util.*;
+
+/**
+ * Runs the ReceiveEngine against a simulated device FIFO. With a single request the device can
+ * only send while no listener is running, with more requests the transfers and the listeners
+ * overlap. The throughput per queue depth is printed by {@link CanLibBenchmark}.
+ */
+public class ReceiveEngineTest {
+
+  static final int FRAME_RATE = 100000;
+  private static final int FIFO_CAPACITY = 256;
+  private static final int TRANSFER_SIZE = 512;
+  private static final long TRANSFER_NANOS = 125000;
+  private static final long TRANSFER_PROCESSING_NANOS = 100000;
+  private static final long FRAME_PROCESSING_NANOS = 2000;
+  private static final long RUN_TIME_NANOS = 1000000000L;
+
+  @Test
+  public void testQueueDepth() {
+    long[][] results = new long[9][];
+    for (int depth : new int[] {1, 4}) {
+      results[depth] = run(depth);
+    }
+    assertTrue("Expected overruns with a single request", results[1][1] > 0);
+    assertEquals("Expected no overruns with four requests", 0, results[4][1]);
+    assertTrue("Expected higher throughput with four requests", results[4][0] > results[1][0]);
+  }
+
+  @Test
+  public void testDeliversAllFrames() {
+    final long[] frames = new long[1];
+    final SimulatedReceivePort port =
+        new SimulatedReceivePort(FRAME_RATE, FIFO_CAPACITY, TRANSFER_NANOS, RUN_TIME_NANOS / 10);
+    new ReceiveEngine(port, 4, TRANSFER_SIZE, Collections.<UsbListener>singletonList(
+        new UsbListener() {
+          public void UsbDataReceived(byte[] bytes, int length) {
+            assertEquals(0, length % SimulatedReceivePort.FRAME_SIZE);
+            for (int i = 0; i < length; i += SimulatedReceivePort.FRAME_SIZE) {
+              assertEquals(106, bytes[i]);
+            }
+            frames[0] += length / SimulatedReceivePort.FRAME_SIZE;
+            port.consume(TRANSFER_PROCESSING_NANOS);
+          }
+        })).run();
+    assertTrue(frames[0] > 0);
+    assertEquals(port.getTransferredFrames(), frames[0]);
+  }
+
+  /**
+   * Receives from the simulated FIFO for one second of simulated time.
+   *
+   * @param queueDepth The number of receive requests to keep queued.
+   * @return The delivered frames per second and the number of frames lost in FIFO overruns.
+   */
+  static long[] run(int queueDepth) {
+    final long[] frames = new long[1];
+    final SimulatedReceivePort port =
+        new SimulatedReceivePort(FRAME_RATE, FIFO_CAPACITY, TRANSFER_NANOS, RUN_TIME_NANOS);
+    UsbListener listener = new UsbListener() {
+      public void UsbDataReceived(byte[] bytes, int length) {
+        int count = length / SimulatedReceivePort.FRAME_SIZE;
+        port.consume(TRANSFER_PROCESSING_NANOS + count * FRAME_PROCESSING_NANOS);
+        frames[0] += count;
+      }
+    };
+    new ReceiveEngine(port, queueDepth, TRANSFER_SIZE, Collections.singletonList(listener)).run();
+    return new long[] {frames[0] * 1000000000L / RUN_TIME_NANOS, port.getOverrunFrames()};
+  }
+}
@@ -0,0 +1,459 @@
+package com.kvaser.canlib;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A scripted Hydra (KCany) device for running the KCany driver over a PipeTransport. The device
+ * answers the commands used by the driver, acknowledges transmitted messages and echoes them to all
+ * other channels that are bus on, like a bus where all channels are connected.
+ */
+class ScriptedHydraDevice implements PipeTransport.Peer {
+
+  static final int SERIAL_NUMBER = 12345;
+  static final int FIRMWARE_VERSION = (3 << 24) | (9 << 16) | 100;
+  static final byte[] EAN = {0x21, 0x43, 0x65, (byte) 0x87, 0x09, 0x33, 0x07, 0x00};
+
+  private static final int CMD_SIZE = KCany.KCANY_CMD_SIZE;
+  private static final int CMD_EXTENDED = 255;
+  private static final int ROUTER_HE = 0x00;
+  private static final int ILLEGAL_HE = 0x3e;
+  private static final int FIRST_CHANNEL_HE = 0x10;
+
+  private final int channelCount;
+  private final boolean[] busOn;
+  private final int[] bitrate;
+  private final int[] dataBitrate;
+  private final byte[] canFdMode;
+  private final byte[] driverMode;
+  private volatile int ticks = 0;
+  private volatile long commandCount = 0;
+  private volatile long transferCount = 0;
+  private volatile long answeredCount = 0;
+  private long responseDelayMs = 0;
+  private ScheduledExecutorService delayExecutor;
+  private boolean holdResponses = false;
+  private final List<byte[]> heldResponses = new ArrayList<>();
+
+  ScriptedHydraDevice(int channelCount) {
+    this.channelCount = channelCount;
+    busOn = new boolean[channelCount];
+    bitrate = new int[channelCount];
+    dataBitrate = new int[channelCount];
+    canFdMode = new byte[channelCount];
+    driverMode = new byte[channelCount];
+    Arrays.fill(bitrate, 125000);
+    Arrays.fill(dataBitrate, 1000000);
+    Arrays.fill(driverMode, (byte) 1);
+  }
+
+  /**
+   * Returns the number of commands the device has received.
+   */
+  long getCommandCount() {
+    return commandCount;
+  }
+
+  /**
+   * Returns the CAN FD mode of a channel, as last set with CMD_SET_BUSPARAMS_FD_REQ.
+   */
+  synchronized byte getCanFdMode(int channel) {
+    return canFdMode[channel];
+  }
+
+  /**
+   * Returns the number of transfers the device has received, each holding one or more commands.
+   */
+  long getTransferCount() {
+    return transferCount;
+  }
+
+  /**
+   * Returns the number of commands the device has responded to.
+   */
+  long getAnsweredCount() {
+    return answeredCount;
+  }
+
+  /**
+   * Makes the device deliver its responses the given time after the commands were received, like
+   * the round-trip time of a real device. The responses are still delivered in order.
+   */
+  synchronized void setResponseDelay(long delayMs) {
+    responseDelayMs = delayMs;
+    if (delayExecutor == null && delayMs > 0) {
+      delayExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+  }
+
+  /**
+   * Stops the thread used for delayed responses, if any.
+   */
+  synchronized void close() {
+    if (delayExecutor != null) {
+      delayExecutor.shutdownNow();
+    }
+  }
+
+  public synchronized void dataSent(PipeTransport transport, byte[] bytes) {
+    transferCount++;
+    ByteArrayList responses = new ByteArrayList();
+    int commandSize;
+    for (int offset = 0; offset + CMD_SIZE <= bytes.length; offset += commandSize) {
+      commandSize = CMD_SIZE;
+      if ((bytes[offset] & 0xff) == CMD_EXTENDED) {
+        // Extended commands have their size after the header
+        commandSize = ((bytes[offset + 4] & 0xff) | ((bytes[offset + 5] & 0xff) << 8));
+      }
+      if (commandSize < CMD_SIZE || offset + commandSize > bytes.length) {
+        break;
+      }
+      commandCount++;
+      int size = responses.size();
+      handleCommand(ByteBuffer.wrap(bytes, offset, commandSize).slice()
+                        .order(ByteOrder.LITTLE_ENDIAN), responses);
+      if (responses.size() != size) {
+        answeredCount++;
+      }
+    }
+    if (responses.size() != 0) {
+      if (holdResponses) {
+        heldResponses.add(responses.toArray());
+      } else {
+        deliver(transport, responses.toArray());
+      }
+    }
+  }
+
+  /**
+   * Makes the device keep its responses until {@link #releaseResponses} is called, e.g. to check
+   * that several requests are outstanding at the same time.
+   */
+  synchronized void holdResponses() {
+    holdResponses = true;
+  }
+
+  /**
+   * Delivers all held responses and stops holding new ones.
+   */
+  synchronized void releaseResponses(PipeTransport transport) {
+    holdResponses = false;
+    for (byte[] response : heldResponses) {
+      transport.deliver(response);
+    }
+    heldResponses.clear();
+  }
+
+  /**
+   * Makes the device receive a message from the bus on the given channel.
+   */
+  synchronized void receive(PipeTransport transport, int channel, int id, boolean extended,
+                            byte[] data) {
+    ByteArrayList responses = new ByteArrayList();
+    addLogMessage(responses, channel, extended ? (id | 0x80000000) : id, (byte) data.length, data,
+                  (byte) 0);
+    transport.deliver(responses.toArray());
+  }
+
+  /**
+   * Makes the device receive messages from the bus on the given channel, which are delivered to
+   * the driver in one transfer.
+   */
+  synchronized void receive(PipeTransport transport, int channel, int[] ids, boolean extended,
+                            byte[] data) {
+    ByteArrayList responses = new ByteArrayList();
+    for (int id : ids) {
+      addLogMessage(responses, channel, extended ? (id | 0x80000000) : id, (byte) data.length,
+                    data, (byte) 0);
+    }
+    transport.deliver(responses.toArray());
+  }
+
+  private void deliver(final PipeTransport transport, final byte[] bytes) {
+    if (responseDelayMs > 0) {
+      delayExecutor.schedule(new Runnable() {
+        public void run() {
+          transport.deliver(bytes);
+        }
+      }, responseDelayMs, TimeUnit.MILLISECONDS);
+    } else {
+      transport.deliver(bytes);
+    }
+  }
+
+  private void handleCommand(ByteBuffer req, ByteArrayList responses) {
+    int cmd = req.get() & 0xff;
+    int destination = req.get() & 0x7f;
+    short transId = (short) (req.getShort() & 0x0fff);
+    int channel = destination - FIRST_CHANNEL_HE;
+    ticks += 100;
+
+    switch (cmd) {
+      case 200: { // CMD_MAP_CHANNEL_REQ
+        req.position(20);
+        int mappedChannel = req.get();
+        ByteBuffer resp = createResponse(201, ROUTER_HE, transId);
+        resp.put((byte) (mappedChannel < channelCount ? FIRST_CHANNEL_HE + mappedChannel
+                                                      : ILLEGAL_HE));
+        responses.add(resp);
+        break;
+      }
+
+      case 34: { // CMD_GET_CARD_INFO_REQ
+        ByteBuffer resp = createResponse(35, ILLEGAL_HE, transId);
+        resp.putInt(SERIAL_NUMBER);
+        resp.putInt(1);
+        resp.putInt(1400000000);
+        resp.put(EAN);
+        resp.put((byte) 1);
+        resp.put((byte) 1);
+        resp.put((byte) 64);
+        resp.put((byte) 0);
+        resp.put((byte) channelCount);
+        responses.add(resp);
+        resp = createResponse(32, ILLEGAL_HE, transId);
+        resp.put("PCB-SCRIPTED".getBytes());
+        responses.add(resp);
+        responses.add(createResponse(77, ILLEGAL_HE, transId));
+        break;
+      }
+
+      case 38: { // CMD_GET_SOFTWARE_INFO_REQ
+        ByteBuffer resp = createResponse(39, ILLEGAL_HE, transId);
+        resp.putInt(0);
+        resp.putInt(0);
+        resp.putShort((short) 300);
+        responses.add(resp);
+        break;
+      }
+
+      case 202: { // CMD_GET_SOFTWARE_DETAILS_REQ
+        ByteBuffer resp = createResponse(203, ILLEGAL_HE, transId);
+        resp.putInt(CmdGetSoftwareDetails.SWOPTION_AUTO_TX_BUFFER
+                    | CmdGetSoftwareDetails.SWOPTION_80_MHZ_CLK
+                    | CmdGetSoftwareDetails.SWOPTION_CAN_FD
+                    | CmdGetSoftwareDetails.SWOPTION_CAN_FD_NON_ISO);
+        resp.putInt(FIRMWARE_VERSION);
+        resp.putInt(0);
+        resp.putInt(0);
+        resp.putInt(0);
+        resp.putInt(1000000);
+        responses.add(resp);
+        break;
+      }
+
+      case 72: { // CMD_AUTO_TX_BUFFER_REQ
+        ByteBuffer resp = createResponse(73, destination, transId);
+        resp.put(CmdAutoTxBuffer.AUTOTXBUFFER_CMD_GET_INFO);
+        resp.put((byte) 8);
+        resp.putShort((short) 0);
+        resp.putInt(1);
+        responses.add(resp);
+        break;
+      }
+
+      case 16: // CMD_SET_BUSPARAMS_REQ
+        bitrate[channel] = req.getInt();
+        responses.add(createResponse(85, destination, transId));
+        break;
+
+      case 69: // CMD_SET_BUSPARAMS_FD_REQ
+        req.position(16);
+        dataBitrate[channel] = req.getInt();
+        canFdMode[channel] = req.get(24);
+        responses.add(createResponse(70, destination, transId));
+        break;
+
+      case 17: { // CMD_GET_BUSPARAMS_REQ
+        boolean dataPhase = req.get() == CmdGetBusParams.PARAM_TYPE_CAN_FD_DATA;
+        ByteBuffer resp = createResponse(18, destination, transId);
+        resp.putInt(dataPhase ? dataBitrate[channel] : bitrate[channel]);
+        resp.put((byte) 4);
+        resp.put((byte) 3);
+        resp.put((byte) 1);
+        resp.put((byte) 1);
+        resp.put((byte) channel);
+        responses.add(resp);
+        break;
+      }
+
+      case 26: // CMD_START_CHIP_REQ
+        busOn[channel] = true;
+        responses.add(createResponse(27, destination, transId));
+        addChipState(responses, channel, (byte) 0);
+        break;
+
+      case 28: // CMD_STOP_CHIP_REQ
+        busOn[channel] = false;
+        responses.add(createResponse(29, destination, transId));
+        addChipState(responses, channel, CmdChipState.BUS_STATUS_BUS_OFF_MASK);
+        break;
+
+      case 21: // CMD_SET_DRIVERMODE_REQ
+        driverMode[channel] = req.get();
+        break;
+
+      case 22: { // CMD_GET_DRIVERMODE_REQ
+        ByteBuffer resp = createResponse(23, destination, transId);
+        resp.put(driverMode[channel]);
+        resp.put((byte) channel);
+        responses.add(resp);
+        break;
+      }
+
+      case 101: // CMD_LED_ACTION_REQ
+        responses.add(createResponse(102, destination, transId));
+        break;
+
+      case 33: { // CMD_TX_CAN_MESSAGE
+        int id = req.getInt();
+        byte[] data = new byte[8];
+        req.get(data);
+        byte dlc = req.get();
+        byte flags = req.get();
+        ByteBuffer resp = createResponse(CmdTxCanMessage.CMD_TX_ACKNOWLEDGE, destination, transId);
+        resp.putInt(id);
+        resp.put(data);
+        resp.put(dlc);
+        resp.put(flags);
+        putTime(resp);
+        responses.add(resp);
+        for (int i = 0; i < channelCount; i++) {
+          if (i != channel && busOn[i]) {
+            addLogMessage(responses, i, id, dlc, data, flags);
+          }
+        }
+        break;
+      }
+
+      case CMD_EXTENDED:
+        if ((req.get(6) & 0xff) == (CmdTxCanMessageFd.CMD_TX_CAN_MESSAGE_FD & 0xff)) {
+          int id = req.getInt(12);
+          int kcanHeader = req.getInt(20);
+          int length = req.get(24) & 0xff;
+          byte[] data = new byte[length];
+          req.position(CmdTxCanMessageFd.EXT_MESSAGE_HEADER_SIZE);
+          req.get(data);
+          int flags = CmdTxCanMessageFd.FLAG_FDF;
+          if ((kcanHeader & CmdTxCanMessageFd.KCAN_HEADER_BRS) != 0) {
+            flags |= CmdTxCanMessageFd.FLAG_BRS;
+          }
+          if ((id & CmdTxCanMessageFd.EXTENDED_ID) != 0) {
+            flags |= CmdTxCanMessageFd.FLAG_EXTENDED_ID;
+          }
+          ByteBuffer resp = createExtendedResponse(CmdTxCanMessageFd.CMD_TX_ACKNOWLEDGE_FD, 24,
+                                                   destination, transId);
+          resp.putInt(flags | CmdTxCanMessageFd.FLAG_TX_ACK);
+          resp.putInt(0);
+          resp.putLong(ticks);
+          responses.add(resp);
+          for (int i = 0; i < channelCount; i++) {
+            if (i != channel && busOn[i]) {
+              addFdMessage(responses, i, id, kcanHeader, flags, data);
+            }
+          }
+        }
+        break;
+
+      default:
+        break;
+    }
+  }
+
+  private void addFdMessage(ByteArrayList responses, int channel, int id, int kcanHeader,
+                            int flags, byte[] data) {
+    // The data is padded to a multiple of 8 bytes like in the device
+    int size = CmdTxCanMessageFd.EXT_MESSAGE_HEADER_SIZE + ((data.length + 7) & ~7);
+    ByteBuffer resp = createExtendedResponse(CmdTxCanMessageFd.CMD_RX_MESSAGE_FD, size,
+                                             FIRST_CHANNEL_HE + channel, (short) 0);
+    resp.putInt(flags);
+    resp.putInt(id);
+    resp.putInt(id);
+    resp.putInt(kcanHeader & ~CmdTxCanMessageFd.KCAN_HEADER_AREQ);
+    resp.putLong(ticks);
+    resp.put(data);
+    responses.add(resp);
+  }
+
+  private void addChipState(ByteArrayList responses, int channel, byte busStatus) {
+    ByteBuffer resp = createResponse(CmdChipState.CMD_CHIP_STATE_EVENT, FIRST_CHANNEL_HE + channel,
+                                     (short) 0);
+    putTime(resp);
+    resp.put((byte) 0);
+    resp.put((byte) 0);
+    resp.put(busStatus);
+    resp.put((byte) channel);
+    responses.add(resp);
+  }
+
+  private void addLogMessage(ByteArrayList responses, int channel, int id, byte dlc, byte[] data,
+                             byte flags) {
+    ByteBuffer resp = createResponse(CmdLogMessage.CMD_LOG_MESSAGE, FIRST_CHANNEL_HE + channel,
+                                     (short) 0);
+    resp.put((byte) 0);
+    resp.put((byte) 0);
+    resp.put((byte) channel);
+    resp.put(flags);
+    putTime(resp);
+    resp.put(dlc);
+    resp.put((byte) 0);
+    resp.putInt(id);
+    resp.put(Arrays.copyOf(data, 8));
+    responses.add(resp);
+  }
+
+  private void putTime(ByteBuffer resp) {
+    int time = ticks;
+    resp.putShort((short) time);
+    resp.putShort((short) (time >>> 16));
+    resp.putShort((short) 0);
+  }
+
+  private static ByteBuffer createResponse(int cmd, int sourceHe, short transId) {
+    return createResponse(cmd, CMD_SIZE, sourceHe, transId);
+  }
+
+  private static ByteBuffer createResponse(int cmd, int size, int sourceHe, short transId) {
+    ByteBuffer resp = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    resp.put((byte) cmd);
+    resp.put((byte) ((sourceHe & 0x30) << 2));
+    resp.putShort((short) ((transId & 0x0fff) | ((sourceHe & 0x0f) << 12)));
+    return resp;
+  }
+
+  private static ByteBuffer createExtendedResponse(byte extendedCmd, int size, int sourceHe,
+                                                   short transId) {
+    ByteBuffer resp = createResponse(CMD_EXTENDED, size, sourceHe, transId);
+    resp.putShort((short) size);
+    resp.put(extendedCmd);
+    resp.put((byte) 0);
+    return resp;
+  }
+
+  /**
+   * Collects the responses to one transfer so that they are delivered as one transfer.
+   */
+  private static class ByteArrayList {
+
+    private byte[] bytes = new byte[4 * CMD_SIZE];
+    private int size = 0;
+
+    void add(ByteBuffer resp) {
+      int length = resp.capacity();
+      if (size + length > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+      }
+      System.arraycopy(resp.array(), 0, bytes, size, length);
+      size += length;
+    }
+
+    int size() {
+      return size;
+    }
+
+    byte[] toArray() {
+      return Arrays.copyOf(bytes, size);
+    }
+  }
+}
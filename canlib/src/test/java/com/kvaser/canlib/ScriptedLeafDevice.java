@@ -0,0 +1,360 @@
+package com.kvaser.canlib;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A scripted Leaf (KCanl) device for running the KCanl driver over a PipeTransport. The device
+ * answers the commands used by the driver, acknowledges transmitted messages and echoes them to all
+ * other channels that are bus on, like a bus where all channels are connected.
+ */
+class ScriptedLeafDevice implements PipeTransport.Peer {
+
+  static final int SERIAL_NUMBER = 54321;
+  static final int FIRMWARE_VERSION = (2 << 24) | (5 << 16) | 313;
+  static final byte[] EAN = {0x11, 0x22, 0x33, 0x44, 0x55, 0x33, 0x07, 0x00};
+
+  private final int channelCount;
+  private final boolean[] busOn;
+  private final int[] bitrate;
+  private final byte[] driverMode;
+  private volatile int ticks = 0;
+  private volatile long commandCount = 0;
+  private volatile long transferCount = 0;
+  private volatile long answeredCount = 0;
+  private long responseDelayMs = 0;
+  private ScheduledExecutorService delayExecutor;
+  private boolean holdResponses = false;
+  private final List<ByteBuffer> heldResponses = new ArrayList<>();
+
+  ScriptedLeafDevice(int channelCount) {
+    this.channelCount = channelCount;
+    busOn = new boolean[channelCount];
+    bitrate = new int[channelCount];
+    driverMode = new byte[channelCount];
+    Arrays.fill(bitrate, 125000);
+    Arrays.fill(driverMode, (byte) 1);
+  }
+
+  /**
+   * Returns the number of commands the device has received.
+   */
+  long getCommandCount() {
+    return commandCount;
+  }
+
+  /**
+   * Returns the number of transfers the device has received, each holding one or more commands.
+   */
+  long getTransferCount() {
+    return transferCount;
+  }
+
+  /**
+   * Returns the number of commands the device has responded to.
+   */
+  long getAnsweredCount() {
+    return answeredCount;
+  }
+
+  /**
+   * Makes the device deliver its responses the given time after the commands were received, like
+   * the round-trip time of a real device. The responses are still delivered in order.
+   */
+  synchronized void setResponseDelay(long delayMs) {
+    responseDelayMs = delayMs;
+    if (delayExecutor == null && delayMs > 0) {
+      delayExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+  }
+
+  /**
+   * Stops the thread used for delayed responses, if any.
+   */
+  synchronized void close() {
+    if (delayExecutor != null) {
+      delayExecutor.shutdownNow();
+    }
+  }
+
+  public synchronized void dataSent(PipeTransport transport, byte[] bytes) {
+    transferCount++;
+    List<ByteBuffer> responses = new ArrayList<>();
+    int offset = 0;
+    while (offset + 2 <= bytes.length && bytes[offset] != 0) {
+      int length = bytes[offset] & 0xff;
+      commandCount++;
+      int size = responses.size();
+      handleCommand(ByteBuffer.wrap(bytes, offset, length).slice().order(ByteOrder.LITTLE_ENDIAN),
+                    responses);
+      if (responses.size() != size) {
+        answeredCount++;
+      }
+      offset += length;
+    }
+    if (holdResponses) {
+      heldResponses.addAll(responses);
+    } else {
+      deliver(transport, responses);
+    }
+  }
+
+  /**
+   * Makes the device keep its responses until {@link #releaseResponses} is called, e.g. to check
+   * that the transmit requests of the driver are outstanding.
+   */
+  synchronized void holdResponses() {
+    holdResponses = true;
+  }
+
+  /**
+   * Delivers all held responses and stops holding new ones.
+   */
+  synchronized void releaseResponses(PipeTransport transport) {
+    holdResponses = false;
+    deliver(transport, heldResponses);
+    heldResponses.clear();
+  }
+
+  /**
+   * Makes the device receive a message from the bus on the given channel.
+   */
+  synchronized void receive(PipeTransport transport, int channel, int id, boolean extended,
+                            byte[] data) {
+    List<ByteBuffer> responses = new ArrayList<>();
+    addRxMessage(responses, channel, id, extended, (byte) data.length, data, (byte) 0);
+    deliver(transport, responses);
+  }
+
+  /**
+   * Makes the device receive messages from the bus on the given channel, which are delivered to
+   * the driver in one transfer.
+   */
+  synchronized void receive(PipeTransport transport, int channel, int[] ids, boolean extended,
+                            byte[] data) {
+    List<ByteBuffer> responses = new ArrayList<>();
+    for (int id : ids) {
+      addRxMessage(responses, channel, id, extended, (byte) data.length, data, (byte) 0);
+    }
+    deliver(transport, responses);
+  }
+
+  private void handleCommand(ByteBuffer req, List<ByteBuffer> responses) {
+    req.get(); // length
+    int cmd = req.get() & 0xff;
+    ticks += 100;
+
+    switch (cmd) {
+      case 34: { // CMD_GET_CARD_INFO_REQ
+        byte tId = req.get();
+        ByteBuffer resp = createResponse(32, 35, tId);
+        resp.put((byte) channelCount);
+        resp.putInt(SERIAL_NUMBER);
+        resp.putInt(0);
+        resp.putInt(1);
+        resp.putInt(1400000000);
+        resp.put(EAN);
+        resp.put((byte) 1);
+        resp.put((byte) 1);
+        resp.put((byte) 48);
+        responses.add(resp);
+        break;
+      }
+
+      case 38: { // CMD_GET_SOFTWARE_INFO_REQ
+        byte tId = req.get();
+        ByteBuffer resp = createResponse(32, 39, tId);
+        resp.put((byte) 0);
+        resp.putInt(0x20); // 32 MHz, no auto tx buffers
+        resp.putInt(FIRMWARE_VERSION);
+        resp.putShort((short) 200);
+        responses.add(resp);
+        break;
+      }
+
+      case 24: // CMD_RESET_CHIP_REQ
+        break;
+
+      case 16: { // CMD_SET_BUSPARAMS_REQ
+        req.get(); // tId
+        int channel = req.get();
+        bitrate[channel] = req.getInt();
+        break;
+      }
+
+      case 17: { // CMD_GET_BUSPARAMS_REQ
+        byte tId = req.get();
+        int channel = req.get();
+        ByteBuffer resp = createResponse(12, 18, tId);
+        resp.put((byte) channel);
+        resp.putInt(bitrate[channel]);
+        resp.put((byte) 4);
+        resp.put((byte) 3);
+        resp.put((byte) 1);
+        resp.put((byte) 1);
+        responses.add(resp);
+        break;
+      }
+
+      case 21: { // CMD_SET_DRIVERMODE_REQ
+        req.get(); // tId
+        int channel = req.get();
+        driverMode[channel] = req.get();
+        break;
+      }
+
+      case 22: { // CMD_GET_DRIVERMODE_REQ
+        byte tId = req.get();
+        int channel = req.get();
+        ByteBuffer resp = createResponse(8, 23, tId);
+        resp.put((byte) channel);
+        resp.put(driverMode[channel]);
+        responses.add(resp);
+        break;
+      }
+
+      case 26: { // CMD_START_CHIP_REQ
+        byte tId = req.get();
+        int channel = req.get();
+        busOn[channel] = true;
+        ByteBuffer resp = createResponse(4, 27, tId);
+        resp.put((byte) channel);
+        responses.add(resp);
+        addChipState(responses, channel, (byte) 0);
+        break;
+      }
+
+      case 28: { // CMD_STOP_CHIP_REQ
+        byte tId = req.get();
+        int channel = req.get();
+        busOn[channel] = false;
+        ByteBuffer resp = createResponse(4, 29, tId);
+        resp.put((byte) channel);
+        responses.add(resp);
+        addChipState(responses, channel, (byte) 0x40);
+        break;
+      }
+
+      case 101: { // CMD_LED_ACTION_REQ
+        byte tId = req.get();
+        responses.add(createResponse(4, 102, tId));
+        break;
+      }
+
+      case 13:   // CMD_TX_STD_MESSAGE
+      case 15: { // CMD_TX_EXT_MESSAGE
+        int channel = req.get();
+        byte tId = req.get();
+        byte[] rawId = new byte[5];
+        req.get(rawId);
+        byte dlc = req.get();
+        byte[] data = new byte[8];
+        req.get(data);
+        req.get(); // padding
+        byte flags = req.get();
+
+        ByteBuffer resp = createResponse(12, 50, (byte) channel);
+        resp.put(tId);
+        putTime(resp);
+        resp.put(flags);
+        resp.put((byte) 0);
+        responses.add(resp);
+
+        int id;
+        if (cmd == 15) {
+          id = ((rawId[0] & 0x1f) << 24) | ((rawId[1] & 0x3f) << 18) | ((rawId[2] & 0x0f) << 14)
+               | ((rawId[3] & 0xff) << 6) | (rawId[4] & 0x3f);
+        } else {
+          id = ((rawId[0] & 0x1f) << 6) | (rawId[1] & 0x3f);
+        }
+        for (int i = 0; i < channelCount; i++) {
+          if (i != channel && busOn[i]) {
+            addRxMessage(responses, i, id, cmd == 15, dlc, data, flags);
+          }
+        }
+        break;
+      }
+
+      default:
+        break;
+    }
+  }
+
+  private void addChipState(List<ByteBuffer> responses, int channel, byte busStatus) {
+    ByteBuffer resp = createResponse(16, 20, (byte) 0);
+    resp.put((byte) channel);
+    putTime(resp);
+    resp.put((byte) 0);
+    resp.put((byte) 0);
+    resp.put(busStatus);
+    responses.add(resp);
+  }
+
+  private void addRxMessage(List<ByteBuffer> responses, int channel, int id, boolean extended,
+                            byte dlc, byte[] data, byte flags) {
+    ByteBuffer resp = createResponse(24, extended ? 14 : 12, (byte) channel);
+    resp.put(flags);
+    putTime(resp);
+    if (extended) {
+      resp.put((byte) ((id >>> 24) & 0x1f));
+      resp.put((byte) ((id >>> 18) & 0x3f));
+      resp.put((byte) ((id >>> 14) & 0x0f));
+      resp.put((byte) ((id >>> 6) & 0xff));
+      resp.put((byte) (id & 0x3f));
+    } else {
+      resp.put((byte) ((id >>> 6) & 0x1f));
+      resp.put((byte) (id & 0x3f));
+      resp.put((byte) 0);
+      resp.put((byte) 0);
+      resp.put((byte) 0);
+    }
+    resp.put(dlc);
+    resp.put(Arrays.copyOf(data, 8));
+    responses.add(resp);
+  }
+
+  private void putTime(ByteBuffer resp) {
+    int time = ticks;
+    resp.putShort((short) time);
+    resp.putShort((short) (time >>> 16));
+    resp.putShort((short) 0);
+  }
+
+  private static ByteBuffer createResponse(int length, int cmd, byte thirdByte) {
+    ByteBuffer resp = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    resp.put((byte) length);
+    resp.put((byte) cmd);
+    resp.put(thirdByte);
+    return resp;
+  }
+
+  /**
+   * Delivers the responses as one transfer, just like the Leaf firmware packs several packages in
+   * one USB packet.
+   */
+  private void deliver(final PipeTransport transport, List<ByteBuffer> responses) {
+    if (responses.isEmpty()) {
+      return;
+    }
+    int size = 0;
+    for (ByteBuffer resp : responses) {
+      size += resp.capacity();
+    }
+    final byte[] bytes = new byte[size];
+    int offset = 0;
+    for (ByteBuffer resp : responses) {
+      System.arraycopy(resp.array(), 0, bytes, offset, resp.capacity());
+      offset += resp.capacity();
+    }
+    if (responseDelayMs > 0) {
+      delayExecutor.schedule(new Runnable() {
+        public void run() {
+          transport.deliver(bytes);
+        }
+      }, responseDelayMs, TimeUnit.MILLISECONDS);
+    } else {
+      transport.deliver(bytes);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package com.kvaser.canlib;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * A ReceivePort that simulates a device with a bounded transmit FIFO that is filled with 32 byte
+ * frames at a fixed rate. The host controller moves the frames in the FIFO to the oldest queued
+ * request as soon as there are any, taking a fixed time per transfer. Frames that arrive while the
+ * FIFO is full are lost and counted as overruns.
+ * <p>
+ * The simulation runs in virtual time, so that the result does not depend on the speed or load of
+ * the machine running it. The listeners account for their processing time by calling consume(),
+ * and requestWait() reports the port as closed once the run time has passed.
+ */
+class SimulatedReceivePort implements ReceivePort {
+
+  static final int FRAME_SIZE = 32;
+
+  private final long framePeriodNanos;
+  private final int fifoCapacity;
+  private final long transferNanos;
+  private final long runTimeNanos;
+  private final ArrayDeque<long[]> queued = new ArrayDeque<>();
+  private final ByteBuffer[] buffers = new ByteBuffer[64];
+  private long now = 0;
+  private long hostFreeTime = 0;
+  private long producedFrames = 0;
+  private long fifoLevel = 0;
+  private long overrunFrames = 0;
+  private long transferredFrames = 0;
+  private boolean closed = false;
+
+  /**
+   * @param frameRate     The number of frames per second the device produces.
+   * @param fifoCapacity  The number of frames the device FIFO can hold.
+   * @param transferNanos The time one transfer takes on the bus.
+   * @param runTimeNanos  The virtual time after which the port is closed.
+   */
+  SimulatedReceivePort(int frameRate, int fifoCapacity, long transferNanos, long runTimeNanos) {
+    this.framePeriodNanos = 1000000000L / frameRate;
+    this.fifoCapacity = fifoCapacity;
+    this.transferNanos = transferNanos;
+    this.runTimeNanos = runTimeNanos;
+  }
+
+  public synchronized boolean queue(int requestIndex, ByteBuffer buffer) {
+    if (closed) {
+      return false;
+    }
+    buffers[requestIndex] = buffer;
+    queued.add(new long[] {requestIndex, now});
+    return true;
+  }
+
+  public synchronized int requestWait() {
+    if (closed || queued.isEmpty()) {
+      return -1;
+    }
+    long[] request = queued.poll();
+    int requestIndex = (int) request[0];
+    ByteBuffer buffer = buffers[requestIndex];
+
+    // The host controller starts the transfer when it is done with the previous one, the request
+    // has been queued and the device has at least one frame to send
+    long start = Math.max(hostFreeTime, request[1]);
+    updateFifo(start);
+    if (fifoLevel == 0) {
+      start = (producedFrames + 1) * framePeriodNanos;
+      updateFifo(start);
+    }
+    long frames = Math.min(fifoLevel, buffer.remaining() / FRAME_SIZE);
+    fifoLevel -= frames;
+    hostFreeTime = start + transferNanos;
+    if (hostFreeTime > runTimeNanos) {
+      close();
+      return -1;
+    }
+
+    transferredFrames += frames;
+    for (int i = 0; i < frames; i++) {
+      buffer.put((byte) 106);
+      buffer.position(buffer.position() + FRAME_SIZE - 1);
+    }
+    now = Math.max(now, hostFreeTime);
+    return requestIndex;
+  }
+
+  public synchronized void close() {
+    closed = true;
+  }
+
+  /**
+   * Lets virtual time pass, called by the listeners to account for their processing time.
+   *
+   * @param nanos The processing time in nanoseconds.
+   */
+  synchronized void consume(long nanos) {
+    now += nanos;
+  }
+
+  synchronized long getOverrunFrames() {
+    return overrunFrames;
+  }
+
+  synchronized long getTransferredFrames() {
+    return transferredFrames;
+  }
+
+  private void updateFifo(long time) {
+    long produced = time / framePeriodNanos;
+    fifoLevel += produced - producedFrames;
+    producedFrames = produced;
+    if (fifoLevel > fifoCapacity) {
+      overrunFrames += fifoLevel - fifoCapacity;
+      fifoLevel = fifoCapacity;
+    }
+  }
+}